@@ -2,6 +2,8 @@ package com.limelight;
 
 
 import com.limelight.binding.PlatformBinding;
+import com.limelight.binding.AvSyncMonitor;
+import com.limelight.binding.audio.AAudioRenderer;
 import com.limelight.binding.audio.AndroidAudioRenderer;
 import com.limelight.binding.input.ControllerHandler;
 import com.limelight.binding.input.KeyboardTranslator;
@@ -17,9 +19,11 @@ import com.limelight.binding.video.CrashListener;
 import com.limelight.binding.video.MediaCodecDecoderRenderer;
 import com.limelight.binding.video.MediaCodecHelper;
 import com.limelight.binding.video.PerfOverlayListener;
+import com.limelight.binding.video.StreamQualityListener;
 import com.limelight.nvstream.NvConnection;
 import com.limelight.nvstream.NvConnectionListener;
 import com.limelight.nvstream.StreamConfiguration;
+import com.limelight.nvstream.av.telemetry.TelemetryRecorder;
 import com.limelight.nvstream.http.ComputerDetails;
 import com.limelight.nvstream.http.NvApp;
 import com.limelight.nvstream.http.NvHTTP;
@@ -80,6 +84,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.cert.CertificateException;
@@ -91,7 +97,7 @@ import java.util.Locale;
 public class Game extends Activity implements SurfaceHolder.Callback,
         OnGenericMotionListener, OnTouchListener, NvConnectionListener, EvdevListener,
         OnSystemUiVisibilityChangeListener, GameGestures, StreamView.InputCallbacks,
-        PerfOverlayListener, UsbDriverService.UsbDriverStateListener, View.OnKeyListener {
+        PerfOverlayListener, StreamQualityListener, UsbDriverService.UsbDriverStateListener, View.OnKeyListener {
     private int lastButtonState = 0;
 
     // Only 2 touches are supported
@@ -148,8 +154,18 @@ public class Game extends Activity implements SurfaceHolder.Callback,
     private TextView performanceOverlayView;
 
     private MediaCodecDecoderRenderer decoderRenderer;
+    private AndroidAudioRenderer audioRenderer;
+    private AvSyncMonitor avSyncMonitor;
+    private TelemetryRecorder telemetryRecorder;
     private boolean reportedCrash;
 
+    // Stream quality adaptation state, carried over when we reconnect with new settings
+    private int qualityBitrateSteps;
+    private int qualityResolutionSteps;
+    private boolean qualityRaiseAllowed;
+    private boolean qualityLastChangeRaised;
+    private int qualityBaseWidth, qualityBaseHeight;
+
     private WifiManager.WifiLock highPerfWifiLock;
     private WifiManager.WifiLock lowLatencyWifiLock;
 
@@ -180,6 +196,17 @@ public class Game extends Activity implements SurfaceHolder.Callback,
     public static final String EXTRA_PC_NAME = "PcName";
     public static final String EXTRA_APP_HDR = "HDR";
     public static final String EXTRA_SERVER_CERT = "ServerCert";
+    private static final String EXTRA_QUALITY_BITRATE_STEPS = "QualityBitrateSteps";
+    private static final String EXTRA_QUALITY_RESOLUTION_STEPS = "QualityResolutionSteps";
+    private static final String EXTRA_QUALITY_RAISE_ALLOWED = "QualityRaiseAllowed";
+    private static final String EXTRA_QUALITY_LAST_CHANGE_RAISED = "QualityLastChangeRaised";
+
+    // Each bitrate step reduces the bitrate to this percentage of the last step
+    private static final int QUALITY_BITRATE_STEP_PERCENT = 70;
+    private static final int QUALITY_MIN_BITRATE_KBPS = 1000;
+
+    // Resolution steps go down through these heights, keeping the aspect ratio
+    private static final int[] QUALITY_RESOLUTION_HEIGHTS = {1440, 1080, 720, 540, 360};
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -219,6 +246,17 @@ public class Game extends Activity implements SurfaceHolder.Callback,
         prefConfig = PreferenceConfiguration.readPreferences(this);
         tombstonePrefs = Game.this.getSharedPreferences("DecoderTombstone", 0);
 
+        // Apply any stream quality changes from before we reconnected
+        if (prefConfig.adaptiveQuality) {
+            qualityBitrateSteps = getIntent().getIntExtra(EXTRA_QUALITY_BITRATE_STEPS, 0);
+            qualityResolutionSteps = getIntent().getIntExtra(EXTRA_QUALITY_RESOLUTION_STEPS, 0);
+            qualityRaiseAllowed = getIntent().getBooleanExtra(EXTRA_QUALITY_RAISE_ALLOWED, true);
+            qualityLastChangeRaised = getIntent().getBooleanExtra(EXTRA_QUALITY_LAST_CHANGE_RAISED, false);
+            qualityBaseWidth = prefConfig.width;
+            qualityBaseHeight = prefConfig.height;
+            applyStreamQualitySteps();
+        }
+
         // Enter landscape unless we're on a square screen
         setPreferredOrientationForCurrentDisplay();
 
@@ -392,6 +430,9 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                 willStreamHdr,
                 glPrefs.glRenderer,
                 this);
+        if (prefConfig.adaptiveQuality) {
+            decoderRenderer.setStreamQualityListener(this);
+        }
 
         // Don't stream HDR if the decoder can't support it
         if (willStreamHdr && !decoderRenderer.isHevcMain10Hdr10Supported() && !decoderRenderer.isAv1Main10Supported()) {
@@ -777,7 +818,9 @@ public class Game extends Activity implements SurfaceHolder.Callback,
     private boolean mayReduceRefreshRate() {
         return prefConfig.framePacing == PreferenceConfiguration.FRAME_PACING_CAP_FPS ||
                 prefConfig.framePacing == PreferenceConfiguration.FRAME_PACING_MAX_SMOOTHNESS ||
-                (prefConfig.framePacing == PreferenceConfiguration.FRAME_PACING_BALANCED && prefConfig.reduceRefreshRate);
+                ((prefConfig.framePacing == PreferenceConfiguration.FRAME_PACING_BALANCED ||
+                        prefConfig.framePacing == PreferenceConfiguration.FRAME_PACING_ADAPTIVE ||
+                        prefConfig.framePacing == PreferenceConfiguration.FRAME_PACING_JITTER_BUFFER) && prefConfig.reduceRefreshRate);
     }
 
     private float prepareDisplayForRendering() {
@@ -1121,6 +1164,10 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     }
 
                     message += "]";
+
+                    if (avSyncMonitor != null && avSyncMonitor.hasMeasurements()) {
+                        message += " "+getResources().getString(R.string.conn_av_offset)+" "+avSyncMonitor.getAverageOffsetMs()+" ms";
+                    }
                 }
 
                 if (message != null) {
@@ -2221,9 +2268,15 @@ public class Game extends Activity implements SurfaceHolder.Callback,
             // thread to keep things smooth for the UI. Inside moonlight-common,
             // we prevent another thread from starting a connection before and
             // during the process of stopping this one.
+            final TelemetryRecorder recorder = telemetryRecorder;
             new Thread() {
                 public void run() {
                     conn.stop();
+
+                    // The renderers are stopped now, so no more records will be written
+                    if (recorder != null) {
+                        recorder.close();
+                    }
                 }
             }.start();
         }
@@ -2495,9 +2548,30 @@ public class Game extends Activity implements SurfaceHolder.Callback,
             // Update GameManager state to indicate we're "loading" while connecting
             UiHelper.notifyStreamConnecting(Game.this);
 
+            // AAudio can't apply audio effects either, so the system equalizer needs AudioTrack
+            if (prefConfig.lowLatencyAudio && !prefConfig.enableAudioFx && AAudioRenderer.isSupported()) {
+                audioRenderer = new AAudioRenderer(Game.this);
+            }
+            else {
+                audioRenderer = new AndroidAudioRenderer(Game.this, prefConfig.enableAudioFx);
+            }
+            audioRenderer.setSurroundDownmix(prefConfig.surroundDownmix);
+            audioRenderer.setPreferFloatOutput(prefConfig.floatAudio);
+            avSyncMonitor = new AvSyncMonitor(audioRenderer, prefConfig.avSyncCorrection);
+            decoderRenderer.setAvSyncMonitor(avSyncMonitor);
+            if (prefConfig.enableTelemetryLog) {
+                try {
+                    telemetryRecorder = TelemetryRecorder.create(new File(getCacheDir(), "telemetry"));
+                    decoderRenderer.setTelemetryRecorder(telemetryRecorder);
+                    audioRenderer.setTelemetryRecorder(telemetryRecorder);
+                } catch (IOException e) {
+                    // Streaming without a log is better than not streaming at all
+                    e.printStackTrace();
+                }
+            }
+
             decoderRenderer.setRenderTarget(holder);
-            conn.start(new AndroidAudioRenderer(Game.this, prefConfig.enableAudioFx),
-                    decoderRenderer, Game.this);
+            conn.start(audioRenderer, decoderRenderer, Game.this);
         }
     }
 
@@ -2636,16 +2710,130 @@ public class Game extends Activity implements SurfaceHolder.Callback,
         }
     }
 
-    @Override
-    public void onPerfUpdate(final String text) {
+    private int getQualityResolutionHeight(int resolutionSteps) {
+        if (resolutionSteps == 0) {
+            return qualityBaseHeight;
+        }
+
+        // Only count the heights below the one the user picked
+        for (int height : QUALITY_RESOLUTION_HEIGHTS) {
+            if (height < qualityBaseHeight && --resolutionSteps == 0) {
+                return height;
+            }
+        }
+
+        return -1;
+    }
+
+    private void applyStreamQualitySteps() {
+        if (qualityResolutionSteps > 0) {
+            int height = getQualityResolutionHeight(qualityResolutionSteps);
+
+            // Keep the width even, since some decoders can't handle odd widths
+            int width = (int)((long)qualityBaseWidth * height / qualityBaseHeight) & ~1;
+
+            // Don't keep the bitrate of the higher resolution, since the decoder has
+            // to process all of it
+            int bitrate = PreferenceConfiguration.getDefaultBitrate(width+"x"+height, Integer.toString(prefConfig.fps));
+            prefConfig.bitrate = Math.min(prefConfig.bitrate, bitrate);
+
+            prefConfig.width = width;
+            prefConfig.height = height;
+        }
+        for (int i = 0; i < qualityBitrateSteps; i++) {
+            prefConfig.bitrate = prefConfig.bitrate * QUALITY_BITRATE_STEP_PERCENT / 100;
+        }
+
+        if (qualityBitrateSteps > 0 || qualityResolutionSteps > 0) {
+            LimeLog.info("Adapted stream quality: "+prefConfig.width+"x"+prefConfig.height+
+                    " at "+prefConfig.bitrate+" Kbps");
+        }
+    }
+
+    // Reconnect with the new quality steps, which the host will treat as resuming the app
+    private void restartWithStreamQuality(final int bitrateSteps, final int resolutionSteps, final boolean raised) {
+        final Intent intent = new Intent(getIntent());
+        intent.putExtra(EXTRA_QUALITY_BITRATE_STEPS, bitrateSteps);
+        intent.putExtra(EXTRA_QUALITY_RESOLUTION_STEPS, resolutionSteps);
+
+        // If we have to go back down right after going up, the higher settings aren't
+        // sustainable, so stay where we are for the rest of this session.
+        intent.putExtra(EXTRA_QUALITY_RAISE_ALLOWED, qualityRaiseAllowed && (raised || !qualityLastChangeRaised));
+        intent.putExtra(EXTRA_QUALITY_LAST_CHANGE_RAISED, raised);
+
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                performanceOverlayView.setText(text);
+                if (!connected) {
+                    return;
+                }
+
+                displayTransientMessage(getResources().getString(raised ?
+                        R.string.adaptive_quality_raise_msg : R.string.adaptive_quality_lower_msg));
+
+                // Stopping the connection is handled by onStop()
+                finish();
+                startActivity(intent);
             }
         });
     }
 
+    @Override
+    public boolean onDecoderOverloaded() {
+        if (getQualityResolutionHeight(qualityResolutionSteps + 1) < 0) {
+            // Already at the lowest resolution, so try the bitrate instead
+            return onNetworkCongested();
+        }
+
+        restartWithStreamQuality(qualityBitrateSteps, qualityResolutionSteps + 1, false);
+        return true;
+    }
+
+    @Override
+    public boolean onNetworkCongested() {
+        if (prefConfig.bitrate * QUALITY_BITRATE_STEP_PERCENT / 100 < QUALITY_MIN_BITRATE_KBPS) {
+            return false;
+        }
+
+        restartWithStreamQuality(qualityBitrateSteps + 1, qualityResolutionSteps, false);
+        return true;
+    }
+
+    @Override
+    public boolean onHeadroomAvailable() {
+        if (!qualityRaiseAllowed) {
+            return false;
+        }
+
+        // Undo resolution changes first, since they're the most noticeable
+        if (qualityResolutionSteps > 0) {
+            restartWithStreamQuality(qualityBitrateSteps, qualityResolutionSteps - 1, true);
+        }
+        else if (qualityBitrateSteps > 0) {
+            restartWithStreamQuality(qualityBitrateSteps - 1, qualityResolutionSteps, true);
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void onPerfUpdate(final String text) {
+        String audioText = audioRenderer != null ? audioRenderer.getPerfOverlayText() : null;
+        if (audioText != null && avSyncMonitor != null && avSyncMonitor.hasMeasurements()) {
+            audioText += '\n' + getString(R.string.perf_overlay_av_sync,
+                    avSyncMonitor.getOffsetMs(), avSyncMonitor.getSyncDelayMs());
+        }
+
+        if (audioText != null) {
+            performanceOverlayView.setText(text + '\n' + audioText);
+        }
+        else {
+            performanceOverlayView.setText(text);
+        }
+    }
+
     @Override
     public void onUsbPermissionPromptStarting() {
         // Disable PiP auto-enter while the USB permission prompt is on-screen. This prevents
@@ -6,6 +6,7 @@ import java.net.UnknownHostException;
 
 import com.limelight.binding.PlatformBinding;
 import com.limelight.binding.crypto.AndroidCryptoProvider;
+import com.limelight.binding.video.DecoderLatencyProbe;
 import com.limelight.computers.ComputerManagerListener;
 import com.limelight.computers.ComputerManagerService;
 import com.limelight.grid.PcGridAdapter;
@@ -243,6 +244,9 @@ public class PcView extends Activity implements AdapterFragmentCallbacks {
         pcGridAdapter = new PcGridAdapter(this, PreferenceConfiguration.readPreferences(this));
 
         initializeViews();
+
+        // Measure decoder latency in the background if it's enabled and we haven't yet
+        DecoderLatencyProbe.startIfNeeded(this);
     }
 
     private void startComputerUpdates() {
@@ -308,6 +312,12 @@ public class PcView extends Activity implements AdapterFragmentCallbacks {
 
         inForeground = true;
         startComputerUpdates();
+
+        // Decoder calibration may have just been enabled in the settings. This needs the
+        // GL renderer, so wait for completeOnCreate() if we're still fetching it.
+        if (completeOnCreateCalled) {
+            DecoderLatencyProbe.startIfNeeded(this);
+        }
     }
 
     @Override
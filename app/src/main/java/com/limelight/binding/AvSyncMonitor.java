@@ -0,0 +1,98 @@
+package com.limelight.binding;
+
+import com.limelight.binding.audio.AndroidAudioRenderer;
+
+// Estimates how far audio is ahead of video by comparing how long each takes from the
+// host to the screen or speaker. Video's path is the host's processing time, the time
+// until the frame is complete, and the time until it's rendered. Audio's path is the
+// time spent waiting to be decoded plus the output latency reported by the audio device.
+// Both streams spend about the same time on the network, so that part cancels out.
+//
+// If correction is enabled, audio is delayed by up to MAX_SYNC_DELAY_MS when it's ahead.
+// We never delay video to catch up with audio, since that would add input latency.
+//
+// Updated on the video decoder thread about once a second.
+public class AvSyncMonitor {
+    // Offsets smaller than this can't be noticed, so we leave them alone
+    private static final int DEAD_BAND_MS = 10;
+
+    // The most we'll change the audio delay per update, which the audio latency controller
+    // can absorb without dropping packets
+    private static final int MAX_STEP_MS = 5;
+    private static final int MAX_SYNC_DELAY_MS = 100;
+
+    // Weight of each new measurement in the smoothed offset
+    private static final float SMOOTHING = 0.25f;
+
+    private final AndroidAudioRenderer audioRenderer;
+    private final boolean correctionEnabled;
+
+    private volatile float offsetMs;
+    private volatile int syncDelayMs;
+    private boolean hasOffset;
+
+    private long totalOffsetMs;
+    private int maxAbsOffsetMs;
+    private volatile int measurements;
+
+    public AvSyncMonitor(AndroidAudioRenderer audioRenderer, boolean correctionEnabled) {
+        this.audioRenderer = audioRenderer;
+        this.correctionEnabled = correctionEnabled;
+    }
+
+    // Called with the median time from the host capturing a frame to us rendering it
+    public void onVideoLatency(int videoLatencyMs) {
+        int audioLatencyMs = audioRenderer.getAudioPathLatencyMs();
+        if (audioLatencyMs < 0) {
+            // The audio device hasn't reported its latency yet
+            return;
+        }
+
+        int offset = videoLatencyMs - audioLatencyMs;
+        if (!hasOffset) {
+            offsetMs = offset;
+            hasOffset = true;
+        }
+        else {
+            offsetMs += (offset - offsetMs) * SMOOTHING;
+        }
+
+        synchronized (this) {
+            totalOffsetMs += offset;
+            maxAbsOffsetMs = Math.max(maxAbsOffsetMs, Math.abs(offset));
+            measurements++;
+        }
+
+        if (correctionEnabled && audioRenderer.canDelayAudio()) {
+            // The delay we add shows up in the audio latency we measure, so the offset
+            // goes back towards zero as the audio queue grows
+            int error = Math.round(offsetMs);
+            if (Math.abs(error) >= DEAD_BAND_MS) {
+                int step = Math.max(-MAX_STEP_MS, Math.min(MAX_STEP_MS, error));
+                syncDelayMs = Math.max(0, Math.min(MAX_SYNC_DELAY_MS, syncDelayMs + step));
+                audioRenderer.setSyncDelayMs(syncDelayMs);
+            }
+        }
+    }
+
+    // Positive when audio is heard before the video it goes with
+    public int getOffsetMs() {
+        return Math.round(offsetMs);
+    }
+
+    public int getSyncDelayMs() {
+        return syncDelayMs;
+    }
+
+    public boolean hasMeasurements() {
+        return measurements > 0;
+    }
+
+    public synchronized int getAverageOffsetMs() {
+        return measurements > 0 ? (int) (totalOffsetMs / measurements) : 0;
+    }
+
+    public synchronized int getMaxAbsOffsetMs() {
+        return maxAbsOffsetMs;
+    }
+}
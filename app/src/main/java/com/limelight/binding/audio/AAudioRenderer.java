@@ -0,0 +1,92 @@
+package com.limelight.binding.audio;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.limelight.LimeLog;
+import com.limelight.nvstream.jni.MoonBridge;
+
+// Plays audio through AAudio from native code, so decoded samples never cross into Java
+// and playback is driven by AAudio's callback rather than blocking writes. If the AAudio
+// stream can't be opened, this falls back to AudioTrack.
+public class AAudioRenderer extends AndroidAudioRenderer {
+
+    private boolean usingFallback;
+
+    public AAudioRenderer(Context context) {
+        // AAudio's low latency path bypasses audio effects just like AudioTrack's does
+        super(context, false);
+    }
+
+    public static boolean isSupported() {
+        // AAudio on Android 8.0 has bugs that were fixed in 8.1
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && MoonBridge.isNativeAudioSupported();
+    }
+
+    @Override
+    public int getOutputLatencyMs() {
+        return usingFallback ? super.getOutputLatencyMs() : MoonBridge.getNativeAudioLatencyMs();
+    }
+
+    @Override
+    public boolean canDelayAudio() {
+        // The native path plays packets as they arrive, so we can only measure its latency
+        return usingFallback && super.canDelayAudio();
+    }
+
+    @Override
+    public int setup(MoonBridge.AudioConfiguration audioConfiguration, int sampleRate, int samplesPerFrame) {
+        int channelCount = setupDownmix(audioConfiguration, sampleRate);
+        boolean floatSamples = getPreferFloatOutput();
+
+        int err = MoonBridge.setupNativeAudio(sampleRate, channelCount, samplesPerFrame, floatSamples);
+        if (err != 0 && floatSamples) {
+            LimeLog.warning("Failed to open float AAudio stream: "+err);
+            floatSamples = false;
+            err = MoonBridge.setupNativeAudio(sampleRate, channelCount, samplesPerFrame, false);
+        }
+        if (err == 0) {
+            LimeLog.info("Using AAudio for audio output");
+            MoonBridge.setFloatAudioOutput(floatSamples);
+            usingFallback = false;
+            return 0;
+        }
+
+        LimeLog.warning("Failed to open AAudio stream: "+err);
+        usingFallback = true;
+        return super.setup(audioConfiguration, sampleRate, samplesPerFrame);
+    }
+
+    @Override
+    public void start() {
+        if (usingFallback) {
+            super.start();
+            return;
+        }
+
+        int err = MoonBridge.startNativeAudio();
+        if (err != 0) {
+            LimeLog.warning("Failed to start AAudio stream: "+err);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (usingFallback) {
+            super.stop();
+        }
+        else {
+            MoonBridge.stopNativeAudio();
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        if (usingFallback) {
+            super.cleanup();
+        }
+        else {
+            MoonBridge.cleanupNativeAudio();
+        }
+    }
+}
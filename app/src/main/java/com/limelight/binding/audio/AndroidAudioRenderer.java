@@ -5,31 +5,181 @@ import android.content.Intent;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.audiofx.AudioEffect;
 import android.os.Build;
 
 import com.limelight.LimeLog;
+import com.limelight.R;
 import com.limelight.nvstream.av.audio.AudioRenderer;
+import com.limelight.nvstream.av.telemetry.TelemetryRecorder;
 import com.limelight.nvstream.jni.MoonBridge;
 
 public class AndroidAudioRenderer implements AudioRenderer {
 
+    // The latency controller keeps the queue short by stretching packets, so we only drop
+    // them once we've fallen far behind, such as after the audio thread was stalled.
+    private static final int MAX_PENDING_AUDIO_MS = 80;
+
+    // Length of the fade from a dropped packet into the one after it, in tenths of a ms
+    private static final int CROSSFADE_TENTHS_MS = 25;
+
     private final Context context;
     private final boolean enableAudioFx;
 
-    private AudioTrack track;
+    private int surroundDownmix;
+    private boolean preferFloatOutput;
+    private boolean floatOutput;
+    private volatile AudioTrack track;
+    private int channelCount;
+    private int sampleRate;
+    private volatile long framesWritten;
+    private volatile AudioLatencyController latencyController;
+    private volatile int syncDelayMs;
+    private short[] resampleBuffer;
+    private short[] spliceBuffer;
+    private float[] floatResampleBuffer;
+    private float[] floatSpliceBuffer;
+    private boolean splicePending;
+    // Counted on the audio thread and read for the performance overlay
+    private volatile int packetsDropped;
+    private volatile int splicesSmoothed;
+    private final AudioStats audioStats = new AudioStats();
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+    private volatile TelemetryRecorder telemetryRecorder;
 
     public AndroidAudioRenderer(Context context, boolean enableAudioFx) {
         this.context = context;
         this.enableAudioFx = enableAudioFx;
     }
 
-    private AudioTrack createAudioTrack(int channelConfig, int sampleRate, int bufferSize, boolean lowLatency) {
+    public void setTelemetryRecorder(TelemetryRecorder telemetryRecorder) {
+        this.telemetryRecorder = telemetryRecorder;
+    }
+
+    // Must be called before setup()
+    public void setSurroundDownmix(int surroundDownmix) {
+        this.surroundDownmix = surroundDownmix;
+    }
+
+    // Must be called before setup()
+    public void setPreferFloatOutput(boolean preferFloatOutput) {
+        this.preferFloatOutput = preferFloatOutput;
+    }
+
+    boolean getPreferFloatOutput() {
+        return preferFloatOutput;
+    }
+
+    // Returns the number of channels we'll be given to play
+    int setupDownmix(MoonBridge.AudioConfiguration audioConfiguration, int sampleRate) {
+        return AudioDownmix.setup(surroundDownmix, audioConfiguration, sampleRate);
+    }
+
+    // Returns the time until audio queued now will be heard, or -1 if unknown
+    public int getOutputLatencyMs() {
+        synchronized (timestamp) {
+            if (track == null) {
+                return -1;
+            }
+
+            // The timestamp isn't available until playback has been running for a bit
+            if (!track.getTimestamp(timestamp)) {
+                return -1;
+            }
+
+            // When the last frame we wrote will be presented, according to the timestamp
+            // of a frame that was presented recently
+            long presentNs = timestamp.nanoTime +
+                    (framesWritten - timestamp.framePosition) * 1000000000L / sampleRate;
+            return (int) Math.max(0, (presentNs - System.nanoTime()) / 1000000);
+        }
+    }
+
+    // Returns the time from a packet arriving until it will be heard, or -1 if unknown
+    public int getAudioPathLatencyMs() {
+        int outputLatencyMs = getOutputLatencyMs();
+        if (outputLatencyMs < 0) {
+            return -1;
+        }
+
+        return MoonBridge.getPendingAudioDuration() + outputLatencyMs;
+    }
+
+    // Whether setSyncDelayMs() has any effect
+    public boolean canDelayAudio() {
+        return latencyController != null;
+    }
+
+    // Delays audio by queuing more of it, so it can be lined up with video
+    public void setSyncDelayMs(int syncDelayMs) {
+        this.syncDelayMs = syncDelayMs;
+        AudioLatencyController controller = latencyController;
+        if (controller != null) {
+            controller.setSyncDelayMs(syncDelayMs);
+        }
+    }
+
+    // Returns lines for the performance overlay, or null if there's nothing to show yet
+    public String getPerfOverlayText() {
+        int latencyMs = getOutputLatencyMs();
+        if (latencyMs < 0) {
+            return null;
+        }
+
+        String text = context.getString(R.string.perf_overlay_audio_latency, latencyMs);
+        AudioLatencyController controller = latencyController;
+        if (controller != null) {
+            text += '\n' + context.getString(R.string.perf_overlay_audio_sync,
+                    controller.getTargetLatencyMs(), controller.getDriftPpm(),
+                    controller.getFramesInserted(), controller.getFramesRemoved(),
+                    controller.getFramesDropped());
+        }
+
+        // Packets dropped on this side are counted here rather than natively
+        audioStats.readNativeStats();
+        audioStats.packetsDropped += packetsDropped;
+        audioStats.splicesSmoothed += splicesSmoothed;
+        if (audioStats.packetsLost > 0 || audioStats.packetsDropped > 0) {
+            text += '\n' + context.getString(R.string.perf_overlay_audio_recovery,
+                    audioStats.packetsLost, audioStats.packetsDropped, audioStats.splicesSmoothed);
+        }
+        return text;
+    }
+
+    // Fades from the packet we dropped into the one replacing it. The dropped packet
+    // continues from what was played last, so this hides the splice.
+    private void crossfadeFromSplice(short[] audioData) {
+        int crossfadeFrames = Math.min(sampleRate * CROSSFADE_TENTHS_MS / 10000, audioData.length / channelCount);
+        AudioLatencyController.crossfade(spliceBuffer, audioData, crossfadeFrames, channelCount);
+    }
+
+    private void crossfadeFromSplice(float[] audioData) {
+        int crossfadeFrames = Math.min(sampleRate * CROSSFADE_TENTHS_MS / 10000, audioData.length / channelCount);
+        AudioLatencyController.crossfade(floatSpliceBuffer, audioData, crossfadeFrames, channelCount);
+    }
+
+    // Audio that has been decoded but not yet played by the mixer
+    private int getQueuedFrames(int pendingAudioDuration) {
+        long trackFrames = framesWritten - (track.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+        return (int) Math.max(0, trackFrames + (long) pendingAudioDuration * sampleRate / 1000);
+    }
+
+    private int getUnderrunCount() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return track.getUnderrunCount();
+        }
+        else {
+            return 0;
+        }
+    }
+
+    private AudioTrack createAudioTrack(int channelConfig, int encoding, int sampleRate, int bufferSize, boolean lowLatency) {
         AudioAttributes.Builder attributesBuilder = new AudioAttributes.Builder()
                 .setUsage(AudioAttributes.USAGE_GAME);
         AudioFormat format = new AudioFormat.Builder()
-                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setEncoding(encoding)
                 .setSampleRate(sampleRate)
                 .setChannelMask(channelConfig)
                 .build();
@@ -67,9 +217,9 @@ public class AndroidAudioRenderer implements AudioRenderer {
     @Override
     public int setup(MoonBridge.AudioConfiguration audioConfiguration, int sampleRate, int samplesPerFrame) {
         int channelConfig;
-        int bytesPerFrame;
 
-        switch (audioConfiguration.channelCount)
+        int channelCount = setupDownmix(audioConfiguration, sampleRate);
+        switch (channelCount)
         {
             case 2:
                 channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
@@ -93,110 +243,210 @@ public class AndroidAudioRenderer implements AudioRenderer {
 
         LimeLog.info("Audio channel config: "+String.format("0x%X", channelConfig));
 
-        bytesPerFrame = audioConfiguration.channelCount * samplesPerFrame * 2;
-
-        // We're not supposed to request less than the minimum
-        // buffer size for our buffer, but it appears that we can
-        // do this on many devices and it lowers audio latency.
-        // We'll try the small buffer size first and if it fails,
-        // use the recommended larger buffer size.
-
-        for (int i = 0; i < 4; i++) {
-            boolean lowLatency;
-            int bufferSize;
+        this.channelCount = channelCount;
+        this.sampleRate = sampleRate;
+
+        // Float output saves the platform mixer from converting our 16-bit samples back to
+        // float, but we'll go through the whole ladder again with 16-bit samples if no float
+        // track works
+        for (int attempt = preferFloatOutput ? 0 : 1; attempt < 2 && track == null; attempt++) {
+            floatOutput = attempt == 0;
+            int encoding = floatOutput ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+            int bytesPerFrame = channelCount * samplesPerFrame * (floatOutput ? 4 : 2);
+
+            // We're not supposed to request less than the minimum
+            // buffer size for our buffer, but it appears that we can
+            // do this on many devices and it lowers audio latency.
+            // We'll try the small buffer size first and if it fails,
+            // use the recommended larger buffer size.
+
+            for (int i = 0; i < 4; i++) {
+                boolean lowLatency;
+                int bufferSize;
+
+                // We will try:
+                // 1) Small buffer, low latency mode
+                // 2) Large buffer, low latency mode
+                // 3) Small buffer, standard mode
+                // 4) Large buffer, standard mode
+
+                switch (i) {
+                    case 0:
+                    case 1:
+                        lowLatency = true;
+                        break;
+                    case 2:
+                    case 3:
+                        lowLatency = false;
+                        break;
+                    default:
+                        // Unreachable
+                        throw new IllegalStateException();
+                }
+
+                switch (i) {
+                    case 0:
+                    case 2:
+                        bufferSize = bytesPerFrame * 2;
+                        break;
+
+                    case 1:
+                    case 3:
+                        // Try the larger buffer size
+                        bufferSize = Math.max(AudioTrack.getMinBufferSize(sampleRate,
+                                channelConfig,
+                                encoding),
+                                bytesPerFrame * 2);
+
+                        // Round to next frame
+                        bufferSize = (((bufferSize + (bytesPerFrame - 1)) / bytesPerFrame) * bytesPerFrame);
+                        break;
+                    default:
+                        // Unreachable
+                        throw new IllegalStateException();
+                }
+
+                // Skip low latency options if hardware sample rate doesn't match the content
+                if (AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC) != sampleRate && lowLatency) {
+                    continue;
+                }
+
+                // Skip low latency options when using audio effects, since low latency mode
+                // precludes the use of the audio effect pipeline (as of Android 13).
+                if (enableAudioFx && lowLatency) {
+                    continue;
+                }
 
-            // We will try:
-            // 1) Small buffer, low latency mode
-            // 2) Large buffer, low latency mode
-            // 3) Small buffer, standard mode
-            // 4) Large buffer, standard mode
+                try {
+                    track = createAudioTrack(channelConfig, encoding, sampleRate, bufferSize, lowLatency);
+                    track.play();
 
-            switch (i) {
-                case 0:
-                case 1:
-                    lowLatency = true;
-                    break;
-                case 2:
-                case 3:
-                    lowLatency = false;
+                    // Successfully created working AudioTrack. We're done here.
+                    LimeLog.info("Audio track configuration: "+bufferSize+" "+lowLatency+" "+floatOutput);
                     break;
-                default:
-                    // Unreachable
-                    throw new IllegalStateException();
+                } catch (Exception e) {
+                    // Try to release the AudioTrack if we got far enough
+                    e.printStackTrace();
+                    try {
+                        if (track != null) {
+                            track.release();
+                            track = null;
+                        }
+                    } catch (Exception ignored) {}
+                }
             }
+        }
 
-            switch (i) {
-                case 0:
-                case 2:
-                    bufferSize = bytesPerFrame * 2;
-                    break;
+        if (track == null) {
+            // Couldn't create any audio track for playback
+            return -2;
+        }
 
-                case 1:
-                case 3:
-                    // Try the larger buffer size
-                    bufferSize = Math.max(AudioTrack.getMinBufferSize(sampleRate,
-                            channelConfig,
-                            AudioFormat.ENCODING_PCM_16BIT),
-                            bytesPerFrame * 2);
+        latencyController = new AudioLatencyController(sampleRate, samplesPerFrame);
 
-                    // Round to next frame
-                    bufferSize = (((bufferSize + (bytesPerFrame - 1)) / bytesPerFrame) * bytesPerFrame);
-                    break;
-                default:
-                    // Unreachable
-                    throw new IllegalStateException();
-            }
+        // Stretched packets are at most a few frames longer
+        int resampleBufferSize = (samplesPerFrame + samplesPerFrame / 100 + 2) * channelCount;
+        if (floatOutput) {
+            floatResampleBuffer = new float[resampleBufferSize];
+            floatSpliceBuffer = new float[samplesPerFrame * channelCount];
+        }
+        else {
+            resampleBuffer = new short[resampleBufferSize];
+            spliceBuffer = new short[samplesPerFrame * channelCount];
+        }
+        MoonBridge.setFloatAudioOutput(floatOutput);
 
-            // Skip low latency options if hardware sample rate doesn't match the content
-            if (AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC) != sampleRate && lowLatency) {
-                continue;
-            }
+        return 0;
+    }
 
-            // Skip low latency options when using audio effects, since low latency mode
-            // precludes the use of the audio effect pipeline (as of Android 13).
-            if (enableAudioFx && lowLatency) {
-                continue;
-            }
+    // Returns the number of frames the packet should be played as, or 0 to drop it
+    private int beginPacket(int pendingAudioDuration, int sampleCount) {
+        // Audio we're holding back for A/V sync is expected to be pending
+        if (pendingAudioDuration < MAX_PENDING_AUDIO_MS + syncDelayMs) {
+            return latencyController.onPacket(getQueuedFrames(pendingAudioDuration), getUnderrunCount());
+        }
 
-            try {
-                track = createAudioTrack(channelConfig, sampleRate, bufferSize, lowLatency);
-                track.play();
+        LimeLog.info("Too much pending audio data: " + pendingAudioDuration +" ms");
+        latencyController.onPacketDropped();
+        packetsDropped++;
 
-                // Successfully created working AudioTrack. We're done here.
-                LimeLog.info("Audio track configuration: "+bufferSize+" "+lowLatency);
-                break;
-            } catch (Exception e) {
-                // Try to release the AudioTrack if we got far enough
-                e.printStackTrace();
-                try {
-                    if (track != null) {
-                        track.release();
-                        track = null;
-                    }
-                } catch (Exception ignored) {}
+        TelemetryRecorder recorder = telemetryRecorder;
+        if (recorder != null) {
+            recorder.recordAudioPlayed(pendingAudioDuration, sampleCount, true);
+        }
+        return 0;
+    }
+
+    private void endPacket(int pendingAudioDuration, int outputFrames) {
+        framesWritten += outputFrames;
+
+        TelemetryRecorder recorder = telemetryRecorder;
+        if (recorder != null) {
+            recorder.recordAudioPlayed(pendingAudioDuration, outputFrames * channelCount, false);
+        }
+    }
+
+    @Override
+    public void playDecodedAudio(short[] audioData) {
+        int pendingAudioDuration = MoonBridge.getPendingAudioDuration();
+        int outputFrames = beginPacket(pendingAudioDuration, audioData.length);
+
+        if (outputFrames == 0) {
+            // Only the first dropped packet continues from what we played
+            if (!splicePending) {
+                System.arraycopy(audioData, 0, spliceBuffer, 0, audioData.length);
+                splicePending = true;
             }
+            return;
         }
 
-        if (track == null) {
-            // Couldn't create any audio track for playback
-            return -2;
+        if (splicePending) {
+            crossfadeFromSplice(audioData);
+            splicesSmoothed++;
+            splicePending = false;
         }
 
-        return 0;
+        short[] samples = audioData;
+        int frames = audioData.length / channelCount;
+        if (outputFrames != frames) {
+            AudioLatencyController.resample(audioData, frames, resampleBuffer, outputFrames, channelCount);
+            samples = resampleBuffer;
+        }
+
+        // This will block until the write is completed. That can cause a backlog
+        // of pending audio data, which the latency controller will work off.
+        track.write(samples, 0, outputFrames * channelCount);
+        endPacket(pendingAudioDuration, outputFrames);
     }
 
     @Override
-    public void playDecodedAudio(short[] audioData) {
-        // Only queue up to 40 ms of pending audio data in addition to what AudioTrack is buffering for us.
-        if (MoonBridge.getPendingAudioDuration() < 40) {
-            // This will block until the write is completed. That can cause a backlog
-            // of pending audio data, so we do the above check to be able to bound
-            // latency at 40 ms in that situation.
-            track.write(audioData, 0, audioData.length);
+    public void playDecodedAudio(float[] audioData) {
+        int pendingAudioDuration = MoonBridge.getPendingAudioDuration();
+        int outputFrames = beginPacket(pendingAudioDuration, audioData.length);
+
+        if (outputFrames == 0) {
+            if (!splicePending) {
+                System.arraycopy(audioData, 0, floatSpliceBuffer, 0, audioData.length);
+                splicePending = true;
+            }
+            return;
         }
-        else {
-            LimeLog.info("Too much pending audio data: " + MoonBridge.getPendingAudioDuration() +" ms");
+
+        if (splicePending) {
+            crossfadeFromSplice(audioData);
+            splicesSmoothed++;
+            splicePending = false;
+        }
+
+        float[] samples = audioData;
+        int frames = audioData.length / channelCount;
+        if (outputFrames != frames) {
+            AudioLatencyController.resample(audioData, frames, floatResampleBuffer, outputFrames, channelCount);
+            samples = floatResampleBuffer;
         }
+
+        track.write(samples, 0, outputFrames * channelCount, AudioTrack.WRITE_BLOCKING);
+        endPacket(pendingAudioDuration, outputFrames);
     }
 
     @Override
@@ -228,6 +478,10 @@ public class AndroidAudioRenderer implements AudioRenderer {
         track.pause();
         track.flush();
 
-        track.release();
+        // Don't release the track while we're measuring its latency
+        synchronized (timestamp) {
+            track.release();
+            track = null;
+        }
     }
 }
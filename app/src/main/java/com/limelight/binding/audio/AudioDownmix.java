@@ -0,0 +1,88 @@
+package com.limelight.binding.audio;
+
+import com.limelight.LimeLog;
+import com.limelight.nvstream.jni.MoonBridge;
+import com.limelight.preferences.PreferenceConfiguration;
+
+// Sets up the native downmix of surround streams for stereo outputs, which avoids the
+// extra buffering of the platform's own downmix. The mixing happens as each packet is
+// decoded, before the samples reach us.
+class AudioDownmix {
+    // Must match DOWNMIX_MODE_* in audio_downmix.h
+    static final int MODE_NONE = 0;
+    static final int MODE_STEREO = 1;
+    static final int MODE_HEADPHONES = 2;
+
+    // ITU-R BS.775 downmix levels (-3 dB), which leave out the LFE channel
+    private static final float CENTER_LEVEL = 0.7071f;
+    private static final float SURROUND_LEVEL = 0.7071f;
+    private static final float LFE_LEVEL = 0.0f;
+
+    static int getMode(int surroundDownmix, int channelCount) {
+        if (channelCount != 6 && channelCount != 8) {
+            return MODE_NONE;
+        }
+        else if (surroundDownmix == PreferenceConfiguration.SURROUND_DOWNMIX_STEREO) {
+            return MODE_STEREO;
+        }
+        else if (surroundDownmix == PreferenceConfiguration.SURROUND_DOWNMIX_HEADPHONES) {
+            return MODE_HEADPHONES;
+        }
+        else {
+            return MODE_NONE;
+        }
+    }
+
+    // Returns the number of channels the renderer will be given
+    static int setup(int surroundDownmix, MoonBridge.AudioConfiguration audioConfiguration, int sampleRate) {
+        int channelCount = audioConfiguration.channelCount;
+        int mode = getMode(surroundDownmix, channelCount);
+
+        float[] matrix = mode == MODE_STEREO ? createStereoMatrix(channelCount) : null;
+        if (MoonBridge.setupAudioDownmix(channelCount, sampleRate, mode, matrix) != 0) {
+            LimeLog.warning("Failed to set up audio downmix from "+channelCount+" channels");
+            MoonBridge.setupAudioDownmix(channelCount, sampleRate, MODE_NONE, null);
+            return channelCount;
+        }
+
+        if (mode == MODE_NONE) {
+            return channelCount;
+        }
+
+        LimeLog.info("Downmixing "+channelCount+" channel audio to stereo"+
+                (mode == MODE_HEADPHONES ? " for headphones" : ""));
+        return 2;
+    }
+
+    // Our decoder's channel order is FL, FR, FC, LFE, BL, BR, then SL, SR for 7.1. The
+    // matrix is scaled so that neither output can clip, even with every input at full
+    // scale, which the native mixer relies on.
+    static float[] createStereoMatrix(int channelCount) {
+        float[] matrix = new float[2 * channelCount];
+
+        for (int out = 0; out < 2; out++) {
+            int row = out * channelCount;
+
+            matrix[row + out] = 1.0f;
+            matrix[row + 2] = CENTER_LEVEL;
+            matrix[row + 3] = LFE_LEVEL;
+            for (int ch = 4; ch < channelCount; ch += 2) {
+                matrix[row + ch + out] = SURROUND_LEVEL;
+            }
+        }
+
+        float scale = 1.0f;
+        for (int out = 0; out < 2; out++) {
+            float sum = 0;
+            for (int ch = 0; ch < channelCount; ch++) {
+                sum += Math.abs(matrix[out * channelCount + ch]);
+            }
+            scale = Math.min(scale, 1.0f / sum);
+        }
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] *= scale;
+        }
+
+        return matrix;
+    }
+}
@@ -0,0 +1,254 @@
+package com.limelight.binding.audio;
+
+// Holds the amount of audio queued for playback near a target by playing each packet
+// a few samples longer or shorter, rather than dropping whole packets when the queue
+// grows. That keeps latency from creeping up after network bursts and compensates for
+// the host's audio clock running at a slightly different rate than ours.
+//
+// The target is the smallest queue that doesn't run dry. It starts at a couple of
+// packets, grows when the output underruns, and slowly shrinks while it doesn't.
+//
+// Called on the audio thread for each decoded packet.
+class AudioLatencyController {
+    // Queue depth is measured as the minimum over each window, since that's the part
+    // of the queue that isn't absorbing jitter
+    private static final int WINDOW_MS = 1000;
+
+    private static final int INITIAL_TARGET_MS = 10;
+    private static final int MIN_TARGET_MS = 5;
+    private static final int MAX_TARGET_MS = 40;
+    private static final int UNDERRUN_TARGET_STEP_MS = 5;
+
+    // Windows without an underrun before lowering the target by 1 ms
+    private static final int TARGET_DECAY_WINDOWS = 10;
+
+    // Errors smaller than this aren't worth correcting
+    private static final int DEAD_BAND_MS = 1;
+
+    // Each error is corrected over this many windows
+    private static final int CORRECTION_WINDOWS = 2;
+
+    // The most we'll speed up or slow down playback, in tenths of a percent. At 0.5%
+    // the pitch change is well below what anyone can hear.
+    private static final int MAX_CORRECTION_PER_MILLE = 5;
+
+    // Windows ignored at the start of the stream and before the drift is reported
+    private static final int WARMUP_WINDOWS = 2;
+    private static final int DRIFT_WINDOWS = 10;
+
+    private final int sampleRate;
+    private final int framesPerPacket;
+    private final int packetsPerWindow;
+    private final float maxCorrectionFrames;
+
+    private int windowPackets;
+    private int windowMinQueuedFrames = Integer.MAX_VALUE;
+    private int windows;
+    private int windowsSinceUnderrun;
+    private int lastUnderrunCount;
+    private int targetMs = INITIAL_TARGET_MS;
+    private volatile int syncDelayMs;
+
+    private float correctionFramesPerPacket;
+    private float correctionAccumulator;
+    private long framesInserted;
+    private long framesRemoved;
+    private long framesDropped;
+
+    private int driftStartQueuedFrames;
+    private long driftStartCorrection;
+    private long driftFrames;
+    private float driftPpm;
+
+    AudioLatencyController(int sampleRate, int framesPerPacket) {
+        this.sampleRate = sampleRate;
+        this.framesPerPacket = framesPerPacket;
+        this.packetsPerWindow = Math.max(1, WINDOW_MS * sampleRate / 1000 / framesPerPacket);
+        this.maxCorrectionFrames = Math.max(1, framesPerPacket * MAX_CORRECTION_PER_MILLE / 1000.0f);
+    }
+
+    // Returns the number of frames this packet should be resampled to. queuedFrames is the
+    // audio waiting to be played, and underrunCount is the output's cumulative underrun
+    // count, if it's known.
+    int onPacket(int queuedFrames, int underrunCount) {
+        windowMinQueuedFrames = Math.min(windowMinQueuedFrames, queuedFrames);
+        if (windows >= WARMUP_WINDOWS) {
+            driftFrames += framesPerPacket;
+        }
+
+        if (++windowPackets == packetsPerWindow) {
+            onWindowComplete(underrunCount);
+            windowPackets = 0;
+            windowMinQueuedFrames = Integer.MAX_VALUE;
+        }
+
+        correctionAccumulator += correctionFramesPerPacket;
+        int correction = (int) correctionAccumulator;
+        correctionAccumulator -= correction;
+
+        if (correction > 0) {
+            framesInserted += correction;
+        }
+        else {
+            framesRemoved -= correction;
+        }
+
+        return framesPerPacket + correction;
+    }
+
+    // Dropped packets shorten the queue just like removed frames do
+    void onPacketDropped() {
+        framesDropped += framesPerPacket;
+        if (windows >= WARMUP_WINDOWS) {
+            driftFrames += framesPerPacket;
+        }
+    }
+
+    private void onWindowComplete(int underrunCount) {
+        windows++;
+
+        if (underrunCount > lastUnderrunCount) {
+            targetMs = Math.min(MAX_TARGET_MS, targetMs + UNDERRUN_TARGET_STEP_MS);
+            lastUnderrunCount = underrunCount;
+            windowsSinceUnderrun = 0;
+        }
+        else if (++windowsSinceUnderrun >= TARGET_DECAY_WINDOWS) {
+            targetMs = Math.max(MIN_TARGET_MS, targetMs - 1);
+            windowsSinceUnderrun = 0;
+        }
+
+        if (windows <= WARMUP_WINDOWS) {
+            driftStartQueuedFrames = windowMinQueuedFrames;
+            driftStartCorrection = getNetCorrectionFrames();
+            return;
+        }
+
+        // Frames arriving faster than we play them either pile up in the queue or were
+        // taken out by us, so the two together tell us how far apart the clocks are.
+        if (windows - WARMUP_WINDOWS >= DRIFT_WINDOWS) {
+            long excessFrames = (windowMinQueuedFrames - driftStartQueuedFrames) -
+                    (getNetCorrectionFrames() - driftStartCorrection);
+            driftPpm = excessFrames * 1000000.0f / driftFrames;
+        }
+
+        int errorFrames = windowMinQueuedFrames - (targetMs + syncDelayMs) * sampleRate / 1000;
+        if (Math.abs(errorFrames) < DEAD_BAND_MS * sampleRate / 1000) {
+            correctionFramesPerPacket = 0;
+        }
+        else {
+            // A queue that's too long needs packets played shorter
+            correctionFramesPerPacket = Math.max(-maxCorrectionFrames, Math.min(maxCorrectionFrames,
+                    (float) -errorFrames / (packetsPerWindow * CORRECTION_WINDOWS)));
+        }
+    }
+
+    private long getNetCorrectionFrames() {
+        return framesInserted - framesRemoved - framesDropped;
+    }
+
+    // Extra audio to keep queued so that audio lines up with video. This is on top of the
+    // target, so it doesn't affect how we react to underruns.
+    void setSyncDelayMs(int syncDelayMs) {
+        this.syncDelayMs = syncDelayMs;
+    }
+
+    int getTargetLatencyMs() {
+        return targetMs;
+    }
+
+    // Positive if the host's clock is faster than ours
+    float getDriftPpm() {
+        return driftPpm;
+    }
+
+    long getFramesInserted() {
+        return framesInserted;
+    }
+
+    long getFramesRemoved() {
+        return framesRemoved;
+    }
+
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    // Linearly interpolates interleaved samples from one length to another. Only used for
+    // stretching by a few frames, where the lack of filtering isn't audible.
+    static void resample(short[] input, int inputFrames, short[] output, int outputFrames, int channelCount) {
+        if (outputFrames == 1 || inputFrames == 1) {
+            System.arraycopy(input, 0, output, 0, channelCount);
+            return;
+        }
+
+        // Keep the first and last frames in place so packets still join up smoothly. Each
+        // position is worked out from scratch, since adding up a rounded step would leave
+        // the last frame short of the end.
+        long inputLength = (long) (inputFrames - 1) << 16;
+        for (int i = 0; i < outputFrames; i++) {
+            long position = inputLength * i / (outputFrames - 1);
+            int index = (int) (position >> 16);
+            int fraction = (int) (position & 0xFFFF);
+            if (index >= inputFrames - 1) {
+                index = inputFrames - 2;
+                fraction = 0x10000;
+            }
+
+            int in = index * channelCount;
+            int out = i * channelCount;
+            for (int ch = 0; ch < channelCount; ch++) {
+                int a = input[in + ch];
+                int b = input[in + channelCount + ch];
+                output[out + ch] = (short) (a + (((long) (b - a) * fraction) >> 16));
+            }
+        }
+    }
+
+    // Float samples are resampled the same way, so the output is the same whichever
+    // format the renderer plays
+    static void resample(float[] input, int inputFrames, float[] output, int outputFrames, int channelCount) {
+        if (outputFrames == 1 || inputFrames == 1) {
+            System.arraycopy(input, 0, output, 0, channelCount);
+            return;
+        }
+
+        long inputLength = (long) (inputFrames - 1) << 16;
+        for (int i = 0; i < outputFrames; i++) {
+            long position = inputLength * i / (outputFrames - 1);
+            int index = (int) (position >> 16);
+            float fraction = (position & 0xFFFF) / 65536.0f;
+            if (index >= inputFrames - 1) {
+                index = inputFrames - 2;
+                fraction = 1.0f;
+            }
+
+            int in = index * channelCount;
+            int out = i * channelCount;
+            for (int ch = 0; ch < channelCount; ch++) {
+                float a = input[in + ch];
+                float b = input[in + channelCount + ch];
+                output[out + ch] = a + (b - a) * fraction;
+            }
+        }
+    }
+
+    // Fades the first frames of a packet in from the samples in from, which must be at
+    // least that long. Used to hide the splice where packets were dropped.
+    static void crossfade(short[] from, short[] output, int crossfadeFrames, int channelCount) {
+        for (int i = 0; i < crossfadeFrames; i++) {
+            for (int ch = 0; ch < channelCount; ch++) {
+                int index = i * channelCount + ch;
+                output[index] = (short) ((from[index] * (crossfadeFrames - i) + output[index] * i) / crossfadeFrames);
+            }
+        }
+    }
+
+    static void crossfade(float[] from, float[] output, int crossfadeFrames, int channelCount) {
+        for (int i = 0; i < crossfadeFrames; i++) {
+            for (int ch = 0; ch < channelCount; ch++) {
+                int index = i * channelCount + ch;
+                output[index] = (from[index] * (crossfadeFrames - i) + output[index] * i) / crossfadeFrames;
+            }
+        }
+    }
+}
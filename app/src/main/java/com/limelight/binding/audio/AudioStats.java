@@ -0,0 +1,23 @@
+package com.limelight.binding.audio;
+
+import com.limelight.nvstream.jni.MoonBridge;
+
+class AudioStats {
+
+    int packetsReceived;
+    int packetsLost; // Each one concealed with Opus PLC
+    int packetsDropped; // Because too much audio was queued
+    int splicesSmoothed;
+
+    // Must match the order of AudioRecoveryStats in callbacks.c
+    private final int[] nativeStats = new int[4];
+
+    // Reads the totals for the stream so far from the native decode path
+    void readNativeStats() {
+        MoonBridge.getAudioStats(nativeStats);
+        packetsReceived = nativeStats[0];
+        packetsLost = nativeStats[1];
+        packetsDropped = nativeStats[2];
+        splicesSmoothed = nativeStats[3];
+    }
+}
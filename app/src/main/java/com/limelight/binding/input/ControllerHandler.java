@@ -21,6 +21,7 @@ import android.os.CombinedVibration;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.os.VibrationAttributes;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
@@ -128,11 +129,28 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
     private final PreferenceConfiguration prefConfig;
     private short currentControllers, initialControllers;
 
+    // Analog input from each controller is sent at most once per interval, so controllers
+    // with high polling rates don't flood the host with tiny changes. Button changes are
+    // sent immediately, along with the latest analog state.
+    private final long controllerInputIntervalMs;
+    private final Object controllerInputLock = new Object();
+    private final GenericControllerContext[] pendingControllerInput = new GenericControllerContext[MAX_GAMEPADS];
+    private final long[] lastControllerInputTimeMs = new long[MAX_GAMEPADS];
+    private int controllerEventsIn, controllerPacketsOut;
+
+    private final Runnable controllerInputFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushControllerInput();
+        }
+    };
+
     public ControllerHandler(Activity activityContext, NvConnection conn, GameGestures gestures, PreferenceConfiguration prefConfig) {
         this.activityContext = activityContext;
         this.conn = conn;
         this.gestures = gestures;
         this.prefConfig = prefConfig;
+        this.controllerInputIntervalMs = prefConfig.controllerInputRate > 0 ? 1000 / prefConfig.controllerInputRate : 0;
         this.deviceVibrator = (Vibrator) activityContext.getSystemService(Context.VIBRATOR_SERVICE);
         this.deviceSensorManager = (SensorManager) activityContext.getSystemService(Context.SENSOR_SERVICE);
         this.inputManager = (InputManager) activityContext.getSystemService(Context.INPUT_SERVICE);
@@ -286,6 +304,11 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         }
 
         deviceVibrator.cancel();
+
+        mainThreadHandler.removeCallbacks(controllerInputFlushRunnable);
+        synchronized (controllerInputLock) {
+            LimeLog.info("Controller input: "+controllerEventsIn+" updates in, "+controllerPacketsOut+" packets sent");
+        }
     }
 
     public void destroy() {
@@ -1196,6 +1219,59 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
     private void sendControllerInputPacket(GenericControllerContext originalContext) {
         assignControllerNumberIfNeeded(originalContext);
 
+        if (!deferControllerInput(originalContext)) {
+            sendControllerInputPacketNow(originalContext);
+        }
+    }
+
+    // Returns true if the context's input can wait to be sent along with later input
+    private boolean deferControllerInput(GenericControllerContext context) {
+        synchronized (controllerInputLock) {
+            controllerEventsIn++;
+
+            // Mouse emulation acts on button changes itself, so it's never held back either
+            if (controllerInputIntervalMs == 0 || context.mouseEmulationActive ||
+                    context.inputMap != context.lastSentInputMap) {
+                return false;
+            }
+
+            short controllerNumber = context.controllerNumber;
+            long nextSendTimeMs = lastControllerInputTimeMs[controllerNumber] + controllerInputIntervalMs;
+            if (pendingControllerInput[controllerNumber] == null) {
+                if (SystemClock.uptimeMillis() >= nextSendTimeMs) {
+                    return false;
+                }
+
+                mainThreadHandler.postAtTime(controllerInputFlushRunnable, nextSendTimeMs);
+            }
+
+            // Any context with this controller number will do, since they're all sent together
+            pendingControllerInput[controllerNumber] = context;
+            return true;
+        }
+    }
+
+    private void flushControllerInput() {
+        long now = SystemClock.uptimeMillis();
+
+        for (int i = 0; i < MAX_GAMEPADS; i++) {
+            GenericControllerContext context;
+
+            synchronized (controllerInputLock) {
+                context = pendingControllerInput[i];
+                if (context == null || now < lastControllerInputTimeMs[i] + controllerInputIntervalMs) {
+                    // Nothing to send yet. A later flush is already scheduled if needed.
+                    continue;
+                }
+            }
+
+            if (!stopped) {
+                sendControllerInputPacketNow(context);
+            }
+        }
+    }
+
+    private void sendControllerInputPacketNow(GenericControllerContext originalContext) {
         // Take the context's controller number and fuse all inputs with the same number
         short controllerNumber = originalContext.controllerNumber;
         int inputMap = 0;
@@ -1215,6 +1291,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
                     context.controllerNumber == controllerNumber &&
                     context.mouseEmulationActive == originalContext.mouseEmulationActive) {
                 inputMap |= context.inputMap;
+                context.lastSentInputMap = context.inputMap;
                 leftTrigger |= maxByMagnitude(leftTrigger, context.leftTrigger);
                 rightTrigger |= maxByMagnitude(rightTrigger, context.rightTrigger);
                 leftStickX |= maxByMagnitude(leftStickX, context.leftStickX);
@@ -1229,6 +1306,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
                     context.controllerNumber == controllerNumber &&
                     context.mouseEmulationActive == originalContext.mouseEmulationActive) {
                 inputMap |= context.inputMap;
+                context.lastSentInputMap = context.inputMap;
                 leftTrigger |= maxByMagnitude(leftTrigger, context.leftTrigger);
                 rightTrigger |= maxByMagnitude(rightTrigger, context.rightTrigger);
                 leftStickX |= maxByMagnitude(leftStickX, context.leftStickX);
@@ -1239,6 +1317,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         }
         if (defaultContext.controllerNumber == controllerNumber) {
             inputMap |= defaultContext.inputMap;
+            defaultContext.lastSentInputMap = defaultContext.inputMap;
             leftTrigger |= maxByMagnitude(leftTrigger, defaultContext.leftTrigger);
             rightTrigger |= maxByMagnitude(rightTrigger, defaultContext.rightTrigger);
             leftStickX |= maxByMagnitude(leftStickX, defaultContext.leftStickX);
@@ -1302,6 +1381,14 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
                     leftStickX, leftStickY,
                     rightStickX, rightStickY);
         }
+
+        // This included everything waiting to be sent for this controller, and the buttons
+        // of every context merged into it were marked as sent above
+        synchronized (controllerInputLock) {
+            pendingControllerInput[controllerNumber] = null;
+            lastControllerInputTimeMs[controllerNumber] = SystemClock.uptimeMillis();
+            controllerPacketsOut++;
+        }
     }
 
     private final int REMAP_IGNORE = -1;
@@ -2880,6 +2967,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         public short controllerNumber;
 
         public int inputMap = 0;
+        public int lastSentInputMap = 0;
         public byte leftTrigger = 0x00;
         public byte rightTrigger = 0x00;
         public short rightStickX = 0x0000;
@@ -0,0 +1,183 @@
+package com.limelight.binding.video;
+
+import com.limelight.LimeLog;
+
+// Picks between releasing decoded frames immediately (like the min latency pacing mode) and
+// holding them for the next vsync (like the balanced pacing mode) from live measurements:
+//
+// - Frame arrival jitter: how far the time between frames reaching the decoder strays from
+//   the stream's frame interval. Measured on the input thread.
+// - Decode time jitter: how much the decoder's own latency varies. Measured on the renderer thread.
+// - Vsync phase: where in the display refresh interval frames come out of the decoder. Frames
+//   that land close to a vsync show up a refresh early or late when released immediately, which
+//   looks like stutter even on a perfect network. Measured on the renderer thread against the
+//   vsync timestamps from the Choreographer.
+//
+// The mode is re-evaluated once per window, and going back to immediate release needs several
+// calm windows in a row so a single good second on a bad network doesn't make us flap.
+class AdaptiveFramePacer {
+    static final int MODE_IMMEDIATE = 0;
+    static final int MODE_VSYNC = 1;
+
+    private static final int EVALUATION_WINDOW_MS = 1000;
+    private static final int CALM_WINDOWS_TO_LEAVE_VSYNC = 3;
+
+    // Arrival + decode jitter as a percentage of the frame interval
+    private static final int ENTER_VSYNC_JITTER_PERCENT = 20;
+    private static final int LEAVE_VSYNC_JITTER_PERCENT = 10;
+
+    // Percentage of frames decoded within VSYNC_GUARD_PERCENT of the refresh interval from a vsync
+    private static final int VSYNC_GUARD_PERCENT = 15;
+    private static final int ENTER_VSYNC_NEAR_VSYNC_PERCENT = 40;
+    private static final int LEAVE_VSYNC_NEAR_VSYNC_PERCENT = 20;
+
+    // EWMA weight of a new sample is 1/(1 << EWMA_SHIFT)
+    private static final int EWMA_SHIFT = 4;
+
+    private final long frameIntervalUs;
+
+    // Input thread
+    private long lastArrivalMs = -1;
+    private long arrivalJitterUs;
+
+    // Choreographer thread
+    private long lastVsyncNanosLocal;
+    private long vsyncPeriodNanosLocal;
+
+    // Renderer thread
+    private long decodeTimeUs = -1;
+    private long decodeJitterUs;
+    private long windowStartNanos;
+    private int windowFrames;
+    private int windowFramesNearVsync;
+    private int calmWindows;
+
+    private volatile long sharedArrivalJitterUs;
+    private volatile long lastVsyncNanos;
+    private volatile long vsyncPeriodNanos;
+
+    // Read by the UI thread for stats
+    private volatile int mode = MODE_IMMEDIATE;
+    private volatile int modeSwitches;
+    private volatile int lastJitterPercent;
+    private volatile int lastNearVsyncPercent;
+
+    AdaptiveFramePacer(int frameRate) {
+        this.frameIntervalUs = 1000000 / Math.max(frameRate, 1);
+    }
+
+    // Called on the input thread for each frame submitted to the decoder
+    void onFrameArrival(long enqueueTimeMs) {
+        if (lastArrivalMs >= 0) {
+            long intervalMs = enqueueTimeMs - lastArrivalMs;
+
+            // Ignore outliers like the gap after a stream pause
+            if (intervalMs >= 0 && intervalMs < 1000) {
+                long deviationUs = Math.abs(intervalMs * 1000 - frameIntervalUs);
+                arrivalJitterUs += (deviationUs - arrivalJitterUs) >> EWMA_SHIFT;
+                sharedArrivalJitterUs = arrivalJitterUs;
+            }
+        }
+        lastArrivalMs = enqueueTimeMs;
+    }
+
+    // Called on the Choreographer thread for each vsync
+    void onVsync(long frameTimeNanos) {
+        long periodNanos = frameTimeNanos - lastVsyncNanosLocal;
+
+        // Skipped vsyncs show up as multiples of the period, so only take plausible ones
+        if (periodNanos > 2000000 && periodNanos < 50000000) {
+            if (vsyncPeriodNanosLocal == 0) {
+                vsyncPeriodNanosLocal = periodNanos;
+            }
+            else if (periodNanos < vsyncPeriodNanosLocal * 3 / 2) {
+                vsyncPeriodNanosLocal += (periodNanos - vsyncPeriodNanosLocal) >> EWMA_SHIFT;
+            }
+            vsyncPeriodNanos = vsyncPeriodNanosLocal;
+        }
+
+        lastVsyncNanosLocal = frameTimeNanos;
+        lastVsyncNanos = frameTimeNanos;
+    }
+
+    // Called on the renderer thread for each frame that comes out of the decoder
+    void onFrameDecoded(long decodeTimeUs, long nowNanos) {
+        if (this.decodeTimeUs < 0) {
+            this.decodeTimeUs = decodeTimeUs;
+            windowStartNanos = nowNanos;
+        }
+        else {
+            decodeJitterUs += (Math.abs(decodeTimeUs - this.decodeTimeUs) - decodeJitterUs) >> EWMA_SHIFT;
+            this.decodeTimeUs += (decodeTimeUs - this.decodeTimeUs) >> EWMA_SHIFT;
+        }
+
+        long periodNanos = vsyncPeriodNanos;
+        long vsyncNanos = lastVsyncNanos;
+        if (periodNanos > 0 && nowNanos >= vsyncNanos) {
+            long phaseNanos = (nowNanos - vsyncNanos) % periodNanos;
+            long guardNanos = periodNanos * VSYNC_GUARD_PERCENT / 100;
+            if (phaseNanos < guardNanos || phaseNanos > periodNanos - guardNanos) {
+                windowFramesNearVsync++;
+            }
+        }
+        windowFrames++;
+
+        if (nowNanos - windowStartNanos >= EVALUATION_WINDOW_MS * 1000000L) {
+            evaluate();
+            windowStartNanos = nowNanos;
+            windowFrames = 0;
+            windowFramesNearVsync = 0;
+        }
+    }
+
+    private void evaluate() {
+        int jitterPercent = (int) ((sharedArrivalJitterUs + decodeJitterUs) * 100 / frameIntervalUs);
+        int nearVsyncPercent = windowFrames > 0 ? windowFramesNearVsync * 100 / windowFrames : 0;
+
+        lastJitterPercent = jitterPercent;
+        lastNearVsyncPercent = nearVsyncPercent;
+
+        if (mode == MODE_IMMEDIATE) {
+            if (jitterPercent >= ENTER_VSYNC_JITTER_PERCENT || nearVsyncPercent >= ENTER_VSYNC_NEAR_VSYNC_PERCENT) {
+                LimeLog.info("Adaptive frame pacing: switching to vsync-aligned release (jitter: "+
+                        jitterPercent+"%, near vsync: "+nearVsyncPercent+"%)");
+                mode = MODE_VSYNC;
+                modeSwitches++;
+                calmWindows = 0;
+            }
+        }
+        else if (jitterPercent < LEAVE_VSYNC_JITTER_PERCENT && nearVsyncPercent < LEAVE_VSYNC_NEAR_VSYNC_PERCENT) {
+            if (++calmWindows >= CALM_WINDOWS_TO_LEAVE_VSYNC) {
+                LimeLog.info("Adaptive frame pacing: switching to immediate release (jitter: "+
+                        jitterPercent+"%, near vsync: "+nearVsyncPercent+"%)");
+                mode = MODE_IMMEDIATE;
+                modeSwitches++;
+            }
+        }
+        else {
+            calmWindows = 0;
+        }
+    }
+
+    boolean isVsyncAligned() {
+        return mode == MODE_VSYNC;
+    }
+
+    int getMode() {
+        return mode;
+    }
+
+    int getModeSwitches() {
+        return modeSwitches;
+    }
+
+    // Arrival and decode jitter as a percentage of the frame interval in the last window
+    int getJitterPercent() {
+        return lastJitterPercent;
+    }
+
+    // Percentage of frames decoded close to a vsync in the last window
+    int getNearVsyncPercent() {
+        return lastNearVsyncPercent;
+    }
+}
@@ -0,0 +1,389 @@
+package com.limelight.binding.video;
+
+import java.nio.ByteBuffer;
+
+import com.limelight.LimeLog;
+import com.limelight.nvstream.av.telemetry.TelemetryRecorder;
+import com.limelight.nvstream.jni.MoonBridge;
+
+import android.media.MediaCodec;
+
+// Handles the bitstream side of decode unit submission: frame loss accounting, CSD batching,
+// H.264 SPS patching, and IDR frame handling. Everything codec-specific goes through a
+// DecodeUnitSink, so this class doesn't touch any Android APIs at runtime and can be driven
+// by DecodeUnitReplayer in the unit tests.
+//
+// All methods must be called on the input thread.
+class DecodeUnitProcessor {
+    private final DecodeUnitSink sink;
+    private final VideoStats stats;
+
+    // The renderer thread also adds to stats.totalTimeMs, so that is updated holding this lock
+    private final Object statsLock;
+
+    // Set by the renderer before the first decode unit is submitted
+    int videoFormat;
+    int initialWidth, initialHeight;
+    int refreshRate;
+    boolean refFrameInvalidationActive;
+    boolean fusedIdrFrame;
+    boolean constrainedHighProfile;
+    boolean needsBaselineSpsHack;
+    boolean removeSpsColorInfo;
+    boolean patchSpsBitstreamRestrictions;
+    boolean useLegacyBitstreamRestrictionValues;
+    boolean countReceiveTime;
+    JitterBuffer jitterBuffer;
+    DecoderWatchdog watchdog;
+    TelemetryRecorder telemetryRecorder;
+
+    private static final byte[] REPLAYED_SPS_HEADER = {0x00, 0x00, 0x00, 0x01, 0x67};
+
+    private final ParameterSetStore parameterSets = new ParameterSetStore();
+    private boolean submittedCsd;
+    private final H264SpsRewriter spsRewriter = new H264SpsRewriter();
+    private byte[] savedSps;
+
+    private long lastTimestampUs;
+    private int lastFrameNumber;
+
+    int numSpsIn;
+    int numPpsIn;
+    int numVpsIn;
+    int numFramesIn;
+    int numCsdSubmissionsSkipped;
+
+    DecodeUnitProcessor(DecodeUnitSink sink, VideoStats stats, Object statsLock) {
+        this.sink = sink;
+        this.stats = stats;
+        this.statsLock = statsLock;
+    }
+
+    // Called after the codec is (re)configured, since it needs new CSD buffers
+    void resetCsd() {
+        submittedCsd = false;
+        parameterSets.clear();
+    }
+
+    // Number of parameter set buffers allocated, which stops increasing once they're big enough
+    int getParameterSetAllocationCount() {
+        return parameterSets.getAllocationCount();
+    }
+
+    // Returns the lowest level_idc that allows the single frame of buffering we need at this
+    // resolution and frame rate, or -1 to leave the level alone.
+    static int getPatchedSpsLevelIdc(int width, int height, int refreshRate) {
+        if (width <= 720 && height <= 480 && refreshRate <= 60) {
+            // Max 5 buffered frames at 720x480x60
+            return 31;
+        }
+        else if (width <= 1280 && height <= 720 && refreshRate <= 60) {
+            // Max 5 buffered frames at 1280x720x60
+            return 32;
+        }
+        else if (width <= 1920 && height <= 1080 && refreshRate <= 60) {
+            // Max 4 buffered frames at 1920x1080x64
+            return 42;
+        }
+        else {
+            // Leave the profile alone (currently 5.0)
+            return -1;
+        }
+    }
+
+    private void configureSpsRewriter(int profileIdc) {
+        spsRewriter.profileIdc = profileIdc;
+
+        // Some decoders rely on H264 level to decide how many buffers are needed
+        // Since we only need one frame buffered, we'll set the level as low as we can
+        // for known resolution combinations. Reference frame invalidation may need
+        // these, so leave them be for those decoders.
+        spsRewriter.levelIdc = refFrameInvalidationActive ? -1 :
+                getPatchedSpsLevelIdc(initialWidth, initialHeight, refreshRate);
+
+        // TI OMAP4 requires a reference frame count of 1 to decode successfully. Exynos 4
+        // also requires this fixup.
+        //
+        // I'm doing this fixup for all devices because I haven't seen any devices that
+        // this causes issues for. At worst, it seems to do nothing and at best it fixes
+        // issues with video lag, hangs, and crashes.
+        //
+        // It does break reference frame invalidation, so we will not do that for decoders
+        // where we've enabled reference frame invalidation.
+        spsRewriter.numRefFrames = refFrameInvalidationActive ? -1 : 1;
+
+        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
+        // High Profile which allows the decoder to assume there will be no B-frames and
+        // reduce delay and buffering accordingly. Some devices (Marvell, Exynos 4) don't
+        // like it so we only set them on devices that are confirmed to benefit from it.
+        spsRewriter.constrainedHighProfile = constrainedHighProfile;
+
+        // GFE 2.5.11 changed the SPS to add additional extensions. Some devices don't like these
+        // so we remove them here on old devices unless these devices also support HEVC.
+        // See getPreferredColorSpace() for further information.
+        spsRewriter.removeColorInfo = removeSpsColorInfo;
+
+        // Some older devices used to choke on a bitstream restrictions, so we won't provide them
+        // unless explicitly whitelisted. For newer devices, leave the bitstream restrictions present.
+        // The SPS that comes in the current H264 bytestream doesn't set bitstream_restriction_flag
+        // or max_dec_frame_buffering which increases decoding latency on Tegra, so we add them
+        // (with max_dec_frame_buffering = num_ref_frames) when they're whitelisted.
+        spsRewriter.bitstreamRestrictions = patchSpsBitstreamRestrictions ?
+                H264SpsRewriter.BITSTREAM_RESTRICTIONS_PATCH : H264SpsRewriter.BITSTREAM_RESTRICTIONS_REMOVE;
+
+        // The max_bytes_per_pic_denom and max_bits_per_mb_denom defaults are more aggressive
+        // than what GFE sends in 2.5.11, but it doesn't seem to cause picture problems.
+        // We'll leave these alone for "modern" devices just in case they care.
+        spsRewriter.useLegacyBitstreamRestrictionValues = useLegacyBitstreamRestrictionValues;
+    }
+
+    private void addPatchedSps(byte[] decodeUnitData, int decodeUnitLength) {
+        int startSeqLen = decodeUnitData[2] == 0x01 ? 3 : 4;
+
+        // If we need to hack this SPS to say we're baseline, do so now
+        configureSpsRewriter(needsBaselineSpsHack ? 66 : -1);
+
+        // The rewriter safely handles Annex B NALUs (including NALUs with escape sequences)
+        int patchedLength = spsRewriter.rewrite(decodeUnitData, startSeqLen + 1, decodeUnitLength - startSeqLen - 1);
+        if (patchedLength < 0) {
+            LimeLog.warning("Unable to parse SPS. Submitting it without patches.");
+            parameterSets.add(ParameterSetStore.TYPE_SPS, decodeUnitData, decodeUnitLength);
+            return;
+        }
+
+        if (needsBaselineSpsHack) {
+            LimeLog.info("Hacking SPS to baseline");
+            savedSps = copyNalu(decodeUnitData, decodeUnitLength);
+        }
+
+        // Construct the patched SPS directly in the parameter set store
+        int naluLength = startSeqLen + 1 + patchedLength;
+        byte[] naluBuffer = parameterSets.reserve(ParameterSetStore.TYPE_SPS, naluLength);
+        if (naluBuffer == null) {
+            return;
+        }
+        System.arraycopy(decodeUnitData, 0, naluBuffer, 0, startSeqLen + 1);
+        System.arraycopy(spsRewriter.getOutput(), 0, naluBuffer, startSeqLen + 1, patchedLength);
+        parameterSets.commit(ParameterSetStore.TYPE_SPS, naluLength);
+    }
+
+    private boolean replaySps() {
+        ByteBuffer inputBuffer = sink.getInputBuffer();
+        if (inputBuffer == null) {
+            return false;
+        }
+
+        // Switch the H264 profile back to high
+        int startSeqLen = savedSps[2] == 0x01 ? 3 : 4;
+        configureSpsRewriter(100);
+        int patchedLength = spsRewriter.rewrite(savedSps, startSeqLen + 1, savedSps.length - startSeqLen - 1);
+
+        // No need for the SPS anymore
+        savedSps = null;
+
+        if (patchedLength < 0) {
+            return false;
+        }
+
+        // Write the Annex B header and the new SPS
+        inputBuffer.put(REPLAYED_SPS_HEADER);
+        inputBuffer.put(spsRewriter.getOutput(), 0, patchedLength);
+
+        // Queue the new SPS
+        return sink.queueInputBuffer(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+    }
+
+    private static byte[] copyNalu(byte[] decodeUnitData, int decodeUnitLength) {
+        byte[] naluBuffer = new byte[decodeUnitLength];
+        System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
+        return naluBuffer;
+    }
+
+    // If decodeUnitData is null, the picture data is fetched using DecodeUnitSink.copyPendingPictureData().
+    // This is only valid for picture data. Throws IllegalArgumentException if the decode unit doesn't
+    // fit in the codec's input buffer.
+    int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                         int frameNumber, int frameType, char frameHostProcessingLatency,
+                         long receiveTimeMs, long enqueueTimeMs) {
+        if (lastFrameNumber != 0 && frameNumber != lastFrameNumber && frameNumber != lastFrameNumber + 1) {
+            // We can receive the same "frame" multiple times if it's an IDR frame.
+            // In that case, each frame start NALU is submitted independently.
+            stats.framesLost += frameNumber - lastFrameNumber - 1;
+            stats.totalFrames += frameNumber - lastFrameNumber - 1;
+            stats.frameLossEvents++;
+        }
+
+        // Reset CSD data for each IDR frame
+        if (lastFrameNumber != frameNumber && frameType == MoonBridge.FRAME_TYPE_IDR) {
+            parameterSets.clear();
+        }
+
+        lastFrameNumber = frameNumber;
+
+        boolean csdSubmittedForThisFrame = false;
+
+        // IDR frames require special handling for CSD buffer submission
+        if (frameType == MoonBridge.FRAME_TYPE_IDR) {
+            // H264 SPS
+            if (decodeUnitType == MoonBridge.BUFFER_TYPE_SPS && (videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
+                numSpsIn++;
+
+                // Batch this to submit together with other CSD per AOSP docs
+                addPatchedSps(decodeUnitData, decodeUnitLength);
+                return MoonBridge.DR_OK;
+            }
+            else if (decodeUnitType == MoonBridge.BUFFER_TYPE_VPS) {
+                numVpsIn++;
+
+                // Batch this to submit together with other CSD per AOSP docs
+                parameterSets.add(ParameterSetStore.TYPE_VPS, decodeUnitData, decodeUnitLength);
+                return MoonBridge.DR_OK;
+            }
+            // Only the HEVC SPS hits this path (H.264 is handled above)
+            else if (decodeUnitType == MoonBridge.BUFFER_TYPE_SPS) {
+                numSpsIn++;
+
+                // Batch this to submit together with other CSD per AOSP docs
+                parameterSets.add(ParameterSetStore.TYPE_SPS, decodeUnitData, decodeUnitLength);
+                return MoonBridge.DR_OK;
+            }
+            else if (decodeUnitType == MoonBridge.BUFFER_TYPE_PPS) {
+                numPpsIn++;
+
+                // Batch this to submit together with other CSD per AOSP docs
+                parameterSets.add(ParameterSetStore.TYPE_PPS, decodeUnitData, decodeUnitLength);
+                return MoonBridge.DR_OK;
+            }
+            else if ((videoFormat & (MoonBridge.VIDEO_FORMAT_MASK_H264 | MoonBridge.VIDEO_FORMAT_MASK_H265)) != 0) {
+                // If this is the first CSD blob or we aren't supporting fused IDR frames, we will
+                // submit the CSD blob in a separate input buffer. The decoder keeps the parameter
+                // sets it was given, so we skip this for later IDR frames if they haven't changed.
+                if (submittedCsd && !fusedIdrFrame && parameterSets.matchesSubmitted()) {
+                    numCsdSubmissionsSkipped++;
+                }
+                else if (!submittedCsd || !fusedIdrFrame) {
+                    ByteBuffer inputBuffer = sink.getInputBuffer();
+                    if (inputBuffer == null) {
+                        return MoonBridge.DR_NEED_IDR;
+                    }
+
+                    // Submit all CSD when we receive the first non-CSD blob in an IDR frame
+                    parameterSets.put(inputBuffer);
+
+                    if (!sink.queueInputBuffer(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) {
+                        return MoonBridge.DR_NEED_IDR;
+                    }
+
+                    // Remember that we already submitted CSD for this frame, so we don't do it
+                    // again in the fused IDR case below.
+                    csdSubmittedForThisFrame = true;
+
+                    // Remember that we submitted CSD globally for this MediaCodec instance
+                    submittedCsd = true;
+                    parameterSets.markSubmitted();
+
+                    if (needsBaselineSpsHack) {
+                        needsBaselineSpsHack = false;
+
+                        if (!replaySps()) {
+                            return MoonBridge.DR_NEED_IDR;
+                        }
+
+                        LimeLog.info("SPS replay complete");
+                    }
+                }
+            }
+        }
+
+        if (frameHostProcessingLatency != 0) {
+            if (stats.minHostProcessingLatency != 0) {
+                stats.minHostProcessingLatency = (char) Math.min(stats.minHostProcessingLatency, frameHostProcessingLatency);
+            } else {
+                stats.minHostProcessingLatency = frameHostProcessingLatency;
+            }
+            stats.framesWithHostProcessingLatency += 1;
+            stats.hostProcessingLatency.record(frameHostProcessingLatency * 100L);
+        }
+        stats.maxHostProcessingLatency = (char) Math.max(stats.maxHostProcessingLatency, frameHostProcessingLatency);
+        stats.totalHostProcessingLatency += frameHostProcessingLatency;
+
+        stats.totalFramesReceived++;
+        stats.totalFrames++;
+
+        if (countReceiveTime) {
+            // Count time from first packet received to enqueue time as receive time
+            // We will count DU queue time as part of decoding, because it is directly
+            // caused by a slow decoder.
+            synchronized (statsLock) {
+                stats.totalTimeMs += enqueueTimeMs - receiveTimeMs;
+            }
+        }
+        stats.networkLatency.record((enqueueTimeMs - receiveTimeMs) * 1000);
+
+        ByteBuffer inputBuffer = sink.getInputBuffer();
+        if (inputBuffer == null) {
+            return MoonBridge.DR_NEED_IDR;
+        }
+
+        int codecFlags = 0;
+
+        if (frameType == MoonBridge.FRAME_TYPE_IDR) {
+            codecFlags |= MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+
+            // If we are using fused IDR frames, submit the CSD with each IDR frame. It's copied
+            // straight from the parameter set store into the buffer ahead of the picture data.
+            if (fusedIdrFrame && !csdSubmittedForThisFrame) {
+                parameterSets.put(inputBuffer);
+            }
+        }
+
+        long timestampUs = enqueueTimeMs * 1000;
+        if (timestampUs <= lastTimestampUs) {
+            // We can't submit multiple buffers with the same timestamp
+            // so bump it up by one before queuing
+            timestampUs = lastTimestampUs + 1;
+        }
+        lastTimestampUs = timestampUs;
+
+        numFramesIn++;
+
+        TelemetryRecorder recorder = telemetryRecorder;
+        if (recorder != null) {
+            recorder.recordVideoSubmit(frameNumber, frameType, frameHostProcessingLatency,
+                    receiveTimeMs, timestampUs);
+        }
+        if (jitterBuffer != null) {
+            jitterBuffer.onFrameSubmitted(frameNumber, timestampUs);
+        }
+        if (watchdog != null) {
+            watchdog.onFrameSubmitted(timestampUs);
+        }
+
+        if (decodeUnitLength > inputBuffer.limit() - inputBuffer.position()) {
+            throw new IllegalArgumentException(
+                    "Decode unit length "+decodeUnitLength+" too large for input buffer "+inputBuffer.limit());
+        }
+
+        // Copy data from our buffer list into the input buffer
+        if (decodeUnitData != null) {
+            inputBuffer.put(decodeUnitData, 0, decodeUnitLength);
+        }
+        else {
+            int bytesCopied = sink.copyPendingPictureData(inputBuffer, inputBuffer.position());
+            if (bytesCopied != decodeUnitLength) {
+                // This should never happen with MediaCodec's direct input buffers. Throw away
+                // whatever we have in the buffer and request an IDR frame to recover.
+                LimeLog.warning("Zero-copy submission failed: "+bytesCopied+" != "+decodeUnitLength);
+                inputBuffer.clear();
+                return MoonBridge.DR_NEED_IDR;
+            }
+            inputBuffer.position(inputBuffer.position() + bytesCopied);
+        }
+
+        if (!sink.queueInputBuffer(timestampUs, codecFlags)) {
+            return MoonBridge.DR_NEED_IDR;
+        }
+
+        return MoonBridge.DR_OK;
+    }
+}
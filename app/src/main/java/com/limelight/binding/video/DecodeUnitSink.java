@@ -0,0 +1,19 @@
+package com.limelight.binding.video;
+
+import java.nio.ByteBuffer;
+
+// The codec side of DecodeUnitProcessor. MediaCodecDecoderRenderer implements this on top
+// of MediaCodec input buffers, and DecodeUnitReplayer implements it without a real codec.
+interface DecodeUnitSink {
+    // Returns the input buffer to fill for the next submission (the same buffer is returned
+    // until it is queued), or null if the codec needs an IDR frame to recover.
+    ByteBuffer getInputBuffer();
+
+    // Queues the buffer returned by getInputBuffer() using MediaCodec.BUFFER_FLAG_* flags.
+    // Returns false if the codec needs an IDR frame to recover.
+    boolean queueInputBuffer(long timestampUs, int codecFlags);
+
+    // Copies the picture data of the decode unit currently being submitted into the
+    // buffer at the specified offset. Returns the number of bytes copied or -1 on failure.
+    int copyPendingPictureData(ByteBuffer buffer, int offset);
+}
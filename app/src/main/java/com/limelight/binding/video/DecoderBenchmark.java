@@ -0,0 +1,480 @@
+package com.limelight.binding.video;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import com.limelight.LimeLog;
+import com.limelight.preferences.GlPreferences;
+import com.limelight.preferences.PreferenceConfiguration;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Finds the highest resolution, frame rate, and bitrate that this device can decode each video
+// format at, since what decoders declare (and what decoderCanMeetPerformancePoint() checks) often
+// has little to do with what they can sustain.
+//
+// For each format, we use the decoder and low latency options that a stream would use and play
+// a synthetic clip at each resolution and frame rate, in increasing order, into an offscreen
+// ImageReader. A setting is sustainable if the decoder keeps up without dropping frames and
+// without latency climbing as frames back up. The first setting that isn't sustainable is the
+// knee, so we don't try anything above it. At the highest sustainable setting, we then try
+// increasing the bitrate the same way.
+//
+// The measurements are saved as JSON for export, and the best setting across all formats is
+// returned as a recommendation for the stream settings.
+public class DecoderBenchmark {
+    public interface Listener {
+        // Called on the benchmark thread before each measurement
+        void onBenchmarkProgress(String mimeType, int width, int height, int fps, int bitrateKbps);
+
+        // Called on the benchmark thread when the benchmark finishes. The recommendation is
+        // null if no setting was sustainable, and the results are null if the benchmark failed.
+        void onBenchmarkComplete(Recommendation recommendation, String resultsJson);
+    }
+
+    public static class Recommendation {
+        public final int width;
+        public final int height;
+        public final int fps;
+        public final int bitrateKbps;
+
+        Recommendation(int width, int height, int fps, int bitrateKbps) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.bitrateKbps = bitrateKbps;
+        }
+    }
+
+    private static final String[] MIME_TYPES = {"video/avc", "video/hevc", "video/av01"};
+
+    // These match the resolution and frame rate options in the stream settings
+    private static final int[][] RESOLUTIONS = {{1280, 720}, {1920, 1080}, {2560, 1440}, {3840, 2160}};
+    private static final int[] FRAME_RATES = {30, 60, 90, 120};
+
+    // Bitrates tried at the highest sustainable setting, as multiples of its default bitrate
+    private static final int[] BITRATE_MULTIPLIERS = {2, 3};
+
+    // Each setting is played for this long, looping a clip that's a second long
+    private static final int RUN_SECONDS = 3;
+
+    // The first frames include the IDR frame and any decoder warm up
+    private static final int WARMUP_FRAMES = 10;
+
+    // A setting isn't sustainable if the decoder drops more frames than this
+    private static final int MAX_DROPPED_PERCENT = 2;
+
+    // ... or if the 95th percentile latency is longer than this many frame intervals
+    private static final int MAX_P95_LATENCY_FRAMES = 2;
+
+    // ... or if latency at the end of the run grows past latency at the start by more than this,
+    // which means frames are backing up in the decoder
+    private static final int MAX_LATENCY_GROWTH_PERCENT = 50;
+    private static final int LATENCY_GROWTH_SLACK_US = 2000;
+
+    private static final int OUTPUT_IMAGES = 3;
+
+    private static final String PREF_NAME = "DecoderBenchmark";
+    private static final String RESULTS_PREF_STRING = "Results";
+
+    private static Thread benchmarkThread;
+    private static final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private static class Measurement {
+        final int width;
+        final int height;
+        final int fps;
+        final int bitrateKbps;
+        int encodedBitrateKbps;
+        int medianLatencyUs;
+        int p95LatencyUs;
+        int droppedPercent;
+        boolean sustainable;
+
+        Measurement(int width, int height, int fps, int bitrateKbps) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.bitrateKbps = bitrateKbps;
+        }
+
+        long getPixelRate() {
+            return (long) width * height * fps;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("width", width);
+            json.put("height", height);
+            json.put("fps", fps);
+            json.put("bitrateKbps", bitrateKbps);
+            json.put("encodedBitrateKbps", encodedBitrateKbps);
+            json.put("medianLatencyUs", medianLatencyUs);
+            json.put("p95LatencyUs", p95LatencyUs);
+            json.put("droppedPercent", droppedPercent);
+            json.put("sustainable", sustainable);
+            return json;
+        }
+    }
+
+    // Starts the benchmark in the background, skipping resolutions taller than maxHeight.
+    // Returns false if the benchmark is already running.
+    public static synchronized boolean start(Context context, final int maxHeight, final Listener listener) {
+        if (benchmarkThread != null && benchmarkThread.isAlive()) {
+            return false;
+        }
+
+        // Calibration holds decoders and would skew our measurements
+        DecoderLatencyProbe.stop();
+
+        final Context appContext = context.getApplicationContext();
+        cancelled.set(false);
+        benchmarkThread = new Thread() {
+            @Override
+            public void run() {
+                runBenchmark(appContext, maxHeight, listener);
+            }
+        };
+        benchmarkThread.setName("Video - Decoder benchmark");
+        benchmarkThread.start();
+        return true;
+    }
+
+    // Stops any benchmark in progress. The listener isn't called and nothing is saved.
+    public static void stop() {
+        Thread thread;
+        synchronized (DecoderBenchmark.class) {
+            thread = benchmarkThread;
+            benchmarkThread = null;
+        }
+
+        if (thread != null) {
+            cancelled.set(true);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Returns the JSON results of the last completed benchmark or null if there aren't any
+    public static String getSavedResults(Context context) {
+        return context.getSharedPreferences(PREF_NAME, 0).getString(RESULTS_PREF_STRING, null);
+    }
+
+    private static void runBenchmark(Context context, int maxHeight, Listener listener) {
+        LimeLog.info("Starting decoder benchmark");
+
+        String glRenderer = GlPreferences.readPreferences(context).glRenderer;
+        MediaCodecHelper.initialize(context, glRenderer);
+        DecoderCapabilityCache cache = DecoderCapabilityCache.load(context, glRenderer,
+                PreferenceConfiguration.readPreferences(context).decoderCalibration);
+
+        // Decoded frames go to an ImageReader that we empty as fast as they arrive, like a
+        // SurfaceView that's never behind. Before Marshmallow, there's no ImageReader format
+        // that hardware decoders can output to, so we take output in ByteBuffers instead.
+        HandlerThread outputThread = new HandlerThread("Video - Benchmark output");
+        outputThread.start();
+        Handler outputHandler = new Handler(outputThread.getLooper());
+
+        try {
+            JSONObject results = new JSONObject();
+            results.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+            results.put("fingerprint", Build.FINGERPRINT);
+            results.put("sdk", Build.VERSION.SDK_INT);
+            results.put("glRenderer", glRenderer);
+            JSONArray formats = new JSONArray();
+
+            Measurement overallBest = null;
+            for (String mimeType : MIME_TYPES) {
+                DecoderCapabilities decoder = cache.getDecoder(mimeType);
+                if (decoder == null) {
+                    continue;
+                }
+
+                JSONObject format = new JSONObject();
+                format.put("mimeType", mimeType);
+                format.put("decoder", decoder.name);
+                JSONArray measurements = new JSONArray();
+
+                // Go up in resolution and then frame rate until we find the knee
+                Measurement best = null;
+                for (int[] resolution : RESOLUTIONS) {
+                    if (resolution[1] > maxHeight) {
+                        break;
+                    }
+
+                    boolean sustainable = false;
+                    for (int fps : FRAME_RATES) {
+                        int bitrateKbps = getDefaultBitrate(resolution[0], resolution[1], fps);
+                        listener.onBenchmarkProgress(mimeType, resolution[0], resolution[1], fps, bitrateKbps);
+
+                        Measurement measurement = measure(decoder, resolution[0], resolution[1], fps, bitrateKbps, outputHandler);
+                        if (cancelled.get()) {
+                            LimeLog.info("Decoder benchmark cancelled");
+                            return;
+                        }
+                        else if (measurement == null) {
+                            break;
+                        }
+
+                        measurements.put(measurement.toJson());
+                        if (!measurement.sustainable) {
+                            break;
+                        }
+
+                        sustainable = true;
+                        if (best == null || measurement.getPixelRate() > best.getPixelRate()) {
+                            best = measurement;
+                        }
+                    }
+
+                    if (!sustainable) {
+                        break;
+                    }
+                }
+
+                if (best == null) {
+                    LimeLog.info("No sustainable settings for "+mimeType);
+                    formats.put(format.put("measurements", measurements));
+                    continue;
+                }
+
+                // Now see how much more bitrate the decoder can take at its best setting
+                int maxBitrateKbps = best.bitrateKbps;
+                for (int multiplier : BITRATE_MULTIPLIERS) {
+                    int bitrateKbps = best.bitrateKbps * multiplier;
+                    listener.onBenchmarkProgress(mimeType, best.width, best.height, best.fps, bitrateKbps);
+
+                    Measurement measurement = measure(decoder, best.width, best.height, best.fps, bitrateKbps, outputHandler);
+                    if (cancelled.get()) {
+                        LimeLog.info("Decoder benchmark cancelled");
+                        return;
+                    }
+                    else if (measurement == null) {
+                        break;
+                    }
+
+                    measurements.put(measurement.toJson());
+                    if (!measurement.sustainable) {
+                        break;
+                    }
+                    maxBitrateKbps = bitrateKbps;
+                }
+
+                LimeLog.info("Decoder benchmark for "+mimeType+": "+best.width+"x"+best.height+"x"+
+                        best.fps+" up to "+maxBitrateKbps+" Kbps");
+                format.put("maxWidth", best.width);
+                format.put("maxHeight", best.height);
+                format.put("maxFps", best.fps);
+                format.put("maxBitrateKbps", maxBitrateKbps);
+                formats.put(format.put("measurements", measurements));
+
+                if (overallBest == null || best.getPixelRate() > overallBest.getPixelRate()) {
+                    overallBest = best;
+                }
+            }
+            results.put("formats", formats);
+
+            // We may have had to look up decoders that weren't cached yet
+            cache.save();
+
+            Recommendation recommendation = null;
+            if (overallBest != null) {
+                // The default bitrate for a setting is what the host will be asked for, so
+                // recommend that rather than the most the decoder could take.
+                recommendation = new Recommendation(overallBest.width, overallBest.height,
+                        overallBest.fps, overallBest.bitrateKbps);
+                results.put("recommendation", new JSONObject()
+                        .put("width", recommendation.width)
+                        .put("height", recommendation.height)
+                        .put("fps", recommendation.fps)
+                        .put("bitrateKbps", recommendation.bitrateKbps));
+            }
+
+            String resultsJson = results.toString(2);
+            context.getSharedPreferences(PREF_NAME, 0).edit().putString(RESULTS_PREF_STRING, resultsJson).apply();
+            LimeLog.info("Decoder benchmark complete");
+
+            listener.onBenchmarkComplete(recommendation, resultsJson);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            listener.onBenchmarkComplete(null, null);
+        } finally {
+            outputThread.quit();
+        }
+    }
+
+    private static int getDefaultBitrate(int width, int height, int fps) {
+        return PreferenceConfiguration.getDefaultBitrate(width+"x"+height, Integer.toString(fps));
+    }
+
+    // Returns null if we couldn't encode a clip or configure the decoder for this setting
+    private static Measurement measure(DecoderCapabilities decoderInfo, int width, int height, int fps,
+                                       int bitrateKbps, Handler outputHandler) {
+        TestClip clip = TestClip.encode(decoderInfo.mimeType, width, height, fps, bitrateKbps * 1000,
+                fps, true, cancelled);
+        if (clip == null) {
+            return null;
+        }
+
+        ImageReader imageReader = null;
+        Surface surface = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            imageReader = ImageReader.newInstance(width, height, ImageFormat.PRIVATE, OUTPUT_IMAGES);
+            imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireNextImage();
+                    if (image != null) {
+                        image.close();
+                    }
+                }
+            }, outputHandler);
+            surface = imageReader.getSurface();
+        }
+
+        MediaCodec decoder = null;
+        try {
+            decoder = configureDecoder(decoderInfo, width, height, surface);
+            if (decoder == null) {
+                return null;
+            }
+            decoder.start();
+
+            long frameIntervalUs = clip.getFrameIntervalUs();
+            int frameCount = fps * RUN_SECONDS;
+            long[] submitTimesNs = new long[frameCount];
+            long[] latenciesNs = new long[frameCount];
+            Arrays.fill(latenciesNs, -1);
+
+            // Frames are submitted at the frame rate like a stream. A frame that can't get an
+            // input buffer by the time the next one is due is dropped.
+            clip.submitCodecConfig(decoder);
+            long startNs = System.nanoTime();
+            for (int i = 0; i < frameCount && !cancelled.get(); i++) {
+                long dueNs = startNs + i * frameIntervalUs * 1000;
+                while (System.nanoTime() < dueNs) {
+                    clip.drainOutput(decoder, submitTimesNs, latenciesNs, 1000, surface != null);
+                }
+
+                if (clip.submitFrame(decoder, i, frameIntervalUs)) {
+                    submitTimesNs[i] = System.nanoTime();
+                }
+            }
+            clip.finishAndDrain(decoder, submitTimesNs, latenciesNs, surface != null, cancelled);
+
+            Measurement measurement = new Measurement(width, height, fps, bitrateKbps);
+            measurement.encodedBitrateKbps = clip.getBitrateKbps();
+            evaluate(measurement, latenciesNs, frameIntervalUs);
+
+            LimeLog.info("Decoder benchmark "+decoderInfo.name+" "+width+"x"+height+"x"+fps+" at "+
+                    bitrateKbps+" Kbps ("+measurement.encodedBitrateKbps+" Kbps encoded): "+
+                    measurement.medianLatencyUs+" us median, "+measurement.p95LatencyUs+" us p95, "+
+                    measurement.droppedPercent+"% dropped"+(measurement.sustainable ? "" : " (not sustainable)"));
+            return measurement;
+        } catch (Exception e) {
+            // A decoder that fails at this setting can't sustain it
+            LimeLog.info("Decoder benchmark "+decoderInfo.name+" "+width+"x"+height+"x"+fps+" failed: "+e);
+            Measurement measurement = new Measurement(width, height, fps, bitrateKbps);
+            measurement.droppedPercent = 100;
+            return measurement;
+        } finally {
+            if (decoder != null) {
+                decoder.release();
+            }
+            if (imageReader != null) {
+                imageReader.close();
+            }
+        }
+    }
+
+    // Uses the same low latency options as a stream would, trying them the same way
+    private static MediaCodec configureDecoder(DecoderCapabilities decoderInfo, int width, int height, Surface surface) throws Exception {
+        for (int tryNumber = decoderInfo.lowLatencyTryNumber;; tryNumber++) {
+            MediaFormat format = MediaFormat.createVideoFormat(decoderInfo.mimeType, width, height);
+            boolean newFormat = MediaCodecHelper.setDecoderLowLatencyOptions(format, decoderInfo.name,
+                    decoderInfo.lowLatencyFeature, tryNumber);
+
+            MediaCodec decoder = MediaCodec.createByCodecName(decoderInfo.name);
+            try {
+                decoder.configure(format, surface, null, 0);
+                return decoder;
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                decoder.release();
+                if (!newFormat) {
+                    LimeLog.info("Decoder benchmark couldn't configure "+decoderInfo.name+" at "+
+                            width+"x"+height+": "+e);
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static void evaluate(Measurement measurement, long[] latenciesNs, long frameIntervalUs) {
+        int measuredFrames = latenciesNs.length - WARMUP_FRAMES;
+        long[] sortedNs = new long[measuredFrames];
+        int outputCount = 0;
+        for (int i = WARMUP_FRAMES; i < latenciesNs.length; i++) {
+            if (latenciesNs[i] >= 0) {
+                sortedNs[outputCount++] = latenciesNs[i];
+            }
+        }
+
+        measurement.droppedPercent = (measuredFrames - outputCount) * 100 / measuredFrames;
+        if (outputCount == 0) {
+            return;
+        }
+
+        Arrays.sort(sortedNs, 0, outputCount);
+        measurement.medianLatencyUs = (int) (sortedNs[outputCount / 2] / 1000);
+        measurement.p95LatencyUs = (int) (sortedNs[outputCount * 95 / 100] / 1000);
+
+        // Compare the first and last thirds of the run to see if frames are backing up
+        int thirdFrames = measuredFrames / 3;
+        long firstMedianUs = getMedianLatencyUs(latenciesNs, WARMUP_FRAMES, WARMUP_FRAMES + thirdFrames);
+        long lastMedianUs = getMedianLatencyUs(latenciesNs, latenciesNs.length - thirdFrames, latenciesNs.length);
+
+        measurement.sustainable = measurement.droppedPercent <= MAX_DROPPED_PERCENT &&
+                measurement.p95LatencyUs <= frameIntervalUs * MAX_P95_LATENCY_FRAMES &&
+                firstMedianUs >= 0 && lastMedianUs >= 0 &&
+                lastMedianUs <= firstMedianUs * (100 + MAX_LATENCY_GROWTH_PERCENT) / 100 + LATENCY_GROWTH_SLACK_US;
+    }
+
+    // Returns -1 if none of these frames came out of the decoder
+    private static long getMedianLatencyUs(long[] latenciesNs, int start, int end) {
+        long[] sortedNs = new long[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (latenciesNs[i] >= 0) {
+                sortedNs[count++] = latenciesNs[i];
+            }
+        }
+
+        if (count == 0) {
+            return -1;
+        }
+
+        Arrays.sort(sortedNs, 0, count);
+        return sortedNs[count / 2] / 1000;
+    }
+}
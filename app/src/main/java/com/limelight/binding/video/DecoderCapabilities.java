@@ -0,0 +1,238 @@
+package com.limelight.binding.video;
+
+import android.media.MediaCodecInfo;
+
+import com.limelight.LimeLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+// Everything we need to know about the decoder chosen for a video format. This is resolved once
+// from MediaCodecList and our quirk lists, then saved by DecoderCapabilityCache so later streams
+// don't have to walk the decoder list again.
+class DecoderCapabilities {
+    final String name;
+    final String mimeType;
+    final int[] profiles;
+
+    // Result of the HEVC or AV1 whitelist checks (always true for AVC)
+    final boolean whitelisted;
+
+    final boolean lowLatencyFeature;
+    final boolean adaptivePlayback;
+    final boolean fusedIdrFrame;
+    final boolean refFrameInvalidation;
+    final boolean refFrameInvalidationAbove720p;
+    final byte optimalSlicesPerFrame;
+
+    // H.264 only
+    final boolean directSubmit;
+    final boolean needsSpsBitstreamFixup;
+    final boolean needsBaselineSpsHack;
+    final boolean needsConstrainedHighProfile;
+
+    // Measured by DecoderLatencyProbe if this decoder was picked by calibration (-1 otherwise)
+    int measuredLatencyUs = -1;
+    int measuredFps = -1;
+
+    // The setDecoderLowLatencyOptions() try that had the lowest latency in calibration
+    int lowLatencyTryNumber;
+
+    // Whether the decoder can handle a given "WxH@FPS". These depend on the streaming settings,
+    // so they're filled in as different settings are used.
+    private final HashMap<String, Boolean> performancePoints = new HashMap<>();
+    private boolean performancePointsChanged;
+
+    // Only available if we probed this decoder in this process or needed it for something
+    // we haven't cached, since looking it up means enumerating decoders again.
+    private MediaCodecInfo codecInfo;
+
+    private DecoderCapabilities(String name, String mimeType, int[] profiles, boolean whitelisted,
+                                boolean lowLatencyFeature, boolean adaptivePlayback, boolean fusedIdrFrame,
+                                boolean refFrameInvalidation, boolean refFrameInvalidationAbove720p,
+                                byte optimalSlicesPerFrame, boolean directSubmit, boolean needsSpsBitstreamFixup,
+                                boolean needsBaselineSpsHack, boolean needsConstrainedHighProfile) {
+        this.name = name;
+        this.mimeType = mimeType;
+        this.profiles = profiles;
+        this.whitelisted = whitelisted;
+        this.lowLatencyFeature = lowLatencyFeature;
+        this.adaptivePlayback = adaptivePlayback;
+        this.fusedIdrFrame = fusedIdrFrame;
+        this.refFrameInvalidation = refFrameInvalidation;
+        this.refFrameInvalidationAbove720p = refFrameInvalidationAbove720p;
+        this.optimalSlicesPerFrame = optimalSlicesPerFrame;
+        this.directSubmit = directSubmit;
+        this.needsSpsBitstreamFixup = needsSpsBitstreamFixup;
+        this.needsBaselineSpsHack = needsBaselineSpsHack;
+        this.needsConstrainedHighProfile = needsConstrainedHighProfile;
+    }
+
+    static DecoderCapabilities probe(MediaCodecInfo codecInfo, String mimeType) {
+        String name = codecInfo.getName();
+        boolean isAvc = mimeType.equals("video/avc");
+
+        int[] profiles;
+        try {
+            MediaCodecInfo.CodecProfileLevel[] profileLevels = codecInfo.getCapabilitiesForType(mimeType).profileLevels;
+            profiles = new int[profileLevels.length];
+            for (int i = 0; i < profileLevels.length; i++) {
+                profiles[i] = profileLevels[i].profile;
+            }
+        } catch (Exception e) {
+            // Tolerate buggy codecs
+            e.printStackTrace();
+            profiles = new int[0];
+        }
+
+        boolean whitelisted;
+        boolean refFrameInvalidation, refFrameInvalidationAbove720p;
+        switch (mimeType) {
+            case "video/hevc":
+                whitelisted = MediaCodecHelper.decoderIsWhitelistedForHevc(codecInfo);
+                refFrameInvalidation = refFrameInvalidationAbove720p =
+                        MediaCodecHelper.decoderSupportsRefFrameInvalidationHevc(codecInfo);
+                break;
+            case "video/av01":
+                whitelisted = MediaCodecHelper.isDecoderWhitelistedForAv1(codecInfo);
+                refFrameInvalidation = refFrameInvalidationAbove720p =
+                        MediaCodecHelper.decoderSupportsRefFrameInvalidationAv1(codecInfo);
+                break;
+            default:
+                whitelisted = true;
+                refFrameInvalidation = MediaCodecHelper.decoderSupportsRefFrameInvalidationAvc(name, 720);
+                refFrameInvalidationAbove720p = MediaCodecHelper.decoderSupportsRefFrameInvalidationAvc(name, 1080);
+                break;
+        }
+
+        DecoderCapabilities caps = new DecoderCapabilities(name, mimeType, profiles, whitelisted,
+                MediaCodecHelper.decoderSupportsAndroidRLowLatency(codecInfo, mimeType),
+                MediaCodecHelper.decoderSupportsAdaptivePlayback(codecInfo, mimeType),
+                MediaCodecHelper.decoderSupportsFusedIdrFrame(codecInfo, mimeType),
+                refFrameInvalidation, refFrameInvalidationAbove720p,
+                MediaCodecHelper.getDecoderOptimalSlicesPerFrame(name),
+                isAvc && MediaCodecHelper.decoderCanDirectSubmit(name),
+                isAvc && MediaCodecHelper.decoderNeedsSpsBitstreamRestrictions(name),
+                isAvc && MediaCodecHelper.decoderNeedsBaselineSpsHack(name),
+                isAvc && MediaCodecHelper.decoderNeedsConstrainedHighProfile(name));
+        caps.codecInfo = codecInfo;
+        return caps;
+    }
+
+    boolean hasMeasurements() {
+        return measuredLatencyUs >= 0;
+    }
+
+    boolean supportsProfile(int profile) {
+        for (int supportedProfile : profiles) {
+            if (supportedProfile == profile) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean supportsRefFrameInvalidation(int videoHeight) {
+        return videoHeight > 720 ? refFrameInvalidationAbove720p : refFrameInvalidation;
+    }
+
+    // Returns null if we haven't checked this performance point yet
+    Boolean getPerformancePoint(int width, int height, int fps) {
+        return performancePoints.get(width + "x" + height + "@" + fps);
+    }
+
+    void putPerformancePoint(int width, int height, int fps, boolean supported) {
+        performancePoints.put(width + "x" + height + "@" + fps, supported);
+        performancePointsChanged = true;
+    }
+
+    boolean havePerformancePointsChanged() {
+        return performancePointsChanged;
+    }
+
+    // Looks up the MediaCodecInfo if we didn't probe this decoder in this process.
+    // Returns null if the decoder is gone.
+    MediaCodecInfo getCodecInfo() {
+        if (codecInfo == null) {
+            LimeLog.info("Looking up cached decoder: "+name);
+            codecInfo = MediaCodecHelper.findDecoderByName(name);
+        }
+        return codecInfo;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("mimeType", mimeType);
+
+        JSONArray profileArray = new JSONArray();
+        for (int profile : profiles) {
+            profileArray.put(profile);
+        }
+        json.put("profiles", profileArray);
+
+        json.put("whitelisted", whitelisted);
+        json.put("lowLatencyFeature", lowLatencyFeature);
+        json.put("adaptivePlayback", adaptivePlayback);
+        json.put("fusedIdrFrame", fusedIdrFrame);
+        json.put("refFrameInvalidation", refFrameInvalidation);
+        json.put("refFrameInvalidationAbove720p", refFrameInvalidationAbove720p);
+        json.put("optimalSlicesPerFrame", optimalSlicesPerFrame);
+        json.put("directSubmit", directSubmit);
+        json.put("needsSpsBitstreamFixup", needsSpsBitstreamFixup);
+        json.put("needsBaselineSpsHack", needsBaselineSpsHack);
+        json.put("needsConstrainedHighProfile", needsConstrainedHighProfile);
+        json.put("measuredLatencyUs", measuredLatencyUs);
+        json.put("measuredFps", measuredFps);
+        json.put("lowLatencyTryNumber", lowLatencyTryNumber);
+
+        JSONObject perfPoints = new JSONObject();
+        for (HashMap.Entry<String, Boolean> entry : performancePoints.entrySet()) {
+            perfPoints.put(entry.getKey(), entry.getValue());
+        }
+        json.put("performancePoints", perfPoints);
+
+        return json;
+    }
+
+    static DecoderCapabilities fromJson(JSONObject json) throws JSONException {
+        JSONArray profileArray = json.getJSONArray("profiles");
+        int[] profiles = new int[profileArray.length()];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = profileArray.getInt(i);
+        }
+
+        DecoderCapabilities caps = new DecoderCapabilities(
+                json.getString("name"),
+                json.getString("mimeType"),
+                profiles,
+                json.getBoolean("whitelisted"),
+                json.getBoolean("lowLatencyFeature"),
+                json.getBoolean("adaptivePlayback"),
+                json.getBoolean("fusedIdrFrame"),
+                json.getBoolean("refFrameInvalidation"),
+                json.getBoolean("refFrameInvalidationAbove720p"),
+                (byte) json.getInt("optimalSlicesPerFrame"),
+                json.getBoolean("directSubmit"),
+                json.getBoolean("needsSpsBitstreamFixup"),
+                json.getBoolean("needsBaselineSpsHack"),
+                json.getBoolean("needsConstrainedHighProfile"));
+
+        caps.measuredLatencyUs = json.optInt("measuredLatencyUs", -1);
+        caps.measuredFps = json.optInt("measuredFps", -1);
+        caps.lowLatencyTryNumber = json.optInt("lowLatencyTryNumber", 0);
+
+        JSONObject perfPoints = json.getJSONObject("performancePoints");
+        Iterator<String> keys = perfPoints.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            caps.performancePoints.put(key, perfPoints.getBoolean(key));
+        }
+
+        return caps;
+    }
+}
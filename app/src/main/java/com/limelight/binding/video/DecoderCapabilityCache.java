@@ -0,0 +1,231 @@
+package com.limelight.binding.video;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.os.Build;
+
+import com.limelight.BuildConfig;
+import com.limelight.LimeLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+
+// Saves the decoders we pick for each video format along with their capabilities and quirks,
+// so stream setup doesn't need to enumerate MediaCodecList (and instantiate decoders to probe
+// vendor parameters) every time. This is slow on older TV boxes.
+//
+// If decoder calibration has run, DecoderLatencyProbe's pick for each format is saved separately
+// and used instead of the decoder picked from our lists when calibration is enabled.
+//
+// The saved results are only valid for the OS build, GPU, and app version they were found on,
+// since OS updates can change the decoders and our quirk lists depend on the GL renderer and
+// change between app versions.
+class DecoderCapabilityCache {
+    private static final String PREF_NAME = "DecoderCapabilityCache";
+
+    private static final String KEY_PREF_STRING = "Key";
+    private static final String EXYNOS4_PREF_STRING = "Exynos4";
+    private static final String DECODER_PREF_STRING_PREFIX = "Decoder:";
+    private static final String CALIBRATED_PREF_STRING = "Calibrated";
+    private static final String RANKED_DECODER_PREF_STRING_PREFIX = "RankedDecoder:";
+    private static final String RANKING_PREF_STRING_PREFIX = "Ranking:";
+
+    // Saved for video formats that have no usable decoder
+    private static final String NO_DECODER = "";
+
+    private final SharedPreferences prefs;
+    private final String cacheKey;
+    private final HashMap<String, DecoderCapabilities> decoders = new HashMap<>();
+    private final HashMap<String, String> savedDecoders = new HashMap<>();
+    private final boolean useLatencyRankings;
+    private final HashMap<String, DecoderCapabilities> rankedDecoders = new HashMap<>();
+    private final HashMap<String, String> rankings = new HashMap<>();
+    private boolean calibrated;
+    private Boolean isExynos4;
+    private boolean changed;
+
+    private DecoderCapabilityCache(SharedPreferences prefs, String cacheKey, boolean useLatencyRankings) {
+        this.prefs = prefs;
+        this.cacheKey = cacheKey;
+        this.useLatencyRankings = useLatencyRankings;
+    }
+
+    static DecoderCapabilityCache load(Context context, String glRenderer, boolean useLatencyRankings) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, 0);
+        DecoderCapabilityCache cache = new DecoderCapabilityCache(prefs,
+                Build.FINGERPRINT + "|" + glRenderer + "|" + BuildConfig.VERSION_CODE,
+                useLatencyRankings);
+
+        if (!cache.cacheKey.equals(prefs.getString(KEY_PREF_STRING, ""))) {
+            LimeLog.info("Decoder capability cache is missing or out of date");
+            cache.changed = true;
+            return cache;
+        }
+
+        if (prefs.contains(EXYNOS4_PREF_STRING)) {
+            cache.isExynos4 = prefs.getBoolean(EXYNOS4_PREF_STRING, false);
+        }
+
+        cache.calibrated = prefs.getBoolean(CALIBRATED_PREF_STRING, false);
+
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(DECODER_PREF_STRING_PREFIX)) {
+                cache.savedDecoders.put(key.substring(DECODER_PREF_STRING_PREFIX.length()),
+                        prefs.getString(key, NO_DECODER));
+            }
+            else if (key.startsWith(RANKED_DECODER_PREF_STRING_PREFIX) && useLatencyRankings) {
+                String mimeType = key.substring(RANKED_DECODER_PREF_STRING_PREFIX.length());
+                try {
+                    cache.rankedDecoders.put(mimeType,
+                            DecoderCapabilities.fromJson(new JSONObject(prefs.getString(key, NO_DECODER))));
+                } catch (JSONException e) {
+                    LimeLog.warning("Discarding unreadable calibrated decoder for "+mimeType+": "+e);
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    // Returns the decoder to use for the given video format or null if there isn't one
+    DecoderCapabilities getDecoder(String mimeType) {
+        DecoderCapabilities rankedDecoder = rankedDecoders.get(mimeType);
+        if (rankedDecoder != null) {
+            LimeLog.info("Using calibrated decoder for "+mimeType+": "+rankedDecoder.name+
+                    " ("+rankedDecoder.measuredLatencyUs+" us, "+rankedDecoder.measuredFps+" FPS)");
+            return rankedDecoder;
+        }
+
+        if (decoders.containsKey(mimeType)) {
+            return decoders.get(mimeType);
+        }
+
+        DecoderCapabilities decoder = null;
+        String saved = savedDecoders.get(mimeType);
+        if (saved != null) {
+            try {
+                if (!saved.equals(NO_DECODER)) {
+                    decoder = DecoderCapabilities.fromJson(new JSONObject(saved));
+                }
+                LimeLog.info("Using cached decoder for "+mimeType+": "+(decoder != null ? decoder.name : "(none)"));
+                decoders.put(mimeType, decoder);
+                return decoder;
+            } catch (JSONException e) {
+                LimeLog.warning("Discarding unreadable cached decoder for "+mimeType+": "+e);
+            }
+        }
+
+        MediaCodecInfo codecInfo = findDecoder(mimeType);
+        if (codecInfo != null) {
+            decoder = DecoderCapabilities.probe(codecInfo, mimeType);
+        }
+
+        decoders.put(mimeType, decoder);
+        changed = true;
+        return decoder;
+    }
+
+    private static MediaCodecInfo findDecoder(String mimeType) {
+        if (mimeType.equals("video/avc")) {
+            MediaCodecInfo decoder = MediaCodecHelper.findProbableSafeDecoder(mimeType, MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+            if (decoder == null) {
+                decoder = MediaCodecHelper.findFirstDecoder(mimeType);
+            }
+            return decoder;
+        }
+        else {
+            // We don't try the first HEVC or AV1 decoder. We'd rather fall back to hardware
+            // accelerated AVC instead.
+            //
+            // We need HEVC Main profile, so we could pass that constant to findProbableSafeDecoder, however
+            // some decoders (at least Qualcomm's Snapdragon 805) don't properly report support
+            // for even required levels of HEVC.
+            return MediaCodecHelper.findProbableSafeDecoder(mimeType, -1);
+        }
+    }
+
+    boolean isCalibrated() {
+        return calibrated;
+    }
+
+    // Called by DecoderLatencyProbe with the fastest decoder for a format and the JSON ranking
+    // of every decoder and option set that was measured
+    void putCalibrationResult(String mimeType, DecoderCapabilities bestDecoder, String ranking) {
+        rankedDecoders.put(mimeType, bestDecoder);
+        rankings.put(mimeType, ranking);
+        changed = true;
+    }
+
+    void setCalibrated() {
+        calibrated = true;
+        changed = true;
+    }
+
+    boolean isExynos4Device() {
+        if (isExynos4 == null) {
+            isExynos4 = MediaCodecHelper.isExynos4Device();
+            changed = true;
+        }
+        return isExynos4;
+    }
+
+    // Writes out anything we had to look up that wasn't already saved
+    void save() {
+        boolean perfPointsChanged = false;
+        for (DecoderCapabilities decoder : decoders.values()) {
+            if (decoder != null && decoder.havePerformancePointsChanged()) {
+                perfPointsChanged = true;
+                break;
+            }
+        }
+        for (DecoderCapabilities decoder : rankedDecoders.values()) {
+            if (decoder.havePerformancePointsChanged()) {
+                perfPointsChanged = true;
+                break;
+            }
+        }
+
+        if (!changed && !perfPointsChanged) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = prefs.edit();
+        if (!cacheKey.equals(prefs.getString(KEY_PREF_STRING, ""))) {
+            // Throw out everything saved for a different device configuration
+            editor.clear();
+            editor.putString(KEY_PREF_STRING, cacheKey);
+        }
+
+        if (isExynos4 != null) {
+            editor.putBoolean(EXYNOS4_PREF_STRING, isExynos4);
+        }
+        if (calibrated) {
+            editor.putBoolean(CALIBRATED_PREF_STRING, true);
+        }
+        for (HashMap.Entry<String, String> entry : rankings.entrySet()) {
+            editor.putString(RANKING_PREF_STRING_PREFIX + entry.getKey(), entry.getValue());
+        }
+
+        for (HashMap.Entry<String, DecoderCapabilities> entry : decoders.entrySet()) {
+            try {
+                editor.putString(DECODER_PREF_STRING_PREFIX + entry.getKey(),
+                        entry.getValue() != null ? entry.getValue().toJson().toString() : NO_DECODER);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        for (HashMap.Entry<String, DecoderCapabilities> entry : rankedDecoders.entrySet()) {
+            try {
+                editor.putString(RANKED_DECODER_PREF_STRING_PREFIX + entry.getKey(), entry.getValue().toJson().toString());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        editor.apply();
+        changed = false;
+    }
+}
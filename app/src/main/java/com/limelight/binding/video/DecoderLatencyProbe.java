@@ -0,0 +1,292 @@
+package com.limelight.binding.video;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import com.limelight.LimeLog;
+import com.limelight.preferences.GlPreferences;
+import com.limelight.preferences.PreferenceConfiguration;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Measures how each candidate decoder actually performs, since what a decoder declares often has
+// little to do with its real decode latency.
+//
+// We can't ship a test clip for every format, so we encode a short synthetic clip with the
+// device's own encoder and feed it through every hardware decoder for that format with each of
+// the low latency option sets from setDecoderLowLatencyOptions(). Each run measures:
+//
+// - Latency: time from queueing a frame to getting it back, with frames submitted at the clip's
+//   frame rate like a stream. This catches decoders that hold frames until more input arrives.
+// - Throughput: frames per second when the decoder is given frames as fast as it takes them.
+//
+// The fastest decoder for each format is saved in DecoderCapabilityCache along with the ranking
+// of everything that was measured. Formats that the device can't encode keep using our lists.
+public class DecoderLatencyProbe {
+    private static final String[] MIME_TYPES = {"video/avc", "video/hevc", "video/av01"};
+
+    private static final int CLIP_WIDTH = 1280;
+    private static final int CLIP_HEIGHT = 720;
+    private static final int CLIP_FPS = 60;
+    private static final int CLIP_FRAMES = 60;
+    private static final int CLIP_BITRATE = 10000000;
+
+    // The first frames include the IDR frame and any decoder warm up
+    private static final int WARMUP_FRAMES = 10;
+
+    // A run is thrown out if the decoder loses more frames than this
+    private static final int MIN_OUTPUT_PERCENT = 90;
+
+    private static final int INPUT_TIMEOUT_US = 20000;
+
+    private static Thread probeThread;
+    private static final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private static class Result {
+        final String decoderName;
+        final int tryNumber;
+        final int latencyUs;
+        final int fps;
+
+        Result(String decoderName, int tryNumber, int latencyUs, int fps) {
+            this.decoderName = decoderName;
+            this.tryNumber = tryNumber;
+            this.latencyUs = latencyUs;
+            this.fps = fps;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", decoderName);
+            json.put("tryNumber", tryNumber);
+            json.put("latencyUs", latencyUs);
+            json.put("fps", fps);
+            return json;
+        }
+    }
+
+    // Starts calibration in the background if it's enabled and hasn't been done on this
+    // device configuration yet
+    public static synchronized void startIfNeeded(Context context) {
+        if (probeThread != null && probeThread.isAlive()) {
+            return;
+        }
+
+        if (!PreferenceConfiguration.readPreferences(context).decoderCalibration) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final String glRenderer = GlPreferences.readPreferences(appContext).glRenderer;
+        if (DecoderCapabilityCache.load(appContext, glRenderer, false).isCalibrated()) {
+            return;
+        }
+
+        cancelled.set(false);
+        probeThread = new Thread() {
+            @Override
+            public void run() {
+                calibrate(appContext, glRenderer);
+            }
+        };
+        probeThread.setName("Video - Decoder calibration");
+        probeThread.start();
+    }
+
+    // Stops any calibration in progress, so it doesn't hold decoders that we're about to stream
+    // with. Results are only saved if calibration completes, so it will run again later.
+    public static void stop() {
+        Thread thread;
+        synchronized (DecoderLatencyProbe.class) {
+            thread = probeThread;
+            probeThread = null;
+        }
+
+        if (thread != null) {
+            cancelled.set(true);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void calibrate(Context context, String glRenderer) {
+        LimeLog.info("Starting decoder calibration");
+
+        // This must be called to do runtime initialization before calling functions that evaluate
+        // decoder lists.
+        MediaCodecHelper.initialize(context, glRenderer);
+
+        DecoderCapabilityCache cache = DecoderCapabilityCache.load(context, glRenderer, false);
+        for (String mimeType : MIME_TYPES) {
+            List<MediaCodecInfo> candidates = MediaCodecHelper.findDecoderCandidates(mimeType);
+            if (candidates.isEmpty()) {
+                continue;
+            }
+
+            TestClip clip = TestClip.encode(mimeType, CLIP_WIDTH, CLIP_HEIGHT, CLIP_FPS, CLIP_BITRATE,
+                    CLIP_FRAMES, false, cancelled);
+            if (cancelled.get()) {
+                LimeLog.info("Decoder calibration cancelled");
+                return;
+            }
+            else if (clip == null) {
+                LimeLog.info("Unable to encode a test clip for "+mimeType+". Using default decoder selection.");
+                continue;
+            }
+
+            ArrayList<Result> results = new ArrayList<>();
+            MediaCodecInfo bestDecoderInfo = null;
+            for (MediaCodecInfo decoderInfo : candidates) {
+                boolean lowLatencyFeature = MediaCodecHelper.decoderSupportsAndroidRLowLatency(decoderInfo, mimeType);
+
+                for (int tryNumber = 0;; tryNumber++) {
+                    MediaFormat format = MediaFormat.createVideoFormat(mimeType, CLIP_WIDTH, CLIP_HEIGHT);
+                    boolean newFormat = MediaCodecHelper.setDecoderLowLatencyOptions(format, decoderInfo.getName(),
+                            lowLatencyFeature, tryNumber);
+
+                    Result result = measureDecoder(decoderInfo.getName(), format, clip, tryNumber);
+                    if (cancelled.get()) {
+                        LimeLog.info("Decoder calibration cancelled");
+                        return;
+                    }
+                    else if (result != null) {
+                        LimeLog.info("Decoder "+decoderInfo.getName()+" (try "+tryNumber+"): "+
+                                result.latencyUs+" us latency, "+result.fps+" FPS");
+                        results.add(result);
+                        if (results.size() == 1 || result.latencyUs < results.get(0).latencyUs) {
+                            bestDecoderInfo = decoderInfo;
+                        }
+                        Collections.sort(results, new Comparator<Result>() {
+                            @Override
+                            public int compare(Result a, Result b) {
+                                return Integer.compare(a.latencyUs, b.latencyUs);
+                            }
+                        });
+                    }
+
+                    if (!newFormat) {
+                        break;
+                    }
+                }
+            }
+
+            if (bestDecoderInfo == null) {
+                LimeLog.warning("No decoder for "+mimeType+" completed calibration");
+                continue;
+            }
+
+            try {
+                JSONArray ranking = new JSONArray();
+                for (Result result : results) {
+                    ranking.put(result.toJson());
+                }
+
+                Result best = results.get(0);
+                DecoderCapabilities bestDecoder = DecoderCapabilities.probe(bestDecoderInfo, mimeType);
+                bestDecoder.measuredLatencyUs = best.latencyUs;
+                bestDecoder.measuredFps = best.fps;
+                bestDecoder.lowLatencyTryNumber = best.tryNumber;
+                cache.putCalibrationResult(mimeType, bestDecoder, ranking.toString());
+
+                LimeLog.info("Calibrated decoder for "+mimeType+": "+best.decoderName+" (try "+best.tryNumber+")");
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        cache.setCalibrated();
+        cache.save();
+        LimeLog.info("Decoder calibration complete");
+    }
+
+    // Returns null if the decoder failed or lost too many frames
+    private static Result measureDecoder(String decoderName, MediaFormat format, TestClip clip, int tryNumber) {
+        MediaCodec decoder = null;
+        try {
+            decoder = MediaCodec.createByCodecName(decoderName);
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+
+            // Latency with frames submitted at the clip's frame rate
+            int frameCount = clip.frames.size();
+            long[] submitTimesNs = new long[frameCount];
+            long[] latenciesNs = new long[frameCount];
+            Arrays.fill(latenciesNs, -1);
+
+            clip.submitCodecConfig(decoder);
+            long startNs = System.nanoTime();
+            for (int i = 0; i < frameCount && !cancelled.get(); i++) {
+                long dueNs = startNs + i * clip.getFrameIntervalUs() * 1000;
+                while (System.nanoTime() < dueNs) {
+                    clip.drainOutput(decoder, submitTimesNs, latenciesNs, 1000, false);
+                }
+
+                if (clip.submitFrame(decoder, i, INPUT_TIMEOUT_US)) {
+                    submitTimesNs[i] = System.nanoTime();
+                }
+            }
+            clip.finishAndDrain(decoder, submitTimesNs, latenciesNs, false, cancelled);
+
+            long[] measuredNs = new long[frameCount];
+            int measuredCount = 0;
+            for (int i = WARMUP_FRAMES; i < frameCount; i++) {
+                if (latenciesNs[i] >= 0) {
+                    measuredNs[measuredCount++] = latenciesNs[i];
+                }
+            }
+            if (cancelled.get() || measuredCount * 100 < (frameCount - WARMUP_FRAMES) * MIN_OUTPUT_PERCENT) {
+                LimeLog.info("Decoder "+decoderName+" (try "+tryNumber+") only returned "+
+                        measuredCount+" of "+(frameCount - WARMUP_FRAMES)+" frames");
+                return null;
+            }
+            Arrays.sort(measuredNs, 0, measuredCount);
+            long medianLatencyNs = measuredNs[measuredCount / 2];
+
+            // Throughput with frames submitted as fast as the decoder takes them
+            decoder.flush();
+            Arrays.fill(submitTimesNs, 0);
+            Arrays.fill(latenciesNs, -1);
+            clip.submitCodecConfig(decoder);
+            startNs = System.nanoTime();
+            for (int i = 0; i < frameCount && !cancelled.get(); i++) {
+                if (clip.submitFrame(decoder, i, INPUT_TIMEOUT_US)) {
+                    submitTimesNs[i] = System.nanoTime();
+                }
+                clip.drainOutput(decoder, submitTimesNs, latenciesNs, 0, false);
+            }
+            long endNs = clip.finishAndDrain(decoder, submitTimesNs, latenciesNs, false, cancelled);
+
+            int outputCount = TestClip.countOutputs(latenciesNs);
+            int fps = endNs > startNs ? (int) (outputCount * 1000000000L / (endNs - startNs)) : 0;
+
+            return new Result(decoderName, tryNumber, (int) (medianLatencyNs / 1000), fps);
+        } catch (Exception e) {
+            // Tolerate decoders that don't like the options for this try
+            LimeLog.info("Decoder "+decoderName+" (try "+tryNumber+") failed: "+e);
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.limelight.binding.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.limelight.LimeLog;
+
+// Watches for a decoder that has stopped producing frames while we keep feeding it, so we can
+// flush it and request an IDR frame before the stream visibly freezes. Without this, we only
+// recover when MediaCodec throws, and some decoders just stop outputting frames instead.
+//
+// The decoder is considered stalled when several frames are waiting to be decoded and the oldest
+// of them was submitted longer ago than the stall threshold. If the decoder still hasn't
+// produced a frame by the next check after we asked for a flush, we ask for a restart instead.
+//
+// onFrameSubmitted() is called on the input thread, onFrameDecoded() and onOutputTimeout() on
+// the thread handling decoder output, and reset() during codec recovery.
+class DecoderWatchdog {
+    interface StallListener {
+        // Called on the watchdog thread. repeated is true if the decoder hasn't produced a frame
+        // since the last stall was reported.
+        void onDecoderStall(boolean repeated);
+    }
+
+    private static final int CHECK_INTERVAL_MS = 50;
+
+    // The stall threshold is this many frame intervals, but no less than STALL_THRESHOLD_MIN_MS
+    private static final int STALL_THRESHOLD_FRAMES = 12;
+    private static final int STALL_THRESHOLD_MIN_MS = 200;
+
+    // A decoder can legitimately drop a frame or two (like after packet loss), which leaves them
+    // looking like they're in flight until the next frame comes out. Requiring a few frames
+    // to be waiting keeps that from looking like a stall when the host isn't sending anything.
+    private static final int STALL_MIN_PENDING_FRAMES = 3;
+
+    // Frames whose submission time we remember until they come out of the decoder
+    private static final int SUBMITTED_FRAMES = 64;
+
+    private final StallListener listener;
+    private final long stallThresholdNs;
+    private Thread watchdogThread;
+
+    // Input thread
+    private final long[] submittedPtsUs = new long[SUBMITTED_FRAMES];
+    private final long[] submittedTimesNs = new long[SUBMITTED_FRAMES];
+    private volatile int submittedCount;
+
+    // Decoder output thread
+    private volatile int decodedCount;
+    private volatile boolean armed;
+    private int outputTimeouts;
+
+    // Watchdog thread
+    private long lastStallReportNs;
+
+    // Set when a stall is reported and cleared by the next decoded frame
+    private final AtomicLong stallDetectedNs = new AtomicLong();
+
+    private volatile int stalls;
+    private volatile int recoveries;
+    private volatile long totalRecoveryTimeMs;
+    private volatile long maxRecoveryTimeMs;
+
+    DecoderWatchdog(int streamFrameRate, StallListener listener) {
+        this.listener = listener;
+        this.stallThresholdNs = Math.max(STALL_THRESHOLD_MIN_MS * 1000000L,
+                STALL_THRESHOLD_FRAMES * 1000000000L / Math.max(streamFrameRate, 1));
+    }
+
+    void start() {
+        watchdogThread = new Thread() {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(CHECK_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    check(System.nanoTime());
+                }
+            }
+        };
+        watchdogThread.setName("Video - Watchdog");
+        watchdogThread.start();
+    }
+
+    void stop() {
+        if (watchdogThread != null) {
+            watchdogThread.interrupt();
+            try {
+                watchdogThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void onFrameSubmitted(long ptsUs) {
+        int count = submittedCount;
+        submittedPtsUs[count % SUBMITTED_FRAMES] = ptsUs;
+        submittedTimesNs[count % SUBMITTED_FRAMES] = System.nanoTime();
+        submittedCount = count + 1;
+    }
+
+    void onFrameDecoded(long ptsUs) {
+        // Frames come out of the decoder in the order they were submitted, so everything
+        // submitted up to this frame is no longer in flight.
+        int count = submittedCount;
+        int decoded = Math.max(decodedCount, count - SUBMITTED_FRAMES);
+        while (decoded < count && submittedPtsUs[decoded % SUBMITTED_FRAMES] <= ptsUs) {
+            decoded++;
+        }
+        decodedCount = decoded;
+
+        // Don't watch the decoder until it's produced its first frame, since the first IDR
+        // frame can take much longer than usual to decode.
+        armed = true;
+
+        long detectedNs = stallDetectedNs.getAndSet(0);
+        if (detectedNs != 0) {
+            long recoveryTimeMs = (System.nanoTime() - detectedNs) / 1000000;
+            LimeLog.info("Decoder recovered from stall in "+recoveryTimeMs+" ms");
+            synchronized (this) {
+                totalRecoveryTimeMs += recoveryTimeMs;
+                maxRecoveryTimeMs = Math.max(maxRecoveryTimeMs, recoveryTimeMs);
+                recoveries++;
+            }
+        }
+    }
+
+    // Called when waiting for an output buffer timed out
+    void onOutputTimeout() {
+        if (submittedCount != decodedCount) {
+            outputTimeouts++;
+        }
+    }
+
+    // Must be called with all threads quiesced, such as during codec recovery, since frames
+    // that were in flight are gone after the decoder is flushed or reset.
+    void reset() {
+        decodedCount = submittedCount;
+    }
+
+    private void check(long nowNs) {
+        int decoded = decodedCount;
+        int pending = submittedCount - decoded;
+        if (!armed || pending < STALL_MIN_PENDING_FRAMES) {
+            return;
+        }
+
+        long oldestAgeNs = nowNs - submittedTimesNs[decoded % SUBMITTED_FRAMES];
+        if (oldestAgeNs < stallThresholdNs || nowNs - lastStallReportNs < stallThresholdNs) {
+            // Not stalled or we're still giving the last recovery time to work
+            return;
+        }
+        lastStallReportNs = nowNs;
+
+        boolean repeated = !stallDetectedNs.compareAndSet(0, nowNs);
+        if (!repeated) {
+            stalls++;
+        }
+
+        LimeLog.warning("Decoder stalled with "+pending+" frames pending (oldest: "+
+                oldestAgeNs / 1000000+" ms)"+(repeated ? " after recovery" : ""));
+        listener.onDecoderStall(repeated);
+    }
+
+    int getStalls() {
+        return stalls;
+    }
+
+    int getRecoveries() {
+        return recoveries;
+    }
+
+    synchronized long getAverageRecoveryTimeMs() {
+        return recoveries > 0 ? totalRecoveryTimeMs / recoveries : 0;
+    }
+
+    long getMaxRecoveryTimeMs() {
+        return maxRecoveryTimeMs;
+    }
+
+    int getOutputTimeouts() {
+        return outputTimeouts;
+    }
+}
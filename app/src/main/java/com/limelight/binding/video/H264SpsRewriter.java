@@ -0,0 +1,487 @@
+package com.limelight.binding.video;
+
+// Rewrites H.264 SPS NALUs with our decoder-specific patches applied. The SPS is streamed
+// field by field from the input to the output with the patched fields substituted, so there
+// is no intermediate object graph and rewriting doesn't allocate after the first call.
+//
+// The output matches what jcodec's SeqParameterSet.write() produces for the same patches,
+// which H264SpsRewriterTest checks.
+class H264SpsRewriter {
+    // Bitstream restriction handling
+    static final int BITSTREAM_RESTRICTIONS_REMOVE = 0;
+    static final int BITSTREAM_RESTRICTIONS_PATCH = 1;
+
+    // Patches to apply (-1 leaves the original value)
+    int profileIdc = -1;
+    int levelIdc = -1;
+    int numRefFrames = -1;
+    boolean constrainedHighProfile;
+    boolean removeColorInfo;
+    int bitstreamRestrictions = BITSTREAM_RESTRICTIONS_REMOVE;
+    boolean useLegacyBitstreamRestrictionValues;
+
+    private byte[] rbsp = new byte[256];
+    private int rbspLength;
+    private int readBitOffset;
+    private boolean readOverrun;
+
+    private byte[] output = new byte[256];
+    private int writeBitOffset;
+
+    private byte[] escapedOutput = new byte[384];
+
+    // Returns the escaped output buffer of the last rewrite()
+    byte[] getOutput() {
+        return escapedOutput;
+    }
+
+    // All the profiles that have chroma_format_idc and the other high profile fields. jcodec
+    // only knew about 100, 110, 122, and 144 (the old High 4:4:4 profile).
+    private static boolean hasHighProfileFields(int profileIdc) {
+        switch (profileIdc) {
+            case 100:
+            case 110:
+            case 122:
+            case 244:
+            case 44:
+            case 83:
+            case 86:
+            case 118:
+            case 128:
+            case 138:
+            case 139:
+            case 134:
+            case 135:
+            case 144:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void unescape(byte[] data, int offset, int length) {
+        if (rbsp.length < length) {
+            rbsp = new byte[length * 2];
+        }
+
+        int zeroCount = 0;
+        rbspLength = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (zeroCount >= 2 && b == 0x03) {
+                // Drop the emulation prevention byte
+                zeroCount = 0;
+                continue;
+            }
+
+            rbsp[rbspLength++] = b;
+            zeroCount = b == 0 ? zeroCount + 1 : 0;
+        }
+
+        readBitOffset = 0;
+        readOverrun = false;
+    }
+
+    private int escape() {
+        int length = (writeBitOffset + 7) / 8;
+        if (escapedOutput.length < length * 3 / 2 + 1) {
+            escapedOutput = new byte[length * 2];
+        }
+
+        int zeroCount = 0;
+        int escapedLength = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = output[i];
+            if (zeroCount >= 2 && (b & 0xFF) <= 0x03) {
+                escapedOutput[escapedLength++] = 0x03;
+                zeroCount = 0;
+            }
+
+            escapedOutput[escapedLength++] = b;
+            zeroCount = b == 0 ? zeroCount + 1 : 0;
+        }
+
+        return escapedLength;
+    }
+
+    // Up to 31 bits
+    private int readBits(int bits) {
+        if (readBitOffset + bits > rbspLength * 8) {
+            readOverrun = true;
+            readBitOffset = rbspLength * 8;
+            return 0;
+        }
+
+        int value = 0;
+        while (bits > 0) {
+            int bitsLeftInByte = 8 - (readBitOffset & 7);
+            int chunkBits = Math.min(bitsLeftInByte, bits);
+            int chunk = ((rbsp[readBitOffset >> 3] & 0xFF) >> (bitsLeftInByte - chunkBits)) & ((1 << chunkBits) - 1);
+            value = (value << chunkBits) | chunk;
+            readBitOffset += chunkBits;
+            bits -= chunkBits;
+        }
+        return value;
+    }
+
+    private boolean readFlag() {
+        return readBits(1) != 0;
+    }
+
+    private int readUe() {
+        int leadingZeros = 0;
+        while (readBits(1) == 0) {
+            if (++leadingZeros > 30 || readOverrun) {
+                readOverrun = true;
+                return 0;
+            }
+        }
+        return (1 << leadingZeros) - 1 + readBits(leadingZeros);
+    }
+
+    private int readSe() {
+        int value = readUe();
+        return (value & 1) != 0 ? (value + 1) / 2 : -(value / 2);
+    }
+
+    // Up to 31 bits
+    private void writeBits(int value, int bits) {
+        int endByte = (writeBitOffset + bits + 7) >> 3;
+        if (endByte > output.length) {
+            byte[] newOutput = new byte[Math.max(output.length * 2, endByte)];
+            System.arraycopy(output, 0, newOutput, 0, output.length);
+            output = newOutput;
+        }
+
+        while (bits > 0) {
+            int bitsLeftInByte = 8 - (writeBitOffset & 7);
+            int chunkBits = Math.min(bitsLeftInByte, bits);
+            int chunk = (value >>> (bits - chunkBits)) & ((1 << chunkBits) - 1);
+            if (bitsLeftInByte == 8) {
+                // Bytes are written in order, so this is the first write to this one
+                output[writeBitOffset >> 3] = 0;
+            }
+            output[writeBitOffset >> 3] |= (byte) (chunk << (bitsLeftInByte - chunkBits));
+            writeBitOffset += chunkBits;
+            bits -= chunkBits;
+        }
+    }
+
+    private void writeFlag(boolean value) {
+        writeBits(value ? 1 : 0, 1);
+    }
+
+    private void writeUe(int value) {
+        long codeNum = (long) value + 1;
+        int bits = 64 - Long.numberOfLeadingZeros(codeNum);
+        writeBits(0, bits - 1);
+        if (bits > 16) {
+            writeBits((int) (codeNum >>> 16), bits - 16);
+            writeBits((int) codeNum & 0xFFFF, 16);
+        }
+        else {
+            writeBits((int) codeNum, bits);
+        }
+    }
+
+    private void writeSe(int value) {
+        writeUe(value > 0 ? value * 2 - 1 : -value * 2);
+    }
+
+    private void copyBits(int bits) {
+        writeBits(readBits(bits), bits);
+    }
+
+    private boolean copyFlag() {
+        boolean value = readFlag();
+        writeFlag(value);
+        return value;
+    }
+
+    private int copyUe() {
+        int value = readUe();
+        writeUe(value);
+        return value;
+    }
+
+    private void copySe() {
+        writeSe(readSe());
+    }
+
+    private void skipScalingList(int size, boolean copy) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                int deltaScale = readSe();
+                if (copy) {
+                    writeSe(deltaScale);
+                }
+                nextScale = (lastScale + deltaScale + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+
+    private void copyHrdParameters() {
+        int cpbCount = copyUe() + 1;
+        copyBits(4); // bit_rate_scale
+        copyBits(4); // cpb_size_scale
+        for (int i = 0; i < cpbCount && !readOverrun; i++) {
+            copyUe(); // bit_rate_value_minus1
+            copyUe(); // cpb_size_value_minus1
+            copyFlag(); // cbr_flag
+        }
+        copyBits(5); // initial_cpb_removal_delay_length_minus1
+        copyBits(5); // cpb_removal_delay_length_minus1
+        copyBits(5); // dpb_output_delay_length_minus1
+        copyBits(5); // time_offset_length
+    }
+
+    private void writeBitstreamRestrictions(int maxDecFrameBuffering, boolean present) {
+        writeFlag(true); // bitstream_restriction_flag
+
+        if (present) {
+            copyFlag(); // motion_vectors_over_pic_boundaries_flag
+            int maxBytesPerPicDenom = readUe();
+            int maxBitsPerMbDenom = readUe();
+            if (useLegacyBitstreamRestrictionValues) {
+                maxBytesPerPicDenom = 2;
+                maxBitsPerMbDenom = 1;
+            }
+            writeUe(maxBytesPerPicDenom);
+            writeUe(maxBitsPerMbDenom);
+            copyUe(); // log2_max_mv_length_horizontal
+            copyUe(); // log2_max_mv_length_vertical
+            copyUe(); // max_num_reorder_frames
+            readUe(); // max_dec_frame_buffering
+        }
+        else {
+            writeFlag(true); // motion_vectors_over_pic_boundaries_flag
+            writeUe(2); // max_bytes_per_pic_denom
+            writeUe(1); // max_bits_per_mb_denom
+            writeUe(16); // log2_max_mv_length_horizontal
+            writeUe(16); // log2_max_mv_length_vertical
+            writeUe(0); // max_num_reorder_frames
+        }
+
+        // Some devices throw errors if maxDecFrameBuffering < numRefFrames
+        writeUe(maxDecFrameBuffering);
+    }
+
+    private void rewriteVuiParameters(int numRefFrames) {
+        if (copyFlag()) { // aspect_ratio_info_present_flag
+            int aspectRatioIdc = readBits(8);
+            writeBits(aspectRatioIdc, 8);
+            if (aspectRatioIdc == 255) { // Extended_SAR
+                copyBits(16); // sar_width
+                copyBits(16); // sar_height
+            }
+        }
+
+        if (copyFlag()) { // overscan_info_present_flag
+            copyFlag(); // overscan_appropriate_flag
+        }
+
+        if (removeColorInfo) {
+            if (readFlag()) { // video_signal_type_present_flag
+                readBits(3); // video_format
+                readFlag(); // video_full_range_flag
+                if (readFlag()) { // colour_description_present_flag
+                    readBits(24); // colour_primaries, transfer_characteristics, matrix_coefficients
+                }
+            }
+            writeFlag(false);
+
+            if (readFlag()) { // chroma_loc_info_present_flag
+                readUe(); // chroma_sample_loc_type_top_field
+                readUe(); // chroma_sample_loc_type_bottom_field
+            }
+            writeFlag(false);
+        }
+        else {
+            if (copyFlag()) { // video_signal_type_present_flag
+                copyBits(3); // video_format
+                copyFlag(); // video_full_range_flag
+                if (copyFlag()) { // colour_description_present_flag
+                    copyBits(24); // colour_primaries, transfer_characteristics, matrix_coefficients
+                }
+            }
+
+            if (copyFlag()) { // chroma_loc_info_present_flag
+                copyUe(); // chroma_sample_loc_type_top_field
+                copyUe(); // chroma_sample_loc_type_bottom_field
+            }
+        }
+
+        if (copyFlag()) { // timing_info_present_flag
+            copyBits(16); // num_units_in_tick
+            copyBits(16);
+            copyBits(16); // time_scale
+            copyBits(16);
+            copyFlag(); // fixed_frame_rate_flag
+        }
+
+        boolean nalHrdParametersPresent = copyFlag();
+        if (nalHrdParametersPresent) {
+            copyHrdParameters();
+        }
+        boolean vclHrdParametersPresent = copyFlag();
+        if (vclHrdParametersPresent) {
+            copyHrdParameters();
+        }
+        if (nalHrdParametersPresent || vclHrdParametersPresent) {
+            copyFlag(); // low_delay_hrd_flag
+        }
+
+        copyFlag(); // pic_struct_present_flag
+
+        boolean bitstreamRestrictionPresent = readFlag();
+        if (bitstreamRestrictions == BITSTREAM_RESTRICTIONS_PATCH) {
+            writeBitstreamRestrictions(numRefFrames, bitstreamRestrictionPresent);
+        }
+        else {
+            writeFlag(false);
+        }
+    }
+
+    // Rewrites the escaped SPS payload (everything after the NALU header byte) and returns the
+    // length of the escaped result in getOutput(), or -1 if the SPS couldn't be parsed.
+    int rewrite(byte[] data, int offset, int length) {
+        unescape(data, offset, length);
+        writeBitOffset = 0;
+
+        int inputProfileIdc = readBits(8);
+        int outputProfileIdc = profileIdc >= 0 ? profileIdc : inputProfileIdc;
+        writeBits(outputProfileIdc, 8);
+
+        // constraint_set0_flag through constraint_set3_flag
+        copyBits(4);
+
+        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
+        // High Profile which allows the decoder to assume there will be no B-frames and
+        // reduce delay and buffering accordingly. Otherwise, we force them unset.
+        readBits(2);
+        boolean constrainedHigh = outputProfileIdc == 100 && constrainedHighProfile;
+        writeFlag(constrainedHigh);
+        writeFlag(constrainedHigh);
+
+        // reserved_zero_2bits
+        readBits(2);
+        writeBits(0, 2);
+
+        int inputLevelIdc = readBits(8);
+        writeBits(levelIdc >= 0 ? levelIdc : inputLevelIdc, 8);
+
+        copyUe(); // seq_parameter_set_id
+
+        if (hasHighProfileFields(inputProfileIdc)) {
+            // Like jcodec, we drop these when hacking a high profile SPS to baseline
+            boolean copy = hasHighProfileFields(outputProfileIdc);
+
+            int chromaFormatIdc = readUe();
+            if (copy) {
+                writeUe(chromaFormatIdc);
+            }
+            if (chromaFormatIdc == 3) {
+                boolean separateColourPlane = readFlag();
+                if (copy) {
+                    writeFlag(separateColourPlane);
+                }
+            }
+
+            int bitDepthLumaMinus8 = readUe();
+            int bitDepthChromaMinus8 = readUe();
+            boolean qpprimeYZeroTransformBypass = readFlag();
+            boolean scalingMatrixPresent = readFlag();
+            if (copy) {
+                writeUe(bitDepthLumaMinus8);
+                writeUe(bitDepthChromaMinus8);
+                writeFlag(qpprimeYZeroTransformBypass);
+                writeFlag(scalingMatrixPresent);
+            }
+
+            if (scalingMatrixPresent) {
+                int lists = chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < lists && !readOverrun; i++) {
+                    boolean listPresent = readFlag();
+                    if (copy) {
+                        writeFlag(listPresent);
+                    }
+                    if (listPresent) {
+                        skipScalingList(i < 6 ? 16 : 64, copy);
+                    }
+                }
+            }
+        }
+        else if (hasHighProfileFields(outputProfileIdc)) {
+            // Like jcodec, write the defaults when restoring a baseline SPS to high profile
+            writeUe(1); // chroma_format_idc
+            writeUe(0); // bit_depth_luma_minus8
+            writeUe(0); // bit_depth_chroma_minus8
+            writeFlag(false); // qpprime_y_zero_transform_bypass_flag
+            writeFlag(false); // seq_scaling_matrix_present_flag
+        }
+
+        copyUe(); // log2_max_frame_num_minus4
+
+        int picOrderCntType = copyUe();
+        if (picOrderCntType == 0) {
+            copyUe(); // log2_max_pic_order_cnt_lsb_minus4
+        }
+        else if (picOrderCntType == 1) {
+            copyFlag(); // delta_pic_order_always_zero_flag
+            copySe(); // offset_for_non_ref_pic
+            copySe(); // offset_for_top_to_bottom_field
+            int numRefFramesInPicOrderCntCycle = copyUe();
+            for (int i = 0; i < numRefFramesInPicOrderCntCycle && !readOverrun; i++) {
+                copySe(); // offset_for_ref_frame
+            }
+        }
+
+        int inputNumRefFrames = readUe();
+        int outputNumRefFrames = numRefFrames >= 0 ? numRefFrames : inputNumRefFrames;
+        writeUe(outputNumRefFrames);
+
+        copyFlag(); // gaps_in_frame_num_value_allowed_flag
+        copyUe(); // pic_width_in_mbs_minus1
+        copyUe(); // pic_height_in_map_units_minus1
+        if (!copyFlag()) { // frame_mbs_only_flag
+            copyFlag(); // mb_adaptive_frame_field_flag
+        }
+        copyFlag(); // direct_8x8_inference_flag
+        if (copyFlag()) { // frame_cropping_flag
+            copyUe(); // frame_crop_left_offset
+            copyUe(); // frame_crop_right_offset
+            copyUe(); // frame_crop_top_offset
+            copyUe(); // frame_crop_bottom_offset
+        }
+
+        if (readFlag()) { // vui_parameters_present_flag
+            writeFlag(true);
+            rewriteVuiParameters(outputNumRefFrames);
+        }
+        else if (bitstreamRestrictions == BITSTREAM_RESTRICTIONS_PATCH) {
+            // Add VUI parameters with only bitstream restrictions present
+            writeFlag(true);
+            for (int i = 0; i < 8; i++) {
+                // aspect_ratio_info_present_flag through pic_struct_present_flag
+                writeFlag(false);
+            }
+            writeBitstreamRestrictions(outputNumRefFrames, false);
+        }
+        else {
+            writeFlag(false);
+        }
+
+        if (readOverrun) {
+            return -1;
+        }
+
+        // rbsp_trailing_bits()
+        writeBits(1, 1);
+        writeBits(0, (8 - (writeBitOffset & 7)) & 7);
+
+        return escape();
+    }
+}
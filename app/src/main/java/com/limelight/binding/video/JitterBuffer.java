@@ -0,0 +1,218 @@
+package com.limelight.binding.video;
+
+import java.util.Arrays;
+
+// Holds decoded frames for a short, adaptive amount of time so they can be displayed at an even
+// cadence when frames arrive unevenly (like over LTE or congested Wi-Fi).
+//
+// Each frame's ideal arrival time is its frame number times the host frame interval, offset by
+// the earliest any recent frame has been decoded relative to that timeline (the frames that saw
+// no network or decoder delay). A frame is displayed at its ideal arrival time plus the target
+// depth, so frames delayed by less than the target depth still come out evenly spaced. The target
+// depth follows the mean and variance of how late frames are relative to their ideal arrival
+// time, growing immediately and shrinking slowly.
+//
+// onFrameSubmitted() is called on the input thread, onFrameDecoded() on the thread handling
+// decoder output, and the rest on the Choreographer thread.
+class JitterBuffer {
+    // Frames whose frame number we remember until they come out of the decoder
+    private static final int SUBMITTED_FRAMES = 64;
+
+    // The earliest arrival is tracked over two blocks of this many frames, so the baseline
+    // follows clock drift between the host and us
+    private static final int BASELINE_BLOCK_FRAMES = 60;
+
+    // A frame this much later than the baseline means the stream stalled, so we start over
+    private static final long RESET_LATENESS_US = 1000000;
+
+    // EWMA weight of a new sample is 1/(1 << EWMA_SHIFT)
+    private static final int EWMA_SHIFT = 4;
+
+    // The target depth covers lateness up to this many standard deviations above the mean
+    private static final int STDDEV_MULTIPLIER = 3;
+
+    // The target depth shrinks by 1/(1 << SHRINK_SHIFT) of the difference per frame
+    private static final int SHRINK_SHIFT = 6;
+
+    private final long hostFrameIntervalUs;
+    private final long maxDepthUs;
+
+    // Input thread
+    private final long[] submittedPtsUs = new long[SUBMITTED_FRAMES];
+    private final int[] submittedFrameNumbers = new int[SUBMITTED_FRAMES];
+    private volatile int submittedCount;
+    private int lastSubmittedFrameNumber;
+
+    // Decoder output thread
+    private int decodedReadCount;
+    private boolean baselineValid;
+    private long baselineUs;
+    private long blockMinOffsetUs, previousBlockMinOffsetUs;
+    private int blockFrames;
+    private long meanLatenessUs;
+    private long latenessVarianceUs2;
+    private volatile long targetDepthUs;
+    private volatile long jitterUs;
+    private volatile long[] playoutTimesUs = new long[16];
+
+    // Choreographer thread
+    private long vsyncNanos;
+    private long vsyncPeriodNanos;
+
+    JitterBuffer(int streamFrameRate, float displayRefreshRate, int maxDepthMs, int queueLimit) {
+        this.hostFrameIntervalUs = 1000000 / Math.max(streamFrameRate, 1);
+        this.vsyncPeriodNanos = (long) (1000000000 / Math.max(displayRefreshRate, 1.0f));
+
+        // We can't hold more frames than fit in the output buffer queue
+        this.maxDepthUs = Math.min(maxDepthMs * 1000L, (queueLimit - 1) * hostFrameIntervalUs);
+    }
+
+    // Called on the input thread for each frame submitted to the decoder
+    void onFrameSubmitted(int frameNumber, long ptsUs) {
+        // Each picture data decode unit of an IDR frame is submitted separately
+        if (frameNumber == lastSubmittedFrameNumber) {
+            return;
+        }
+        lastSubmittedFrameNumber = frameNumber;
+
+        int count = submittedCount;
+        submittedPtsUs[count % SUBMITTED_FRAMES] = ptsUs;
+        submittedFrameNumbers[count % SUBMITTED_FRAMES] = frameNumber;
+        submittedCount = count + 1;
+    }
+
+    // Returns the frame number submitted with this PTS or 0 if we don't know it
+    private int findFrameNumber(long ptsUs) {
+        int count = submittedCount;
+
+        // If the decoder fell far behind, the oldest entries have been overwritten
+        if (count - decodedReadCount > SUBMITTED_FRAMES) {
+            decodedReadCount = count - SUBMITTED_FRAMES;
+        }
+
+        // Frames come out of the decoder in the order they were submitted, so skip any that
+        // the decoder dropped.
+        while (decodedReadCount < count) {
+            int index = decodedReadCount % SUBMITTED_FRAMES;
+            if (submittedPtsUs[index] > ptsUs) {
+                break;
+            }
+
+            decodedReadCount++;
+            if (submittedPtsUs[index] == ptsUs) {
+                return submittedFrameNumbers[index];
+            }
+        }
+
+        return 0;
+    }
+
+    // Called when the decoder outputs a frame into the given output buffer
+    void onFrameDecoded(int outputBufferIndex, long ptsUs, long decodedTimeUs) {
+        long playoutTimeUs = decodedTimeUs;
+
+        int frameNumber = findFrameNumber(ptsUs);
+        if (frameNumber != 0) {
+            long offsetUs = decodedTimeUs - frameNumber * hostFrameIntervalUs;
+
+            if (!baselineValid || offsetUs - baselineUs > RESET_LATENESS_US) {
+                baselineValid = true;
+                blockMinOffsetUs = previousBlockMinOffsetUs = offsetUs;
+                blockFrames = 0;
+                meanLatenessUs = 0;
+                latenessVarianceUs2 = 0;
+            }
+
+            blockMinOffsetUs = Math.min(blockMinOffsetUs, offsetUs);
+            baselineUs = Math.min(blockMinOffsetUs, previousBlockMinOffsetUs);
+            if (++blockFrames == BASELINE_BLOCK_FRAMES) {
+                previousBlockMinOffsetUs = blockMinOffsetUs;
+                blockMinOffsetUs = Long.MAX_VALUE;
+                blockFrames = 0;
+            }
+
+            long latenessUs = offsetUs - baselineUs;
+            long deviationUs = latenessUs - meanLatenessUs;
+            meanLatenessUs += deviationUs >> EWMA_SHIFT;
+            latenessVarianceUs2 += (deviationUs * deviationUs - latenessVarianceUs2) >> EWMA_SHIFT;
+
+            long stddevUs = (long) Math.sqrt(latenessVarianceUs2);
+            long desiredDepthUs = Math.max(0, Math.min(meanLatenessUs + STDDEV_MULTIPLIER * stddevUs, maxDepthUs));
+            long depthUs = targetDepthUs;
+            if (desiredDepthUs > depthUs) {
+                depthUs = desiredDepthUs;
+            }
+            else {
+                depthUs -= (depthUs - desiredDepthUs) >> SHRINK_SHIFT;
+            }
+            targetDepthUs = depthUs;
+            jitterUs = stddevUs;
+
+            playoutTimeUs = baselineUs + frameNumber * hostFrameIntervalUs + depthUs;
+        }
+
+        long[] times = playoutTimesUs;
+        if (outputBufferIndex >= times.length) {
+            times = Arrays.copyOf(times, outputBufferIndex * 2);
+        }
+        times[outputBufferIndex] = playoutTimeUs;
+        playoutTimesUs = times;
+    }
+
+    // Called at the start of each Choreographer callback
+    void onVsync(long frameTimeNanos) {
+        long periodNanos = frameTimeNanos - vsyncNanos;
+
+        // Skipped vsyncs show up as multiples of the period, so only take plausible ones
+        if (vsyncNanos != 0 && periodNanos > vsyncPeriodNanos / 2 && periodNanos < vsyncPeriodNanos * 3 / 2) {
+            vsyncPeriodNanos += (periodNanos - vsyncPeriodNanos) >> EWMA_SHIFT;
+        }
+        vsyncNanos = frameTimeNanos;
+    }
+
+    // Returns the VsyncRenderScheduler.DECISION_* for the oldest decoded frame at the current vsync.
+    // DECISION_RENDER_LATE means the buffer ran dry (the frame missed its display time) and
+    // DECISION_RENDER_EARLY means it overflowed (the queue is full before the frame is due).
+    int decide(int outputBufferIndex, int queuedFrames, int queueLimit) {
+        long[] times = playoutTimesUs;
+        if (outputBufferIndex >= times.length) {
+            return VsyncRenderScheduler.DECISION_RENDER_ON_TIME;
+        }
+
+        // The earliest frames can't be displayed until the first vsync after they're decoded,
+        // so allow one vsync period on top of the target depth for that.
+        long playoutNanos = times[outputBufferIndex] * 1000 + vsyncPeriodNanos;
+        long halfPeriodNanos = vsyncPeriodNanos / 2;
+
+        if (playoutNanos > vsyncNanos + halfPeriodNanos) {
+            return queuedFrames >= queueLimit ?
+                    VsyncRenderScheduler.DECISION_RENDER_EARLY : VsyncRenderScheduler.DECISION_WAIT;
+        }
+        else if (playoutNanos < vsyncNanos - halfPeriodNanos) {
+            // If another frame is waiting behind this late one, skip it to get back on schedule.
+            // Otherwise we'd show every following frame late too, since frames keep arriving
+            // as fast as we display them.
+            if (queuedFrames > 1) {
+                return VsyncRenderScheduler.DECISION_DROP;
+            }
+            return VsyncRenderScheduler.DECISION_RENDER_LATE;
+        }
+        else {
+            return VsyncRenderScheduler.DECISION_RENDER_ON_TIME;
+        }
+    }
+
+    // Must be called with all threads quiesced, such as during codec recovery
+    void reset() {
+        decodedReadCount = submittedCount;
+        baselineValid = false;
+    }
+
+    long getTargetDepthUs() {
+        return targetDepthUs;
+    }
+
+    long getJitterUs() {
+        return jitterUs;
+    }
+}
@@ -0,0 +1,107 @@
+package com.limelight.binding.video;
+
+// A fixed-size latency histogram with logarithmic buckets (in the style of HdrHistogram).
+// Values below 16 us get their own bucket, and each power of 2 above that is split into
+// 16 linear sub-buckets, so the reported percentiles are within ~6% of the recorded values.
+// Recording a value never allocates.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Anything above ~16 seconds is clamped into the last bucket
+    private static final int MAX_EXPONENT = 23;
+    private static final long MAX_VALUE_US = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private int totalCount;
+    private long maxValueUs;
+
+    private static int getBucketIndex(long valueUs) {
+        if (valueUs < SUB_BUCKET_COUNT) {
+            return (int) valueUs;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+        int subBucket = (int) (valueUs >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    // Returns the midpoint of the range of values that map to this bucket
+    private static long getBucketValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+        return lowerBound + ((1L << shift) >> 1);
+    }
+
+    void record(long valueUs) {
+        if (valueUs < 0) {
+            return;
+        }
+        else if (valueUs > MAX_VALUE_US) {
+            valueUs = MAX_VALUE_US;
+        }
+
+        counts[getBucketIndex(valueUs)]++;
+        totalCount++;
+        if (valueUs > maxValueUs) {
+            maxValueUs = valueUs;
+        }
+    }
+
+    int getTotalCount() {
+        return totalCount;
+    }
+
+    long getMaxUs() {
+        return maxValueUs;
+    }
+
+    // Percentile is in the range [0, 100]
+    long getPercentileUs(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        long targetCount = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+        long cumulativeCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= targetCount) {
+                // Never report a value above the true maximum
+                return Math.min(getBucketValue(i), maxValueUs);
+            }
+        }
+
+        return maxValueUs;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.totalCount += other.totalCount;
+        this.maxValueUs = Math.max(this.maxValueUs, other.maxValueUs);
+    }
+
+    void copy(LatencyHistogram other) {
+        System.arraycopy(other.counts, 0, this.counts, 0, BUCKET_COUNT);
+        this.totalCount = other.totalCount;
+        this.maxValueUs = other.maxValueUs;
+    }
+
+    void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts[i] = 0;
+        }
+        this.totalCount = 0;
+        this.maxValueUs = 0;
+    }
+}
@@ -3,19 +3,16 @@ package com.limelight.binding.video;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.jcodec.codecs.h264.H264Utils;
-import org.jcodec.codecs.h264.io.model.SeqParameterSet;
-import org.jcodec.codecs.h264.io.model.VUIParameters;
-
 import com.limelight.BuildConfig;
 import com.limelight.LimeLog;
 import com.limelight.R;
+import com.limelight.binding.AvSyncMonitor;
+import com.limelight.nvstream.av.telemetry.TelemetryRecorder;
 import com.limelight.nvstream.av.video.VideoDecoderRenderer;
 import com.limelight.nvstream.jni.MoonBridge;
 import com.limelight.preferences.PreferenceConfiguration;
@@ -41,18 +38,19 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
     private static final boolean USE_FRAME_RENDER_TIME = false;
     private static final boolean FRAME_RENDER_TIME_ONLY = USE_FRAME_RENDER_TIME && false;
+    private static final boolean USE_ZERO_COPY_SUBMISSION = true;
 
     // Used on versions < 5.0
     private ByteBuffer[] legacyInputBuffers;
 
-    private MediaCodecInfo avcDecoder;
-    private MediaCodecInfo hevcDecoder;
-    private MediaCodecInfo av1Decoder;
+    private DecoderCapabilityCache decoderCapabilityCache;
+
+    // HEVC and AV1 are worth a little extra decoding latency for their better image quality
+    private static final int CALIBRATED_DECODER_LATENCY_SLACK_US = 1000;
+    private DecoderCapabilities avcDecoder;
+    private DecoderCapabilities hevcDecoder;
+    private DecoderCapabilities av1Decoder;
 
-    private final ArrayList<byte[]> vpsBuffers = new ArrayList<>();
-    private final ArrayList<byte[]> spsBuffers = new ArrayList<>();
-    private final ArrayList<byte[]> ppsBuffers = new ArrayList<>();
-    private boolean submittedCsd;
     private byte[] currentHdrMetadata;
 
     private int nextInputBufferIndex = -1;
@@ -78,6 +76,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private String glRenderer;
     private boolean foreground = true;
     private PerfOverlayListener perfListener;
+    private volatile TelemetryRecorder telemetryRecorder;
+    private volatile AvSyncMonitor avSyncMonitor;
 
     private static final int CR_MAX_TRIES = 10;
     private static final int CR_RECOVERY_TYPE_NONE = 0;
@@ -101,7 +101,6 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private MediaFormat configuredFormat;
 
     private boolean needsBaselineSpsHack;
-    private SeqParameterSet savedSps;
 
     private RendererException initialException;
     private long initialExceptionTimestamp;
@@ -111,31 +110,107 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private VideoStats lastWindowVideoStats;
     private VideoStats globalVideoStats;
 
-    private long lastTimestampUs;
-    private int lastFrameNumber;
+    // The submit thread flips the active window while holding this lock. The renderer and
+    // Choreographer threads hold it while they update the active window, as does the submit
+    // thread for the one counter it shares with the renderer thread.
+    private final Object activeWindowLock = new Object();
+
+    private final DecodeUnitProcessor decodeUnitProcessor;
+    private final DecodeUnitSink decodeUnitSink = new DecodeUnitSink() {
+        @Override
+        public ByteBuffer getInputBuffer() {
+            return fetchNextInputBuffer() ? nextInputBuffer : null;
+        }
+
+        @Override
+        public boolean queueInputBuffer(long timestampUs, int codecFlags) {
+            return queueNextInputBuffer(timestampUs, codecFlags);
+        }
+
+        @Override
+        public int copyPendingPictureData(ByteBuffer buffer, int offset) {
+            return MoonBridge.copyPendingDecodeUnitPicData(buffer, offset);
+        }
+    };
+
+    // The stats and frame pacing state shown by the perf overlay, captured on the submit thread
+    // so the UI thread doesn't read state that other threads are updating
+    private static class PerfOverlaySnapshot {
+        final VideoStats lastTwo = new VideoStats();
+        long timestamp;
+        long hostFrameIntervalUs;
+        boolean vsyncAligned;
+        int pacerJitterPercent;
+        int pacerNearVsyncPercent;
+        int pacerModeSwitches;
+        long jitterBufferTargetDepthUs;
+        long jitterBufferJitterUs;
+        int decoderStalls;
+        int decoderRecoveries;
+        long averageRecoveryTimeMs;
+        long maxRecoveryTimeMs;
+    }
+
+    // Owned by the UI thread while perfOverlaySnapshotPending is set
+    private final PerfOverlaySnapshot perfOverlaySnapshot = new PerfOverlaySnapshot();
+    private final AtomicBoolean perfOverlaySnapshotPending = new AtomicBoolean();
+    private final Runnable perfOverlayUpdater = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                perfListener.onPerfUpdate(formatPerfOverlay(perfOverlaySnapshot));
+            } finally {
+                perfOverlaySnapshotPending.set(false);
+            }
+        }
+    };
+
     private int refreshRate;
     private PreferenceConfiguration prefs;
 
-    private LinkedBlockingQueue<Integer> outputBufferQueue = new LinkedBlockingQueue<>();
     private static final int OUTPUT_BUFFER_QUEUE_LIMIT = 2;
-    private long lastRenderedFrameTimeNanos;
+
+    // The jitter buffer holds decoded frames in the output buffer queue, so it needs more room
+    private static final int JITTER_BUFFER_QUEUE_LIMIT = 8;
+    private final int outputBufferQueueLimit;
+    private final OutputBufferQueue outputBufferQueue;
+    private volatile long[] outputBufferPresentationTimesUs = new long[16];
+    private VsyncRenderScheduler renderScheduler;
+
+    // Asynchronous decoder mode delivers buffers through MediaCodec.Callback on this thread
+    // instead of the renderer thread polling for them. It takes the renderer thread's place
+    // in codec recovery.
+    private boolean asyncMode;
+    private HandlerThread codecCallbackThread;
+    private Handler codecCallbackHandler;
+    private MediaCodec.Callback codecCallback;
+    private static final int CODEC_CALLBACK_RECOVERY_CHECK_MS = 50;
+    private final Runnable codecCallbackRecoveryCheck = new Runnable() {
+        @Override
+        public void run() {
+            // The callback thread gets no callbacks from a dead codec, so check for recovery
+            // periodically like the renderer thread does between dequeue timeouts.
+            if (!stopping) {
+                doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+                codecCallbackHandler.postDelayed(this, CODEC_CALLBACK_RECOVERY_CHECK_MS);
+            }
+        }
+    };
+
+    // Input buffers handed to us by the codec callback, ready for the input thread to fill.
+    // The limit is well above the input buffer count of any decoder, so nothing is discarded.
+    private static final int AVAILABLE_INPUT_BUFFER_LIMIT = 64;
+    private final OutputBufferQueue availableInputBuffers = new OutputBufferQueue(AVAILABLE_INPUT_BUFFER_LIMIT);
     private HandlerThread choreographerHandlerThread;
     private Handler choreographerHandler;
+    private AdaptiveFramePacer adaptiveFramePacer;
+    private JitterBuffer jitterBuffer;
+    private DecoderWatchdog watchdog;
+    private StreamQualityListener qualityListener;
+    private StreamQualityController qualityController;
 
-    private int numSpsIn;
-    private int numPpsIn;
-    private int numVpsIn;
-    private int numFramesIn;
     private int numFramesOut;
 
-    private MediaCodecInfo findAvcDecoder() {
-        MediaCodecInfo decoder = MediaCodecHelper.findProbableSafeDecoder("video/avc", MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
-        if (decoder == null) {
-            decoder = MediaCodecHelper.findFirstDecoder("video/avc");
-        }
-        return decoder;
-    }
-
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private boolean decoderCanMeetPerformancePoint(MediaCodecInfo.VideoCapabilities caps, PreferenceConfiguration prefs) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
@@ -178,25 +253,26 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return caps.areSizeAndRateSupported(prefs.width, prefs.height, prefs.fps);
     }
 
-    private boolean decoderCanMeetPerformancePointWithHevcAndNotAvc(MediaCodecInfo hevcDecoderInfo, MediaCodecInfo avcDecoderInfo, PreferenceConfiguration prefs) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecInfo.VideoCapabilities avcCaps = avcDecoderInfo.getCapabilitiesForType("video/avc").getVideoCapabilities();
-            MediaCodecInfo.VideoCapabilities hevcCaps = hevcDecoderInfo.getCapabilitiesForType("video/hevc").getVideoCapabilities();
-
-            return !decoderCanMeetPerformancePoint(avcCaps, prefs) && decoderCanMeetPerformancePoint(hevcCaps, prefs);
+    private boolean decoderCanMeetPerformancePoint(DecoderCapabilities decoder, PreferenceConfiguration prefs) {
+        // Use the saved answer for these settings if we have one
+        Boolean canMeetPerfPoint = decoder.getPerformancePoint(prefs.width, prefs.height, prefs.fps);
+        if (canMeetPerfPoint != null) {
+            return canMeetPerfPoint;
         }
-        else {
-            // No performance data
+
+        MediaCodecInfo decoderInfo = decoder.getCodecInfo();
+        if (decoderInfo == null) {
             return false;
         }
+
+        boolean result = decoderCanMeetPerformancePoint(decoderInfo.getCapabilitiesForType(decoder.mimeType).getVideoCapabilities(), prefs);
+        decoder.putPerformancePoint(prefs.width, prefs.height, prefs.fps, result);
+        return result;
     }
 
-    private boolean decoderCanMeetPerformancePointWithAv1AndNotHevc(MediaCodecInfo av1DecoderInfo, MediaCodecInfo hevcDecoderInfo, PreferenceConfiguration prefs) {
+    private boolean decoderCanMeetPerformancePointWithAndNot(DecoderCapabilities decoder, DecoderCapabilities otherDecoder, PreferenceConfiguration prefs) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecInfo.VideoCapabilities av1Caps = av1DecoderInfo.getCapabilitiesForType("video/av01").getVideoCapabilities();
-            MediaCodecInfo.VideoCapabilities hevcCaps = hevcDecoderInfo.getCapabilitiesForType("video/hevc").getVideoCapabilities();
-
-            return !decoderCanMeetPerformancePoint(hevcCaps, prefs) && decoderCanMeetPerformancePoint(av1Caps, prefs);
+            return !decoderCanMeetPerformancePoint(otherDecoder, prefs) && decoderCanMeetPerformancePoint(decoder, prefs);
         }
         else {
             // No performance data
@@ -204,34 +280,31 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         }
     }
 
-    private boolean decoderCanMeetPerformancePointWithAv1AndNotAvc(MediaCodecInfo av1DecoderInfo, MediaCodecInfo avcDecoderInfo, PreferenceConfiguration prefs) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            MediaCodecInfo.VideoCapabilities avcCaps = avcDecoderInfo.getCapabilitiesForType("video/avc").getVideoCapabilities();
-            MediaCodecInfo.VideoCapabilities av1Caps = av1DecoderInfo.getCapabilitiesForType("video/av01").getVideoCapabilities();
-
-            return !decoderCanMeetPerformancePoint(avcCaps, prefs) && decoderCanMeetPerformancePoint(av1Caps, prefs);
-        }
-        else {
-            // No performance data
-            return false;
+    // Decides whether to use a newer codec's decoder over the one for the codec we'd otherwise
+    // fall back to. If decoder calibration measured both, we'll take the newer codec unless it's
+    // noticeably slower. Otherwise we go by our whitelists.
+    private static boolean isDecoderPreferred(DecoderCapabilities decoder, DecoderCapabilities fallbackDecoder) {
+        if (decoder.hasMeasurements() && fallbackDecoder != null && fallbackDecoder.hasMeasurements()) {
+            boolean preferred = decoder.measuredLatencyUs <= fallbackDecoder.measuredLatencyUs + CALIBRATED_DECODER_LATENCY_SLACK_US;
+            LimeLog.info("Calibrated latency of "+decoder.name+": "+decoder.measuredLatencyUs+" us vs. "+
+                    fallbackDecoder.measuredLatencyUs+" us for "+fallbackDecoder.name+
+                    (preferred ? " (preferred)" : " (not preferred)"));
+            return preferred;
         }
+
+        return decoder.whitelisted;
     }
 
-    private MediaCodecInfo findHevcDecoder(PreferenceConfiguration prefs, boolean meteredNetwork, boolean requestedHdr) {
+    private DecoderCapabilities findHevcDecoder(PreferenceConfiguration prefs, boolean meteredNetwork, boolean requestedHdr) {
         // Don't return anything if H.264 is forced
         if (prefs.videoFormat == PreferenceConfiguration.FormatOption.FORCE_H264) {
             return null;
         }
 
-        // We don't try the first HEVC decoder. We'd rather fall back to hardware accelerated AVC instead
-        //
-        // We need HEVC Main profile, so we could pass that constant to findProbableSafeDecoder, however
-        // some decoders (at least Qualcomm's Snapdragon 805) don't properly report support
-        // for even required levels of HEVC.
-        MediaCodecInfo hevcDecoderInfo = MediaCodecHelper.findProbableSafeDecoder("video/hevc", -1);
+        DecoderCapabilities hevcDecoderInfo = decoderCapabilityCache.getDecoder("video/hevc");
         if (hevcDecoderInfo != null) {
-            if (!MediaCodecHelper.decoderIsWhitelistedForHevc(hevcDecoderInfo)) {
-                LimeLog.info("Found HEVC decoder, but it's not whitelisted - "+hevcDecoderInfo.getName());
+            if (!isDecoderPreferred(hevcDecoderInfo, avcDecoder)) {
+                LimeLog.info("Found HEVC decoder, but it's not whitelisted - "+hevcDecoderInfo.name);
 
                 // Force HEVC enabled if the user asked for it
                 if (prefs.videoFormat == PreferenceConfiguration.FormatOption.FORCE_HEVC) {
@@ -246,7 +319,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                     LimeLog.info("Forcing HEVC enabled for over 4K streaming");
                 }
                 // Use HEVC if the H.264 decoder is unable to meet the performance point
-                else if (avcDecoder != null && decoderCanMeetPerformancePointWithHevcAndNotAvc(hevcDecoderInfo, avcDecoder, prefs)) {
+                else if (avcDecoder != null && decoderCanMeetPerformancePointWithAndNot(hevcDecoderInfo, avcDecoder, prefs)) {
                     LimeLog.info("Using non-whitelisted HEVC decoder to meet performance point");
                 }
                 else {
@@ -258,27 +331,27 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return hevcDecoderInfo;
     }
 
-    private MediaCodecInfo findAv1Decoder(PreferenceConfiguration prefs) {
+    private DecoderCapabilities findAv1Decoder(PreferenceConfiguration prefs) {
         // For now, don't use AV1 unless explicitly requested
         if (prefs.videoFormat != PreferenceConfiguration.FormatOption.FORCE_AV1) {
             return null;
         }
 
-        MediaCodecInfo decoderInfo = MediaCodecHelper.findProbableSafeDecoder("video/av01", -1);
+        DecoderCapabilities decoderInfo = decoderCapabilityCache.getDecoder("video/av01");
         if (decoderInfo != null) {
-            if (!MediaCodecHelper.isDecoderWhitelistedForAv1(decoderInfo)) {
-                LimeLog.info("Found AV1 decoder, but it's not whitelisted - "+decoderInfo.getName());
+            if (!isDecoderPreferred(decoderInfo, hevcDecoder != null ? hevcDecoder : avcDecoder)) {
+                LimeLog.info("Found AV1 decoder, but it's not whitelisted - "+decoderInfo.name);
 
                 // Force HEVC enabled if the user asked for it
                 if (prefs.videoFormat == PreferenceConfiguration.FormatOption.FORCE_AV1) {
                     LimeLog.info("Forcing AV1 enabled despite non-whitelisted decoder");
                 }
                 // Use AV1 if the HEVC decoder is unable to meet the performance point
-                else if (hevcDecoder != null && decoderCanMeetPerformancePointWithAv1AndNotHevc(decoderInfo, hevcDecoder, prefs)) {
+                else if (hevcDecoder != null && decoderCanMeetPerformancePointWithAndNot(decoderInfo, hevcDecoder, prefs)) {
                     LimeLog.info("Using non-whitelisted AV1 decoder to meet performance point");
                 }
                 // Use AV1 if the H.264 decoder is unable to meet the performance point and we have no HEVC decoder
-                else if (hevcDecoder == null && decoderCanMeetPerformancePointWithAv1AndNotAvc(decoderInfo, avcDecoder, prefs)) {
+                else if (hevcDecoder == null && avcDecoder != null && decoderCanMeetPerformancePointWithAndNot(decoderInfo, avcDecoder, prefs)) {
                     LimeLog.info("Using non-whitelisted AV1 decoder to meet performance point");
                 }
                 else {
@@ -290,6 +363,20 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return decoderInfo;
     }
 
+    public void setTelemetryRecorder(TelemetryRecorder telemetryRecorder) {
+        this.telemetryRecorder = telemetryRecorder;
+        this.decodeUnitProcessor.telemetryRecorder = telemetryRecorder;
+    }
+
+    public void setAvSyncMonitor(AvSyncMonitor avSyncMonitor) {
+        this.avSyncMonitor = avSyncMonitor;
+    }
+
+    // Must be called before setup()
+    public void setStreamQualityListener(StreamQualityListener qualityListener) {
+        this.qualityListener = qualityListener;
+    }
+
     public void setRenderTarget(SurfaceHolder renderTarget) {
         this.renderTarget = renderTarget;
     }
@@ -308,13 +395,25 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         this.glRenderer = glRenderer;
         this.perfListener = perfListener;
 
+        this.outputBufferQueueLimit = prefs.framePacing == PreferenceConfiguration.FRAME_PACING_JITTER_BUFFER ?
+                JITTER_BUFFER_QUEUE_LIMIT : OUTPUT_BUFFER_QUEUE_LIMIT;
+        this.outputBufferQueue = new OutputBufferQueue(outputBufferQueueLimit);
+
         this.activeWindowVideoStats = new VideoStats();
         this.lastWindowVideoStats = new VideoStats();
         this.globalVideoStats = new VideoStats();
+        this.decodeUnitProcessor = new DecodeUnitProcessor(decodeUnitSink, activeWindowVideoStats, activeWindowLock);
+
+        // Decoder calibration and benchmarking can't hold decoders while we're trying to stream
+        DecoderLatencyProbe.stop();
+        DecoderBenchmark.stop();
 
-        avcDecoder = findAvcDecoder();
+        // This skips enumerating decoders if we've already done it on this device configuration
+        decoderCapabilityCache = DecoderCapabilityCache.load(activity, glRenderer, prefs.decoderCalibration);
+
+        avcDecoder = decoderCapabilityCache.getDecoder("video/avc");
         if (avcDecoder != null) {
-            LimeLog.info("Selected AVC decoder: "+avcDecoder.getName());
+            LimeLog.info("Selected AVC decoder: "+avcDecoder.name);
         }
         else {
             LimeLog.warning("No AVC decoder found");
@@ -322,7 +421,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         hevcDecoder = findHevcDecoder(prefs, meteredData, requestedHdr);
         if (hevcDecoder != null) {
-            LimeLog.info("Selected HEVC decoder: "+hevcDecoder.getName());
+            LimeLog.info("Selected HEVC decoder: "+hevcDecoder.name);
         }
         else {
             LimeLog.info("No HEVC decoder found");
@@ -330,7 +429,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         av1Decoder = findAv1Decoder(prefs);
         if (av1Decoder != null) {
-            LimeLog.info("Selected AV1 decoder: "+av1Decoder.getName());
+            LimeLog.info("Selected AV1 decoder: "+av1Decoder.name);
         }
         else {
             LimeLog.info("No AV1 decoder found");
@@ -342,35 +441,36 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         int avcOptimalSlicesPerFrame = 0;
         int hevcOptimalSlicesPerFrame = 0;
         if (avcDecoder != null) {
-            directSubmit = MediaCodecHelper.decoderCanDirectSubmit(avcDecoder.getName());
-            refFrameInvalidationAvc = MediaCodecHelper.decoderSupportsRefFrameInvalidationAvc(avcDecoder.getName(), prefs.height);
-            avcOptimalSlicesPerFrame = MediaCodecHelper.getDecoderOptimalSlicesPerFrame(avcDecoder.getName());
+            directSubmit = avcDecoder.directSubmit;
+            isExynos4 = decoderCapabilityCache.isExynos4Device();
+            refFrameInvalidationAvc = avcDecoder.supportsRefFrameInvalidation(prefs.height);
+            avcOptimalSlicesPerFrame = avcDecoder.optimalSlicesPerFrame;
 
             if (directSubmit) {
-                LimeLog.info("Decoder "+avcDecoder.getName()+" will use direct submit");
+                LimeLog.info("Decoder "+avcDecoder.name+" will use direct submit");
             }
             if (refFrameInvalidationAvc) {
-                LimeLog.info("Decoder "+avcDecoder.getName()+" will use reference frame invalidation for AVC");
+                LimeLog.info("Decoder "+avcDecoder.name+" will use reference frame invalidation for AVC");
             }
-            LimeLog.info("Decoder "+avcDecoder.getName()+" wants "+avcOptimalSlicesPerFrame+" slices per frame");
+            LimeLog.info("Decoder "+avcDecoder.name+" wants "+avcOptimalSlicesPerFrame+" slices per frame");
         }
 
         if (hevcDecoder != null) {
-            refFrameInvalidationHevc = MediaCodecHelper.decoderSupportsRefFrameInvalidationHevc(hevcDecoder);
-            hevcOptimalSlicesPerFrame = MediaCodecHelper.getDecoderOptimalSlicesPerFrame(hevcDecoder.getName());
+            refFrameInvalidationHevc = hevcDecoder.supportsRefFrameInvalidation(prefs.height);
+            hevcOptimalSlicesPerFrame = hevcDecoder.optimalSlicesPerFrame;
 
             if (refFrameInvalidationHevc) {
-                LimeLog.info("Decoder "+hevcDecoder.getName()+" will use reference frame invalidation for HEVC");
+                LimeLog.info("Decoder "+hevcDecoder.name+" will use reference frame invalidation for HEVC");
             }
 
-            LimeLog.info("Decoder "+hevcDecoder.getName()+" wants "+hevcOptimalSlicesPerFrame+" slices per frame");
+            LimeLog.info("Decoder "+hevcDecoder.name+" wants "+hevcOptimalSlicesPerFrame+" slices per frame");
         }
 
         if (av1Decoder != null) {
-            refFrameInvalidationAv1 = MediaCodecHelper.decoderSupportsRefFrameInvalidationAv1(av1Decoder);
+            refFrameInvalidationAv1 = av1Decoder.supportsRefFrameInvalidation(prefs.height);
 
             if (refFrameInvalidationAv1) {
-                LimeLog.info("Decoder "+av1Decoder.getName()+" will use reference frame invalidation for AV1");
+                LimeLog.info("Decoder "+av1Decoder.name+" will use reference frame invalidation for AV1");
             }
         }
 
@@ -382,6 +482,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             refFrameInvalidationAvc = refFrameInvalidationHevc = false;
             LimeLog.warning("Disabling RFI due to previous crash");
         }
+
+        decoderCapabilityCache.save();
     }
 
     public boolean isHevcSupported() {
@@ -397,11 +499,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             return false;
         }
 
-        for (MediaCodecInfo.CodecProfileLevel profileLevel : hevcDecoder.getCapabilitiesForType("video/hevc").profileLevels) {
-            if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10) {
-                LimeLog.info("HEVC decoder "+hevcDecoder.getName()+" supports HEVC Main10 HDR10");
-                return true;
-            }
+        if (hevcDecoder.supportsProfile(MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10HDR10)) {
+            LimeLog.info("HEVC decoder "+hevcDecoder.name+" supports HEVC Main10 HDR10");
+            return true;
         }
 
         return false;
@@ -416,11 +516,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             return false;
         }
 
-        for (MediaCodecInfo.CodecProfileLevel profileLevel : av1Decoder.getCapabilitiesForType("video/av01").profileLevels) {
-            if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.AV1ProfileMain10HDR10) {
-                LimeLog.info("AV1 decoder "+av1Decoder.getName()+" supports AV1 Main 10 HDR10");
-                return true;
-            }
+        if (av1Decoder.supportsProfile(MediaCodecInfo.CodecProfileLevel.AV1ProfileMain10HDR10)) {
+            LimeLog.info("AV1 decoder "+av1Decoder.name+" supports AV1 Main 10 HDR10");
+            return true;
         }
 
         return false;
@@ -537,15 +635,17 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         LimeLog.info("Configuring with format: "+format);
 
+        if (asyncMode) {
+            // This must be set before configure(), including after reset()
+            setCodecCallback();
+        }
+
         videoDecoder.configure(format, renderTarget.getSurface(), null, 0);
 
         configuredFormat = format;
 
         // After reconfiguration, we must resubmit CSD buffers
-        submittedCsd = false;
-        vpsBuffers.clear();
-        spsBuffers.clear();
-        ppsBuffers.clear();
+        decodeUnitProcessor.resetCsd();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             // This will contain the actual accepted input format attributes
@@ -563,12 +663,12 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         }
     }
 
-    private boolean tryConfigureDecoder(MediaCodecInfo selectedDecoderInfo, MediaFormat format, boolean throwOnCodecError) {
+    private boolean tryConfigureDecoder(DecoderCapabilities selectedDecoderInfo, MediaFormat format, boolean throwOnCodecError) {
         boolean configured = false;
         try {
-            videoDecoder = MediaCodec.createByCodecName(selectedDecoderInfo.getName());
+            videoDecoder = MediaCodec.createByCodecName(selectedDecoderInfo.name);
             configureAndStartDecoder(format);
-            LimeLog.info("Using codec " + selectedDecoderInfo.getName() + " for hardware decoding " + format.getString(MediaFormat.KEY_MIME));
+            LimeLog.info("Using codec " + selectedDecoderInfo.name + " for hardware decoding " + format.getString(MediaFormat.KEY_MIME));
             configured = true;
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
@@ -596,7 +696,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
     public int initializeDecoder(boolean throwOnCodecError) {
         String mimeType;
-        MediaCodecInfo selectedDecoderInfo;
+        DecoderCapabilities selectedDecoderInfo;
 
         if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
             mimeType = "video/avc";
@@ -613,21 +713,20 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
 
             // These fixups only apply to H264 decoders
-            needsSpsBitstreamFixup = MediaCodecHelper.decoderNeedsSpsBitstreamRestrictions(selectedDecoderInfo.getName());
-            needsBaselineSpsHack = MediaCodecHelper.decoderNeedsBaselineSpsHack(selectedDecoderInfo.getName());
-            constrainedHighProfile = MediaCodecHelper.decoderNeedsConstrainedHighProfile(selectedDecoderInfo.getName());
-            isExynos4 = MediaCodecHelper.isExynos4Device();
+            needsSpsBitstreamFixup = selectedDecoderInfo.needsSpsBitstreamFixup;
+            needsBaselineSpsHack = selectedDecoderInfo.needsBaselineSpsHack;
+            constrainedHighProfile = selectedDecoderInfo.needsConstrainedHighProfile;
             if (needsSpsBitstreamFixup) {
-                LimeLog.info("Decoder "+selectedDecoderInfo.getName()+" needs SPS bitstream restrictions fixup");
+                LimeLog.info("Decoder "+selectedDecoderInfo.name+" needs SPS bitstream restrictions fixup");
             }
             if (needsBaselineSpsHack) {
-                LimeLog.info("Decoder "+selectedDecoderInfo.getName()+" needs baseline SPS hack");
+                LimeLog.info("Decoder "+selectedDecoderInfo.name+" needs baseline SPS hack");
             }
             if (constrainedHighProfile) {
-                LimeLog.info("Decoder "+selectedDecoderInfo.getName()+" needs constrained high profile");
+                LimeLog.info("Decoder "+selectedDecoderInfo.name+" needs constrained high profile");
             }
             if (isExynos4) {
-                LimeLog.info("Decoder "+selectedDecoderInfo.getName()+" is on Exynos 4");
+                LimeLog.info("Decoder "+selectedDecoderInfo.name+" is on Exynos 4");
             }
 
             refFrameInvalidationActive = refFrameInvalidationAvc;
@@ -660,16 +759,33 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             return -3;
         }
 
-        adaptivePlayback = MediaCodecHelper.decoderSupportsAdaptivePlayback(selectedDecoderInfo, mimeType);
-        fusedIdrFrame = MediaCodecHelper.decoderSupportsFusedIdrFrame(selectedDecoderInfo, mimeType);
-
-        for (int tryNumber = 0;; tryNumber++) {
+        adaptivePlayback = selectedDecoderInfo.adaptivePlayback;
+        fusedIdrFrame = selectedDecoderInfo.fusedIdrFrame;
+
+        decodeUnitProcessor.videoFormat = videoFormat;
+        decodeUnitProcessor.initialWidth = initialWidth;
+        decodeUnitProcessor.initialHeight = initialHeight;
+        decodeUnitProcessor.refreshRate = refreshRate;
+        decodeUnitProcessor.refFrameInvalidationActive = refFrameInvalidationActive;
+        decodeUnitProcessor.fusedIdrFrame = fusedIdrFrame;
+        decodeUnitProcessor.constrainedHighProfile = constrainedHighProfile;
+        decodeUnitProcessor.needsBaselineSpsHack = needsBaselineSpsHack;
+        decodeUnitProcessor.removeSpsColorInfo = Build.VERSION.SDK_INT < Build.VERSION_CODES.O &&
+                hevcDecoder == null && av1Decoder == null;
+        decodeUnitProcessor.patchSpsBitstreamRestrictions = needsSpsBitstreamFixup || isExynos4 ||
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        decodeUnitProcessor.useLegacyBitstreamRestrictionValues = Build.VERSION.SDK_INT < Build.VERSION_CODES.O;
+        decodeUnitProcessor.countReceiveTime = !FRAME_RENDER_TIME_ONLY;
+
+        // Start with the low latency options that calibration found to be the fastest (if any)
+        for (int tryNumber = selectedDecoderInfo.lowLatencyTryNumber;; tryNumber++) {
             LimeLog.info("Decoder configuration try: "+tryNumber);
 
             MediaFormat mediaFormat = createBaseMediaFormat(mimeType);
 
             // This will try low latency options until we find one that works (or we give up).
-            boolean newFormat = MediaCodecHelper.setDecoderLowLatencyOptions(mediaFormat, selectedDecoderInfo, tryNumber);
+            boolean newFormat = MediaCodecHelper.setDecoderLowLatencyOptions(mediaFormat, selectedDecoderInfo.name,
+                    selectedDecoderInfo.lowLatencyFeature, tryNumber);
 
             // Throw the underlying codec exception on the last attempt if the caller requested it
             if (tryConfigureDecoder(selectedDecoderInfo, mediaFormat, !newFormat && throwOnCodecError)) {
@@ -690,7 +806,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                     long delta = (renderTimeNanos / 1000000L) - (presentationTimeUs / 1000);
                     if (delta >= 0 && delta < 1000) {
                         if (USE_FRAME_RENDER_TIME) {
-                            activeWindowVideoStats.totalTimeMs += delta;
+                            synchronized (activeWindowLock) {
+                                activeWindowVideoStats.totalTimeMs += delta;
+                            }
                         }
                     }
                 }
@@ -707,6 +825,37 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         this.videoFormat = format;
         this.refreshRate = redrawRate;
 
+        if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_ADAPTIVE) {
+            adaptiveFramePacer = new AdaptiveFramePacer(redrawRate);
+        }
+        else if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_JITTER_BUFFER) {
+            jitterBuffer = new JitterBuffer(redrawRate,
+                    activity.getWindowManager().getDefaultDisplay().getRefreshRate(),
+                    prefs.jitterBufferMaxDepthMs, outputBufferQueueLimit);
+            decodeUnitProcessor.jitterBuffer = jitterBuffer;
+        }
+        renderScheduler = new VsyncRenderScheduler(redrawRate,
+                activity.getWindowManager().getDefaultDisplay().getRefreshRate(),
+                outputBufferQueueLimit);
+        watchdog = new DecoderWatchdog(redrawRate, new DecoderWatchdog.StallListener() {
+            @Override
+            public void onDecoderStall(boolean repeated) {
+                handleDecoderStall(repeated);
+            }
+        });
+        decodeUnitProcessor.watchdog = watchdog;
+        if (qualityListener != null) {
+            qualityController = new StreamQualityController(redrawRate, qualityListener);
+        }
+
+        // The callback thread must exist before the decoder is configured, since buffers
+        // become available as soon as the decoder is started.
+        asyncMode = prefs.asyncDecoder && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        if (asyncMode) {
+            LimeLog.info("Using asynchronous decoder mode");
+            startCodecCallbackThread();
+        }
+
         return initializeDecoder(false);
     }
 
@@ -734,12 +883,27 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 nextInputBuffer = null;
                 nextInputBufferIndex = -1;
                 outputBufferQueue.clear();
+                availableInputBuffers.clear();
+                renderScheduler.reset();
+                if (jitterBuffer != null) {
+                    jitterBuffer.reset();
+                }
+                watchdog.reset();
 
                 // If we just need a flush, do so now with all threads quiesced.
                 if (codecRecoveryType.get() == CR_RECOVERY_TYPE_FLUSH) {
                     LimeLog.warning("Flushing decoder");
                     try {
                         videoDecoder.flush();
+
+                        // The decoder may drop parameter sets on flush, so make sure the
+                        // next IDR frame sends them again.
+                        decodeUnitProcessor.resetCsd();
+
+                        if (asyncMode) {
+                            // The decoder won't hand out input buffers again until it's restarted
+                            videoDecoder.start();
+                        }
                         codecRecoveryType.set(CR_RECOVERY_TYPE_NONE);
                     } catch (IllegalStateException e) {
                         e.printStackTrace();
@@ -856,6 +1020,30 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return true;
     }
 
+    // Called by the watchdog when the decoder stops producing frames without throwing.
+    // We flush first, since that's cheap and the IDR frame requested afterwards gets
+    // most stalled decoders going again. If that didn't help, restart the decoder.
+    private void handleDecoderStall(boolean repeated) {
+        if (stopping) {
+            return;
+        }
+
+        if (!repeated) {
+            if (codecRecoveryType.compareAndSet(CR_RECOVERY_TYPE_NONE, CR_RECOVERY_TYPE_FLUSH)) {
+                LimeLog.warning("Flushing stalled decoder");
+            }
+        }
+        else if (codecRecoveryAttempts < CR_MAX_TRIES) {
+            // Promote None/Flush to Restart and leave Reset alone
+            if (codecRecoveryType.compareAndSet(CR_RECOVERY_TYPE_NONE, CR_RECOVERY_TYPE_RESTART) ||
+                    codecRecoveryType.compareAndSet(CR_RECOVERY_TYPE_FLUSH, CR_RECOVERY_TYPE_RESTART)) {
+                LimeLog.warning("Restarting decoder that is still stalled after flush");
+            }
+        }
+
+        // The recovery will take place when all threads reach doCodecRecoveryIfRequired().
+    }
+
     // Returns true if the exception is transient
     private boolean handleDecoderException(IllegalStateException e) {
         // Eat decoder exceptions if we're in the process of stopping
@@ -981,39 +1169,126 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             frameTimeNanos -= activity.getWindowManager().getDefaultDisplay().getAppVsyncOffsetNanos();
         }
 
-        // Don't render unless a new frame is due. This prevents microstutter when streaming
-        // at a frame rate that doesn't match the display (such as 60 FPS on 120 Hz).
-        long actualFrameTimeDeltaNs = frameTimeNanos - lastRenderedFrameTimeNanos;
-        long expectedFrameTimeDeltaNs = 800000000 / refreshRate; // within 80% of the next frame
-        if (actualFrameTimeDeltaNs >= expectedFrameTimeDeltaNs) {
-            // Render up to one frame when in frame pacing mode.
-            //
-            // NB: Since the queue limit is 2, we won't starve the decoder of output buffers
-            // by holding onto them for too long. This also ensures we will have that 1 extra
-            // frame of buffer to smooth over network/rendering jitter.
-            Integer nextOutputBuffer = outputBufferQueue.poll();
-            if (nextOutputBuffer != null) {
+        if (adaptiveFramePacer != null) {
+            adaptiveFramePacer.onVsync(frameTimeNanos);
+        }
+
+        renderScheduler.onVsync(frameTimeNanos);
+        if (jitterBuffer != null) {
+            jitterBuffer.onVsync(frameTimeNanos);
+            synchronized (activeWindowLock) {
+                activeWindowVideoStats.jitterBufferOccupancySum += outputBufferQueue.size();
+                activeWindowVideoStats.jitterBufferOccupancySamples++;
+            }
+        }
+
+        // Render up to one frame at the vsync the scheduler (or jitter buffer) picks for it,
+        // dropping any frames that we've fallen too far behind on.
+        //
+        // NB: Since the queue limit is 2, we won't starve the decoder of output buffers
+        // by holding onto them for too long. This also ensures we will have that 1 extra
+        // frame of buffer to smooth over network/rendering jitter. The jitter buffer trades
+        // some of that for a deeper queue.
+        int nextOutputBuffer;
+        while ((nextOutputBuffer = outputBufferQueue.peek()) != OutputBufferQueue.EMPTY) {
+            long[] presentationTimesUs = outputBufferPresentationTimesUs;
+            int decision;
+            if (jitterBuffer != null) {
+                decision = jitterBuffer.decide(nextOutputBuffer, outputBufferQueue.size(), outputBufferQueueLimit);
+            }
+            else {
+                decision = renderScheduler.decide(
+                        nextOutputBuffer < presentationTimesUs.length ? presentationTimesUs[nextOutputBuffer] : 0,
+                        outputBufferQueue.size());
+            }
+            if (decision == VsyncRenderScheduler.DECISION_WAIT) {
+                break;
+            }
+
+            // If the renderer thread discarded the buffer we peeked at, this is a newer one
+            // which is at least as due.
+            nextOutputBuffer = outputBufferQueue.poll();
+            if (nextOutputBuffer == OutputBufferQueue.EMPTY) {
+                break;
+            }
+
+            presentationTimesUs = outputBufferPresentationTimesUs;
+            long presentationTimeUs = nextOutputBuffer < presentationTimesUs.length ? presentationTimesUs[nextOutputBuffer] : 0;
+            if (jitterBuffer == null) {
+                renderScheduler.onFrameReleased(presentationTimeUs, decision);
+            }
+            TelemetryRecorder recorder = telemetryRecorder;
+
+            if (decision == VsyncRenderScheduler.DECISION_DROP) {
                 try {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                        videoDecoder.releaseOutputBuffer(nextOutputBuffer, frameTimeNanos);
-                    }
-                    else {
-                        videoDecoder.releaseOutputBuffer(nextOutputBuffer, true);
+                    videoDecoder.releaseOutputBuffer(nextOutputBuffer, false);
+                } catch (IllegalStateException e) {
+                    e.printStackTrace();
+                    handleDecoderException(e);
+                    break;
+                }
+
+                synchronized (activeWindowLock) {
+                    activeWindowVideoStats.framesPacedDropped++;
+                    if (jitterBuffer != null) {
+                        activeWindowVideoStats.jitterBufferUnderruns++;
                     }
+                }
+                if (recorder != null) {
+                    recorder.recordVideoDropped(presentationTimeUs);
+                }
+                continue;
+            }
 
-                    lastRenderedFrameTimeNanos = frameTimeNanos;
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    videoDecoder.releaseOutputBuffer(nextOutputBuffer, frameTimeNanos);
+                }
+                else {
+                    videoDecoder.releaseOutputBuffer(nextOutputBuffer, true);
+                }
+
+                synchronized (activeWindowLock) {
                     activeWindowVideoStats.totalFramesRendered++;
-                } catch (IllegalStateException ignored) {
-                    try {
-                        // Try to avoid leaking the output buffer by releasing it without rendering
-                        videoDecoder.releaseOutputBuffer(nextOutputBuffer, false);
-                    } catch (IllegalStateException e) {
-                        // This will leak nextOutputBuffer, but there's really nothing else we can do
-                        e.printStackTrace();
-                        handleDecoderException(e);
+                    switch (decision) {
+                        case VsyncRenderScheduler.DECISION_RENDER_EARLY:
+                            activeWindowVideoStats.framesPacedEarly++;
+                            if (jitterBuffer != null) {
+                                activeWindowVideoStats.jitterBufferOverruns++;
+                            }
+                            break;
+                        case VsyncRenderScheduler.DECISION_RENDER_LATE:
+                            activeWindowVideoStats.framesPacedLate++;
+                            if (jitterBuffer != null) {
+                                activeWindowVideoStats.jitterBufferUnderruns++;
+                            }
+                            break;
+                        default:
+                            activeWindowVideoStats.framesPacedOnTime++;
+                            break;
+                    }
+
+                    if (nextOutputBuffer < presentationTimesUs.length) {
+                        activeWindowVideoStats.renderLatency.record(frameTimeNanos / 1000 - presentationTimeUs);
                     }
                 }
+
+                if (nextOutputBuffer < presentationTimesUs.length) {
+                    if (recorder != null) {
+                        recorder.recordVideoRendered(presentationTimeUs, frameTimeNanos / 1000);
+                    }
+                }
+            } catch (IllegalStateException ignored) {
+                try {
+                    // Try to avoid leaking the output buffer by releasing it without rendering
+                    videoDecoder.releaseOutputBuffer(nextOutputBuffer, false);
+                } catch (IllegalStateException e) {
+                    // This will leak nextOutputBuffer, but there's really nothing else we can do
+                    e.printStackTrace();
+                    handleDecoderException(e);
+                }
             }
+            break;
         }
 
         // Attempt codec recovery even if we have nothing to render right now. Recovery can still
@@ -1025,7 +1300,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     }
 
     private void startChoreographerThread() {
-        if (prefs.framePacing != PreferenceConfiguration.FRAME_PACING_BALANCED) {
+        if (prefs.framePacing != PreferenceConfiguration.FRAME_PACING_BALANCED &&
+                prefs.framePacing != PreferenceConfiguration.FRAME_PACING_ADAPTIVE &&
+                prefs.framePacing != PreferenceConfiguration.FRAME_PACING_JITTER_BUFFER) {
             // Not using Choreographer in this pacing mode
             return;
         }
@@ -1044,6 +1321,142 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         });
     }
 
+    // Renders or queues a buffer that the decoder has finished with. Called on the renderer
+    // thread in synchronous mode or the codec callback thread in asynchronous mode.
+    private void handleDecodedOutputBuffer(int decodedIndex, BufferInfo info, boolean drainDecoderOutput) {
+        long presentationTimeUs = info.presentationTimeUs;
+        int lastIndex = decodedIndex;
+        TelemetryRecorder recorder = telemetryRecorder;
+
+        numFramesOut++;
+        watchdog.onFrameDecoded(presentationTimeUs);
+        if (recorder != null) {
+            recorder.recordVideoDecoded(presentationTimeUs);
+        }
+
+        // Adaptive frame pacing switches between both modes of operation below
+        boolean vsyncAligned = prefs.framePacing == PreferenceConfiguration.FRAME_PACING_BALANCED ||
+                jitterBuffer != null ||
+                (adaptiveFramePacer != null && adaptiveFramePacer.isVsyncAligned());
+
+        // Render the latest frame now if frame pacing isn't in balanced mode
+        if (!vsyncAligned) {
+            // If adaptive frame pacing just left vsync-aligned mode, drop anything
+            // still waiting for the Choreographer. OutputBufferQueue allows this
+            // thread to take from the head while the Choreographer callback does.
+            if (adaptiveFramePacer != null) {
+                int staleIndex;
+                while ((staleIndex = outputBufferQueue.poll()) != OutputBufferQueue.EMPTY) {
+                    videoDecoder.releaseOutputBuffer(staleIndex, false);
+
+                    long[] presentationTimesUs = outputBufferPresentationTimesUs;
+                    if (recorder != null && staleIndex < presentationTimesUs.length) {
+                        recorder.recordVideoDropped(presentationTimesUs[staleIndex]);
+                    }
+                }
+            }
+
+            // Get the last output buffer in the queue. The codec callback hands us buffers
+            // one at a time, so there's nothing to drain in that case.
+            int outIndex;
+            while (drainDecoderOutput && (outIndex = videoDecoder.dequeueOutputBuffer(info, 0)) >= 0) {
+                videoDecoder.releaseOutputBuffer(lastIndex, false);
+
+                numFramesOut++;
+                if (recorder != null) {
+                    recorder.recordVideoDropped(presentationTimeUs);
+                    recorder.recordVideoDecoded(info.presentationTimeUs);
+                }
+
+                lastIndex = outIndex;
+                presentationTimeUs = info.presentationTimeUs;
+            }
+
+            if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_MAX_SMOOTHNESS ||
+                    prefs.framePacing == PreferenceConfiguration.FRAME_PACING_CAP_FPS) {
+                // In max smoothness or cap FPS mode, we want to never drop frames
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    // Use a PTS that will cause this frame to never be dropped
+                    videoDecoder.releaseOutputBuffer(lastIndex, 0);
+                }
+                else {
+                    videoDecoder.releaseOutputBuffer(lastIndex, true);
+                }
+            }
+            else {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    // Use a PTS that will cause this frame to be dropped if another comes in within
+                    // the same V-sync period
+                    videoDecoder.releaseOutputBuffer(lastIndex, System.nanoTime());
+                }
+                else {
+                    videoDecoder.releaseOutputBuffer(lastIndex, true);
+                }
+            }
+
+            synchronized (activeWindowLock) {
+                activeWindowVideoStats.totalFramesRendered++;
+                activeWindowVideoStats.renderLatency.record(
+                        SystemClock.uptimeMillis() * 1000 - presentationTimeUs);
+            }
+            if (recorder != null) {
+                recorder.recordVideoRendered(presentationTimeUs, SystemClock.uptimeMillis() * 1000);
+            }
+        }
+        else {
+            // For balanced frame pacing case, the Choreographer callback will handle rendering.
+            // We just put all frames into the output buffer queue and let it handle things.
+
+            // Remember the PTS for the Choreographer callback's render latency stats
+            long[] presentationTimesUs = outputBufferPresentationTimesUs;
+            if (lastIndex >= presentationTimesUs.length) {
+                presentationTimesUs = Arrays.copyOf(presentationTimesUs, lastIndex * 2);
+            }
+            presentationTimesUs[lastIndex] = presentationTimeUs;
+            outputBufferPresentationTimesUs = presentationTimesUs;
+
+            // The jitter buffer decides when this frame should be displayed
+            if (jitterBuffer != null) {
+                jitterBuffer.onFrameDecoded(lastIndex, presentationTimeUs, System.nanoTime() / 1000);
+            }
+
+            // Add this buffer, discarding the oldest buffer if we've exceeded our limit.
+            //
+            // NB: We have to do this on the producer side because the consumer may not
+            // run for a while (if there is a huge mismatch between stream FPS and display
+            // refresh rate).
+            int discardedIndex = outputBufferQueue.add(lastIndex);
+            if (discardedIndex != OutputBufferQueue.EMPTY) {
+                videoDecoder.releaseOutputBuffer(discardedIndex, false);
+                synchronized (activeWindowLock) {
+                    activeWindowVideoStats.framesPacedDropped++;
+                    if (jitterBuffer != null) {
+                        activeWindowVideoStats.jitterBufferOverruns++;
+                    }
+                }
+                if (recorder != null && discardedIndex < presentationTimesUs.length) {
+                    recorder.recordVideoDropped(presentationTimesUs[discardedIndex]);
+                }
+            }
+        }
+
+        // Add delta time to the totals (excluding probable outliers)
+        long delta = SystemClock.uptimeMillis() - (presentationTimeUs / 1000);
+        if (delta >= 0 && delta < 1000) {
+            if (adaptiveFramePacer != null) {
+                adaptiveFramePacer.onFrameDecoded(delta * 1000, System.nanoTime());
+            }
+
+            synchronized (activeWindowLock) {
+                activeWindowVideoStats.decoderTimeMs += delta;
+                activeWindowVideoStats.decoderLatency.record(delta * 1000);
+                if (!USE_FRAME_RENDER_TIME) {
+                    activeWindowVideoStats.totalTimeMs += delta;
+                }
+            }
+        }
+    }
+
     private void startRendererThread()
     {
         rendererThread = new Thread() {
@@ -1055,81 +1468,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                         // Try to output a frame
                         int outIndex = videoDecoder.dequeueOutputBuffer(info, 50000);
                         if (outIndex >= 0) {
-                            long presentationTimeUs = info.presentationTimeUs;
-                            int lastIndex = outIndex;
-
-                            numFramesOut++;
-
-                            // Render the latest frame now if frame pacing isn't in balanced mode
-                            if (prefs.framePacing != PreferenceConfiguration.FRAME_PACING_BALANCED) {
-                                // Get the last output buffer in the queue
-                                while ((outIndex = videoDecoder.dequeueOutputBuffer(info, 0)) >= 0) {
-                                    videoDecoder.releaseOutputBuffer(lastIndex, false);
-
-                                    numFramesOut++;
-
-                                    lastIndex = outIndex;
-                                    presentationTimeUs = info.presentationTimeUs;
-                                }
-
-                                if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_MAX_SMOOTHNESS ||
-                                        prefs.framePacing == PreferenceConfiguration.FRAME_PACING_CAP_FPS) {
-                                    // In max smoothness or cap FPS mode, we want to never drop frames
-                                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                                        // Use a PTS that will cause this frame to never be dropped
-                                        videoDecoder.releaseOutputBuffer(lastIndex, 0);
-                                    }
-                                    else {
-                                        videoDecoder.releaseOutputBuffer(lastIndex, true);
-                                    }
-                                }
-                                else {
-                                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                                        // Use a PTS that will cause this frame to be dropped if another comes in within
-                                        // the same V-sync period
-                                        videoDecoder.releaseOutputBuffer(lastIndex, System.nanoTime());
-                                    }
-                                    else {
-                                        videoDecoder.releaseOutputBuffer(lastIndex, true);
-                                    }
-                                }
-
-                                activeWindowVideoStats.totalFramesRendered++;
-                            }
-                            else {
-                                // For balanced frame pacing case, the Choreographer callback will handle rendering.
-                                // We just put all frames into the output buffer queue and let it handle things.
-
-                                // Discard the oldest buffer if we've exceeded our limit.
-                                //
-                                // NB: We have to do this on the producer side because the consumer may not
-                                // run for a while (if there is a huge mismatch between stream FPS and display
-                                // refresh rate).
-                                if (outputBufferQueue.size() == OUTPUT_BUFFER_QUEUE_LIMIT) {
-                                    try {
-                                        videoDecoder.releaseOutputBuffer(outputBufferQueue.take(), false);
-                                    } catch (InterruptedException e) {
-                                        // We're shutting down, so we can just drop this buffer on the floor
-                                        // and it will be reclaimed when the codec is released.
-                                        return;
-                                    }
-                                }
-
-                                // Add this buffer
-                                outputBufferQueue.add(lastIndex);
-                            }
-
-                            // Add delta time to the totals (excluding probable outliers)
-                            long delta = SystemClock.uptimeMillis() - (presentationTimeUs / 1000);
-                            if (delta >= 0 && delta < 1000) {
-                                activeWindowVideoStats.decoderTimeMs += delta;
-                                if (!USE_FRAME_RENDER_TIME) {
-                                    activeWindowVideoStats.totalTimeMs += delta;
-                                }
-                            }
+                            handleDecodedOutputBuffer(outIndex, info, true);
                         } else {
                             switch (outIndex) {
                                 case MediaCodec.INFO_TRY_AGAIN_LATER:
+                                    watchdog.onOutputTimeout();
                                     break;
                                 case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
                                     LimeLog.info("Output format changed");
@@ -1166,8 +1509,16 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         try {
             // If we don't have an input buffer index yet, fetch one now
-            while (nextInputBufferIndex < 0 && !stopping) {
-                nextInputBufferIndex = videoDecoder.dequeueInputBuffer(10000);
+            if (asyncMode) {
+                nextInputBufferIndex = takeAvailableInputBuffer();
+            }
+            else {
+                // A stalled decoder may be holding every input buffer, so give up if the
+                // watchdog wants to recover it. That can't start until this thread quiesces.
+                while (nextInputBufferIndex < 0 && !stopping &&
+                        codecRecoveryType.get() == CR_RECOVERY_TYPE_NONE) {
+                    nextInputBufferIndex = videoDecoder.dequeueInputBuffer(10000);
+                }
             }
 
             // Get the backing ByteBuffer for the input buffer index
@@ -1227,10 +1578,101 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return true;
     }
 
+    // Returns a pooled input buffer index, waiting for the codec callback to provide one if
+    // the decoder has them all. Gives up with -1 if codec recovery is needed, since that won't
+    // start until this thread quiesces.
+    private int takeAvailableInputBuffer() {
+        int index;
+        while ((index = availableInputBuffers.poll()) == OutputBufferQueue.EMPTY) {
+            if (stopping || codecRecoveryType.get() != CR_RECOVERY_TYPE_NONE) {
+                return -1;
+            }
+
+            synchronized (availableInputBuffers) {
+                if (availableInputBuffers.size() == 0) {
+                    try {
+                        availableInputBuffers.wait(10);
+                    } catch (InterruptedException e) {
+                        // InterruptedException clears the thread's interrupt status. Since we can't
+                        // handle that here, we will re-interrupt the thread to set the interrupt
+                        // status back to true.
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private MediaCodec.Callback createCodecCallback() {
+        return new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                if (availableInputBuffers.add(index) != OutputBufferQueue.EMPTY) {
+                    LimeLog.warning("Too many input buffers available");
+                }
+
+                synchronized (availableInputBuffers) {
+                    availableInputBuffers.notify();
+                }
+
+                doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+                if (stopping) {
+                    return;
+                }
+
+                try {
+                    handleDecodedOutputBuffer(index, info, false);
+                } catch (IllegalStateException e) {
+                    handleDecoderException(e);
+                } finally {
+                    doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, CodecException e) {
+                handleDecoderException(e);
+                doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                LimeLog.info("Output format changed");
+                outputFormat = format;
+                LimeLog.info("New output format: " + outputFormat);
+            }
+        };
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setCodecCallback() {
+        videoDecoder.setCallback(codecCallback, codecCallbackHandler);
+    }
+
+    private void startCodecCallbackThread() {
+        codecCallbackThread = new HandlerThread("Video - Codec callbacks", Process.THREAD_PRIORITY_DISPLAY);
+        codecCallbackThread.start();
+        codecCallbackHandler = new Handler(codecCallbackThread.getLooper());
+        codecCallback = createCodecCallback();
+    }
+
     @Override
     public void start() {
-        startRendererThread();
+        if (asyncMode) {
+            codecCallbackHandler.postDelayed(codecCallbackRecoveryCheck, CODEC_CALLBACK_RECOVERY_CHECK_MS);
+        }
+        else {
+            startRendererThread();
+        }
         startChoreographerThread();
+        watchdog.start();
     }
 
     // !!! May be called even if setup()/start() fails !!!
@@ -1249,6 +1691,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             codecRecoveryMonitor.notifyAll();
         }
 
+        // Stop delivering codec callbacks (if we're using them)
+        if (codecCallbackThread != null) {
+            codecCallbackThread.quit();
+        }
+
         // Post a quit message to the Choreographer looper (if we have one)
         if (choreographerHandler != null) {
             choreographerHandler.post(new Runnable() {
@@ -1283,9 +1730,19 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
         }
 
-        // Wait for the renderer thread to shut down
+        // Stop watching for decoder stalls (if we have a watchdog)
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+
+        // Wait for the renderer or codec callback thread to shut down
         try {
-            rendererThread.join();
+            if (rendererThread != null) {
+                rendererThread.join();
+            }
+            if (codecCallbackThread != null) {
+                codecCallbackThread.join();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
 
@@ -1375,406 +1832,194 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return fetchNextInputBuffer();
     }
 
-    private void doProfileSpecificSpsPatching(SeqParameterSet sps) {
-        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
-        // High Profile which allows the decoder to assume there will be no B-frames and
-        // reduce delay and buffering accordingly. Some devices (Marvell, Exynos 4) don't
-        // like it so we only set them on devices that are confirmed to benefit from it.
-        if (sps.profileIdc == 100 && constrainedHighProfile) {
-            LimeLog.info("Setting constraint set flags for constrained high profile");
-            sps.constraintSet4Flag = true;
-            sps.constraintSet5Flag = true;
-        }
-        else {
-            // Force the constraints unset otherwise (some may be set by default)
-            sps.constraintSet4Flag = false;
-            sps.constraintSet5Flag = false;
-        }
+    @Override
+    public boolean supportsZeroCopySubmission() {
+        // MediaCodec input buffers are direct buffers, so picture data can be copied straight
+        // from the native packet buffers into them without staging in a Java byte array.
+        return USE_ZERO_COPY_SUBMISSION && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public int submitDecodeUnitZeroCopy(int decodeUnitLength, int frameNumber, int frameType,
+                                        char frameHostProcessingLatency,
+                                        long receiveTimeMs, long enqueueTimeMs) {
+        return submitDecodeUnitInternal(null, decodeUnitLength, MoonBridge.BUFFER_TYPE_PICDATA,
+                frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
     }
 
-    @SuppressWarnings("deprecation")
     @Override
     public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
                                 int frameNumber, int frameType, char frameHostProcessingLatency,
                                 long receiveTimeMs, long enqueueTimeMs) {
+        return submitDecodeUnitInternal(decodeUnitData, decodeUnitLength, decodeUnitType,
+                frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+    }
+
+    // If decodeUnitData is null, the picture data is fetched from the native decode unit
+    // using MoonBridge.copyPendingDecodeUnitPicData(). This is only valid for picture data.
+    private int submitDecodeUnitInternal(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                                         int frameNumber, int frameType, char frameHostProcessingLatency,
+                                         long receiveTimeMs, long enqueueTimeMs) {
         if (stopping) {
             // Don't bother if we're stopping
             return MoonBridge.DR_OK;
         }
 
-        if (lastFrameNumber == 0) {
+        if (activeWindowVideoStats.measurementStartTimestamp == 0) {
             activeWindowVideoStats.measurementStartTimestamp = SystemClock.uptimeMillis();
-        } else if (frameNumber != lastFrameNumber && frameNumber != lastFrameNumber + 1) {
-            // We can receive the same "frame" multiple times if it's an IDR frame.
-            // In that case, each frame start NALU is submitted independently.
-            activeWindowVideoStats.framesLost += frameNumber - lastFrameNumber - 1;
-            activeWindowVideoStats.totalFrames += frameNumber - lastFrameNumber - 1;
-            activeWindowVideoStats.frameLossEvents++;
-        }
-
-        // Reset CSD data for each IDR frame
-        if (lastFrameNumber != frameNumber && frameType == MoonBridge.FRAME_TYPE_IDR) {
-            vpsBuffers.clear();
-            spsBuffers.clear();
-            ppsBuffers.clear();
         }
 
-        lastFrameNumber = frameNumber;
-
         // Flip stats windows roughly every second
         if (SystemClock.uptimeMillis() >= activeWindowVideoStats.measurementStartTimestamp + 1000) {
-            if (prefs.enablePerfOverlay) {
-                VideoStats lastTwo = new VideoStats();
-                lastTwo.add(lastWindowVideoStats);
-                lastTwo.add(activeWindowVideoStats);
-                VideoStatsFps fps = lastTwo.getFps();
-                String decoder;
-
-                if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
-                    decoder = avcDecoder.getName();
-                } else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
-                    decoder = hevcDecoder.getName();
-                } else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_AV1) != 0) {
-                    decoder = av1Decoder.getName();
-                } else {
-                    decoder = "(unknown)";
+            // Hand a snapshot of the last two windows to the UI thread to format. If it
+            // hasn't finished with the previous snapshot yet, we'll skip this update.
+            boolean updatePerfOverlay = prefs.enablePerfOverlay && perfOverlaySnapshotPending.compareAndSet(false, true);
+
+            synchronized (activeWindowLock) {
+                if (updatePerfOverlay) {
+                    perfOverlaySnapshot.lastTwo.copy(lastWindowVideoStats);
+                    perfOverlaySnapshot.lastTwo.add(activeWindowVideoStats);
                 }
 
-                float decodeTimeMs = (float)lastTwo.decoderTimeMs / lastTwo.totalFramesReceived;
-                long rttInfo = MoonBridge.getEstimatedRttInfo();
-                StringBuilder sb = new StringBuilder();
-                sb.append(context.getString(R.string.perf_overlay_streamdetails, initialWidth + "x" + initialHeight, fps.totalFps)).append('\n');
-                sb.append(context.getString(R.string.perf_overlay_decoder, decoder)).append('\n');
-                sb.append(context.getString(R.string.perf_overlay_incomingfps, fps.receivedFps)).append('\n');
-                sb.append(context.getString(R.string.perf_overlay_renderingfps, fps.renderedFps)).append('\n');
-                sb.append(context.getString(R.string.perf_overlay_netdrops,
-                        (float)lastTwo.framesLost / lastTwo.totalFrames * 100)).append('\n');
-                sb.append(context.getString(R.string.perf_overlay_netlatency,
-                        (int)(rttInfo >> 32), (int)rttInfo)).append('\n');
-                if (lastTwo.framesWithHostProcessingLatency > 0) {
-                    sb.append(context.getString(R.string.perf_overlay_hostprocessinglatency,
-                            (float)lastTwo.minHostProcessingLatency / 10,
-                            (float)lastTwo.maxHostProcessingLatency / 10,
-                            (float)lastTwo.totalHostProcessingLatency / 10 / lastTwo.framesWithHostProcessingLatency)).append('\n');
-                }
-                sb.append(context.getString(R.string.perf_overlay_dectime, decodeTimeMs));
-                perfListener.onPerfUpdate(sb.toString());
+                globalVideoStats.add(activeWindowVideoStats);
+                lastWindowVideoStats.copy(activeWindowVideoStats);
+                activeWindowVideoStats.clear();
+                activeWindowVideoStats.measurementStartTimestamp = SystemClock.uptimeMillis();
             }
 
-            globalVideoStats.add(activeWindowVideoStats);
-            lastWindowVideoStats.copy(activeWindowVideoStats);
-            activeWindowVideoStats.clear();
-            activeWindowVideoStats.measurementStartTimestamp = SystemClock.uptimeMillis();
-        }
-
-        boolean csdSubmittedForThisFrame = false;
-
-        // IDR frames require special handling for CSD buffer submission
-        if (frameType == MoonBridge.FRAME_TYPE_IDR) {
-            // H264 SPS
-            if (decodeUnitType == MoonBridge.BUFFER_TYPE_SPS && (videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
-                numSpsIn++;
-
-                ByteBuffer spsBuf = ByteBuffer.wrap(decodeUnitData);
-                int startSeqLen = decodeUnitData[2] == 0x01 ? 3 : 4;
-
-                // Skip to the start of the NALU data
-                spsBuf.position(startSeqLen + 1);
-
-                // The H264Utils.readSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                SeqParameterSet sps = H264Utils.readSPS(spsBuf);
-
-                // Some decoders rely on H264 level to decide how many buffers are needed
-                // Since we only need one frame buffered, we'll set the level as low as we can
-                // for known resolution combinations. Reference frame invalidation may need
-                // these, so leave them be for those decoders.
-                if (!refFrameInvalidationActive) {
-                    if (initialWidth <= 720 && initialHeight <= 480 && refreshRate <= 60) {
-                        // Max 5 buffered frames at 720x480x60
-                        LimeLog.info("Patching level_idc to 31");
-                        sps.levelIdc = 31;
-                    }
-                    else if (initialWidth <= 1280 && initialHeight <= 720 && refreshRate <= 60) {
-                        // Max 5 buffered frames at 1280x720x60
-                        LimeLog.info("Patching level_idc to 32");
-                        sps.levelIdc = 32;
-                    }
-                    else if (initialWidth <= 1920 && initialHeight <= 1080 && refreshRate <= 60) {
-                        // Max 4 buffered frames at 1920x1080x64
-                        LimeLog.info("Patching level_idc to 42");
-                        sps.levelIdc = 42;
-                    }
-                    else {
-                        // Leave the profile alone (currently 5.0)
-                    }
-                }
-
-                // TI OMAP4 requires a reference frame count of 1 to decode successfully. Exynos 4
-                // also requires this fixup.
-                //
-                // I'm doing this fixup for all devices because I haven't seen any devices that
-                // this causes issues for. At worst, it seems to do nothing and at best it fixes
-                // issues with video lag, hangs, and crashes.
-                //
-                // It does break reference frame invalidation, so we will not do that for decoders
-                // where we've enabled reference frame invalidation.
-                if (!refFrameInvalidationActive) {
-                    LimeLog.info("Patching num_ref_frames in SPS");
-                    sps.numRefFrames = 1;
-                }
-
-                // GFE 2.5.11 changed the SPS to add additional extensions. Some devices don't like these
-                // so we remove them here on old devices unless these devices also support HEVC.
-                // See getPreferredColorSpace() for further information.
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O &&
-                        sps.vuiParams != null &&
-                        hevcDecoder == null &&
-                        av1Decoder == null) {
-                    sps.vuiParams.videoSignalTypePresentFlag = false;
-                    sps.vuiParams.colourDescriptionPresentFlag = false;
-                    sps.vuiParams.chromaLocInfoPresentFlag = false;
-                }
-
-                // Some older devices used to choke on a bitstream restrictions, so we won't provide them
-                // unless explicitly whitelisted. For newer devices, leave the bitstream restrictions present.
-                if (needsSpsBitstreamFixup || isExynos4 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    // The SPS that comes in the current H264 bytestream doesn't set bitstream_restriction_flag
-                    // or max_dec_frame_buffering which increases decoding latency on Tegra.
-
-                    // If the encoder didn't include VUI parameters in the SPS, add them now
-                    if (sps.vuiParams == null) {
-                        LimeLog.info("Adding VUI parameters");
-                        sps.vuiParams = new VUIParameters();
-                    }
-
-                    // GFE 2.5.11 started sending bitstream restrictions
-                    if (sps.vuiParams.bitstreamRestriction == null) {
-                        LimeLog.info("Adding bitstream restrictions");
-                        sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
-                        sps.vuiParams.bitstreamRestriction.motionVectorsOverPicBoundariesFlag = true;
-                        sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
-                        sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
-                        sps.vuiParams.bitstreamRestriction.log2MaxMvLengthHorizontal = 16;
-                        sps.vuiParams.bitstreamRestriction.log2MaxMvLengthVertical = 16;
-                        sps.vuiParams.bitstreamRestriction.numReorderFrames = 0;
-                    }
-                    else {
-                        LimeLog.info("Patching bitstream restrictions");
-                    }
-
-                    // Some devices throw errors if maxDecFrameBuffering < numRefFrames
-                    sps.vuiParams.bitstreamRestriction.maxDecFrameBuffering = sps.numRefFrames;
-
-                    // These values are the defaults for the fields, but they are more aggressive
-                    // than what GFE sends in 2.5.11, but it doesn't seem to cause picture problems.
-                    // We'll leave these alone for "modern" devices just in case they care.
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-                        sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
-                        sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
-                    }
-
-                    // log2_max_mv_length_horizontal and log2_max_mv_length_vertical are set to more
-                    // conservative values by GFE 2.5.11. We'll let those values stand.
-                }
-                else if (sps.vuiParams != null) {
-                    // Devices that didn't/couldn't get bitstream restrictions before GFE 2.5.11
-                    // will continue to not receive them now
-                    sps.vuiParams.bitstreamRestriction = null;
-                }
-
-                // If we need to hack this SPS to say we're baseline, do so now
-                if (needsBaselineSpsHack) {
-                    LimeLog.info("Hacking SPS to baseline");
-                    sps.profileIdc = 66;
-                    savedSps = sps;
-                }
-
-                // Patch the SPS constraint flags
-                doProfileSpecificSpsPatching(sps);
-
-                // The H264Utils.writeSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                ByteBuffer escapedNalu = H264Utils.writeSPS(sps, decodeUnitLength);
-
-                // Construct the patched SPS
-                byte[] naluBuffer = new byte[startSeqLen + 1 + escapedNalu.limit()];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, startSeqLen + 1);
-                escapedNalu.get(naluBuffer, startSeqLen + 1, escapedNalu.limit());
-
-                // Batch this to submit together with other CSD per AOSP docs
-                spsBuffers.add(naluBuffer);
-                return MoonBridge.DR_OK;
-            }
-            else if (decodeUnitType == MoonBridge.BUFFER_TYPE_VPS) {
-                numVpsIn++;
-
-                // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                vpsBuffers.add(naluBuffer);
-                return MoonBridge.DR_OK;
-            }
-            // Only the HEVC SPS hits this path (H.264 is handled above)
-            else if (decodeUnitType == MoonBridge.BUFFER_TYPE_SPS) {
-                numSpsIn++;
-
-                // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                spsBuffers.add(naluBuffer);
-                return MoonBridge.DR_OK;
-            }
-            else if (decodeUnitType == MoonBridge.BUFFER_TYPE_PPS) {
-                numPpsIn++;
-
-                // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                ppsBuffers.add(naluBuffer);
-                return MoonBridge.DR_OK;
-            }
-            else if ((videoFormat & (MoonBridge.VIDEO_FORMAT_MASK_H264 | MoonBridge.VIDEO_FORMAT_MASK_H265)) != 0) {
-                // If this is the first CSD blob or we aren't supporting fused IDR frames, we will
-                // submit the CSD blob in a separate input buffer for each IDR frame.
-                if (!submittedCsd || !fusedIdrFrame) {
-                    if (!fetchNextInputBuffer()) {
-                        return MoonBridge.DR_NEED_IDR;
-                    }
-
-                    // Submit all CSD when we receive the first non-CSD blob in an IDR frame
-                    for (byte[] vpsBuffer : vpsBuffers) {
-                        nextInputBuffer.put(vpsBuffer);
-                    }
-                    for (byte[] spsBuffer : spsBuffers) {
-                        nextInputBuffer.put(spsBuffer);
-                    }
-                    for (byte[] ppsBuffer : ppsBuffers) {
-                        nextInputBuffer.put(ppsBuffer);
-                    }
-
-                    if (!queueNextInputBuffer(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) {
-                        return MoonBridge.DR_NEED_IDR;
-                    }
-
-                    // Remember that we already submitted CSD for this frame, so we don't do it
-                    // again in the fused IDR case below.
-                    csdSubmittedForThisFrame = true;
-
-                    // Remember that we submitted CSD globally for this MediaCodec instance
-                    submittedCsd = true;
-
-                    if (needsBaselineSpsHack) {
-                        needsBaselineSpsHack = false;
-
-                        if (!replaySps()) {
-                            return MoonBridge.DR_NEED_IDR;
-                        }
-
-                        LimeLog.info("SPS replay complete");
-                    }
-                }
+            if (updatePerfOverlay) {
+                capturePerfOverlayState(perfOverlaySnapshot);
+                activity.runOnUiThread(perfOverlayUpdater);
             }
-        }
 
-        if (frameHostProcessingLatency != 0) {
-            if (activeWindowVideoStats.minHostProcessingLatency != 0) {
-                activeWindowVideoStats.minHostProcessingLatency = (char) Math.min(activeWindowVideoStats.minHostProcessingLatency, frameHostProcessingLatency);
-            } else {
-                activeWindowVideoStats.minHostProcessingLatency = frameHostProcessingLatency;
+            // The window we just finished is only touched by this thread from here on
+            AvSyncMonitor syncMonitor = avSyncMonitor;
+            if (syncMonitor != null && lastWindowVideoStats.renderLatency.getTotalCount() > 0) {
+                syncMonitor.onVideoLatency(getVideoPathLatencyMs(lastWindowVideoStats));
             }
-            activeWindowVideoStats.framesWithHostProcessingLatency += 1;
-        }
-        activeWindowVideoStats.maxHostProcessingLatency = (char) Math.max(activeWindowVideoStats.maxHostProcessingLatency, frameHostProcessingLatency);
-        activeWindowVideoStats.totalHostProcessingLatency += frameHostProcessingLatency;
-
-        activeWindowVideoStats.totalFramesReceived++;
-        activeWindowVideoStats.totalFrames++;
-
-        if (!FRAME_RENDER_TIME_ONLY) {
-            // Count time from first packet received to enqueue time as receive time
-            // We will count DU queue time as part of decoding, because it is directly
-            // caused by a slow decoder.
-            activeWindowVideoStats.totalTimeMs += enqueueTimeMs - receiveTimeMs;
-        }
-
-        if (!fetchNextInputBuffer()) {
-            return MoonBridge.DR_NEED_IDR;
-        }
-
-        int codecFlags = 0;
-
-        if (frameType == MoonBridge.FRAME_TYPE_IDR) {
-            codecFlags |= MediaCodec.BUFFER_FLAG_SYNC_FRAME;
 
-            // If we are using fused IDR frames, submit the CSD with each IDR frame
-            if (fusedIdrFrame && !csdSubmittedForThisFrame) {
-                for (byte[] vpsBuffer : vpsBuffers) {
-                    nextInputBuffer.put(vpsBuffer);
-                }
-                for (byte[] spsBuffer : spsBuffers) {
-                    nextInputBuffer.put(spsBuffer);
-                }
-                for (byte[] ppsBuffer : ppsBuffers) {
-                    nextInputBuffer.put(ppsBuffer);
-                }
+            if (qualityController != null) {
+                qualityController.onStatsWindow(lastWindowVideoStats, MoonBridge.getEstimatedRttInfo());
             }
         }
 
-        long timestampUs = enqueueTimeMs * 1000;
-        if (timestampUs <= lastTimestampUs) {
-            // We can't submit multiple buffers with the same timestamp
-            // so bump it up by one before queuing
-            timestampUs = lastTimestampUs + 1;
+        if (adaptiveFramePacer != null) {
+            adaptiveFramePacer.onFrameArrival(enqueueTimeMs);
         }
-        lastTimestampUs = timestampUs;
+        renderScheduler.onFrameReceived(receiveTimeMs);
 
-        numFramesIn++;
-
-        if (decodeUnitLength > nextInputBuffer.limit() - nextInputBuffer.position()) {
-            IllegalArgumentException exception = new IllegalArgumentException(
-                    "Decode unit length "+decodeUnitLength+" too large for input buffer "+nextInputBuffer.limit());
+        try {
+            return decodeUnitProcessor.submitDecodeUnit(decodeUnitData, decodeUnitLength, decodeUnitType,
+                    frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+        } catch (IllegalArgumentException e) {
+            // The decode unit was too large for the input buffer
             if (!reportedCrash) {
                 reportedCrash = true;
-                crashListener.notifyCrash(exception);
+                crashListener.notifyCrash(e);
             }
-            throw new RendererException(this, exception);
+            throw new RendererException(this, e);
         }
+    }
 
-        // Copy data from our buffer list into the input buffer
-        nextInputBuffer.put(decodeUnitData, 0, decodeUnitLength);
+    private void capturePerfOverlayState(PerfOverlaySnapshot snapshot) {
+        snapshot.timestamp = SystemClock.uptimeMillis();
+        snapshot.hostFrameIntervalUs = renderScheduler.getHostFrameIntervalUs();
+        if (adaptiveFramePacer != null) {
+            snapshot.vsyncAligned = adaptiveFramePacer.isVsyncAligned();
+            snapshot.pacerJitterPercent = adaptiveFramePacer.getJitterPercent();
+            snapshot.pacerNearVsyncPercent = adaptiveFramePacer.getNearVsyncPercent();
+            snapshot.pacerModeSwitches = adaptiveFramePacer.getModeSwitches();
+        }
+        if (jitterBuffer != null) {
+            snapshot.jitterBufferTargetDepthUs = jitterBuffer.getTargetDepthUs();
+            snapshot.jitterBufferJitterUs = jitterBuffer.getJitterUs();
+        }
+        snapshot.decoderStalls = watchdog.getStalls();
+        snapshot.decoderRecoveries = watchdog.getRecoveries();
+        snapshot.averageRecoveryTimeMs = watchdog.getAverageRecoveryTimeMs();
+        snapshot.maxRecoveryTimeMs = watchdog.getMaxRecoveryTimeMs();
+    }
 
-        if (!queueNextInputBuffer(timestampUs, codecFlags)) {
-            return MoonBridge.DR_NEED_IDR;
-        }
+    // Called on the UI thread
+    private String formatPerfOverlay(PerfOverlaySnapshot snapshot) {
+        VideoStats lastTwo = snapshot.lastTwo;
+        VideoStatsFps fps = lastTwo.getFps(snapshot.timestamp);
+        String decoder;
 
-        return MoonBridge.DR_OK;
+        if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
+            decoder = avcDecoder.name;
+        } else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
+            decoder = hevcDecoder.name;
+        } else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_AV1) != 0) {
+            decoder = av1Decoder.name;
+        } else {
+            decoder = "(unknown)";
+        }
+        if (asyncMode) {
+            decoder += " (async)";
+        }
+
+        float decodeTimeMs = (float)lastTwo.decoderTimeMs / lastTwo.totalFramesReceived;
+        long rttInfo = MoonBridge.getEstimatedRttInfo();
+        StringBuilder sb = new StringBuilder();
+        sb.append(context.getString(R.string.perf_overlay_streamdetails, initialWidth + "x" + initialHeight, fps.totalFps)).append('\n');
+        sb.append(context.getString(R.string.perf_overlay_decoder, decoder)).append('\n');
+        sb.append(context.getString(R.string.perf_overlay_incomingfps, fps.receivedFps)).append('\n');
+        sb.append(context.getString(R.string.perf_overlay_renderingfps, fps.renderedFps)).append('\n');
+        sb.append(context.getString(R.string.perf_overlay_netdrops,
+                (float)lastTwo.framesLost / lastTwo.totalFrames * 100)).append('\n');
+        sb.append(context.getString(R.string.perf_overlay_netlatency,
+                (int)(rttInfo >> 32), (int)rttInfo)).append('\n');
+        if (lastTwo.framesWithHostProcessingLatency > 0) {
+            sb.append(context.getString(R.string.perf_overlay_hostprocessinglatency,
+                    (float)lastTwo.minHostProcessingLatency / 10,
+                    (float)lastTwo.maxHostProcessingLatency / 10,
+                    (float)lastTwo.totalHostProcessingLatency / 10 / lastTwo.framesWithHostProcessingLatency)).append('\n');
+        }
+        sb.append(context.getString(R.string.perf_overlay_dectime, decodeTimeMs));
+        appendLatencyDistribution(sb, R.string.perf_overlay_hostprocessinglatency_dist, lastTwo.hostProcessingLatency);
+        appendLatencyDistribution(sb, R.string.perf_overlay_netqueue_dist, lastTwo.networkLatency);
+        appendLatencyDistribution(sb, R.string.perf_overlay_dectime_dist, lastTwo.decoderLatency);
+        appendLatencyDistribution(sb, R.string.perf_overlay_rendertime_dist, lastTwo.renderLatency);
+        int framesPaced = lastTwo.framesPacedEarly + lastTwo.framesPacedOnTime +
+                lastTwo.framesPacedLate + lastTwo.framesPacedDropped;
+        if (framesPaced > 0) {
+            sb.append('\n').append(context.getString(R.string.perf_overlay_vsync_pacing,
+                    lastTwo.framesPacedEarly, lastTwo.framesPacedOnTime,
+                    lastTwo.framesPacedLate, lastTwo.framesPacedDropped,
+                    snapshot.hostFrameIntervalUs / 1000.0f));
+        }
+        if (adaptiveFramePacer != null) {
+            sb.append('\n').append(context.getString(R.string.perf_overlay_adaptive_pacing,
+                    context.getString(snapshot.vsyncAligned ?
+                            R.string.perf_overlay_adaptive_pacing_vsync : R.string.perf_overlay_adaptive_pacing_immediate),
+                    snapshot.pacerJitterPercent, snapshot.pacerNearVsyncPercent,
+                    snapshot.pacerModeSwitches));
+        }
+        if (jitterBuffer != null && lastTwo.jitterBufferOccupancySamples > 0) {
+            sb.append('\n').append(context.getString(R.string.perf_overlay_jitter_buffer,
+                    snapshot.jitterBufferTargetDepthUs / 1000.0f, snapshot.jitterBufferJitterUs / 1000.0f,
+                    (float)lastTwo.jitterBufferOccupancySum / lastTwo.jitterBufferOccupancySamples,
+                    lastTwo.jitterBufferUnderruns, lastTwo.jitterBufferOverruns));
+        }
+        if (snapshot.decoderStalls > 0) {
+            sb.append('\n').append(context.getString(R.string.perf_overlay_decoder_stalls,
+                    snapshot.decoderStalls, snapshot.decoderRecoveries,
+                    snapshot.averageRecoveryTimeMs, snapshot.maxRecoveryTimeMs));
+        }
+        return sb.toString();
     }
 
-    private boolean replaySps() {
-        if (!fetchNextInputBuffer()) {
-            return false;
+    private void appendLatencyDistribution(StringBuilder sb, int formatResId, LatencyHistogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return;
         }
 
-        // Write the Annex B header
-        nextInputBuffer.put(new byte[]{0x00, 0x00, 0x00, 0x01, 0x67});
-
-        // Switch the H264 profile back to high
-        savedSps.profileIdc = 100;
-
-        // Patch the SPS constraint flags
-        doProfileSpecificSpsPatching(savedSps);
-
-        // The H264Utils.writeSPS function safely handles
-        // Annex B NALUs (including NALUs with escape sequences)
-        ByteBuffer escapedNalu = H264Utils.writeSPS(savedSps, 128);
-        nextInputBuffer.put(escapedNalu);
-
-        // No need for the SPS anymore
-        savedSps = null;
-
-        // Queue the new SPS
-        return queueNextInputBuffer(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        sb.append('\n').append(context.getString(formatResId,
+                histogram.getPercentileUs(50) / 1000.0f,
+                histogram.getPercentileUs(95) / 1000.0f,
+                histogram.getPercentileUs(99) / 1000.0f,
+                histogram.getMaxUs() / 1000.0f));
     }
 
     @Override
@@ -1803,6 +2048,17 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return capabilities;
     }
 
+    // Typical time from the host capturing a frame to us rendering it, leaving out the
+    // network transit time since audio takes just as long to get here
+    private static int getVideoPathLatencyMs(VideoStats stats) {
+        long latencyUs = stats.networkLatency.getPercentileUs(50) + stats.renderLatency.getPercentileUs(50);
+        if (stats.framesWithHostProcessingLatency > 0) {
+            // Host processing latency is in units of 0.1 ms
+            latencyUs += (long) stats.totalHostProcessingLatency * 100 / stats.framesWithHostProcessingLatency;
+        }
+        return (int) (latencyUs / 1000);
+    }
+
     public int getAverageEndToEndLatency() {
         if (globalVideoStats.totalFramesReceived == 0) {
             return 0;
@@ -1851,16 +2107,16 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         private String generateText(MediaCodecDecoderRenderer renderer, Exception originalException) {
             String str;
 
-            if (renderer.numVpsIn == 0 && renderer.numSpsIn == 0 && renderer.numPpsIn == 0) {
+            if (renderer.decodeUnitProcessor.numVpsIn == 0 && renderer.decodeUnitProcessor.numSpsIn == 0 && renderer.decodeUnitProcessor.numPpsIn == 0) {
                 str = "PreSPSError";
             }
-            else if (renderer.numSpsIn > 0 && renderer.numPpsIn == 0) {
+            else if (renderer.decodeUnitProcessor.numSpsIn > 0 && renderer.decodeUnitProcessor.numPpsIn == 0) {
                 str = "PrePPSError";
             }
-            else if (renderer.numPpsIn > 0 && renderer.numFramesIn == 0) {
+            else if (renderer.decodeUnitProcessor.numPpsIn > 0 && renderer.decodeUnitProcessor.numFramesIn == 0) {
                 str = "PreIFrameError";
             }
-            else if (renderer.numFramesIn > 0 && renderer.outputFormat == null) {
+            else if (renderer.decodeUnitProcessor.numFramesIn > 0 && renderer.outputFormat == null) {
                 str = "PreOutputConfigError";
             }
             else if (renderer.outputFormat != null && renderer.numFramesOut == 0) {
@@ -1874,39 +2130,39 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
 
             str += "Format: "+String.format("%x", renderer.videoFormat)+DELIMITER;
-            str += "AVC Decoder: "+((renderer.avcDecoder != null) ? renderer.avcDecoder.getName():"(none)")+DELIMITER;
-            str += "HEVC Decoder: "+((renderer.hevcDecoder != null) ? renderer.hevcDecoder.getName():"(none)")+DELIMITER;
-            str += "AV1 Decoder: "+((renderer.av1Decoder != null) ? renderer.av1Decoder.getName():"(none)")+DELIMITER;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && renderer.avcDecoder != null) {
-                Range<Integer> avcWidthRange = renderer.avcDecoder.getCapabilitiesForType("video/avc").getVideoCapabilities().getSupportedWidths();
+            str += "AVC Decoder: "+((renderer.avcDecoder != null) ? renderer.avcDecoder.name:"(none)")+DELIMITER;
+            str += "HEVC Decoder: "+((renderer.hevcDecoder != null) ? renderer.hevcDecoder.name:"(none)")+DELIMITER;
+            str += "AV1 Decoder: "+((renderer.av1Decoder != null) ? renderer.av1Decoder.name:"(none)")+DELIMITER;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && renderer.avcDecoder != null && renderer.avcDecoder.getCodecInfo() != null) {
+                Range<Integer> avcWidthRange = renderer.avcDecoder.getCodecInfo().getCapabilitiesForType("video/avc").getVideoCapabilities().getSupportedWidths();
                 str += "AVC supported width range: "+avcWidthRange+DELIMITER;
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                     try {
-                        Range<Double> avcFpsRange = renderer.avcDecoder.getCapabilitiesForType("video/avc").getVideoCapabilities().getAchievableFrameRatesFor(renderer.initialWidth, renderer.initialHeight);
+                        Range<Double> avcFpsRange = renderer.avcDecoder.getCodecInfo().getCapabilitiesForType("video/avc").getVideoCapabilities().getAchievableFrameRatesFor(renderer.initialWidth, renderer.initialHeight);
                         str += "AVC achievable FPS range: "+avcFpsRange+DELIMITER;
                     } catch (IllegalArgumentException e) {
                         str += "AVC achievable FPS range: UNSUPPORTED!"+DELIMITER;
                     }
                 }
             }
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && renderer.hevcDecoder != null) {
-                Range<Integer> hevcWidthRange = renderer.hevcDecoder.getCapabilitiesForType("video/hevc").getVideoCapabilities().getSupportedWidths();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && renderer.hevcDecoder != null && renderer.hevcDecoder.getCodecInfo() != null) {
+                Range<Integer> hevcWidthRange = renderer.hevcDecoder.getCodecInfo().getCapabilitiesForType("video/hevc").getVideoCapabilities().getSupportedWidths();
                 str += "HEVC supported width range: "+hevcWidthRange+DELIMITER;
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                     try {
-                        Range<Double> hevcFpsRange = renderer.hevcDecoder.getCapabilitiesForType("video/hevc").getVideoCapabilities().getAchievableFrameRatesFor(renderer.initialWidth, renderer.initialHeight);
+                        Range<Double> hevcFpsRange = renderer.hevcDecoder.getCodecInfo().getCapabilitiesForType("video/hevc").getVideoCapabilities().getAchievableFrameRatesFor(renderer.initialWidth, renderer.initialHeight);
                         str += "HEVC achievable FPS range: " + hevcFpsRange + DELIMITER;
                     } catch (IllegalArgumentException e) {
                         str += "HEVC achievable FPS range: UNSUPPORTED!"+DELIMITER;
                     }
                 }
             }
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && renderer.av1Decoder != null) {
-                Range<Integer> av1WidthRange = renderer.av1Decoder.getCapabilitiesForType("video/av01").getVideoCapabilities().getSupportedWidths();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && renderer.av1Decoder != null && renderer.av1Decoder.getCodecInfo() != null) {
+                Range<Integer> av1WidthRange = renderer.av1Decoder.getCodecInfo().getCapabilitiesForType("video/av01").getVideoCapabilities().getSupportedWidths();
                 str += "AV1 supported width range: "+av1WidthRange+DELIMITER;
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                     try {
-                        Range<Double> av1FpsRange = renderer.av1Decoder.getCapabilitiesForType("video/av01").getVideoCapabilities().getAchievableFrameRatesFor(renderer.initialWidth, renderer.initialHeight);
+                        Range<Double> av1FpsRange = renderer.av1Decoder.getCodecInfo().getCapabilitiesForType("video/av01").getVideoCapabilities().getAchievableFrameRatesFor(renderer.initialWidth, renderer.initialHeight);
                         str += "AV1 achievable FPS range: " + av1FpsRange + DELIMITER;
                     } catch (IllegalArgumentException e) {
                         str += "AV1 achievable FPS range: UNSUPPORTED!"+DELIMITER;
@@ -1938,17 +2194,39 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             str += "RFI active: "+renderer.refFrameInvalidationActive+DELIMITER;
             str += "Using modern SPS patching: "+(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)+DELIMITER;
             str += "Fused IDR frames: "+renderer.fusedIdrFrame+DELIMITER;
+            str += "Zero-copy submission: "+renderer.supportsZeroCopySubmission()+DELIMITER;
             str += "Video dimensions: "+renderer.initialWidth+"x"+renderer.initialHeight+DELIMITER;
             str += "FPS target: "+renderer.refreshRate+DELIMITER;
             str += "Bitrate: "+renderer.prefs.bitrate+" Kbps"+DELIMITER;
-            str += "CSD stats: "+renderer.numVpsIn+", "+renderer.numSpsIn+", "+renderer.numPpsIn+DELIMITER;
-            str += "Frames in-out: "+renderer.numFramesIn+", "+renderer.numFramesOut+DELIMITER;
+            str += "CSD stats: "+renderer.decodeUnitProcessor.numVpsIn+", "+renderer.decodeUnitProcessor.numSpsIn+", "+renderer.decodeUnitProcessor.numPpsIn+
+                    " ("+renderer.decodeUnitProcessor.numCsdSubmissionsSkipped+" unchanged)"+DELIMITER;
+            str += "Frames in-out: "+renderer.decodeUnitProcessor.numFramesIn+", "+renderer.numFramesOut+DELIMITER;
             str += "Total frames received: "+renderer.globalVideoStats.totalFramesReceived+DELIMITER;
             str += "Total frames rendered: "+renderer.globalVideoStats.totalFramesRendered+DELIMITER;
             str += "Frame losses: "+renderer.globalVideoStats.framesLost+" in "+renderer.globalVideoStats.frameLossEvents+" loss events"+DELIMITER;
             str += "Average end-to-end client latency: "+renderer.getAverageEndToEndLatency()+"ms"+DELIMITER;
             str += "Average hardware decoder latency: "+renderer.getAverageDecoderLatency()+"ms"+DELIMITER;
+            if (renderer.avSyncMonitor != null && renderer.avSyncMonitor.hasMeasurements()) {
+                str += "A/V offset: "+renderer.avSyncMonitor.getAverageOffsetMs()+" ms average, "+
+                        renderer.avSyncMonitor.getMaxAbsOffsetMs()+" ms max, "+
+                        renderer.avSyncMonitor.getSyncDelayMs()+" ms audio delay"+DELIMITER;
+            }
             str += "Frame pacing mode: "+renderer.prefs.framePacing+DELIMITER;
+            if (renderer.jitterBuffer != null) {
+                str += "Jitter buffer: "+renderer.prefs.jitterBufferMaxDepthMs+" ms max, "+
+                        renderer.globalVideoStats.jitterBufferUnderruns+" underruns, "+
+                        renderer.globalVideoStats.jitterBufferOverruns+" overruns"+DELIMITER;
+            }
+            str += "Async decoder mode: "+renderer.asyncMode+DELIMITER;
+            if (renderer.watchdog != null) {
+                str += "Decoder stalls: "+renderer.watchdog.getStalls()+" ("+renderer.watchdog.getRecoveries()+" recovered, "+
+                        renderer.watchdog.getMaxRecoveryTimeMs()+" ms max recovery time, "+
+                        renderer.watchdog.getOutputTimeouts()+" output timeouts)"+DELIMITER;
+            }
+            if (renderer.adaptiveFramePacer != null) {
+                str += "Adaptive frame pacing: "+renderer.adaptiveFramePacer.getMode()+" after "+
+                        renderer.adaptiveFramePacer.getModeSwitches()+" switches"+DELIMITER;
+            }
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 if (originalException instanceof CodecException) {
@@ -3,6 +3,7 @@ package com.limelight.binding.video;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -304,7 +305,7 @@ public class MediaCodecHelper {
         return getAdrenoRendererModelNumber(glRenderer) >= 400;
     }
 
-    public static void initialize(Context context, String glRenderer) {
+    public static synchronized void initialize(Context context, String glRenderer) {
         if (initialized) {
             return;
         }
@@ -432,7 +433,7 @@ public class MediaCodecHelper {
         return false;
     }
 
-    private static boolean decoderSupportsAndroidRLowLatency(MediaCodecInfo decoderInfo, String mimeType) {
+    static boolean decoderSupportsAndroidRLowLatency(MediaCodecInfo decoderInfo, String mimeType) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             try {
                 if (decoderInfo.getCapabilitiesForType(mimeType).isFeatureSupported(CodecCapabilities.FEATURE_LowLatency)) {
@@ -492,7 +493,7 @@ public class MediaCodecHelper {
                 !isAdreno620;
     }
 
-    public static boolean setDecoderLowLatencyOptions(MediaFormat videoFormat, MediaCodecInfo decoderInfo, int tryNumber) {
+    public static boolean setDecoderLowLatencyOptions(MediaFormat videoFormat, String decoderName, boolean supportsLowLatencyFeature, int tryNumber) {
         // Options here should be tried in the order of most to least risky. The decoder will use
         // the first MediaFormat that doesn't fail in configure().
 
@@ -505,7 +506,8 @@ public class MediaCodecHelper {
 
             // If this decoder officially supports FEATURE_LowLatency, we will just use that alone
             // for try 0. Otherwise, we'll include it as best effort with other options.
-            if (decoderSupportsAndroidRLowLatency(decoderInfo, videoFormat.getString(MediaFormat.KEY_MIME))) {
+            if (supportsLowLatencyFeature) {
+                LimeLog.info("Low latency decoding mode supported (FEATURE_LowLatency)");
                 return true;
             }
         }
@@ -530,7 +532,7 @@ public class MediaCodecHelper {
         }
 
         if (tryNumber < 3) {
-            if (MediaCodecHelper.decoderSupportsMaxOperatingRate(decoderInfo.getName())) {
+            if (MediaCodecHelper.decoderSupportsMaxOperatingRate(decoderName)) {
                 videoFormat.setInteger(MediaFormat.KEY_OPERATING_RATE, Short.MAX_VALUE);
                 setNewOption = true;
             }
@@ -550,7 +552,7 @@ public class MediaCodecHelper {
             // Try vendor-specific low latency options
             //
             // NOTE: Update knownVendorLowLatencyOptions if you modify this code!
-            if (isDecoderInList(qualcommDecoderPrefixes, decoderInfo.getName())) {
+            if (isDecoderInList(qualcommDecoderPrefixes, decoderName)) {
                 // Examples of Qualcomm's vendor extensions for Snapdragon 845:
                 // https://cs.android.com/android/platform/superproject/+/master:hardware/qcom/sdm845/media/mm-video-v4l2/vidc/vdec/src/omx_vdec_extensions.hpp
                 // https://cs.android.com/android/_/android/platform/hardware/qcom/sm8150/media/+/0621ceb1c1b19564999db8293574a0e12952ff6c
@@ -565,7 +567,7 @@ public class MediaCodecHelper {
                     setNewOption = true;
                 }
             }
-            else if (isDecoderInList(kirinDecoderPrefixes, decoderInfo.getName())) {
+            else if (isDecoderInList(kirinDecoderPrefixes, decoderName)) {
                 if (tryNumber < 4) {
                     // Kirin low latency options
                     // https://developer.huawei.com/consumer/cn/forum/topic/0202325564295980115
@@ -574,14 +576,14 @@ public class MediaCodecHelper {
                     setNewOption = true;
                 }
             }
-            else if (isDecoderInList(exynosDecoderPrefixes, decoderInfo.getName())) {
+            else if (isDecoderInList(exynosDecoderPrefixes, decoderName)) {
                 if (tryNumber < 4) {
                     // Exynos low latency option for H.264 decoder
                     videoFormat.setInteger("vendor.rtc-ext-dec-low-latency.enable", 1);
                     setNewOption = true;
                 }
             }
-            else if (isDecoderInList(amlogicDecoderPrefixes, decoderInfo.getName())) {
+            else if (isDecoderInList(amlogicDecoderPrefixes, decoderName)) {
                 if (tryNumber < 4) {
                     // Amlogic low latency vendor extension
                     // https://github.com/codewalkerster/android_vendor_amlogic_common_prebuilt_libstagefrighthw/commit/41fefc4e035c476d58491324a5fe7666bfc2989e
@@ -845,6 +847,57 @@ public class MediaCodecHelper {
         return false;
     }
     
+    public static MediaCodecInfo findDecoderByName(String decoderName) {
+        for (MediaCodecInfo codecInfo : getMediaCodecList()) {
+            // Skip encoders
+            if (codecInfo.isEncoder()) {
+                continue;
+            }
+
+            if (codecInfo.getName().equalsIgnoreCase(decoderName)) {
+                return codecInfo;
+            }
+        }
+
+        return null;
+    }
+
+    // Returns every hardware decoder we'd consider using for the specified format
+    public static List<MediaCodecInfo> findDecoderCandidates(String mimeType) {
+        ArrayList<MediaCodecInfo> candidates = new ArrayList<>();
+        for (MediaCodecInfo codecInfo : getMediaCodecList()) {
+            // Skip encoders
+            if (codecInfo.isEncoder()) {
+                continue;
+            }
+
+            // Skip compatibility aliases on Q+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                if (codecInfo.isAlias()) {
+                    continue;
+                }
+            }
+
+            for (String mime : codecInfo.getSupportedTypes()) {
+                if (mime.equalsIgnoreCase(mimeType)) {
+                    // Skip blacklisted codecs and software decoders that aren't caught by
+                    // isSoftwareOnly() on older versions of Android
+                    if (isCodecBlacklisted(codecInfo) ||
+                            codecInfo.getName().contains("sw") ||
+                            stringContainsIgnoreCase(codecInfo.getName(), "omx.google.") ||
+                            stringContainsIgnoreCase(codecInfo.getName(), "c2.android.")) {
+                        continue;
+                    }
+
+                    candidates.add(codecInfo);
+                    break;
+                }
+            }
+        }
+
+        return candidates;
+    }
+
     public static MediaCodecInfo findFirstDecoder(String mimeType) {
         for (MediaCodecInfo codecInfo : getMediaCodecList()) {
             // Skip encoders
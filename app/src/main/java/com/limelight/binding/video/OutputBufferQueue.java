@@ -0,0 +1,92 @@
+package com.limelight.binding.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A bounded, allocation-free queue of output buffer indices with exactly one producer (the
+// renderer thread) and any number of consumers. The Choreographer callback consumes from it,
+// and so does the renderer thread when adaptive frame pacing leaves vsync-aligned mode.
+//
+// When the queue is full, the producer discards the oldest entry to make room for the new one.
+// Since that makes the producer a consumer of the head too, every consumer claims entries from
+// the head using compareAndSet(). The head and tail only ever increase, so a consumer that read
+// a stale slot always fails its compareAndSet(). The tail is only ever written by the producer.
+class OutputBufferQueue {
+    static final int EMPTY = -1;
+
+    private final int[] buffer;
+    private final int mask;
+    private final int limit;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    OutputBufferQueue(int limit) {
+        int capacity = Integer.highestOneBit(Math.max(limit, 1));
+        if (capacity < limit) {
+            capacity <<= 1;
+        }
+
+        this.buffer = new int[capacity];
+        this.mask = capacity - 1;
+        this.limit = limit;
+    }
+
+    // Producer only. Returns the index that was discarded to make room or EMPTY if none was.
+    int add(int outputBufferIndex) {
+        int discarded = EMPTY;
+        long currentTail = tail.get();
+
+        // Discard the oldest buffer if we've reached our limit. If the consumer beats us to
+        // the oldest entry, there is room now and we don't need to discard anything.
+        long currentHead = head.get();
+        if (currentTail - currentHead >= limit) {
+            int oldest = buffer[(int) currentHead & mask];
+            if (head.compareAndSet(currentHead, currentHead + 1)) {
+                discarded = oldest;
+            }
+        }
+
+        buffer[(int) currentTail & mask] = outputBufferIndex;
+        tail.lazySet(currentTail + 1);
+
+        return discarded;
+    }
+
+    // Any thread. Returns the oldest index or EMPTY if the queue is empty.
+    int poll() {
+        for (;;) {
+            long currentHead = head.get();
+            if (currentHead == tail.get()) {
+                return EMPTY;
+            }
+
+            // The slot can't be reused by the producer until the head moves past it,
+            // so if our CAS succeeds, the value we read is the one we claimed.
+            int value = buffer[(int) currentHead & mask];
+            if (head.compareAndSet(currentHead, currentHead + 1)) {
+                return value;
+            }
+        }
+    }
+
+    // Any thread. Returns the oldest index without removing it or EMPTY if the queue is
+    // empty. The producer or another consumer may take it before this consumer polls, in
+    // which case poll() returns a newer index or EMPTY.
+    int peek() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return EMPTY;
+        }
+        return buffer[(int) currentHead & mask];
+    }
+
+    // Approximate number of queued indices (exact while no other thread is using the queue)
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    // Must only be called while the producer and all consumers are quiesced
+    void clear() {
+        head.set(tail.get());
+    }
+}
@@ -0,0 +1,152 @@
+package com.limelight.binding.video;
+
+import java.nio.ByteBuffer;
+
+import com.limelight.LimeLog;
+
+// Holds the VPS, SPS, and PPS NALUs of the current IDR frame. The buffers are reused from one
+// IDR frame to the next and only grow when a parameter set doesn't fit, so receiving parameter
+// sets doesn't allocate during a stream. A copy of the parameter sets last given to the decoder
+// is kept so DecodeUnitProcessor can tell if they changed.
+class ParameterSetStore {
+    static final int TYPE_VPS = 0;
+    static final int TYPE_SPS = 1;
+    static final int TYPE_PPS = 2;
+    private static final int TYPE_COUNT = 3;
+
+    // Hosts send one of each per IDR frame, but leave room for a few extra
+    private static final int MAX_SETS_PER_TYPE = 4;
+    private static final int INITIAL_SET_CAPACITY = 64;
+
+    private final byte[][][] buffers = new byte[TYPE_COUNT][MAX_SETS_PER_TYPE][];
+    private final int[][] lengths = new int[TYPE_COUNT][MAX_SETS_PER_TYPE];
+    private final int[] counts = new int[TYPE_COUNT];
+
+    // The parameter sets last given to the decoder, in put() order
+    private byte[] submitted;
+    private int submittedLength;
+    private int submittedHash;
+
+    private int allocations;
+
+    void clear() {
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            counts[type] = 0;
+        }
+    }
+
+    // Returns a buffer of at least the specified length to write the next parameter set of this
+    // type into. The parameter set is saved when commit() is called. Returns null if we already
+    // have as many parameter sets of this type as we can hold.
+    byte[] reserve(int type, int length) {
+        int index = counts[type];
+        if (index == MAX_SETS_PER_TYPE) {
+            LimeLog.warning("Dropping extra parameter set of type "+type);
+            return null;
+        }
+
+        byte[] buffer = buffers[type][index];
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, INITIAL_SET_CAPACITY)];
+            buffers[type][index] = buffer;
+            allocations++;
+        }
+
+        return buffer;
+    }
+
+    void commit(int type, int length) {
+        lengths[type][counts[type]++] = length;
+    }
+
+    void add(int type, byte[] data, int length) {
+        byte[] buffer = reserve(type, length);
+        if (buffer != null) {
+            System.arraycopy(data, 0, buffer, 0, length);
+            commit(type, length);
+        }
+    }
+
+    boolean isEmpty() {
+        return counts[TYPE_VPS] == 0 && counts[TYPE_SPS] == 0 && counts[TYPE_PPS] == 0;
+    }
+
+    int getTotalLength() {
+        int totalLength = 0;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            for (int i = 0; i < counts[type]; i++) {
+                totalLength += lengths[type][i];
+            }
+        }
+        return totalLength;
+    }
+
+    // Writes all parameter sets in the order decoders expect (VPS, SPS, then PPS)
+    void put(ByteBuffer buffer) {
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            for (int i = 0; i < counts[type]; i++) {
+                buffer.put(buffers[type][i], 0, lengths[type][i]);
+            }
+        }
+    }
+
+    int hash() {
+        int hash = 1;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            hash = 31 * hash + counts[type];
+            for (int i = 0; i < counts[type]; i++) {
+                byte[] buffer = buffers[type][i];
+                for (int j = 0; j < lengths[type][i]; j++) {
+                    hash = 31 * hash + buffer[j];
+                }
+            }
+        }
+        return hash;
+    }
+
+    // Remembers the current parameter sets as the ones the decoder has
+    void markSubmitted() {
+        int length = getTotalLength();
+        if (submitted == null || submitted.length < length) {
+            submitted = new byte[Math.max(length, INITIAL_SET_CAPACITY)];
+            allocations++;
+        }
+
+        int offset = 0;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            for (int i = 0; i < counts[type]; i++) {
+                System.arraycopy(buffers[type][i], 0, submitted, offset, lengths[type][i]);
+                offset += lengths[type][i];
+            }
+        }
+        submittedLength = length;
+        submittedHash = hash();
+    }
+
+    // Returns true if the current parameter sets are byte for byte the ones last passed to
+    // markSubmitted(). The hash only lets us skip the comparison when they obviously differ.
+    boolean matchesSubmitted() {
+        if (submitted == null || getTotalLength() != submittedLength || hash() != submittedHash) {
+            return false;
+        }
+
+        int offset = 0;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            for (int i = 0; i < counts[type]; i++) {
+                byte[] buffer = buffers[type][i];
+                for (int j = 0; j < lengths[type][i]; j++) {
+                    if (buffer[j] != submitted[offset++]) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // Number of buffers allocated so far. This should stop increasing once the first
+    // IDR frame of a stream has been received.
+    int getAllocationCount() {
+        return allocations;
+    }
+}
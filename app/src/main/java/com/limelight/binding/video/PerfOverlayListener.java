@@ -1,5 +1,6 @@
 package com.limelight.binding.video;
 
 public interface PerfOverlayListener {
+    // Called on the UI thread
     void onPerfUpdate(final String text);
 }
@@ -0,0 +1,98 @@
+package com.limelight.binding.video;
+
+import com.limelight.LimeLog;
+
+// Decides when the stream settings chosen at launch are more than the decoder or network
+// can sustain, and when there's enough headroom to go back up. The host can't change the
+// resolution or bitrate of a running stream, so acting on this means reconnecting with
+// new settings. That's disruptive, so we only ask after problems persist for several
+// seconds, and only ask to go back up after a long stretch without any.
+//
+// Called on the video input thread once per stats window (about a second).
+class StreamQualityController {
+    // Windows at the start of the stream that are ignored while the decoder warms up
+    private static final int WARMUP_WINDOWS = 10;
+
+    // Consecutive bad windows before asking for lower settings
+    private static final int OVERLOAD_WINDOWS = 5;
+
+    // Consecutive good windows before asking for higher settings
+    private static final int HEADROOM_WINDOWS = 60;
+
+    // Average decode time as a percentage of the frame interval
+    private static final int DECODE_OVERLOAD_PERCENT = 85;
+    private static final int DECODE_HEADROOM_PERCENT = 50;
+
+    // Percentage of frames lost in a window
+    private static final int LOSS_CONGESTED_PERCENT = 5;
+    private static final int LOSS_HEADROOM_PERCENT = 1;
+
+    // RTT above the lowest we've seen this stream, which means packets are queuing somewhere
+    private static final int RTT_CONGESTED_MS = 50;
+    private static final int RTT_HEADROOM_MS = 15;
+
+    private final StreamQualityListener listener;
+    private final float frameIntervalMs;
+    private final int minFramesPerWindow;
+
+    private int windows;
+    private int minRttMs = Integer.MAX_VALUE;
+    private int decoderOverloadedWindows;
+    private int networkCongestedWindows;
+    private int headroomWindows;
+    private boolean changeRequested;
+
+    StreamQualityController(int streamFrameRate, StreamQualityListener listener) {
+        this.listener = listener;
+        this.frameIntervalMs = 1000.0f / Math.max(streamFrameRate, 1);
+
+        // The host may stop sending frames when nothing on screen changes. Those windows
+        // don't tell us anything about the decoder or network.
+        this.minFramesPerWindow = Math.max(streamFrameRate / 4, 1);
+    }
+
+    // rttInfo is from MoonBridge.getEstimatedRttInfo()
+    void onStatsWindow(VideoStats window, long rttInfo) {
+        if (changeRequested || ++windows <= WARMUP_WINDOWS ||
+                window.totalFramesReceived < minFramesPerWindow) {
+            return;
+        }
+
+        float decodeTimeMs = (float)window.decoderTimeMs / window.totalFramesReceived;
+        int lossPercent = window.framesLost * 100 / (window.totalFramesReceived + window.framesLost);
+
+        // The RTT isn't known until the host has answered a few pings
+        int rttMs = (int)(rttInfo >> 32);
+        int queuingMs = 0;
+        if (rttMs > 0) {
+            minRttMs = Math.min(minRttMs, rttMs);
+            queuingMs = rttMs - minRttMs;
+        }
+
+        boolean decoderOverloaded = decodeTimeMs > frameIntervalMs * DECODE_OVERLOAD_PERCENT / 100;
+        boolean networkCongested = lossPercent >= LOSS_CONGESTED_PERCENT || queuingMs > RTT_CONGESTED_MS;
+        boolean headroom = decodeTimeMs < frameIntervalMs * DECODE_HEADROOM_PERCENT / 100 &&
+                lossPercent < LOSS_HEADROOM_PERCENT && queuingMs < RTT_HEADROOM_MS;
+
+        decoderOverloadedWindows = decoderOverloaded ? decoderOverloadedWindows + 1 : 0;
+        networkCongestedWindows = networkCongested ? networkCongestedWindows + 1 : 0;
+        headroomWindows = headroom ? headroomWindows + 1 : 0;
+
+        // A decoder that can't keep up also makes frames back up, so deal with it first
+        if (decoderOverloadedWindows >= OVERLOAD_WINDOWS) {
+            LimeLog.warning("Decoder overloaded: "+decodeTimeMs+" ms per frame");
+            decoderOverloadedWindows = 0;
+            changeRequested = listener.onDecoderOverloaded();
+        }
+        else if (networkCongestedWindows >= OVERLOAD_WINDOWS) {
+            LimeLog.warning("Network congested: "+lossPercent+"% frame loss, "+queuingMs+" ms queuing");
+            networkCongestedWindows = 0;
+            changeRequested = listener.onNetworkCongested();
+        }
+        else if (headroomWindows >= HEADROOM_WINDOWS) {
+            LimeLog.info("Decoder and network have headroom: "+decodeTimeMs+" ms per frame");
+            headroomWindows = 0;
+            changeRequested = listener.onHeadroomAvailable();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.limelight.binding.video;
+
+// Called on the video input thread when the stream settings no longer fit what the decoder
+// or network can handle. Returns true if the listener is acting on the request.
+public interface StreamQualityListener {
+    boolean onDecoderOverloaded();
+    boolean onNetworkCongested();
+    boolean onHeadroomAvailable();
+}
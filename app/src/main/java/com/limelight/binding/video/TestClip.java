@@ -0,0 +1,279 @@
+package com.limelight.binding.video;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.limelight.LimeLog;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A short synthetic clip encoded with the device's own encoder, for measuring decoders without
+// shipping a test clip for every format and resolution. Like a stream, it's a single IDR frame
+// followed by P-frames.
+class TestClip {
+    private static final int MIN_ENCODE_TIMEOUT_MS = 10000;
+    private static final int ENCODE_TIMEOUT_MS_PER_FRAME = 100;
+    private static final int INPUT_TIMEOUT_US = 20000;
+    private static final int DRAIN_TIMEOUT_MS = 500;
+
+    final int width;
+    final int height;
+    final int frameRate;
+    byte[] codecConfig;
+    final ArrayList<byte[]> frames = new ArrayList<>();
+    private long totalBytes;
+
+    private TestClip(int width, int height, int frameRate) {
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+    }
+
+    long getFrameIntervalUs() {
+        return 1000000 / frameRate;
+    }
+
+    // The bitrate the encoder actually produced, which may be well below what we asked for
+    int getBitrateKbps() {
+        return frames.isEmpty() ? 0 : (int) (totalBytes * 8 * frameRate / frames.size() / 1000);
+    }
+
+    // Returns null if the encoder failed, doesn't exist, or cancelled was set. If detailed is set,
+    // the frames have noise on top of the gradient, so the encoder has to spend something close
+    // to the requested bitrate like it would on real content.
+    static TestClip encode(String mimeType, int width, int height, int frameRate, int bitrate,
+                           int frameCount, boolean detailed, AtomicBoolean cancelled) {
+        MediaCodec encoder = null;
+        try {
+            encoder = MediaCodec.createEncoderByType(mimeType);
+
+            MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+
+            // Like a stream, we want a single IDR frame followed by P-frames
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 60);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+            }
+
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            TestClip clip = new TestClip(width, height, frameRate);
+            long frameIntervalUs = clip.getFrameIntervalUs();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int framesIn = 0;
+            boolean inputDone = false;
+            long deadlineMs = System.currentTimeMillis() +
+                    Math.max(MIN_ENCODE_TIMEOUT_MS, frameCount * ENCODE_TIMEOUT_MS_PER_FRAME);
+            while (!cancelled.get() && System.currentTimeMillis() < deadlineMs) {
+                if (!inputDone) {
+                    int inputIndex = encoder.dequeueInputBuffer(INPUT_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        if (framesIn == frameCount) {
+                            encoder.queueInputBuffer(inputIndex, 0, 0, framesIn * frameIntervalUs,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        }
+                        else {
+                            Image image = encoder.getInputImage(inputIndex);
+                            drawFrame(image, width, height, framesIn, detailed);
+                            encoder.queueInputBuffer(inputIndex, 0, width * height * 3 / 2,
+                                    framesIn * frameIntervalUs, 0);
+                            framesIn++;
+                        }
+                    }
+                }
+
+                int outputIndex = encoder.dequeueOutputBuffer(info, inputDone ? INPUT_TIMEOUT_US : 0);
+                if (outputIndex >= 0) {
+                    ByteBuffer buffer = encoder.getOutputBuffer(outputIndex);
+                    byte[] data = new byte[info.size];
+                    buffer.position(info.offset);
+                    buffer.get(data);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        clip.codecConfig = data;
+                    }
+                    else if (info.size > 0) {
+                        clip.frames.add(data);
+                        clip.totalBytes += data.length;
+                    }
+
+                    encoder.releaseOutputBuffer(outputIndex, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+
+            if (clip.frames.size() < frameCount) {
+                LimeLog.warning("Test clip encoder for "+mimeType+" at "+width+"x"+height+
+                        " only produced "+clip.frames.size()+" frames");
+                return null;
+            }
+
+            return clip;
+        } catch (Exception e) {
+            // Tolerate buggy or missing encoders
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (encoder != null) {
+                encoder.release();
+            }
+        }
+    }
+
+    // Draws a diagonal gradient that scrolls each frame so the P-frames aren't empty
+    private static void drawFrame(Image image, int clipWidth, int clipHeight, int frameIndex, boolean detailed) {
+        Image.Plane[] planes = image.getPlanes();
+        byte[] row = new byte[clipWidth];
+        int noise = (frameIndex + 1) * 0x9E3779B9;
+
+        for (int plane = 0; plane < planes.length; plane++) {
+            ByteBuffer buffer = planes[plane].getBuffer();
+            int rowStride = planes[plane].getRowStride();
+            int pixelStride = planes[plane].getPixelStride();
+            int width = plane == 0 ? clipWidth : clipWidth / 2;
+            int height = plane == 0 ? clipHeight : clipHeight / 2;
+
+            for (int y = 0; y < height; y++) {
+                if (plane == 0) {
+                    for (int x = 0; x < width; x++) {
+                        row[x] = (byte) (x + y + frameIndex * 8);
+                    }
+                    if (detailed) {
+                        for (int x = 0; x < width; x++) {
+                            // Xorshift, since java.util.Random is too slow for every pixel
+                            noise ^= noise << 13;
+                            noise ^= noise >>> 17;
+                            noise ^= noise << 5;
+                            row[x] += (byte) (noise & 0x1F);
+                        }
+                    }
+                }
+                else {
+                    Arrays.fill(row, 0, width, (byte) 128);
+                }
+
+                if (pixelStride == 1) {
+                    buffer.position(y * rowStride);
+                    buffer.put(row, 0, width);
+                }
+                else {
+                    for (int x = 0; x < width; x++) {
+                        buffer.put(y * rowStride + x * pixelStride, row[x]);
+                    }
+                }
+            }
+        }
+    }
+
+    void submitCodecConfig(MediaCodec decoder) {
+        // Some encoders put the parameter sets in the first frame instead
+        if (codecConfig == null) {
+            return;
+        }
+
+        int inputIndex = decoder.dequeueInputBuffer(INPUT_TIMEOUT_US * 5);
+        if (inputIndex >= 0) {
+            ByteBuffer buffer = decoder.getInputBuffer(inputIndex);
+            buffer.clear();
+            buffer.put(codecConfig);
+            decoder.queueInputBuffer(inputIndex, 0, codecConfig.length, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        }
+    }
+
+    // Frame numbers past the end of the clip loop back to the start, which begins with the
+    // IDR frame, so a clip can be played for longer than it was encoded.
+    boolean submitFrame(MediaCodec decoder, int frameNumber, long timeoutUs) {
+        int inputIndex = decoder.dequeueInputBuffer(timeoutUs);
+        if (inputIndex < 0) {
+            return false;
+        }
+
+        byte[] frame = frames.get(frameNumber % frames.size());
+        ByteBuffer buffer = decoder.getInputBuffer(inputIndex);
+        buffer.clear();
+        buffer.put(frame);
+        decoder.queueInputBuffer(inputIndex, 0, frame.length, frameNumber * getFrameIntervalUs(), 0);
+        return true;
+    }
+
+    // Records the latency of each frame the decoder outputs, indexed by frame number. If render
+    // is set, output buffers are rendered to the decoder's surface. Returns false once the end
+    // of stream has been reached.
+    boolean drainOutput(MediaCodec decoder, long[] submitTimesNs, long[] latenciesNs, long timeoutUs, boolean render) {
+        long frameIntervalUs = getFrameIntervalUs();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int outputIndex;
+        while ((outputIndex = decoder.dequeueOutputBuffer(info, timeoutUs)) >= 0 ||
+                outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED ||
+                outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            if (outputIndex < 0) {
+                continue;
+            }
+
+            long nowNs = System.nanoTime();
+            decoder.releaseOutputBuffer(outputIndex, render && info.size > 0);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return false;
+            }
+
+            int frameIndex = (int) ((info.presentationTimeUs + frameIntervalUs / 2) / frameIntervalUs);
+            if (frameIndex >= 0 && frameIndex < latenciesNs.length && submitTimesNs[frameIndex] != 0) {
+                latenciesNs[frameIndex] = nowNs - submitTimesNs[frameIndex];
+            }
+
+            // Only wait for the first buffer
+            timeoutUs = 0;
+        }
+
+        return true;
+    }
+
+    // Signals the end of the clip and collects the remaining frames. Returns the time the last
+    // frame came out.
+    long finishAndDrain(MediaCodec decoder, long[] submitTimesNs, long[] latenciesNs,
+                        boolean render, AtomicBoolean cancelled) {
+        int inputIndex = decoder.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (inputIndex >= 0) {
+            decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+
+        long lastOutputNs = System.nanoTime();
+        long deadlineNs = lastOutputNs + DRAIN_TIMEOUT_MS * 1000000L;
+        while (!cancelled.get() && System.nanoTime() < deadlineNs) {
+            int outputCount = countOutputs(latenciesNs);
+            if (!drainOutput(decoder, submitTimesNs, latenciesNs, 1000, render)) {
+                break;
+            }
+            if (countOutputs(latenciesNs) != outputCount) {
+                lastOutputNs = System.nanoTime();
+            }
+        }
+
+        return lastOutputNs;
+    }
+
+    static int countOutputs(long[] latenciesNs) {
+        int count = 0;
+        for (long latencyNs : latenciesNs) {
+            if (latencyNs >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -11,12 +11,26 @@ class VideoStats {
     int totalFramesRendered;
     int frameLossEvents;
     int framesLost;
+    int framesPacedEarly;
+    int framesPacedOnTime;
+    int framesPacedLate;
+    int framesPacedDropped;
+    int jitterBufferUnderruns;
+    int jitterBufferOverruns;
+    long jitterBufferOccupancySum; // Frames queued, summed over each vsync
+    int jitterBufferOccupancySamples;
     char minHostProcessingLatency;
     char maxHostProcessingLatency;
     int totalHostProcessingLatency;
     int framesWithHostProcessingLatency;
     long measurementStartTimestamp;
 
+    // Per-frame latency distributions
+    final LatencyHistogram hostProcessingLatency = new LatencyHistogram();
+    final LatencyHistogram networkLatency = new LatencyHistogram(); // First packet received to enqueue
+    final LatencyHistogram decoderLatency = new LatencyHistogram();
+    final LatencyHistogram renderLatency = new LatencyHistogram(); // Enqueue to render
+
     void add(VideoStats other) {
         this.decoderTimeMs += other.decoderTimeMs;
         this.totalTimeMs += other.totalTimeMs;
@@ -25,6 +39,14 @@ class VideoStats {
         this.totalFramesRendered += other.totalFramesRendered;
         this.frameLossEvents += other.frameLossEvents;
         this.framesLost += other.framesLost;
+        this.framesPacedEarly += other.framesPacedEarly;
+        this.framesPacedOnTime += other.framesPacedOnTime;
+        this.framesPacedLate += other.framesPacedLate;
+        this.framesPacedDropped += other.framesPacedDropped;
+        this.jitterBufferUnderruns += other.jitterBufferUnderruns;
+        this.jitterBufferOverruns += other.jitterBufferOverruns;
+        this.jitterBufferOccupancySum += other.jitterBufferOccupancySum;
+        this.jitterBufferOccupancySamples += other.jitterBufferOccupancySamples;
 
         if (this.minHostProcessingLatency == 0) {
             this.minHostProcessingLatency = other.minHostProcessingLatency;
@@ -35,6 +57,11 @@ class VideoStats {
         this.totalHostProcessingLatency += other.totalHostProcessingLatency;
         this.framesWithHostProcessingLatency += other.framesWithHostProcessingLatency;
 
+        this.hostProcessingLatency.add(other.hostProcessingLatency);
+        this.networkLatency.add(other.networkLatency);
+        this.decoderLatency.add(other.decoderLatency);
+        this.renderLatency.add(other.renderLatency);
+
         if (this.measurementStartTimestamp == 0) {
             this.measurementStartTimestamp = other.measurementStartTimestamp;
         }
@@ -50,11 +77,23 @@ class VideoStats {
         this.totalFramesRendered = other.totalFramesRendered;
         this.frameLossEvents = other.frameLossEvents;
         this.framesLost = other.framesLost;
+        this.framesPacedEarly = other.framesPacedEarly;
+        this.framesPacedOnTime = other.framesPacedOnTime;
+        this.framesPacedLate = other.framesPacedLate;
+        this.framesPacedDropped = other.framesPacedDropped;
+        this.jitterBufferUnderruns = other.jitterBufferUnderruns;
+        this.jitterBufferOverruns = other.jitterBufferOverruns;
+        this.jitterBufferOccupancySum = other.jitterBufferOccupancySum;
+        this.jitterBufferOccupancySamples = other.jitterBufferOccupancySamples;
         this.minHostProcessingLatency = other.minHostProcessingLatency;
         this.maxHostProcessingLatency = other.maxHostProcessingLatency;
         this.totalHostProcessingLatency = other.totalHostProcessingLatency;
         this.framesWithHostProcessingLatency = other.framesWithHostProcessingLatency;
         this.measurementStartTimestamp = other.measurementStartTimestamp;
+        this.hostProcessingLatency.copy(other.hostProcessingLatency);
+        this.networkLatency.copy(other.networkLatency);
+        this.decoderLatency.copy(other.decoderLatency);
+        this.renderLatency.copy(other.renderLatency);
     }
 
     void clear() {
@@ -65,15 +104,31 @@ class VideoStats {
         this.totalFramesRendered = 0;
         this.frameLossEvents = 0;
         this.framesLost = 0;
+        this.framesPacedEarly = 0;
+        this.framesPacedOnTime = 0;
+        this.framesPacedLate = 0;
+        this.framesPacedDropped = 0;
+        this.jitterBufferUnderruns = 0;
+        this.jitterBufferOverruns = 0;
+        this.jitterBufferOccupancySum = 0;
+        this.jitterBufferOccupancySamples = 0;
         this.minHostProcessingLatency = 0;
         this.maxHostProcessingLatency = 0;
         this.totalHostProcessingLatency = 0;
         this.framesWithHostProcessingLatency = 0;
         this.measurementStartTimestamp = 0;
+        this.hostProcessingLatency.clear();
+        this.networkLatency.clear();
+        this.decoderLatency.clear();
+        this.renderLatency.clear();
     }
 
     VideoStatsFps getFps() {
-        float elapsed = (SystemClock.uptimeMillis() - this.measurementStartTimestamp) / (float) 1000;
+        return getFps(SystemClock.uptimeMillis());
+    }
+
+    VideoStatsFps getFps(long measurementEndTimestamp) {
+        float elapsed = (measurementEndTimestamp - this.measurementStartTimestamp) / (float) 1000;
 
         VideoStatsFps fps = new VideoStatsFps();
         if (elapsed > 0) {
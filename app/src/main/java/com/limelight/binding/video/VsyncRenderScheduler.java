@@ -0,0 +1,162 @@
+package com.limelight.binding.video;
+
+// Decides which vsync each decoded frame should be displayed at when frames are released from
+// the Choreographer callback.
+//
+// We keep an ideal display timeline for the stream: each frame is due one host frame interval
+// after the previous one (or several if the PTS shows that frames were lost in between). The host
+// frame interval is estimated from frame receive times rather than taken from the configured
+// frame rate, since hosts don't always hit it exactly. A frame is released at the predicted vsync
+// closest to its due time, which spreads frames evenly when the host and display rates differ
+// (60 FPS on 90 Hz shows frames for 2, 1, 2, 1... refreshes rather than bunching them up).
+//
+// The timeline is re-anchored whenever we render a frame late (to avoid carrying the delay
+// forward) or early (when the queue is full, meaning we're holding frames longer than necessary).
+//
+// All methods except onFrameReceived() must be called on the Choreographer thread.
+class VsyncRenderScheduler {
+    static final int DECISION_WAIT = 0;
+    static final int DECISION_RENDER_EARLY = 1;
+    static final int DECISION_RENDER_ON_TIME = 2;
+    static final int DECISION_RENDER_LATE = 3;
+    static final int DECISION_DROP = 4;
+
+    // How many vsyncs ahead we look for a frame's best deadline. A frame due further out than
+    // this means the timeline no longer matches reality (like after a stream pause).
+    private static final int PREDICTED_VSYNCS = 4;
+
+    // EWMA weight of a new sample is 1/(1 << EWMA_SHIFT)
+    private static final int EWMA_SHIFT = 4;
+
+    private final int queueLimit;
+
+    // Input thread
+    private long lastReceiveTimeMs = -1;
+    private long hostFrameIntervalUsLocal;
+    private volatile long hostFrameIntervalUs;
+
+    // Choreographer thread
+    private long lastVsyncNanos;
+    private long vsyncPeriodNanos;
+    private final long[] predictedVsyncNanos = new long[PREDICTED_VSYNCS];
+    private boolean timelineValid;
+    private long lastDueNanos;
+    private long lastPtsUs;
+    private long pendingDueNanos;
+
+    VsyncRenderScheduler(int streamFrameRate, float displayRefreshRate, int queueLimit) {
+        this.queueLimit = queueLimit;
+        this.hostFrameIntervalUsLocal = this.hostFrameIntervalUs = 1000000 / Math.max(streamFrameRate, 1);
+        this.vsyncPeriodNanos = (long) (1000000000 / Math.max(displayRefreshRate, 1.0f));
+    }
+
+    // Called on the input thread for each frame submitted to the decoder
+    void onFrameReceived(long receiveTimeMs) {
+        if (lastReceiveTimeMs >= 0) {
+            long intervalUs = (receiveTimeMs - lastReceiveTimeMs) * 1000;
+
+            // Frames can arrive back to back after a network stall, and gaps after a loss span
+            // several intervals, so only take samples that are close to the current estimate.
+            if (intervalUs > hostFrameIntervalUsLocal / 2 && intervalUs < hostFrameIntervalUsLocal * 3 / 2) {
+                hostFrameIntervalUsLocal += (intervalUs - hostFrameIntervalUsLocal) >> EWMA_SHIFT;
+                hostFrameIntervalUs = hostFrameIntervalUsLocal;
+            }
+        }
+        lastReceiveTimeMs = receiveTimeMs;
+    }
+
+    // Called at the start of each Choreographer callback
+    void onVsync(long frameTimeNanos) {
+        long periodNanos = frameTimeNanos - lastVsyncNanos;
+
+        // Skipped vsyncs show up as multiples of the period, so only take plausible ones
+        if (lastVsyncNanos != 0 && periodNanos > vsyncPeriodNanos / 2 && periodNanos < vsyncPeriodNanos * 3 / 2) {
+            vsyncPeriodNanos += (periodNanos - vsyncPeriodNanos) >> EWMA_SHIFT;
+        }
+        lastVsyncNanos = frameTimeNanos;
+
+        for (int i = 0; i < PREDICTED_VSYNCS; i++) {
+            predictedVsyncNanos[i] = frameTimeNanos + i * vsyncPeriodNanos;
+        }
+    }
+
+    // Returns the DECISION_* for the oldest decoded frame at the current vsync
+    int decide(long ptsUs, int queuedFrames) {
+        long vsyncNanos = predictedVsyncNanos[0];
+        long halfPeriodNanos = vsyncPeriodNanos / 2;
+
+        if (!timelineValid) {
+            // Nothing to pace against yet, so this frame starts the timeline
+            pendingDueNanos = vsyncNanos;
+            return DECISION_RENDER_ON_TIME;
+        }
+
+        long intervalNanos = hostFrameIntervalUs * 1000;
+        long dueNanos = lastDueNanos + getFrameSpan(ptsUs) * intervalNanos;
+        pendingDueNanos = dueNanos;
+
+        if (dueNanos < vsyncNanos - halfPeriodNanos) {
+            // We missed this frame's vsync. If the next frame is due by now too, skip this one
+            // to catch up rather than showing every frame late.
+            if (queuedFrames > 1 && dueNanos + intervalNanos <= vsyncNanos + halfPeriodNanos) {
+                return DECISION_DROP;
+            }
+            return DECISION_RENDER_LATE;
+        }
+
+        // Find the predicted vsync closest to the due time
+        int bestVsync = -1;
+        for (int i = 0; i < PREDICTED_VSYNCS; i++) {
+            if (Math.abs(dueNanos - predictedVsyncNanos[i]) <= halfPeriodNanos) {
+                bestVsync = i;
+                break;
+            }
+        }
+
+        if (bestVsync == 0) {
+            return DECISION_RENDER_ON_TIME;
+        }
+        else if (bestVsync < 0) {
+            // Too far out to be right, so start over from this frame
+            timelineValid = false;
+            pendingDueNanos = vsyncNanos;
+            return DECISION_RENDER_ON_TIME;
+        }
+        else if (queuedFrames >= queueLimit) {
+            // Holding this frame any longer would force the decoder output to discard one
+            return DECISION_RENDER_EARLY;
+        }
+        else {
+            return DECISION_WAIT;
+        }
+    }
+
+    // Number of host frame intervals between the last frame and this one according to the PTS
+    private int getFrameSpan(long ptsUs) {
+        long intervalUs = hostFrameIntervalUs;
+        long spans = (ptsUs - lastPtsUs + intervalUs / 2) / intervalUs;
+        return (int) Math.max(1, Math.min(spans, PREDICTED_VSYNCS));
+    }
+
+    // Called after acting on a decision from decide()
+    void onFrameReleased(long ptsUs, int decision) {
+        if (decision == DECISION_RENDER_LATE || decision == DECISION_RENDER_EARLY) {
+            // Re-anchor the timeline to when the frame actually goes out
+            lastDueNanos = predictedVsyncNanos[0];
+        }
+        else {
+            lastDueNanos = pendingDueNanos;
+        }
+        lastPtsUs = ptsUs;
+        timelineValid = true;
+    }
+
+    // Must be called with the Choreographer quiesced, such as during codec recovery
+    void reset() {
+        timelineValid = false;
+    }
+
+    long getHostFrameIntervalUs() {
+        return hostFrameIntervalUs;
+    }
+}
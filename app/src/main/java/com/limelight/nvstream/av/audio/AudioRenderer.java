@@ -10,6 +10,9 @@ public interface AudioRenderer {
     void stop();
     
     void playDecodedAudio(short[] audioData);
+
+    // Only called if setup() enabled MoonBridge.setFloatAudioOutput()
+    void playDecodedAudio(float[] audioData);
     
     void cleanup();
 }
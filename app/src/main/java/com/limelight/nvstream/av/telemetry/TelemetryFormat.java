@@ -0,0 +1,64 @@
+package com.limelight.nvstream.av.telemetry;
+
+import java.nio.ByteOrder;
+
+// On-disk layout of a session telemetry log. This class must not depend on Android APIs,
+// since the unit tests' TelemetryReader uses it to analyze logs on a desktop JVM.
+//
+// Header (32 bytes):
+//   0  int   magic
+//   4  short version
+//   6  short record size
+//   8  long  wall clock time at session start (ms since epoch)
+//   16 long  monotonic time at session start (us)
+//   24 int   record count (0 if the session didn't end cleanly)
+//   28 int   reserved
+//
+// Record (32 bytes):
+//   0  byte  event type
+//   1  byte  frame type
+//   2  short host processing latency (1/10 ms)
+//   4  int   frame number
+//   8  long  monotonic event time (us)
+//   16 long  value A (see event types)
+//   24 long  value B (see event types)
+public class TelemetryFormat {
+    public static final int MAGIC = 0x4D4C544C; // "MLTL"
+    public static final short VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int HEADER_OFFSET_MAGIC = 0;
+    public static final int HEADER_OFFSET_VERSION = 4;
+    public static final int HEADER_OFFSET_RECORD_SIZE = 6;
+    public static final int HEADER_OFFSET_START_WALL_TIME_MS = 8;
+    public static final int HEADER_OFFSET_START_TIME_US = 16;
+    public static final int HEADER_OFFSET_RECORD_COUNT = 24;
+
+    public static final int RECORD_SIZE = 32;
+    public static final int RECORD_OFFSET_EVENT_TYPE = 0;
+    public static final int RECORD_OFFSET_FRAME_TYPE = 1;
+    public static final int RECORD_OFFSET_HOST_LATENCY = 2;
+    public static final int RECORD_OFFSET_FRAME_NUMBER = 4;
+    public static final int RECORD_OFFSET_EVENT_TIME_US = 8;
+    public static final int RECORD_OFFSET_VALUE_A = 16;
+    public static final int RECORD_OFFSET_VALUE_B = 24;
+
+    // An empty slot (end of a log that wasn't closed cleanly)
+    public static final byte EVENT_NONE = 0;
+
+    // A: receive time (us), B: presentation timestamp (us) given to the decoder
+    public static final byte EVENT_VIDEO_SUBMIT = 1;
+
+    // A: presentation timestamp (us)
+    public static final byte EVENT_VIDEO_DECODED = 2;
+
+    // A: presentation timestamp (us), event time is the requested render time
+    public static final byte EVENT_VIDEO_RENDERED = 3;
+
+    // A: presentation timestamp (us)
+    public static final byte EVENT_VIDEO_DROPPED = 4;
+
+    // A: pending audio duration (ms), B: samples in this packet (negative if it was dropped)
+    public static final byte EVENT_AUDIO_PLAYED = 5;
+}
@@ -0,0 +1,146 @@
+package com.limelight.nvstream.av.telemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.limelight.LimeLog;
+
+// Appends fixed-width timing records for a streaming session to a memory-mapped file.
+// Records may be written from any thread and never allocate. Once the file is full,
+// further records are silently discarded.
+public class TelemetryRecorder {
+    private static final String FILE_PREFIX = "session-";
+    public static final String FILE_SUFFIX = ".mltl";
+    private static final int MAX_LOG_FILES = 5;
+
+    // 16 MB is around 15 minutes of a 120 FPS stream with audio
+    private static final int MAX_RECORDS = 512 * 1024;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger nextRecord = new AtomicInteger();
+    private volatile boolean closed;
+
+    private TelemetryRecorder(File logFile) throws IOException {
+        file = new RandomAccessFile(logFile, "rw");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    TelemetryFormat.HEADER_SIZE + (long) MAX_RECORDS * TelemetryFormat.RECORD_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        buffer.order(TelemetryFormat.BYTE_ORDER);
+
+        buffer.putInt(TelemetryFormat.HEADER_OFFSET_MAGIC, TelemetryFormat.MAGIC);
+        buffer.putShort(TelemetryFormat.HEADER_OFFSET_VERSION, TelemetryFormat.VERSION);
+        buffer.putShort(TelemetryFormat.HEADER_OFFSET_RECORD_SIZE, (short) TelemetryFormat.RECORD_SIZE);
+        buffer.putLong(TelemetryFormat.HEADER_OFFSET_START_WALL_TIME_MS, System.currentTimeMillis());
+        buffer.putLong(TelemetryFormat.HEADER_OFFSET_START_TIME_US, getTimeUs());
+        buffer.putInt(TelemetryFormat.HEADER_OFFSET_RECORD_COUNT, 0);
+    }
+
+    // Creates a new log in the specified directory, deleting the oldest logs if needed
+    public static TelemetryRecorder create(File directory) throws IOException {
+        directory.mkdirs();
+
+        File[] oldLogs = directory.listFiles();
+        if (oldLogs != null) {
+            Arrays.sort(oldLogs, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(b.lastModified(), a.lastModified());
+                }
+            });
+
+            int logCount = 0;
+            for (File oldLog : oldLogs) {
+                if (oldLog.getName().endsWith(FILE_SUFFIX) && ++logCount >= MAX_LOG_FILES) {
+                    oldLog.delete();
+                }
+            }
+        }
+
+        File logFile = new File(directory, FILE_PREFIX + System.currentTimeMillis() + FILE_SUFFIX);
+        LimeLog.info("Recording session telemetry to "+logFile);
+        return new TelemetryRecorder(logFile);
+    }
+
+    // This uses the same clock as SystemClock.uptimeMillis() and the decoder timestamps on Android
+    private static long getTimeUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    private void writeRecord(byte eventType, int frameType, char hostProcessingLatency, int frameNumber,
+                             long eventTimeUs, long valueA, long valueB) {
+        if (closed) {
+            return;
+        }
+
+        int index = nextRecord.getAndIncrement();
+        if (index >= MAX_RECORDS) {
+            return;
+        }
+
+        int offset = TelemetryFormat.HEADER_SIZE + index * TelemetryFormat.RECORD_SIZE;
+        buffer.put(offset + TelemetryFormat.RECORD_OFFSET_FRAME_TYPE, (byte) frameType);
+        buffer.putChar(offset + TelemetryFormat.RECORD_OFFSET_HOST_LATENCY, hostProcessingLatency);
+        buffer.putInt(offset + TelemetryFormat.RECORD_OFFSET_FRAME_NUMBER, frameNumber);
+        buffer.putLong(offset + TelemetryFormat.RECORD_OFFSET_EVENT_TIME_US, eventTimeUs);
+        buffer.putLong(offset + TelemetryFormat.RECORD_OFFSET_VALUE_A, valueA);
+        buffer.putLong(offset + TelemetryFormat.RECORD_OFFSET_VALUE_B, valueB);
+
+        // Write the event type last, so a torn record reads as the end of the log
+        buffer.put(offset + TelemetryFormat.RECORD_OFFSET_EVENT_TYPE, eventType);
+    }
+
+    public void recordVideoSubmit(int frameNumber, int frameType, char frameHostProcessingLatency,
+                                  long receiveTimeMs, long presentationTimeUs) {
+        writeRecord(TelemetryFormat.EVENT_VIDEO_SUBMIT, frameType, frameHostProcessingLatency, frameNumber,
+                getTimeUs(), receiveTimeMs * 1000, presentationTimeUs);
+    }
+
+    public void recordVideoDecoded(long presentationTimeUs) {
+        writeRecord(TelemetryFormat.EVENT_VIDEO_DECODED, 0, (char) 0, 0,
+                getTimeUs(), presentationTimeUs, 0);
+    }
+
+    public void recordVideoRendered(long presentationTimeUs, long renderTimeUs) {
+        writeRecord(TelemetryFormat.EVENT_VIDEO_RENDERED, 0, (char) 0, 0,
+                renderTimeUs, presentationTimeUs, 0);
+    }
+
+    public void recordVideoDropped(long presentationTimeUs) {
+        writeRecord(TelemetryFormat.EVENT_VIDEO_DROPPED, 0, (char) 0, 0,
+                getTimeUs(), presentationTimeUs, 0);
+    }
+
+    public void recordAudioPlayed(int pendingAudioMs, int sampleCount, boolean dropped) {
+        writeRecord(TelemetryFormat.EVENT_AUDIO_PLAYED, 0, (char) 0, 0,
+                getTimeUs(), pendingAudioMs, dropped ? -sampleCount : sampleCount);
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        buffer.putInt(TelemetryFormat.HEADER_OFFSET_RECORD_COUNT, Math.min(nextRecord.get(), MAX_RECORDS));
+        buffer.force();
+
+        try {
+            // The mapping stays valid until the buffer is garbage collected, so late
+            // writers racing with close() can't crash us.
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package com.limelight.nvstream.av.video;
 
+import com.limelight.nvstream.jni.MoonBridge;
+
+import java.nio.ByteBuffer;
+
 public abstract class VideoDecoderRenderer {
+    private ByteBuffer zeroCopyStagingBuffer;
+    private byte[] zeroCopyStagingArray;
+
     public abstract int setup(int format, int width, int height, int redrawRate);
 
     public abstract void start();
@@ -13,6 +20,33 @@ public abstract class VideoDecoderRenderer {
                                          int frameNumber, int frameType, char frameHostProcessingLatency,
                                          long receiveTimeMs, long enqueueTimeMs);
     
+    // If this returns true, picture data will be delivered via submitDecodeUnitZeroCopy() instead
+    // of submitDecodeUnit(). Parameter sets are always delivered via submitDecodeUnit().
+    public boolean supportsZeroCopySubmission() {
+        return false;
+    }
+
+    // The renderer must call MoonBridge.copyPendingDecodeUnitPicData() before returning to
+    // retrieve the picture data for this decode unit. This default stages the picture data
+    // and passes it to submitDecodeUnit(), so it's only useful to renderers that override it.
+    public int submitDecodeUnitZeroCopy(int decodeUnitLength, int frameNumber, int frameType,
+                                        char frameHostProcessingLatency,
+                                        long receiveTimeMs, long enqueueTimeMs) {
+        if (zeroCopyStagingBuffer == null || zeroCopyStagingBuffer.capacity() < decodeUnitLength) {
+            zeroCopyStagingBuffer = ByteBuffer.allocateDirect(decodeUnitLength);
+            zeroCopyStagingArray = new byte[decodeUnitLength];
+        }
+
+        if (MoonBridge.copyPendingDecodeUnitPicData(zeroCopyStagingBuffer, 0) != decodeUnitLength) {
+            return MoonBridge.DR_NEED_IDR;
+        }
+
+        zeroCopyStagingBuffer.clear();
+        zeroCopyStagingBuffer.get(zeroCopyStagingArray, 0, decodeUnitLength);
+        return submitDecodeUnit(zeroCopyStagingArray, decodeUnitLength, MoonBridge.BUFFER_TYPE_PICDATA,
+                frameNumber, frameType, frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+    }
+
     public abstract void cleanup();
 
     public abstract int getCapabilities();
@@ -1,5 +1,7 @@
 package com.limelight.nvstream.jni;
 
+import java.nio.ByteBuffer;
+
 import com.limelight.nvstream.NvConnectionListener;
 import com.limelight.nvstream.av.audio.AudioRenderer;
 import com.limelight.nvstream.av.video.VideoDecoderRenderer;
@@ -227,6 +229,27 @@ public class MoonBridge {
         }
     }
 
+    public static int bridgeDrSubmitDecodeUnitZeroCopy(int decodeUnitLength, int frameNumber, int frameType,
+                                                       char frameHostProcessingLatency,
+                                                       long receiveTimeMs, long enqueueTimeMs) {
+        if (videoRenderer != null) {
+            return videoRenderer.submitDecodeUnitZeroCopy(decodeUnitLength, frameNumber, frameType,
+                    frameHostProcessingLatency, receiveTimeMs, enqueueTimeMs);
+        }
+        else {
+            return DR_OK;
+        }
+    }
+
+    public static boolean bridgeDrSupportsZeroCopy() {
+        if (videoRenderer != null) {
+            return videoRenderer.supportsZeroCopySubmission();
+        }
+        else {
+            return false;
+        }
+    }
+
     public static int bridgeArInit(int audioConfiguration, int sampleRate, int samplesPerFrame) {
         if (audioRenderer != null) {
             return audioRenderer.setup(new AudioConfiguration(audioConfiguration), sampleRate, samplesPerFrame);
@@ -260,6 +283,12 @@ public class MoonBridge {
         }
     }
 
+    public static void bridgeArPlaySampleFloat(float[] pcmData) {
+        if (audioRenderer != null) {
+            audioRenderer.playDecodedAudio(pcmData);
+        }
+    }
+
     public static void bridgeClStageStarting(int stage) {
         if (connectionListener != null) {
             connectionListener.stageStarting(getStageName(stage));
@@ -393,10 +422,44 @@ public class MoonBridge {
 
     public static native String findExternalAddressIP4(String stunHostName, int stunPort);
 
+    // Only valid during a call to VideoDecoderRenderer.submitDecodeUnitZeroCopy(). Copies the
+    // picture data of the pending decode unit into the direct buffer at the specified offset
+    // and returns the number of bytes written or -1 on failure.
+    public static native int copyPendingDecodeUnitPicData(ByteBuffer buffer, int offset);
+
     public static native int getPendingAudioDuration();
 
     public static native int getPendingVideoFrames();
 
+    // Native audio output plays decoded samples without passing them through Java. It's
+    // only used if the AudioRenderer calls setupNativeAudio() successfully from setup().
+    public static native boolean isNativeAudioSupported();
+
+    public static native int setupNativeAudio(int sampleRate, int channelCount, int samplesPerFrame, boolean floatSamples);
+
+    public static native int startNativeAudio();
+
+    public static native void stopNativeAudio();
+
+    public static native void cleanupNativeAudio();
+
+    // Returns -1 if the latency isn't known yet
+    public static native int getNativeAudioLatencyMs();
+
+    // Decodes audio to float samples, which are passed to AudioRenderer.playDecodedAudio(float[])
+    // or to native audio output. Called from AudioRenderer.setup().
+    public static native void setFloatAudioOutput(boolean enabled);
+
+    // Mixes surround audio down to stereo as it's decoded, so the AudioRenderer receives
+    // stereo samples. Called from AudioRenderer.setup(). In stereo mode, matrix has the
+    // left output's level for each input channel followed by the right output's, and the
+    // levels for each output can't add up to more than 1.
+    public static native int setupAudioDownmix(int channelCount, int sampleRate, int mode, float[] matrix);
+
+    // Fills in the audio packet loss and recovery counters for the current stream. Safe to
+    // call from any thread.
+    public static native void getAudioStats(int[] stats);
+
     public static native int testClientConnectivity(String testServerHostName, int referencePort, int testFlags);
 
     public static native int getPortFlagsFromStage(int stage);
@@ -0,0 +1,137 @@
+package com.limelight.preferences;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.preference.Preference;
+import android.preference.PreferenceManager;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+
+import com.limelight.R;
+import com.limelight.binding.video.DecoderBenchmark;
+
+public class DecoderBenchmarkPreference extends Preference {
+    private ProgressDialog progressDialog;
+
+    public DecoderBenchmarkPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    public DecoderBenchmarkPreference(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public DecoderBenchmarkPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public DecoderBenchmarkPreference(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected void onClick() {
+        final Activity activity = (Activity) getContext();
+
+        // There's no point in measuring resolutions taller than the screen
+        DisplayMetrics metrics = new DisplayMetrics();
+        activity.getWindowManager().getDefaultDisplay().getRealMetrics(metrics);
+        int maxHeight = Math.min(metrics.widthPixels, metrics.heightPixels);
+
+        progressDialog = new ProgressDialog(activity);
+        progressDialog.setTitle(R.string.title_decoder_benchmark);
+        progressDialog.setMessage(activity.getString(R.string.decoder_benchmark_starting));
+        progressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        progressDialog.setCanceledOnTouchOutside(false);
+        progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                DecoderBenchmark.stop();
+            }
+        });
+        progressDialog.show();
+
+        DecoderBenchmark.start(activity, maxHeight, new DecoderBenchmark.Listener() {
+            @Override
+            public void onBenchmarkProgress(final String mimeType, final int width, final int height,
+                                            final int fps, final int bitrateKbps) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressDialog.setMessage(activity.getString(R.string.decoder_benchmark_progress,
+                                mimeType, width, height, fps, bitrateKbps / 1000.0f));
+                    }
+                });
+            }
+
+            @Override
+            public void onBenchmarkComplete(final DecoderBenchmark.Recommendation recommendation, final String resultsJson) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (activity.isFinishing()) {
+                            return;
+                        }
+
+                        progressDialog.dismiss();
+                        showResults(activity, recommendation, resultsJson);
+                    }
+                });
+            }
+        });
+    }
+
+    private void showResults(final Activity activity, final DecoderBenchmark.Recommendation recommendation,
+                             final String resultsJson) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+        builder.setTitle(R.string.title_decoder_benchmark);
+
+        if (resultsJson == null) {
+            builder.setMessage(R.string.decoder_benchmark_failed);
+        }
+        else if (recommendation == null) {
+            builder.setMessage(R.string.decoder_benchmark_no_recommendation);
+        }
+        else {
+            builder.setMessage(activity.getString(R.string.decoder_benchmark_recommendation,
+                    recommendation.width, recommendation.height, recommendation.fps,
+                    recommendation.bitrateKbps / 1000.0f));
+            builder.setPositiveButton(R.string.decoder_benchmark_apply, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    PreferenceManager.getDefaultSharedPreferences(activity).edit()
+                            .putString(PreferenceConfiguration.RESOLUTION_PREF_STRING,
+                                    recommendation.width+"x"+recommendation.height)
+                            .putString(PreferenceConfiguration.FPS_PREF_STRING, Integer.toString(recommendation.fps))
+                            .putInt(PreferenceConfiguration.BITRATE_PREF_STRING, recommendation.bitrateKbps)
+                            .apply();
+
+                    // Show the new values in the settings
+                    if (activity instanceof StreamSettings) {
+                        ((StreamSettings) activity).reloadSettings();
+                    }
+                }
+            });
+        }
+
+        if (resultsJson != null) {
+            builder.setNeutralButton(R.string.decoder_benchmark_export, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("application/json");
+                    intent.putExtra(Intent.EXTRA_SUBJECT, activity.getString(R.string.title_decoder_benchmark));
+                    intent.putExtra(Intent.EXTRA_TEXT, resultsJson);
+                    activity.startActivity(Intent.createChooser(intent, null));
+                }
+            });
+        }
+
+        builder.setNegativeButton(R.string.decoder_benchmark_close, null);
+        builder.show();
+    }
+}
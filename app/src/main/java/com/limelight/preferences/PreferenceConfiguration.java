@@ -35,11 +35,13 @@ public class PreferenceConfiguration {
     private static final String DISABLE_TOASTS_PREF_STRING = "checkbox_disable_warnings";
     private static final String HOST_AUDIO_PREF_STRING = "checkbox_host_audio";
     private static final String DEADZONE_PREF_STRING = "seekbar_deadzone";
+    private static final String CONTROLLER_INPUT_RATE_PREF_STRING = "list_controller_input_rate";
     private static final String OSC_OPACITY_PREF_STRING = "seekbar_osc_opacity";
     private static final String LANGUAGE_PREF_STRING = "list_languages";
     private static final String SMALL_ICONS_PREF_STRING = "checkbox_small_icon_mode";
     private static final String MULTI_CONTROLLER_PREF_STRING = "checkbox_multi_controller";
     static final String AUDIO_CONFIG_PREF_STRING = "list_audio_config";
+    private static final String SURROUND_DOWNMIX_PREF_STRING = "list_surround_downmix";
     private static final String USB_DRIVER_PREF_SRING = "checkbox_usb_driver";
     private static final String VIDEO_FORMAT_PREF_STRING = "video_format";
     private static final String ONSCREEN_CONTROLLER_PREF_STRING = "checkbox_show_onscreen_controls";
@@ -60,9 +62,17 @@ public class PreferenceConfiguration {
     private static final String FLIP_FACE_BUTTONS_PREF_STRING = "checkbox_flip_face_buttons";
     private static final String TOUCHSCREEN_TRACKPAD_PREF_STRING = "checkbox_touchscreen_trackpad";
     private static final String LATENCY_TOAST_PREF_STRING = "checkbox_enable_post_stream_toast";
+    private static final String TELEMETRY_LOG_PREF_STRING = "checkbox_enable_telemetry_log";
+    private static final String ASYNC_DECODER_PREF_STRING = "checkbox_async_decoder";
+    private static final String DECODER_CALIBRATION_PREF_STRING = "checkbox_decoder_calibration";
     private static final String FRAME_PACING_PREF_STRING = "frame_pacing";
+    private static final String JITTER_BUFFER_MAX_DEPTH_PREF_STRING = "seekbar_jitter_buffer_ms";
+    private static final String ADAPTIVE_QUALITY_PREF_STRING = "checkbox_adaptive_quality";
     private static final String ABSOLUTE_MOUSE_MODE_PREF_STRING = "checkbox_absolute_mouse_mode";
     private static final String ENABLE_AUDIO_FX_PREF_STRING = "checkbox_enable_audiofx";
+    private static final String LOW_LATENCY_AUDIO_PREF_STRING = "checkbox_low_latency_audio";
+    private static final String AV_SYNC_CORRECTION_PREF_STRING = "checkbox_av_sync_correction";
+    private static final String FLOAT_AUDIO_PREF_STRING = "checkbox_float_audio";
     private static final String REDUCE_REFRESH_RATE_PREF_STRING = "checkbox_reduce_refresh_rate";
     private static final String FULL_RANGE_PREF_STRING = "checkbox_full_range";
     private static final String GAMEPAD_TOUCHPAD_AS_MOUSE_PREF_STRING = "checkbox_gamepad_touchpad_as_mouse";
@@ -76,6 +86,7 @@ public class PreferenceConfiguration {
     private static final boolean DEFAULT_DISABLE_TOASTS = false;
     private static final boolean DEFAULT_HOST_AUDIO = false;
     private static final int DEFAULT_DEADZONE = 7;
+    private static final String DEFAULT_CONTROLLER_INPUT_RATE = "500";
     private static final int DEFAULT_OPACITY = 90;
     public static final String DEFAULT_LANGUAGE = "default";
     private static final boolean DEFAULT_MULTI_CONTROLLER = true;
@@ -99,10 +110,19 @@ public class PreferenceConfiguration {
     private static final boolean DEFAULT_FLIP_FACE_BUTTONS = false;
     private static final boolean DEFAULT_TOUCHSCREEN_TRACKPAD = true;
     private static final String DEFAULT_AUDIO_CONFIG = "2"; // Stereo
+    private static final String DEFAULT_SURROUND_DOWNMIX = "system";
     private static final boolean DEFAULT_LATENCY_TOAST = false;
+    private static final boolean DEFAULT_TELEMETRY_LOG = false;
+    private static final boolean DEFAULT_ASYNC_DECODER = false;
+    private static final boolean DEFAULT_DECODER_CALIBRATION = false;
     private static final String DEFAULT_FRAME_PACING = "latency";
+    private static final int DEFAULT_JITTER_BUFFER_MAX_DEPTH_MS = 50;
+    private static final boolean DEFAULT_ADAPTIVE_QUALITY = false;
     private static final boolean DEFAULT_ABSOLUTE_MOUSE_MODE = false;
     private static final boolean DEFAULT_ENABLE_AUDIO_FX = false;
+    private static final boolean DEFAULT_LOW_LATENCY_AUDIO = false;
+    private static final boolean DEFAULT_AV_SYNC_CORRECTION = false;
+    private static final boolean DEFAULT_FLOAT_AUDIO = false;
     private static final boolean DEFAULT_REDUCE_REFRESH_RATE = false;
     private static final boolean DEFAULT_FULL_RANGE = false;
     private static final boolean DEFAULT_GAMEPAD_TOUCHPAD_AS_MOUSE = false;
@@ -113,6 +133,12 @@ public class PreferenceConfiguration {
     public static final int FRAME_PACING_BALANCED = 1;
     public static final int FRAME_PACING_CAP_FPS = 2;
     public static final int FRAME_PACING_MAX_SMOOTHNESS = 3;
+    public static final int FRAME_PACING_ADAPTIVE = 4;
+    public static final int FRAME_PACING_JITTER_BUFFER = 5;
+
+    public static final int SURROUND_DOWNMIX_SYSTEM = 0;
+    public static final int SURROUND_DOWNMIX_STEREO = 1;
+    public static final int SURROUND_DOWNMIX_HEADPHONES = 2;
 
     public static final String RES_360P = "640x360";
     public static final String RES_480P = "854x480";
@@ -126,6 +152,7 @@ public class PreferenceConfiguration {
     public int bitrate;
     public FormatOption videoFormat;
     public int deadzonePercentage;
+    public int controllerInputRate; // Hz, or 0 for no limit
     public int oscOpacity;
     public boolean stretchVideo, enableSops, playHostAudio, disableWarnings;
     public String language;
@@ -137,6 +164,9 @@ public class PreferenceConfiguration {
     public boolean enablePip;
     public boolean enablePerfOverlay;
     public boolean enableLatencyToast;
+    public boolean enableTelemetryLog;
+    public boolean asyncDecoder;
+    public boolean decoderCalibration;
     public boolean bindAllUsb;
     public boolean mouseEmulation;
     public AnalogStickForScrolling analogStickForScrolling;
@@ -148,8 +178,14 @@ public class PreferenceConfiguration {
     public boolean touchscreenTrackpad;
     public MoonBridge.AudioConfiguration audioConfiguration;
     public int framePacing;
+    public int surroundDownmix;
+    public int jitterBufferMaxDepthMs;
+    public boolean adaptiveQuality;
     public boolean absoluteMouseMode;
     public boolean enableAudioFx;
+    public boolean lowLatencyAudio;
+    public boolean avSyncCorrection;
+    public boolean floatAudio;
     public boolean reduceRefreshRate;
     public boolean fullRange;
     public boolean gamepadMotionSensors;
@@ -393,12 +429,47 @@ public class PreferenceConfiguration {
         else if (str.equals("smoothness")) {
             return FRAME_PACING_MAX_SMOOTHNESS;
         }
+        else if (str.equals("adaptive")) {
+            return FRAME_PACING_ADAPTIVE;
+        }
+        else if (str.equals("jitter-buffer")) {
+            return FRAME_PACING_JITTER_BUFFER;
+        }
         else {
             // Should never get here
             return FRAME_PACING_MIN_LATENCY;
         }
     }
 
+    private static int getControllerInputRateValue(SharedPreferences prefs, int fps) {
+        String str = prefs.getString(CONTROLLER_INPUT_RATE_PREF_STRING, DEFAULT_CONTROLLER_INPUT_RATE);
+        if (str.equals("unlimited")) {
+            return 0;
+        }
+        else if (str.equals("fps")) {
+            // Once per video frame, since the game can't act on input any more often
+            return fps;
+        }
+        else {
+            return Integer.parseInt(str);
+        }
+    }
+
+    private static int getSurroundDownmixValue(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String str = prefs.getString(SURROUND_DOWNMIX_PREF_STRING, DEFAULT_SURROUND_DOWNMIX);
+        if (str.equals("stereo")) {
+            return SURROUND_DOWNMIX_STEREO;
+        }
+        else if (str.equals("headphones")) {
+            return SURROUND_DOWNMIX_HEADPHONES;
+        }
+        else {
+            return SURROUND_DOWNMIX_SYSTEM;
+        }
+    }
+
     private static AnalogStickForScrolling getAnalogStickForScrollingValue(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
@@ -561,10 +632,14 @@ public class PreferenceConfiguration {
 
         config.videoFormat = getVideoFormatValue(context);
         config.framePacing = getFramePacingValue(context);
+        config.surroundDownmix = getSurroundDownmixValue(context);
+        config.jitterBufferMaxDepthMs = prefs.getInt(JITTER_BUFFER_MAX_DEPTH_PREF_STRING, DEFAULT_JITTER_BUFFER_MAX_DEPTH_MS);
+        config.adaptiveQuality = prefs.getBoolean(ADAPTIVE_QUALITY_PREF_STRING, DEFAULT_ADAPTIVE_QUALITY);
 
         config.analogStickForScrolling = getAnalogStickForScrollingValue(context);
 
         config.deadzonePercentage = prefs.getInt(DEADZONE_PREF_STRING, DEFAULT_DEADZONE);
+        config.controllerInputRate = getControllerInputRateValue(prefs, config.fps);
 
         config.oscOpacity = prefs.getInt(OSC_OPACITY_PREF_STRING, DEFAULT_OPACITY);
 
@@ -594,8 +669,14 @@ public class PreferenceConfiguration {
         config.flipFaceButtons = prefs.getBoolean(FLIP_FACE_BUTTONS_PREF_STRING, DEFAULT_FLIP_FACE_BUTTONS);
         config.touchscreenTrackpad = prefs.getBoolean(TOUCHSCREEN_TRACKPAD_PREF_STRING, DEFAULT_TOUCHSCREEN_TRACKPAD);
         config.enableLatencyToast = prefs.getBoolean(LATENCY_TOAST_PREF_STRING, DEFAULT_LATENCY_TOAST);
+        config.enableTelemetryLog = prefs.getBoolean(TELEMETRY_LOG_PREF_STRING, DEFAULT_TELEMETRY_LOG);
+        config.asyncDecoder = prefs.getBoolean(ASYNC_DECODER_PREF_STRING, DEFAULT_ASYNC_DECODER);
+        config.decoderCalibration = prefs.getBoolean(DECODER_CALIBRATION_PREF_STRING, DEFAULT_DECODER_CALIBRATION);
         config.absoluteMouseMode = prefs.getBoolean(ABSOLUTE_MOUSE_MODE_PREF_STRING, DEFAULT_ABSOLUTE_MOUSE_MODE);
         config.enableAudioFx = prefs.getBoolean(ENABLE_AUDIO_FX_PREF_STRING, DEFAULT_ENABLE_AUDIO_FX);
+        config.lowLatencyAudio = prefs.getBoolean(LOW_LATENCY_AUDIO_PREF_STRING, DEFAULT_LOW_LATENCY_AUDIO);
+        config.avSyncCorrection = prefs.getBoolean(AV_SYNC_CORRECTION_PREF_STRING, DEFAULT_AV_SYNC_CORRECTION);
+        config.floatAudio = prefs.getBoolean(FLOAT_AUDIO_PREF_STRING, DEFAULT_FLOAT_AUDIO);
         config.reduceRefreshRate = prefs.getBoolean(REDUCE_REFRESH_RATE_PREF_STRING, DEFAULT_REDUCE_REFRESH_RATE);
         config.fullRange = prefs.getBoolean(FULL_RANGE_PREF_STRING, DEFAULT_FULL_RANGE);
         config.gamepadTouchpadAsMouse = prefs.getBoolean(GAMEPAD_TOUCHPAD_AS_MOUSE_PREF_STRING, DEFAULT_GAMEPAD_TOUCHPAD_AS_MOUSE);
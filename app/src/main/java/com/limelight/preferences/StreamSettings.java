@@ -30,6 +30,7 @@ import android.view.WindowInsets;
 import com.limelight.LimeLog;
 import com.limelight.PcView;
 import com.limelight.R;
+import com.limelight.binding.audio.AAudioRenderer;
 import com.limelight.binding.video.MediaCodecHelper;
 import com.limelight.utils.Dialog;
 import com.limelight.utils.UiHelper;
@@ -572,6 +573,20 @@ public class StreamSettings extends Activity {
                 }
             });
 
+            // AAudio requires Oreo MR1 and a working libaaudio
+            if (!AAudioRenderer.isSupported()) {
+                PreferenceCategory category =
+                        (PreferenceCategory) findPreference("category_audio_settings");
+                category.removePreference(findPreference("checkbox_low_latency_audio"));
+            }
+
+            // The asynchronous MediaCodec API with a callback Handler requires Marshmallow
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                PreferenceCategory category =
+                        (PreferenceCategory) findPreference("category_advanced_settings");
+                category.removePreference(findPreference("checkbox_async_decoder"));
+            }
+
             // Remove HDR preference for devices below Nougat
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
                 LimeLog.info("Excluding HDR toggle based on OS");
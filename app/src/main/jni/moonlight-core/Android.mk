@@ -40,6 +40,9 @@ LOCAL_SRC_FILES := moonlight-common-c/src/AudioStream.c \
                    moonlight-common-c/enet/win32.c \
                    simplejni.c \
                    callbacks.c \
+                   aaudio_renderer.c \
+                   audio_downmix.c \
+                   audio_ring.c \
                    minisdl.c \
 
 
@@ -0,0 +1,378 @@
+#include <jni.h>
+
+#include <dlfcn.h>
+#include <pthread.h>
+#include <stdatomic.h>
+#include <stdint.h>
+#include <time.h>
+
+#include <android/log.h>
+
+#include "aaudio_renderer.h"
+#include "audio_ring.h"
+
+// Our NDK platform level is too old for the AAudio headers, so we declare what
+// we use from them here. These values are part of the stable NDK ABI.
+typedef struct AAudioStreamStruct AAudioStream;
+typedef struct AAudioStreamBuilderStruct AAudioStreamBuilder;
+typedef int32_t aaudio_result_t;
+
+#define AAUDIO_OK 0
+#define AAUDIO_ERROR_DISCONNECTED (-899)
+#define AAUDIO_DIRECTION_OUTPUT 0
+#define AAUDIO_FORMAT_PCM_I16 1
+#define AAUDIO_FORMAT_PCM_FLOAT 2
+#define AAUDIO_SHARING_MODE_EXCLUSIVE 0
+#define AAUDIO_PERFORMANCE_MODE_LOW_LATENCY 12
+#define AAUDIO_USAGE_GAME 14
+#define AAUDIO_CALLBACK_RESULT_CONTINUE 0
+
+typedef int32_t (*AAudioDataCallback)(AAudioStream* stream, void* userData, void* audioData, int32_t numFrames);
+typedef void (*AAudioErrorCallback)(AAudioStream* stream, void* userData, aaudio_result_t error);
+
+static struct {
+    aaudio_result_t (*createStreamBuilder)(AAudioStreamBuilder** builder);
+    void (*builderSetDirection)(AAudioStreamBuilder* builder, int32_t direction);
+    void (*builderSetSampleRate)(AAudioStreamBuilder* builder, int32_t sampleRate);
+    void (*builderSetChannelCount)(AAudioStreamBuilder* builder, int32_t channelCount);
+    void (*builderSetFormat)(AAudioStreamBuilder* builder, int32_t format);
+    void (*builderSetSharingMode)(AAudioStreamBuilder* builder, int32_t sharingMode);
+    void (*builderSetPerformanceMode)(AAudioStreamBuilder* builder, int32_t mode);
+    void (*builderSetUsage)(AAudioStreamBuilder* builder, int32_t usage);
+    void (*builderSetDataCallback)(AAudioStreamBuilder* builder, AAudioDataCallback callback, void* userData);
+    void (*builderSetErrorCallback)(AAudioStreamBuilder* builder, AAudioErrorCallback callback, void* userData);
+    aaudio_result_t (*builderOpenStream)(AAudioStreamBuilder* builder, AAudioStream** stream);
+    aaudio_result_t (*builderDelete)(AAudioStreamBuilder* builder);
+    aaudio_result_t (*streamRequestStart)(AAudioStream* stream);
+    aaudio_result_t (*streamRequestStop)(AAudioStream* stream);
+    aaudio_result_t (*streamClose)(AAudioStream* stream);
+    int32_t (*streamGetFramesPerBurst)(AAudioStream* stream);
+    aaudio_result_t (*streamSetBufferSizeInFrames)(AAudioStream* stream, int32_t numFrames);
+    int32_t (*streamGetSharingMode)(AAudioStream* stream);
+    int32_t (*streamGetPerformanceMode)(AAudioStream* stream);
+    int64_t (*streamGetFramesWritten)(AAudioStream* stream);
+    aaudio_result_t (*streamGetTimestamp)(AAudioStream* stream, clockid_t clockid,
+                                          int64_t* framePosition, int64_t* timeNanoseconds);
+} AAudio;
+
+// Only queue up to 40 ms of audio in addition to what AAudio is buffering, like
+// the AudioTrack renderer does
+#define MAX_QUEUED_AUDIO_MS 40
+
+// How long to wait before trying again when reopening a disconnected stream fails
+#define REOPEN_RETRY_INTERVAL_MS 1000
+
+static pthread_once_t LoadOnce = PTHREAD_ONCE_INIT;
+static bool Loaded;
+
+// Protects the stream from being closed while another thread is using it. The
+// data callback doesn't take this lock.
+static pthread_mutex_t StreamLock = PTHREAD_MUTEX_INITIALIZER;
+static AAudioStream* Stream;
+static bool Active;
+static bool Started;
+static atomic_bool Disconnected;
+static int64_t NextReopenNs;
+
+static int SampleRate;
+static int ChannelCount;
+static bool FloatSamples;
+
+// Written by the audio receive thread and read by the AAudio callback
+static AUDIO_RING Ring;
+
+#define LOAD_SYMBOL(field, name) \
+    if ((AAudio.field = dlsym(lib, name)) == NULL) { \
+        __android_log_print(ANDROID_LOG_WARN, "moonlight-common-c", "AAudio is missing %s", name); \
+        return; \
+    }
+
+static void LoadAAudio(void) {
+    void* lib = dlopen("libaaudio.so", RTLD_NOW);
+    if (lib == NULL) {
+        return;
+    }
+
+    LOAD_SYMBOL(createStreamBuilder, "AAudio_createStreamBuilder");
+    LOAD_SYMBOL(builderSetDirection, "AAudioStreamBuilder_setDirection");
+    LOAD_SYMBOL(builderSetSampleRate, "AAudioStreamBuilder_setSampleRate");
+    LOAD_SYMBOL(builderSetChannelCount, "AAudioStreamBuilder_setChannelCount");
+    LOAD_SYMBOL(builderSetFormat, "AAudioStreamBuilder_setFormat");
+    LOAD_SYMBOL(builderSetSharingMode, "AAudioStreamBuilder_setSharingMode");
+    LOAD_SYMBOL(builderSetPerformanceMode, "AAudioStreamBuilder_setPerformanceMode");
+    LOAD_SYMBOL(builderSetDataCallback, "AAudioStreamBuilder_setDataCallback");
+    LOAD_SYMBOL(builderSetErrorCallback, "AAudioStreamBuilder_setErrorCallback");
+    LOAD_SYMBOL(builderOpenStream, "AAudioStreamBuilder_openStream");
+    LOAD_SYMBOL(builderDelete, "AAudioStreamBuilder_delete");
+    LOAD_SYMBOL(streamRequestStart, "AAudioStream_requestStart");
+    LOAD_SYMBOL(streamRequestStop, "AAudioStream_requestStop");
+    LOAD_SYMBOL(streamClose, "AAudioStream_close");
+    LOAD_SYMBOL(streamGetFramesPerBurst, "AAudioStream_getFramesPerBurst");
+    LOAD_SYMBOL(streamSetBufferSizeInFrames, "AAudioStream_setBufferSizeInFrames");
+    LOAD_SYMBOL(streamGetSharingMode, "AAudioStream_getSharingMode");
+    LOAD_SYMBOL(streamGetPerformanceMode, "AAudioStream_getPerformanceMode");
+    LOAD_SYMBOL(streamGetFramesWritten, "AAudioStream_getFramesWritten");
+    LOAD_SYMBOL(streamGetTimestamp, "AAudioStream_getTimestamp");
+
+    // Usage was added in Android 9.0
+    AAudio.builderSetUsage = dlsym(lib, "AAudioStreamBuilder_setUsage");
+
+    Loaded = true;
+}
+
+bool AAudioRendererIsSupported(void) {
+    pthread_once(&LoadOnce, LoadAAudio);
+    return Loaded;
+}
+
+static int32_t DataCallback(AAudioStream* stream, void* userData, void* audioData, int32_t numFrames) {
+    AudioRingRead(&Ring, audioData, numFrames);
+    return AAUDIO_CALLBACK_RESULT_CONTINUE;
+}
+
+static void ErrorCallback(AAudioStream* stream, void* userData, aaudio_result_t error) {
+    __android_log_print(ANDROID_LOG_WARN, "moonlight-common-c", "AAudio stream error: %d", error);
+
+    // We can't close the stream from its own callback thread, so the audio
+    // receive thread will reopen it when the next samples arrive.
+    if (error == AAUDIO_ERROR_DISCONNECTED) {
+        atomic_store(&Disconnected, true);
+    }
+}
+
+static int OpenStream(void) {
+    AAudioStreamBuilder* builder;
+    aaudio_result_t err;
+
+    err = AAudio.createStreamBuilder(&builder);
+    if (err != AAUDIO_OK) {
+        return err;
+    }
+
+    AAudio.builderSetDirection(builder, AAUDIO_DIRECTION_OUTPUT);
+    AAudio.builderSetSampleRate(builder, SampleRate);
+    AAudio.builderSetChannelCount(builder, ChannelCount);
+    AAudio.builderSetFormat(builder, FloatSamples ? AAUDIO_FORMAT_PCM_FLOAT : AAUDIO_FORMAT_PCM_I16);
+    AAudio.builderSetPerformanceMode(builder, AAUDIO_PERFORMANCE_MODE_LOW_LATENCY);
+
+    // AAudio falls back to shared mode if exclusive mode isn't available
+    AAudio.builderSetSharingMode(builder, AAUDIO_SHARING_MODE_EXCLUSIVE);
+
+    if (AAudio.builderSetUsage != NULL) {
+        AAudio.builderSetUsage(builder, AAUDIO_USAGE_GAME);
+    }
+
+    AAudio.builderSetDataCallback(builder, DataCallback, NULL);
+    AAudio.builderSetErrorCallback(builder, ErrorCallback, NULL);
+
+    err = AAudio.builderOpenStream(builder, &Stream);
+    AAudio.builderDelete(builder);
+    if (err != AAUDIO_OK) {
+        Stream = NULL;
+        return err;
+    }
+
+    // Double buffering is the lowest buffer size that doesn't glitch on most devices
+    int32_t framesPerBurst = AAudio.streamGetFramesPerBurst(Stream);
+    AAudio.streamSetBufferSizeInFrames(Stream, framesPerBurst * 2);
+
+    __android_log_print(ANDROID_LOG_INFO, "moonlight-common-c",
+                        "AAudio stream opened: %d frames per burst, sharing mode %d, performance mode %d",
+                        framesPerBurst, AAudio.streamGetSharingMode(Stream), AAudio.streamGetPerformanceMode(Stream));
+    return AAUDIO_OK;
+}
+
+int AAudioRendererInit(int sampleRate, int channelCount, int samplesPerFrame, bool floatSamples) {
+    int err;
+
+    if (!AAudioRendererIsSupported()) {
+        return -1;
+    }
+
+    SampleRate = sampleRate;
+    ChannelCount = channelCount;
+    FloatSamples = floatSamples;
+
+    if (AudioRingInit(&Ring, sampleRate * MAX_QUEUED_AUDIO_MS / 1000, samplesPerFrame,
+                      channelCount * (floatSamples ? sizeof(float) : sizeof(short))) != 0) {
+        return -1;
+    }
+    atomic_store(&Disconnected, false);
+    NextReopenNs = 0;
+
+    pthread_mutex_lock(&StreamLock);
+    err = OpenStream();
+    Active = err == AAUDIO_OK;
+    Started = false;
+    pthread_mutex_unlock(&StreamLock);
+
+    if (err != AAUDIO_OK) {
+        __android_log_print(ANDROID_LOG_ERROR, "moonlight-common-c", "Failed to open AAudio stream: %d", err);
+        AudioRingCleanup(&Ring);
+        return err;
+    }
+
+    return 0;
+}
+
+int AAudioRendererStart(void) {
+    int err = -1;
+
+    pthread_mutex_lock(&StreamLock);
+    if (Stream != NULL) {
+        err = AAudio.streamRequestStart(Stream);
+        Started = err == AAUDIO_OK;
+    }
+    pthread_mutex_unlock(&StreamLock);
+
+    return err;
+}
+
+void AAudioRendererStop(void) {
+    pthread_mutex_lock(&StreamLock);
+    if (Stream != NULL) {
+        AAudio.streamRequestStop(Stream);
+    }
+    Started = false;
+    pthread_mutex_unlock(&StreamLock);
+}
+
+void AAudioRendererCleanup(void) {
+    pthread_mutex_lock(&StreamLock);
+    if (Stream != NULL) {
+        // Closing stops the callbacks, so the ring is ours after this
+        AAudio.streamClose(Stream);
+        Stream = NULL;
+    }
+    Active = false;
+    pthread_mutex_unlock(&StreamLock);
+
+    __android_log_print(ANDROID_LOG_INFO, "moonlight-common-c", "AAudio underruns: %u, dropped packets: %u",
+                        atomic_load(&Ring.underruns), atomic_load(&Ring.overruns));
+
+    AudioRingCleanup(&Ring);
+}
+
+bool AAudioRendererIsActive(void) {
+    return Active;
+}
+
+static int64_t GetMonotonicTimeNs(void) {
+    struct timespec now;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+static void ReopenStream(void) {
+    int err;
+
+    // We're called for every packet while disconnected, so a failed reopen is
+    // only retried every REOPEN_RETRY_INTERVAL_MS
+    if (GetMonotonicTimeNs() < NextReopenNs) {
+        return;
+    }
+
+    pthread_mutex_lock(&StreamLock);
+    if (Stream != NULL) {
+        AAudio.streamClose(Stream);
+        Stream = NULL;
+    }
+
+    // The new stream is probably on a different device, so stale audio is useless
+    AudioRingDiscard(&Ring);
+    atomic_store(&Disconnected, false);
+
+    err = OpenStream();
+    if (err == AAUDIO_OK && Started) {
+        err = AAudio.streamRequestStart(Stream);
+    }
+    pthread_mutex_unlock(&StreamLock);
+
+    if (err != AAUDIO_OK) {
+        __android_log_print(ANDROID_LOG_ERROR, "moonlight-common-c", "Failed to reopen AAudio stream: %d", err);
+
+        // Stay disconnected so the audio receive thread tries again later. The ring
+        // fills up in the meantime, and is discarded once we have a stream again.
+        NextReopenNs = GetMonotonicTimeNs() + REOPEN_RETRY_INTERVAL_MS * 1000000LL;
+        atomic_store(&Disconnected, true);
+    }
+}
+
+// Returns where the next packet should be decoded, or NULL if too much audio is
+// already queued. The packet can't be longer than the samplesPerFrame given to init,
+// and its samples must be in the format given to init.
+void* AAudioRendererBeginWrite(void) {
+    if (atomic_load(&Disconnected)) {
+        ReopenStream();
+    }
+
+    return AudioRingBeginWrite(&Ring);
+}
+
+void AAudioRendererCommitWrite(int frameCount) {
+    AudioRingCommitWrite(&Ring, frameCount);
+}
+
+unsigned int AAudioRendererGetPcmCopies(void) {
+    return atomic_load(&Ring.pcmCopies);
+}
+
+// Returns the time until audio we queue now will be heard, or -1 if unknown
+int AAudioRendererGetLatencyMs(void) {
+    int64_t framePosition, timeNs;
+    int64_t framesWritten;
+    int latencyMs = -1;
+
+    pthread_mutex_lock(&StreamLock);
+    if (Stream != NULL && Started &&
+            AAudio.streamGetTimestamp(Stream, CLOCK_MONOTONIC, &framePosition, &timeNs) == AAUDIO_OK) {
+        framesWritten = AAudio.streamGetFramesWritten(Stream);
+
+        // When the last frame handed to AAudio will be presented, according to
+        // the timestamp of a frame that was presented recently
+        int64_t presentNs = timeNs + (framesWritten - framePosition) * 1000000000LL / SampleRate;
+        int64_t nowNs = GetMonotonicTimeNs();
+
+        uint32_t queuedFrames = AudioRingGetQueuedFrames(&Ring);
+        latencyMs = (int)((presentNs - nowNs) / 1000000 + (int64_t)queuedFrames * 1000 / SampleRate);
+        if (latencyMs < 0) {
+            latencyMs = 0;
+        }
+    }
+    pthread_mutex_unlock(&StreamLock);
+
+    return latencyMs;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_isNativeAudioSupported(JNIEnv *env, jclass clazz) {
+    return AAudioRendererIsSupported();
+}
+
+JNIEXPORT jint JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_setupNativeAudio(JNIEnv *env, jclass clazz, jint sampleRate,
+                                                            jint channelCount, jint samplesPerFrame,
+                                                            jboolean floatSamples) {
+    return AAudioRendererInit(sampleRate, channelCount, samplesPerFrame, floatSamples);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_startNativeAudio(JNIEnv *env, jclass clazz) {
+    return AAudioRendererStart();
+}
+
+JNIEXPORT void JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_stopNativeAudio(JNIEnv *env, jclass clazz) {
+    AAudioRendererStop();
+}
+
+JNIEXPORT void JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_cleanupNativeAudio(JNIEnv *env, jclass clazz) {
+    AAudioRendererCleanup();
+}
+
+JNIEXPORT jint JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_getNativeAudioLatencyMs(JNIEnv *env, jclass clazz) {
+    return AAudioRendererGetLatencyMs();
+}
@@ -0,0 +1,17 @@
+#pragma once
+
+#include <stdbool.h>
+
+// AAudio output for decoded audio that never leaves native code. AAudio is loaded at
+// runtime, since our minimum API level predates it.
+
+bool AAudioRendererIsSupported(void);
+int AAudioRendererInit(int sampleRate, int channelCount, int samplesPerFrame, bool floatSamples);
+int AAudioRendererStart(void);
+void AAudioRendererStop(void);
+void AAudioRendererCleanup(void);
+bool AAudioRendererIsActive(void);
+void* AAudioRendererBeginWrite(void);
+void AAudioRendererCommitWrite(int frameCount);
+unsigned int AAudioRendererGetPcmCopies(void);
+int AAudioRendererGetLatencyMs(void);
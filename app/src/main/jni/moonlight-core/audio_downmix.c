@@ -0,0 +1,350 @@
+#include <jni.h>
+
+#include <math.h>
+#include <stdint.h>
+#include <string.h>
+#include <time.h>
+
+#include <android/log.h>
+
+#include "audio_downmix.h"
+
+#define MAX_INPUT_CHANNELS 8
+
+// Matrix coefficients are Q14. Neither output may take more than full scale from all
+// inputs together, so the sums fit in 32 bits.
+#define COEFFICIENT_BITS 14
+
+// Enough for the largest interaural time difference at 48 kHz, with room to spare
+#define DELAY_LINE_LENGTH 64
+
+// Dimensions of an average head, for the interaural time difference
+#define HEAD_RADIUS_M 0.0875f
+#define SPEED_OF_SOUND_MPS 343.0f
+
+// Sounds from behind are duller than sounds from the front, which is most of what lets
+// us tell them apart
+#define REAR_CUTOFF_HZ 6000.0f
+
+// A speaker's virtual position and how it reaches each ear
+typedef struct {
+    bool left;
+    bool centered;
+    float nearGain;
+    float farGain;
+    int farDelay;
+    float farAlpha;
+    float rearAlpha;
+
+    float rearState;
+    float farState;
+    float delayLine[DELAY_LINE_LENGTH];
+} VIRTUAL_SPEAKER;
+
+static int Mode;
+static int InputChannels;
+static int SampleRate;
+static int16_t Matrix[2][MAX_INPUT_CHANNELS];
+static float FloatMatrix[2][MAX_INPUT_CHANNELS];
+static VIRTUAL_SPEAKER Speakers[MAX_INPUT_CHANNELS];
+static unsigned int DelayPosition;
+
+// CPU time spent mixing, to see what this costs on slower devices
+static uint64_t ProcessNs;
+static uint64_t ProcessedFrames;
+
+// Speaker angles in degrees, clockwise from straight ahead, in the channel order we
+// get from the decoder. NAN marks the LFE channel.
+static const float SpeakerAngles51[] = { -30, 30, 0, NAN, -110, 110 };
+static const float SpeakerAngles71[] = { -30, 30, 0, NAN, -150, 150, -90, 90 };
+
+// The LFE channel has no position, so it's played equally in both ears
+#define LFE_HEADPHONE_GAIN 0.5f
+
+static uint64_t GetThreadCpuTimeNs(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &ts);
+    return ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+// Returns the coefficient for a one pole low pass filter
+static float GetLowPassAlpha(float cutoffHz) {
+    return 1.0f - expf(-2.0f * (float)M_PI * cutoffHz / SampleRate);
+}
+
+// The matrix comes from AudioDownmix.createStereoMatrix(), which scales it so neither
+// output can clip. We refuse any matrix that could overflow our sums instead.
+static int SetupMatrix(const float* coefficients) {
+    for (int out = 0; out < 2; out++) {
+        float sum = 0;
+        for (int ch = 0; ch < InputChannels; ch++) {
+            sum += fabsf(coefficients[out * InputChannels + ch]);
+        }
+        if (sum > 1.001f) {
+            return -1;
+        }
+    }
+
+    for (int out = 0; out < 2; out++) {
+        for (int ch = 0; ch < InputChannels; ch++) {
+            FloatMatrix[out][ch] = coefficients[out * InputChannels + ch];
+            Matrix[out][ch] = (int16_t)lrintf(FloatMatrix[out][ch] * (1 << COEFFICIENT_BITS));
+        }
+    }
+
+    return 0;
+}
+
+// Models each speaker as a sound source around a spherical head. The far ear hears it
+// later (interaural time difference), quieter (level difference) and duller (head
+// shadow) than the near ear does.
+static void SetupSpeakers(void) {
+    const float* angles = InputChannels == 8 ? SpeakerAngles71 : SpeakerAngles51;
+    float gainSum = 0;
+
+    memset(Speakers, 0, sizeof(Speakers));
+    for (int ch = 0; ch < InputChannels; ch++) {
+        VIRTUAL_SPEAKER* speaker = &Speakers[ch];
+
+        if (isnan(angles[ch])) {
+            speaker->centered = true;
+            speaker->nearGain = speaker->farGain = LFE_HEADPHONE_GAIN;
+            gainSum += LFE_HEADPHONE_GAIN;
+            continue;
+        }
+
+        float azimuth = angles[ch] * (float)M_PI / 180;
+        float lateral = asinf(fabsf(sinf(azimuth))); // Rear speakers mirror onto the front
+        float shadow = sinf(lateral);
+
+        speaker->left = azimuth < 0;
+        speaker->centered = angles[ch] == 0;
+        speaker->nearGain = 1.0f;
+        speaker->farGain = speaker->centered ? 1.0f : 1.0f - 0.5f * shadow;
+        speaker->farDelay = (int)lrintf(HEAD_RADIUS_M / SPEED_OF_SOUND_MPS * (lateral + shadow) * SampleRate);
+        speaker->farAlpha = GetLowPassAlpha(20000.0f - 17000.0f * shadow);
+        if (fabsf(azimuth) > (float)M_PI / 2) {
+            speaker->rearAlpha = GetLowPassAlpha(REAR_CUTOFF_HZ);
+        }
+
+        gainSum += speaker->nearGain;
+    }
+
+    // Unlike the matrix, we keep the total power the same rather than making clipping
+    // impossible, since that would make a single speaker far too quiet. Speakers rarely
+    // all peak together, and any that do are saturated.
+    if (gainSum > 1.0f) {
+        float scale = 1.0f / sqrtf(gainSum);
+        for (int ch = 0; ch < InputChannels; ch++) {
+            Speakers[ch].nearGain *= scale;
+            Speakers[ch].farGain *= scale;
+        }
+    }
+
+    DelayPosition = 0;
+}
+
+static inline short Saturate(int32_t sample) {
+    if (sample > INT16_MAX) {
+        return INT16_MAX;
+    }
+    else if (sample < INT16_MIN) {
+        return INT16_MIN;
+    }
+    return (short)sample;
+}
+
+// Forced inline so the channel count is a constant, which lets the compiler unroll the
+// inner loops and vectorize them
+static inline __attribute__((always_inline))
+void MixMatrix(const short* restrict input, short* restrict output, int frameCount, const int channels) {
+    for (int i = 0; i < frameCount; i++) {
+        int32_t left = 0, right = 0;
+        for (int ch = 0; ch < channels; ch++) {
+            left += input[ch] * Matrix[0][ch];
+            right += input[ch] * Matrix[1][ch];
+        }
+        output[0] = Saturate((left + (1 << (COEFFICIENT_BITS - 1))) >> COEFFICIENT_BITS);
+        output[1] = Saturate((right + (1 << (COEFFICIENT_BITS - 1))) >> COEFFICIENT_BITS);
+
+        input += channels;
+        output += 2;
+    }
+}
+
+static inline __attribute__((always_inline))
+void MixMatrixFloat(const float* restrict input, float* restrict output, int frameCount, const int channels) {
+    for (int i = 0; i < frameCount; i++) {
+        float left = 0, right = 0;
+        for (int ch = 0; ch < channels; ch++) {
+            left += input[ch] * FloatMatrix[0][ch];
+            right += input[ch] * FloatMatrix[1][ch];
+        }
+        output[0] = left;
+        output[1] = right;
+
+        input += channels;
+        output += 2;
+    }
+}
+
+// Mixes one frame for headphones. The filters are linear, so this works the same
+// whether the samples are scaled like 16-bit or float samples.
+static void MixHeadphoneFrame(const float* samples, float* left, float* right) {
+    *left = *right = 0;
+
+    for (int ch = 0; ch < InputChannels; ch++) {
+        VIRTUAL_SPEAKER* speaker = &Speakers[ch];
+        float sample = samples[ch];
+
+        if (speaker->centered) {
+            *left += sample * speaker->nearGain;
+            *right += sample * speaker->farGain;
+            continue;
+        }
+
+        if (speaker->rearAlpha != 0) {
+            speaker->rearState += speaker->rearAlpha * (sample - speaker->rearState);
+            sample = speaker->rearState;
+        }
+
+        speaker->delayLine[DelayPosition] = sample;
+        float delayed = speaker->delayLine[(DelayPosition - speaker->farDelay) & (DELAY_LINE_LENGTH - 1)];
+        speaker->farState += speaker->farAlpha * (delayed - speaker->farState);
+
+        float nearSample = sample * speaker->nearGain;
+        float farSample = speaker->farState * speaker->farGain;
+        if (speaker->left) {
+            *left += nearSample;
+            *right += farSample;
+        }
+        else {
+            *left += farSample;
+            *right += nearSample;
+        }
+    }
+
+    DelayPosition = (DelayPosition + 1) & (DELAY_LINE_LENGTH - 1);
+}
+
+static void MixHeadphones(const short* input, short* output, int frameCount) {
+    float samples[MAX_INPUT_CHANNELS];
+    float left, right;
+
+    for (int i = 0; i < frameCount; i++) {
+        for (int ch = 0; ch < InputChannels; ch++) {
+            samples[ch] = input[ch];
+        }
+
+        MixHeadphoneFrame(samples, &left, &right);
+        output[0] = Saturate((int32_t)lrintf(left));
+        output[1] = Saturate((int32_t)lrintf(right));
+
+        input += InputChannels;
+        output += 2;
+    }
+}
+
+static void MixHeadphonesFloat(const float* input, float* output, int frameCount) {
+    for (int i = 0; i < frameCount; i++) {
+        MixHeadphoneFrame(input, &output[0], &output[1]);
+
+        input += InputChannels;
+        output += 2;
+    }
+}
+
+bool AudioDownmixIsActive(void) {
+    return Mode != DOWNMIX_MODE_NONE;
+}
+
+int AudioDownmixGetInputChannelCount(void) {
+    return InputChannels;
+}
+
+// Mixes interleaved input in our decoder's channel order into interleaved stereo
+void AudioDownmixProcess(const short* input, short* output, int frameCount) {
+    uint64_t startNs = GetThreadCpuTimeNs();
+
+    if (Mode == DOWNMIX_MODE_HEADPHONES) {
+        MixHeadphones(input, output, frameCount);
+    }
+    else if (InputChannels == 8) {
+        MixMatrix(input, output, frameCount, 8);
+    }
+    else {
+        MixMatrix(input, output, frameCount, 6);
+    }
+
+    ProcessNs += GetThreadCpuTimeNs() - startNs;
+    ProcessedFrames += frameCount;
+}
+
+// Like AudioDownmixProcess(), but for float samples. The output isn't clipped here,
+// since the audio output clamps float samples itself.
+void AudioDownmixProcessFloat(const float* input, float* output, int frameCount) {
+    uint64_t startNs = GetThreadCpuTimeNs();
+
+    if (Mode == DOWNMIX_MODE_HEADPHONES) {
+        MixHeadphonesFloat(input, output, frameCount);
+    }
+    else if (InputChannels == 8) {
+        MixMatrixFloat(input, output, frameCount, 8);
+    }
+    else {
+        MixMatrixFloat(input, output, frameCount, 6);
+    }
+
+    ProcessNs += GetThreadCpuTimeNs() - startNs;
+    ProcessedFrames += frameCount;
+}
+
+void AudioDownmixCleanup(void) {
+    if (Mode != DOWNMIX_MODE_NONE && ProcessedFrames > 0) {
+        float seconds = (float)ProcessedFrames / SampleRate;
+        __android_log_print(ANDROID_LOG_INFO, "moonlight-common-c",
+                            "%s downmix from %d channels: %.3f ms of CPU time per second of audio",
+                            Mode == DOWNMIX_MODE_HEADPHONES ? "Headphone" : "Stereo",
+                            InputChannels, ProcessNs / 1000000.0f / seconds);
+    }
+
+    Mode = DOWNMIX_MODE_NONE;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_setupAudioDownmix(JNIEnv *env, jclass clazz, jint channelCount,
+                                                             jint sampleRate, jint mode, jfloatArray matrix) {
+    Mode = DOWNMIX_MODE_NONE;
+    ProcessNs = ProcessedFrames = 0;
+
+    if (mode == DOWNMIX_MODE_NONE) {
+        return 0;
+    }
+    else if (channelCount != 6 && channelCount != 8) {
+        return -1;
+    }
+
+    InputChannels = channelCount;
+    SampleRate = sampleRate;
+
+    if (mode == DOWNMIX_MODE_STEREO) {
+        if (matrix == NULL || (*env)->GetArrayLength(env, matrix) != 2 * channelCount) {
+            return -1;
+        }
+
+        jfloat coefficients[2 * MAX_INPUT_CHANNELS];
+        (*env)->GetFloatArrayRegion(env, matrix, 0, 2 * channelCount, coefficients);
+        if (SetupMatrix(coefficients) != 0) {
+            return -1;
+        }
+    }
+    else if (mode == DOWNMIX_MODE_HEADPHONES) {
+        SetupSpeakers();
+    }
+    else {
+        return -1;
+    }
+
+    Mode = mode;
+    return 0;
+}
@@ -0,0 +1,17 @@
+#pragma once
+
+#include <stdbool.h>
+
+// Mixes decoded surround audio down to stereo, either through a mixing matrix or
+// through a model of how each speaker would sound from its position around a listener
+// wearing headphones.
+
+#define DOWNMIX_MODE_NONE 0
+#define DOWNMIX_MODE_STEREO 1
+#define DOWNMIX_MODE_HEADPHONES 2
+
+bool AudioDownmixIsActive(void);
+int AudioDownmixGetInputChannelCount(void);
+void AudioDownmixProcess(const short* input, short* output, int frameCount);
+void AudioDownmixProcessFloat(const float* input, float* output, int frameCount);
+void AudioDownmixCleanup(void);
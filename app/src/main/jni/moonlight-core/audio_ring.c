@@ -0,0 +1,110 @@
+#include <stdlib.h>
+#include <string.h>
+
+#include "audio_ring.h"
+
+// Sizes the ring for up to maxQueuedFrames of queued audio, in packets of at most
+// packetFrames frames of frameBytes each
+int AudioRingInit(PAUDIO_RING ring, uint32_t maxQueuedFrames, uint32_t packetFrames, uint32_t frameBytes) {
+    uint32_t ringFrames;
+
+    // The ring must hold the most we'll queue plus one more packet, rounded up
+    // to a power of two so the positions can wrap freely
+    ringFrames = 1;
+    while (ringFrames < maxQueuedFrames + packetFrames) {
+        ringFrames <<= 1;
+    }
+
+    ring->buffer = malloc((ringFrames + packetFrames) * frameBytes);
+    if (ring->buffer == NULL) {
+        return -1;
+    }
+
+    ring->mask = ringFrames - 1;
+    ring->frameBytes = frameBytes;
+    ring->maxQueuedFrames = maxQueuedFrames;
+    atomic_store(&ring->readPos, 0);
+    atomic_store(&ring->writePos, 0);
+    atomic_store(&ring->underruns, 0);
+    atomic_store(&ring->overruns, 0);
+    atomic_store(&ring->pcmCopies, 0);
+    return 0;
+}
+
+void AudioRingCleanup(PAUDIO_RING ring) {
+    free(ring->buffer);
+    ring->buffer = NULL;
+}
+
+// Returns where the next packet should be decoded, or NULL if too much audio is
+// already queued. Called by the producer.
+void* AudioRingBeginWrite(PAUDIO_RING ring) {
+    uint32_t writePos = atomic_load_explicit(&ring->writePos, memory_order_relaxed);
+    uint32_t readPos = atomic_load_explicit(&ring->readPos, memory_order_acquire);
+    if (writePos - readPos > ring->maxQueuedFrames) {
+        atomic_fetch_add_explicit(&ring->overruns, 1, memory_order_relaxed);
+        return NULL;
+    }
+
+    return &ring->buffer[(writePos & ring->mask) * ring->frameBytes];
+}
+
+// Queues the packet decoded where AudioRingBeginWrite() said. Called by the producer.
+void AudioRingCommitWrite(PAUDIO_RING ring, uint32_t frameCount) {
+    uint32_t writePos = atomic_load_explicit(&ring->writePos, memory_order_relaxed);
+    uint32_t start = writePos & ring->mask;
+    uint32_t ringFrames = ring->mask + 1;
+
+    // Move anything decoded past the end of the ring back to the start
+    if (start + frameCount > ringFrames) {
+        memcpy(ring->buffer, &ring->buffer[ringFrames * ring->frameBytes],
+               (start + frameCount - ringFrames) * ring->frameBytes);
+        atomic_fetch_add_explicit(&ring->pcmCopies, 1, memory_order_relaxed);
+    }
+
+    atomic_store_explicit(&ring->writePos, writePos + frameCount, memory_order_release);
+}
+
+// Fills the output with queued frames, and silence for what isn't queued. Called by
+// the consumer.
+void AudioRingRead(PAUDIO_RING ring, void* output, uint32_t frameCount) {
+    uint8_t* out = output;
+    uint32_t readPos = atomic_load_explicit(&ring->readPos, memory_order_relaxed);
+    uint32_t writePos = atomic_load_explicit(&ring->writePos, memory_order_acquire);
+    uint32_t frames = writePos - readPos;
+
+    if (frames > frameCount) {
+        frames = frameCount;
+    }
+
+    // Copy out of the ring in up to two pieces if we wrap around
+    uint32_t start = readPos & ring->mask;
+    uint32_t firstFrames = ring->mask + 1 - start;
+    if (firstFrames > frames) {
+        firstFrames = frames;
+    }
+    memcpy(out, &ring->buffer[start * ring->frameBytes], firstFrames * ring->frameBytes);
+    memcpy(&out[firstFrames * ring->frameBytes], ring->buffer, (frames - firstFrames) * ring->frameBytes);
+    if (frames != 0) {
+        atomic_fetch_add_explicit(&ring->pcmCopies, 1, memory_order_relaxed);
+    }
+
+    if (frames < frameCount) {
+        // Running dry before the first samples arrive isn't an underrun
+        memset(&out[frames * ring->frameBytes], 0, (frameCount - frames) * ring->frameBytes);
+        if (writePos != 0) {
+            atomic_fetch_add_explicit(&ring->underruns, 1, memory_order_relaxed);
+        }
+    }
+
+    atomic_store_explicit(&ring->readPos, readPos + frames, memory_order_release);
+}
+
+// Drops everything queued. Only safe while the consumer isn't running.
+void AudioRingDiscard(PAUDIO_RING ring) {
+    atomic_store(&ring->readPos, atomic_load(&ring->writePos));
+}
+
+uint32_t AudioRingGetQueuedFrames(PAUDIO_RING ring) {
+    return atomic_load(&ring->writePos) - atomic_load(&ring->readPos);
+}
@@ -0,0 +1,30 @@
+#pragma once
+
+#include <stdatomic.h>
+#include <stdint.h>
+
+// Queue of decoded audio frames between one producer (the audio receive thread) and
+// one consumer (the audio output's callback). Packets are decoded straight into the
+// ring. There's room for one more packet past the end of the ring, so a packet that
+// wraps around can still be decoded in one piece.
+//
+// This has no Android dependencies, so it can be tested on the build machine.
+typedef struct {
+    uint8_t* buffer;
+    uint32_t mask;
+    uint32_t frameBytes;
+    uint32_t maxQueuedFrames;
+    atomic_uint readPos;
+    atomic_uint writePos;
+    atomic_uint underruns;
+    atomic_uint overruns;
+    atomic_uint pcmCopies;
+} AUDIO_RING, *PAUDIO_RING;
+
+int AudioRingInit(PAUDIO_RING ring, uint32_t maxQueuedFrames, uint32_t packetFrames, uint32_t frameBytes);
+void AudioRingCleanup(PAUDIO_RING ring);
+void* AudioRingBeginWrite(PAUDIO_RING ring);
+void AudioRingCommitWrite(PAUDIO_RING ring, uint32_t frameCount);
+void AudioRingRead(PAUDIO_RING ring, void* output, uint32_t frameCount);
+void AudioRingDiscard(PAUDIO_RING ring);
+uint32_t AudioRingGetQueuedFrames(PAUDIO_RING ring);
@@ -1,7 +1,10 @@
 #include <jni.h>
 
 #include <pthread.h>
+#include <stdatomic.h>
+#include <stdlib.h>
 #include <string.h>
+#include <time.h>
 
 #include <Limelight.h>
 
@@ -10,6 +13,9 @@
 
 #include <cpu-features.h>
 
+#include "aaudio_renderer.h"
+#include "audio_downmix.h"
+
 static OpusMSDecoder* Decoder;
 static OPUS_MULTISTREAM_CONFIGURATION OpusConfig;
 
@@ -22,11 +28,14 @@ static jmethodID BridgeDrStartMethod;
 static jmethodID BridgeDrStopMethod;
 static jmethodID BridgeDrCleanupMethod;
 static jmethodID BridgeDrSubmitDecodeUnitMethod;
+static jmethodID BridgeDrSubmitDecodeUnitZeroCopyMethod;
+static jmethodID BridgeDrSupportsZeroCopyMethod;
 static jmethodID BridgeArInitMethod;
 static jmethodID BridgeArStartMethod;
 static jmethodID BridgeArStopMethod;
 static jmethodID BridgeArCleanupMethod;
 static jmethodID BridgeArPlaySampleMethod;
+static jmethodID BridgeArPlaySampleFloatMethod;
 static jmethodID BridgeClStageStartingMethod;
 static jmethodID BridgeClStageCompleteMethod;
 static jmethodID BridgeClStageFailedMethod;
@@ -39,7 +48,49 @@ static jmethodID BridgeClRumbleTriggersMethod;
 static jmethodID BridgeClSetMotionEventStateMethod;
 static jmethodID BridgeClSetControllerLEDMethod;
 static jbyteArray DecodedFrameBuffer;
-static jshortArray DecodedAudioBuffer;
+static bool ZeroCopySubmission;
+static PDECODE_UNIT PendingDecodeUnit;
+static jarray DecodedAudioBuffer;
+static bool NativeAudioOutput;
+
+// Set by the audio renderer during setup. Opus decodes to float internally, so float
+// output saves converting to 16-bit and back again in the platform's mixer.
+static bool FloatAudioOutput;
+static int SampleSize;
+
+// Surround audio being downmixed to stereo is decoded here first
+static void* DownmixInputBuffer;
+static int OutputChannelCount;
+
+// When native output has no room for a packet, the first packet we drop is kept so the
+// next one can be faded in from it. Any more are decoded into the discard buffer.
+static void* SpliceAudioBuffer;
+static void* DiscardAudioBuffer;
+static bool SplicePending;
+
+#define CROSSFADE_MS 2.5f
+
+// Mirrors AudioStats in Java. These are counted on the audio thread and read from
+// the UI thread, so they're atomic.
+static struct {
+    atomic_int packetsReceived;
+    atomic_int packetsLost;
+    atomic_int packetsDropped;
+    atomic_int splicesSmoothed;
+} AudioRecoveryStats;
+
+static void IncrementAudioRecoveryStat(atomic_int* stat) {
+    atomic_fetch_add_explicit(stat, 1, memory_order_relaxed);
+}
+
+// Counts the overhead of getting each packet of audio to the output, so the Java and
+// native audio paths can be compared
+static struct {
+    uint64_t frames;
+    uint64_t jniCalls;
+    uint64_t pcmCopies;
+    uint64_t cpuTimeNs;
+} AudioPathStats;
 
 void DetachThread(void* context) {
     (*JVM)->DetachCurrentThread(JVM);
@@ -86,11 +137,14 @@ Java_com_limelight_nvstream_jni_MoonBridge_init(JNIEnv *env, jclass clazz) {
     BridgeDrStopMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrStop", "()V");
     BridgeDrCleanupMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrCleanup", "()V");
     BridgeDrSubmitDecodeUnitMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrSubmitDecodeUnit", "([BIIIICJJ)I");
+    BridgeDrSubmitDecodeUnitZeroCopyMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrSubmitDecodeUnitZeroCopy", "(IIICJJ)I");
+    BridgeDrSupportsZeroCopyMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeDrSupportsZeroCopy", "()Z");
     BridgeArInitMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArInit", "(III)I");
     BridgeArStartMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArStart", "()V");
     BridgeArStopMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArStop", "()V");
     BridgeArCleanupMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArCleanup", "()V");
     BridgeArPlaySampleMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArPlaySample", "([S)V");
+    BridgeArPlaySampleFloatMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeArPlaySampleFloat", "([F)V");
     BridgeClStageStartingMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeClStageStarting", "(I)V");
     BridgeClStageCompleteMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeClStageComplete", "(I)V");
     BridgeClStageFailedMethod = (*env)->GetStaticMethodID(env, clazz, "bridgeClStageFailed", "(II)V");
@@ -117,6 +171,13 @@ int BridgeDrSetup(int videoFormat, int width, int height, int redrawRate, void*
         return err;
     }
 
+    // If the renderer supports it, picture data will be copied directly from our
+    // packet buffers into the decoder's input buffer rather than through a Java array.
+    ZeroCopySubmission = (*env)->CallStaticBooleanMethod(env, GlobalBridgeClass, BridgeDrSupportsZeroCopyMethod);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+
     // Use a 32K frame buffer that will increase if needed
     DecodedFrameBuffer = (*env)->NewGlobalRef(env, (*env)->NewByteArray(env, 32768));
 
@@ -143,14 +204,21 @@ void BridgeDrCleanup(void) {
     (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeDrCleanupMethod);
 }
 
+// Increases the size of our frame data buffer if the data won't fit
+static void EnsureFrameBufferLength(JNIEnv* env, int length) {
+    if ((*env)->GetArrayLength(env, DecodedFrameBuffer) < length) {
+        (*env)->DeleteGlobalRef(env, DecodedFrameBuffer);
+        DecodedFrameBuffer = (*env)->NewGlobalRef(env, (*env)->NewByteArray(env, length));
+    }
+}
+
 int BridgeDrSubmitDecodeUnit(PDECODE_UNIT decodeUnit) {
     JNIEnv* env = GetThreadEnv();
     int ret;
 
-    // Increase the size of our frame data buffer if our frame won't fit
-    if ((*env)->GetArrayLength(env, DecodedFrameBuffer) < decodeUnit->fullLength) {
-        (*env)->DeleteGlobalRef(env, DecodedFrameBuffer);
-        DecodedFrameBuffer = (*env)->NewGlobalRef(env, (*env)->NewByteArray(env, decodeUnit->fullLength));
+    // In zero-copy mode, only parameter sets go through the frame data buffer
+    if (!ZeroCopySubmission) {
+        EnsureFrameBufferLength(env, decodeUnit->fullLength);
     }
 
     PLENTRY currentEntry;
@@ -161,6 +229,10 @@ int BridgeDrSubmitDecodeUnit(PDECODE_UNIT decodeUnit) {
     while (currentEntry != NULL) {
         // Submit parameter set NALUs separately from picture data
         if (currentEntry->bufferType != BUFFER_TYPE_PICDATA) {
+            if (ZeroCopySubmission) {
+                EnsureFrameBufferLength(env, currentEntry->length);
+            }
+
             // Use the beginning of the buffer each time since this is a separate
             // invocation of the decoder each time.
             (*env)->SetByteArrayRegion(env, DecodedFrameBuffer, 0, currentEntry->length, (jbyte*)currentEntry->data);
@@ -179,17 +251,31 @@ int BridgeDrSubmitDecodeUnit(PDECODE_UNIT decodeUnit) {
             }
         }
         else {
-            (*env)->SetByteArrayRegion(env, DecodedFrameBuffer, offset, currentEntry->length, (jbyte*)currentEntry->data);
+            // In zero-copy mode, the renderer will pull the picture data itself
+            // using copyPendingDecodeUnitPicData() once it has an input buffer.
+            if (!ZeroCopySubmission) {
+                (*env)->SetByteArrayRegion(env, DecodedFrameBuffer, offset, currentEntry->length, (jbyte*)currentEntry->data);
+            }
             offset += currentEntry->length;
         }
 
         currentEntry = currentEntry->next;
     }
 
-    ret = (*env)->CallStaticIntMethod(env, GlobalBridgeClass, BridgeDrSubmitDecodeUnitMethod,
-                                       DecodedFrameBuffer, offset, BUFFER_TYPE_PICDATA,
-                                       decodeUnit->frameNumber, decodeUnit->frameType, (jchar)decodeUnit->frameHostProcessingLatency,
-                                       (jlong)decodeUnit->receiveTimeMs, (jlong)decodeUnit->enqueueTimeMs);
+    if (ZeroCopySubmission) {
+        PendingDecodeUnit = decodeUnit;
+        ret = (*env)->CallStaticIntMethod(env, GlobalBridgeClass, BridgeDrSubmitDecodeUnitZeroCopyMethod,
+                                          offset, decodeUnit->frameNumber, decodeUnit->frameType,
+                                          (jchar)decodeUnit->frameHostProcessingLatency,
+                                          (jlong)decodeUnit->receiveTimeMs, (jlong)decodeUnit->enqueueTimeMs);
+        PendingDecodeUnit = NULL;
+    }
+    else {
+        ret = (*env)->CallStaticIntMethod(env, GlobalBridgeClass, BridgeDrSubmitDecodeUnitMethod,
+                                          DecodedFrameBuffer, offset, BUFFER_TYPE_PICDATA,
+                                          decodeUnit->frameNumber, decodeUnit->frameType, (jchar)decodeUnit->frameHostProcessingLatency,
+                                          (jlong)decodeUnit->receiveTimeMs, (jlong)decodeUnit->enqueueTimeMs);
+    }
     if ((*env)->ExceptionCheck(env)) {
         // We will crash here
         (*JVM)->DetachCurrentThread(JVM);
@@ -200,6 +286,44 @@ int BridgeDrSubmitDecodeUnit(PDECODE_UNIT decodeUnit) {
     }
 }
 
+// Called by the renderer during bridgeDrSubmitDecodeUnitZeroCopy() to copy the picture data of
+// the pending decode unit straight into a direct ByteBuffer (usually a MediaCodec input buffer).
+JNIEXPORT jint JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_copyPendingDecodeUnitPicData(JNIEnv *env, jclass clazz, jobject buffer, jint offset) {
+    PLENTRY currentEntry;
+    char* dest;
+    jlong capacity;
+    int length;
+
+    if (PendingDecodeUnit == NULL) {
+        return -1;
+    }
+
+    dest = (*env)->GetDirectBufferAddress(env, buffer);
+    capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (dest == NULL || capacity < 0) {
+        // Not a direct buffer
+        return -1;
+    }
+
+    length = 0;
+    currentEntry = PendingDecodeUnit->bufferList;
+    while (currentEntry != NULL) {
+        if (currentEntry->bufferType == BUFFER_TYPE_PICDATA) {
+            if (offset + length + currentEntry->length > capacity) {
+                return -1;
+            }
+
+            memcpy(dest + offset + length, currentEntry->data, currentEntry->length);
+            length += currentEntry->length;
+        }
+
+        currentEntry = currentEntry->next;
+    }
+
+    return length;
+}
+
 int BridgeArInit(int audioConfiguration, POPUS_MULTISTREAM_CONFIGURATION opusConfig, void* context, int flags) {
     JNIEnv* env = GetThreadEnv();
     int err;
@@ -222,8 +346,42 @@ int BridgeArInit(int audioConfiguration, POPUS_MULTISTREAM_CONFIGURATION opusCon
             return -1;
         }
 
-        // We know ahead of time what the buffer size will be for decoded audio, so pre-allocate it
-        DecodedAudioBuffer = (*env)->NewGlobalRef(env, (*env)->NewShortArray(env, opusConfig->channelCount * opusConfig->samplesPerFrame));
+        SampleSize = FloatAudioOutput ? sizeof(float) : sizeof(short);
+
+        // The renderer asks for a downmix while it's being set up, if it wants one
+        if (AudioDownmixIsActive() && AudioDownmixGetInputChannelCount() == opusConfig->channelCount) {
+            DownmixInputBuffer = malloc(opusConfig->channelCount * opusConfig->samplesPerFrame * SampleSize);
+            OutputChannelCount = 2;
+        }
+        else {
+            AudioDownmixCleanup();
+            OutputChannelCount = opusConfig->channelCount;
+        }
+
+        // If the renderer plays audio natively, we decode straight into its buffer and the
+        // samples never go to Java. We only need somewhere to put packets it has no room for.
+        NativeAudioOutput = AAudioRendererIsActive();
+        if (NativeAudioOutput) {
+            SpliceAudioBuffer = malloc(OutputChannelCount * opusConfig->samplesPerFrame * SampleSize);
+            DiscardAudioBuffer = malloc(OutputChannelCount * opusConfig->samplesPerFrame * SampleSize);
+            SplicePending = false;
+        }
+        else {
+            // We know ahead of time what the buffer size will be for decoded audio, so pre-allocate it
+            int sampleCount = OutputChannelCount * opusConfig->samplesPerFrame;
+            if (FloatAudioOutput) {
+                DecodedAudioBuffer = (*env)->NewGlobalRef(env, (*env)->NewFloatArray(env, sampleCount));
+            }
+            else {
+                DecodedAudioBuffer = (*env)->NewGlobalRef(env, (*env)->NewShortArray(env, sampleCount));
+            }
+        }
+
+        memset(&AudioPathStats, 0, sizeof(AudioPathStats));
+        atomic_store(&AudioRecoveryStats.packetsReceived, 0);
+        atomic_store(&AudioRecoveryStats.packetsLost, 0);
+        atomic_store(&AudioRecoveryStats.packetsDropped, 0);
+        atomic_store(&AudioRecoveryStats.splicesSmoothed, 0);
     }
 
     return err;
@@ -246,27 +404,135 @@ void BridgeArCleanup() {
 
     opus_multistream_decoder_destroy(Decoder);
 
-    (*env)->DeleteGlobalRef(env, DecodedAudioBuffer);
+    if (AudioPathStats.frames > 0) {
+        float seconds = (float)AudioPathStats.frames / OpusConfig.sampleRate;
+        uint64_t pcmCopies = AudioPathStats.pcmCopies;
+        if (NativeAudioOutput) {
+            pcmCopies += AAudioRendererGetPcmCopies();
+        }
+        __android_log_print(ANDROID_LOG_INFO, "moonlight-common-c",
+                            "%s %s audio path: %.1f JNI calls, %.1f PCM copies and %.3f ms of CPU time per second of audio",
+                            NativeAudioOutput ? "Native" : "Java", FloatAudioOutput ? "float" : "16-bit",
+                            AudioPathStats.jniCalls / seconds, pcmCopies / seconds,
+                            AudioPathStats.cpuTimeNs / 1000000.0f / seconds);
+    }
+
+    AudioDownmixCleanup();
+    free(DownmixInputBuffer);
+    DownmixInputBuffer = NULL;
+
+    if (NativeAudioOutput) {
+        free(SpliceAudioBuffer);
+        free(DiscardAudioBuffer);
+        SpliceAudioBuffer = DiscardAudioBuffer = NULL;
+        NativeAudioOutput = false;
+    }
+    else {
+        (*env)->DeleteGlobalRef(env, DecodedAudioBuffer);
+    }
 
     (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArCleanupMethod);
 }
 
-void BridgeArDecodeAndPlaySample(char* sampleData, int sampleLength) {
+// Fades from the packet we dropped into the one replacing it. The dropped packet
+// continues from what was played last, so this hides the splice.
+static void CrossfadeFromSplice(void* output, int frameCount) {
+    int crossfadeFrames = (int)(OpusConfig.sampleRate * CROSSFADE_MS / 1000);
+    if (crossfadeFrames > frameCount) {
+        crossfadeFrames = frameCount;
+    }
+
+    for (int i = 0; i < crossfadeFrames; i++) {
+        for (int ch = 0; ch < OutputChannelCount; ch++) {
+            int index = i * OutputChannelCount + ch;
+            if (FloatAudioOutput) {
+                float* samples = output;
+                float* splice = SpliceAudioBuffer;
+                samples[index] = (splice[index] * (crossfadeFrames - i) + samples[index] * i) / crossfadeFrames;
+            }
+            else {
+                short* samples = output;
+                short* splice = SpliceAudioBuffer;
+                samples[index] = (short)((splice[index] * (crossfadeFrames - i) + samples[index] * i) / crossfadeFrames);
+            }
+        }
+    }
+}
+
+static uint64_t GetThreadCpuTimeNs(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &ts);
+    return ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+// Decodes a packet into output, downmixing it if needed. If data is NULL, a lost packet
+// is concealed instead. Returns the number of frames decoded or an Opus error.
+static int DecodePacket(const unsigned char* data, int length, void* output) {
+    void* decodeBuffer = DownmixInputBuffer != NULL ? DownmixInputBuffer : output;
+    int decodeLen;
+
+    if (FloatAudioOutput) {
+        decodeLen = opus_multistream_decode_float(Decoder, data, length, decodeBuffer, OpusConfig.samplesPerFrame, 0);
+        if (decodeLen > 0 && DownmixInputBuffer != NULL) {
+            AudioDownmixProcessFloat(DownmixInputBuffer, output, decodeLen);
+        }
+    }
+    else {
+        decodeLen = opus_multistream_decode(Decoder, data, length, decodeBuffer, OpusConfig.samplesPerFrame, 0);
+        if (decodeLen > 0 && DownmixInputBuffer != NULL) {
+            AudioDownmixProcess(DownmixInputBuffer, output, decodeLen);
+        }
+    }
+
+    return decodeLen;
+}
+
+// Decodes a packet and sends it to the output. If data is NULL, a lost packet is
+// concealed instead.
+static void DecodeAndPlayPacket(const unsigned char* data, int length) {
+    if (NativeAudioOutput) {
+        // Packets that don't fit are still decoded to keep the decoder's state intact
+        void* output = AAudioRendererBeginWrite();
+        void* dropBuffer = SplicePending ? DiscardAudioBuffer : SpliceAudioBuffer;
+        int decodeLen = DecodePacket(data, length, output != NULL ? output : dropBuffer);
+        if (decodeLen > 0) {
+            AudioPathStats.frames += decodeLen;
+            if (output == NULL) {
+                IncrementAudioRecoveryStat(&AudioRecoveryStats.packetsDropped);
+                SplicePending = true;
+            }
+            else {
+                if (SplicePending) {
+                    CrossfadeFromSplice(output, decodeLen);
+                    IncrementAudioRecoveryStat(&AudioRecoveryStats.splicesSmoothed);
+                    SplicePending = false;
+                }
+                AAudioRendererCommitWrite(decodeLen);
+            }
+        }
+        return;
+    }
+
     JNIEnv* env = GetThreadEnv();
+    jboolean isCopy;
 
-    jshort* decodedData = (*env)->GetPrimitiveArrayCritical(env, DecodedAudioBuffer, NULL);
+    void* decodedData = (*env)->GetPrimitiveArrayCritical(env, DecodedAudioBuffer, &isCopy);
 
-    int decodeLen = opus_multistream_decode(Decoder,
-                                            (const unsigned char*)sampleData,
-                                            sampleLength,
-                                            decodedData,
-                                            OpusConfig.samplesPerFrame,
-                                            0);
+    int decodeLen = DecodePacket(data, length, decodedData);
     if (decodeLen > 0) {
         // We must release the array elements before making further JNI calls
         (*env)->ReleasePrimitiveArrayCritical(env, DecodedAudioBuffer, decodedData, 0);
 
-        (*env)->CallStaticVoidMethod(env, GlobalBridgeClass, BridgeArPlaySampleMethod, DecodedAudioBuffer);
+        // Getting and releasing the array, the upcall, its exception check, and the
+        // AudioTrack.write() it makes. That write copies the samples, as does releasing
+        // the array if the VM gave us a copy of it.
+        AudioPathStats.frames += decodeLen;
+        AudioPathStats.jniCalls += 5;
+        AudioPathStats.pcmCopies += isCopy ? 2 : 1;
+
+        (*env)->CallStaticVoidMethod(env, GlobalBridgeClass,
+                                     FloatAudioOutput ? BridgeArPlaySampleFloatMethod : BridgeArPlaySampleMethod,
+                                     DecodedAudioBuffer);
         if ((*env)->ExceptionCheck(env)) {
             // We will crash here
             (*JVM)->DetachCurrentThread(JVM);
@@ -278,6 +544,45 @@ void BridgeArDecodeAndPlaySample(char* sampleData, int sampleLength) {
     }
 }
 
+// A NULL sampleData means the connection couldn't give us the next packet, and Opus
+// conceals it with PLC as it always has. We only count them, so lost packets are the
+// number of NULLs we were given. Recovering lost packets from the next packet's FEC
+// data would need to know where moonlight-common-c's sequence gaps are, and we don't
+// do that here.
+void BridgeArDecodeAndPlaySample(char* sampleData, int sampleLength) {
+    // This includes the time the Java path spends in the renderer, but not time spent
+    // blocked waiting for the output to take more audio
+    uint64_t startNs = GetThreadCpuTimeNs();
+
+    if (sampleData == NULL) {
+        IncrementAudioRecoveryStat(&AudioRecoveryStats.packetsLost);
+    }
+    else {
+        IncrementAudioRecoveryStat(&AudioRecoveryStats.packetsReceived);
+    }
+
+    DecodeAndPlayPacket((const unsigned char*)sampleData, sampleLength);
+
+    AudioPathStats.cpuTimeNs += GetThreadCpuTimeNs() - startNs;
+}
+
+JNIEXPORT void JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_setFloatAudioOutput(JNIEnv *env, jclass clazz, jboolean enabled) {
+    FloatAudioOutput = enabled;
+}
+
+JNIEXPORT void JNICALL
+Java_com_limelight_nvstream_jni_MoonBridge_getAudioStats(JNIEnv *env, jclass clazz, jintArray stats) {
+    jint values[] = {
+        atomic_load(&AudioRecoveryStats.packetsReceived),
+        atomic_load(&AudioRecoveryStats.packetsLost),
+        atomic_load(&AudioRecoveryStats.packetsDropped),
+        atomic_load(&AudioRecoveryStats.splicesSmoothed),
+    };
+
+    (*env)->SetIntArrayRegion(env, stats, 0, sizeof(values) / sizeof(values[0]), values);
+}
+
 void BridgeClStageStarting(int stage) {
     JNIEnv* env = GetThreadEnv();
 
@@ -0,0 +1,112 @@
+package com.limelight.binding.audio;
+
+import com.limelight.preferences.PreferenceConfiguration;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AudioDownmixTest {
+    private static final float EPSILON = 1e-6f;
+
+    // Channel indices in our decoder's order
+    private static final int FL = 0, FR = 1, FC = 2, LFE = 3, BL = 4, BR = 5, SL = 6, SR = 7;
+    private static final int LEFT = 0, RIGHT = 1;
+
+    private static float level(float[] matrix, int channelCount, int out, int ch) {
+        return matrix[out * channelCount + ch];
+    }
+
+    private static float rowSum(float[] matrix, int channelCount, int out) {
+        float sum = 0;
+        for (int ch = 0; ch < channelCount; ch++) {
+            sum += Math.abs(level(matrix, channelCount, out, ch));
+        }
+        return sum;
+    }
+
+    private static void assertMixesLikeBs775(float[] matrix, int channelCount) {
+        assertEquals(2 * channelCount, matrix.length);
+
+        float front = level(matrix, channelCount, LEFT, FL);
+        assertEquals(front, level(matrix, channelCount, RIGHT, FR), EPSILON);
+
+        // Front channels only reach their own side
+        assertEquals(0, level(matrix, channelCount, LEFT, FR), EPSILON);
+        assertEquals(0, level(matrix, channelCount, RIGHT, FL), EPSILON);
+
+        // Center goes to both sides at -3 dB and LFE is left out
+        assertEquals(front * 0.7071f, level(matrix, channelCount, LEFT, FC), EPSILON);
+        assertEquals(front * 0.7071f, level(matrix, channelCount, RIGHT, FC), EPSILON);
+        assertEquals(0, level(matrix, channelCount, LEFT, LFE), EPSILON);
+        assertEquals(0, level(matrix, channelCount, RIGHT, LFE), EPSILON);
+
+        // Each surround pair goes to its own side at -3 dB
+        for (int ch = BL; ch < channelCount; ch += 2) {
+            assertEquals(front * 0.7071f, level(matrix, channelCount, LEFT, ch), EPSILON);
+            assertEquals(0, level(matrix, channelCount, LEFT, ch + 1), EPSILON);
+            assertEquals(0, level(matrix, channelCount, RIGHT, ch), EPSILON);
+            assertEquals(front * 0.7071f, level(matrix, channelCount, RIGHT, ch + 1), EPSILON);
+        }
+    }
+
+    @Test
+    public void mixes51LikeBs775() {
+        assertMixesLikeBs775(AudioDownmix.createStereoMatrix(6), 6);
+    }
+
+    @Test
+    public void mixes71LikeBs775() {
+        float[] matrix = AudioDownmix.createStereoMatrix(8);
+        assertMixesLikeBs775(matrix, 8);
+
+        // Side and back channels are mixed at the same level
+        assertEquals(level(matrix, 8, LEFT, BL), level(matrix, 8, LEFT, SL), EPSILON);
+        assertEquals(level(matrix, 8, RIGHT, BR), level(matrix, 8, RIGHT, SR), EPSILON);
+    }
+
+    // The native mixer refuses matrices where an output could take more than full scale,
+    // and we shouldn't be quieter than we need to be either
+    @Test
+    public void outputsUseExactlyFullScale() {
+        for (int channelCount : new int[] {6, 8}) {
+            float[] matrix = AudioDownmix.createStereoMatrix(channelCount);
+            assertEquals(1.0f, rowSum(matrix, channelCount, LEFT), EPSILON);
+            assertEquals(1.0f, rowSum(matrix, channelCount, RIGHT), EPSILON);
+        }
+    }
+
+    // What the native mixer does with 16-bit samples, in Q14 fixed point
+    @Test
+    public void fullScaleInputDoesNotOverflowFixedPointMix() {
+        for (int channelCount : new int[] {6, 8}) {
+            float[] matrix = AudioDownmix.createStereoMatrix(channelCount);
+            for (int out = 0; out < 2; out++) {
+                long sum = 0;
+                for (int ch = 0; ch < channelCount; ch++) {
+                    sum += (long) Short.MIN_VALUE * Math.round(level(matrix, channelCount, out, ch) * (1 << 14));
+                }
+
+                // The sum must fit in an int, and it shouldn't be far past full scale
+                assertEquals((int) sum, sum);
+                long sample = (sum + (1 << 13)) >> 14;
+                assertEquals(Short.MIN_VALUE, sample, 2);
+            }
+        }
+    }
+
+    @Test
+    public void onlySurroundStreamsAreDownmixed() {
+        for (int setting : new int[] {PreferenceConfiguration.SURROUND_DOWNMIX_STEREO,
+                PreferenceConfiguration.SURROUND_DOWNMIX_HEADPHONES}) {
+            assertEquals(AudioDownmix.MODE_NONE, AudioDownmix.getMode(setting, 2));
+        }
+
+        assertEquals(AudioDownmix.MODE_NONE,
+                AudioDownmix.getMode(PreferenceConfiguration.SURROUND_DOWNMIX_SYSTEM, 6));
+        assertEquals(AudioDownmix.MODE_STEREO,
+                AudioDownmix.getMode(PreferenceConfiguration.SURROUND_DOWNMIX_STEREO, 6));
+        assertEquals(AudioDownmix.MODE_HEADPHONES,
+                AudioDownmix.getMode(PreferenceConfiguration.SURROUND_DOWNMIX_HEADPHONES, 8));
+    }
+}
@@ -0,0 +1,146 @@
+package com.limelight.binding.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioLatencyControllerTest {
+    private static final int CHANNELS = 2;
+    private static final int FRAMES = 240;
+
+    private static short[] randomShortPacket(Random random, int frames) {
+        short[] samples = new short[frames * CHANNELS];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt(65536);
+        }
+        return samples;
+    }
+
+    // Float samples are 16-bit samples scaled to [-1, 1)
+    private static float[] toFloat(short[] samples) {
+        float[] floatSamples = new float[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            floatSamples[i] = samples[i] / 32768.0f;
+        }
+        return floatSamples;
+    }
+
+    private static void assertSameAudio(short[] expected, float[] actual, int sampleCount) {
+        for (int i = 0; i < sampleCount; i++) {
+            // Within a 16-bit step, since the 16-bit path rounds down
+            assertEquals("Sample " + i, expected[i], actual[i] * 32768.0f, 1.0f);
+        }
+    }
+
+    @Test
+    public void resampleToSameLengthCopies() {
+        short[] input = randomShortPacket(new Random(1), FRAMES);
+        short[] output = new short[input.length];
+        AudioLatencyController.resample(input, FRAMES, output, FRAMES, CHANNELS);
+        assertArrayEquals(input, output);
+
+        float[] floatInput = toFloat(input);
+        float[] floatOutput = new float[input.length];
+        AudioLatencyController.resample(floatInput, FRAMES, floatOutput, FRAMES, CHANNELS);
+        assertArrayEquals(floatInput, floatOutput, 0);
+    }
+
+    // Packets are only ever stretched by a few frames, but their ends must stay in place
+    // so they still join up with the packets around them
+    @Test
+    public void resampleKeepsFirstAndLastFrames() {
+        short[] input = randomShortPacket(new Random(2), FRAMES);
+        float[] floatInput = toFloat(input);
+
+        for (int outputFrames = FRAMES - 3; outputFrames <= FRAMES + 3; outputFrames++) {
+            short[] output = new short[outputFrames * CHANNELS];
+            float[] floatOutput = new float[outputFrames * CHANNELS];
+            AudioLatencyController.resample(input, FRAMES, output, outputFrames, CHANNELS);
+            AudioLatencyController.resample(floatInput, FRAMES, floatOutput, outputFrames, CHANNELS);
+
+            int last = (outputFrames - 1) * CHANNELS;
+            int inputLast = (FRAMES - 1) * CHANNELS;
+            for (int ch = 0; ch < CHANNELS; ch++) {
+                assertEquals(input[ch], output[ch]);
+                assertEquals(input[inputLast + ch], output[last + ch]);
+                assertEquals(floatInput[ch], floatOutput[ch], 0);
+                assertEquals(floatInput[inputLast + ch], floatOutput[last + ch], 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void resampleKeepsRampsLinear() {
+        short[] input = new short[FRAMES * CHANNELS];
+        for (int i = 0; i < FRAMES; i++) {
+            input[i * CHANNELS] = (short) (i * 100);
+            input[i * CHANNELS + 1] = (short) (-i * 100);
+        }
+
+        int outputFrames = FRAMES + 2;
+        float[] floatOutput = new float[outputFrames * CHANNELS];
+        AudioLatencyController.resample(toFloat(input), FRAMES, floatOutput, outputFrames, CHANNELS);
+
+        float step = (FRAMES - 1) * 100.0f / (outputFrames - 1);
+        for (int i = 0; i < outputFrames; i++) {
+            assertEquals(i * step, floatOutput[i * CHANNELS] * 32768.0f, 0.01f);
+            assertEquals(-i * step, floatOutput[i * CHANNELS + 1] * 32768.0f, 0.01f);
+        }
+    }
+
+    // Whichever format the renderer plays, the same packet must sound the same
+    @Test
+    public void resampleFloatMatchesShort() {
+        Random random = new Random(3);
+        for (int outputFrames = FRAMES - 3; outputFrames <= FRAMES + 3; outputFrames++) {
+            short[] input = randomShortPacket(random, FRAMES);
+            short[] output = new short[outputFrames * CHANNELS];
+            float[] floatOutput = new float[outputFrames * CHANNELS];
+
+            AudioLatencyController.resample(input, FRAMES, output, outputFrames, CHANNELS);
+            AudioLatencyController.resample(toFloat(input), FRAMES, floatOutput, outputFrames, CHANNELS);
+            assertSameAudio(output, floatOutput, output.length);
+        }
+    }
+
+    @Test
+    public void crossfadeStartsFromSpliceAndEndsOnPacket() {
+        int crossfadeFrames = 120;
+        short[] splice = new short[FRAMES * CHANNELS];
+        short[] packet = new short[FRAMES * CHANNELS];
+        Arrays.fill(splice, (short) 10000);
+        Arrays.fill(packet, (short) -10000);
+        short[] original = packet.clone();
+
+        AudioLatencyController.crossfade(splice, packet, crossfadeFrames, CHANNELS);
+
+        // The first frame is all splice, and each frame after moves toward the packet
+        assertEquals(10000, packet[0]);
+        for (int i = 1; i < crossfadeFrames; i++) {
+            assertTrue(packet[(i - 1) * CHANNELS] > packet[i * CHANNELS]);
+        }
+
+        // Past the fade the packet is untouched
+        for (int i = crossfadeFrames * CHANNELS; i < packet.length; i++) {
+            assertEquals(original[i], packet[i]);
+        }
+    }
+
+    @Test
+    public void crossfadeFloatMatchesShort() {
+        Random random = new Random(4);
+        short[] splice = randomShortPacket(random, FRAMES);
+        short[] packet = randomShortPacket(random, FRAMES);
+        float[] floatSplice = toFloat(splice);
+        float[] floatPacket = toFloat(packet);
+
+        AudioLatencyController.crossfade(splice, packet, 120, CHANNELS);
+        AudioLatencyController.crossfade(floatSplice, floatPacket, 120, CHANNELS);
+        assertSameAudio(packet, floatPacket, packet.length);
+    }
+}
@@ -0,0 +1,91 @@
+package com.limelight.binding.video;
+
+import com.limelight.nvstream.jni.MoonBridge;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DecodeUnitProcessorTest {
+    private static final byte[] VPS = {0, 0, 0, 1, 0x40, 0x01, 0x0c, 0x01};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x44, 0x01, (byte) 0xc1, 0x72};
+    private static final byte[] IDR_SLICE = {0, 0, 0, 1, 0x26, 0x01, (byte) 0xaf, 0x11, 0x22};
+
+    private final DecodeUnitReplayer.FakeCodecSink sink = new DecodeUnitReplayer.FakeCodecSink();
+    private final DecodeUnitProcessor processor = new DecodeUnitProcessor(sink, new VideoStats(), new Object());
+    private int frameNumber;
+
+    public DecodeUnitProcessorTest() {
+        processor.videoFormat = MoonBridge.VIDEO_FORMAT_H265;
+    }
+
+    private void submit(byte[] data, int type) {
+        assertEquals(MoonBridge.DR_OK, processor.submitDecodeUnit(data, data.length, type,
+                frameNumber, MoonBridge.FRAME_TYPE_IDR, (char) 0, frameNumber, frameNumber));
+    }
+
+    // Submits an HEVC IDR frame the way moonlight-common-c does
+    private void submitIdrFrame(byte[] sps) {
+        frameNumber++;
+        submit(VPS, MoonBridge.BUFFER_TYPE_VPS);
+        submit(sps, MoonBridge.BUFFER_TYPE_SPS);
+        submit(PPS, MoonBridge.BUFFER_TYPE_PPS);
+        submit(IDR_SLICE, MoonBridge.BUFFER_TYPE_PICDATA);
+    }
+
+    @Test
+    public void unchangedParameterSetsAreSubmittedOnce() {
+        byte[] sps = {0, 0, 0, 1, 0x42, 0x01, 0x01, 0x60};
+        submitIdrFrame(sps);
+        submitIdrFrame(sps.clone());
+        submitIdrFrame(sps.clone());
+
+        assertEquals(1, sink.codecConfigBuffers);
+        assertEquals(2, processor.numCsdSubmissionsSkipped);
+        assertEquals(3, sink.syncFrames);
+    }
+
+    @Test
+    public void changedParameterSetsAreResubmitted() {
+        submitIdrFrame(new byte[] {0, 0, 0, 1, 0x42, 0x01, 0x01, 0x60});
+        submitIdrFrame(new byte[] {0, 0, 0, 1, 0x42, 0x01, 0x01, 0x61});
+
+        assertEquals(2, sink.codecConfigBuffers);
+        assertEquals(0, processor.numCsdSubmissionsSkipped);
+    }
+
+    // Skipping on a hash match alone would leave the decoder with the old SPS here
+    @Test
+    public void parameterSetsWithSameHashAreResubmitted() {
+        // 31 * a + b is the same for {0, 31} and {1, 0}
+        submitIdrFrame(new byte[] {0, 0, 0, 1, 0x42, 0x01, 0, 31});
+        submitIdrFrame(new byte[] {0, 0, 0, 1, 0x42, 0x01, 1, 0});
+
+        assertEquals(2, sink.codecConfigBuffers);
+        assertEquals(0, processor.numCsdSubmissionsSkipped);
+    }
+
+    @Test
+    public void parameterSetsAreResubmittedAfterReset() {
+        byte[] sps = {0, 0, 0, 1, 0x42, 0x01, 0x01, 0x60};
+        submitIdrFrame(sps);
+        processor.resetCsd();
+        submitIdrFrame(sps);
+
+        assertEquals(2, sink.codecConfigBuffers);
+    }
+
+    // Parameter set buffers are sized by the first IDR frame and reused after that, including
+    // the copy of the parameter sets the decoder was given
+    @Test
+    public void parameterSetsDoNotAllocateAfterFirstIdrFrame() throws InterruptedException {
+        byte[] stream = SyntheticStreams.h264Stream(2, 30, 4, 2000, 1920, 1080, 60);
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H264, stream, 60);
+        replayer.replay(1);
+        int firstIterationAllocations = replayer.processor.getParameterSetAllocationCount();
+
+        replayer.replay(10);
+        assertEquals(firstIterationAllocations, replayer.processor.getParameterSetAllocationCount());
+        assertEquals(1, replayer.sink.codecConfigBuffers);
+    }
+}
@@ -0,0 +1,394 @@
+package com.limelight.binding.video;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.limelight.nvstream.jni.MoonBridge;
+
+import android.media.MediaCodec;
+
+// Replays an elementary stream through DecodeUnitProcessor into a fake codec, so the
+// submission path can be exercised and measured on a desktop JVM without a device or host.
+//
+// Streams are split into decode units the same way moonlight-common-c delivers them: for
+// H.264/HEVC IDR frames, each VPS/SPS/PPS NALU is its own decode unit followed by the picture
+// data, and AV1 temporal units are submitted whole. Annex B streams don't carry timestamps, so
+// frames are timestamped at the specified frame rate.
+class DecodeUnitReplayer {
+    private static final int INPUT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    static class DecodeUnit {
+        final byte[] data;
+        final int type;
+        final int frameType;
+        final int frameIndex;
+
+        DecodeUnit(byte[] data, int type, int frameType, int frameIndex) {
+            this.data = data;
+            this.type = type;
+            this.frameType = frameType;
+            this.frameIndex = frameIndex;
+        }
+    }
+
+    // Behaves like a codec that always has a free input buffer
+    static class FakeCodecSink implements DecodeUnitSink {
+        private final ByteBuffer inputBuffer = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+        private ByteArrayOutputStream dumpStream;
+        private byte[] dumpBuffer;
+        private boolean inputBufferPending;
+        private long lastTimestampUs = -1;
+
+        int buffersQueued;
+        int codecConfigBuffers;
+        int syncFrames;
+        long bytesQueued;
+        long codecConfigBytesQueued;
+
+        // Keeps a copy of every queued input buffer, to compare against the stream
+        void enableDump() {
+            dumpStream = new ByteArrayOutputStream();
+            dumpBuffer = new byte[INPUT_BUFFER_SIZE];
+        }
+
+        byte[] getDump() {
+            return dumpStream.toByteArray();
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer() {
+            if (!inputBufferPending) {
+                inputBuffer.clear();
+                inputBufferPending = true;
+            }
+            return inputBuffer;
+        }
+
+        @Override
+        public boolean queueInputBuffer(long timestampUs, int codecFlags) {
+            if (!inputBufferPending) {
+                throw new IllegalStateException("Queued an input buffer that wasn't dequeued");
+            }
+            inputBufferPending = false;
+
+            if ((codecFlags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                codecConfigBuffers++;
+                codecConfigBytesQueued += inputBuffer.position();
+            }
+            else if (timestampUs <= lastTimestampUs) {
+                throw new IllegalStateException("Timestamps must increase: "+timestampUs+" <= "+lastTimestampUs);
+            }
+            else {
+                lastTimestampUs = timestampUs;
+            }
+            if ((codecFlags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                syncFrames++;
+            }
+
+            buffersQueued++;
+            bytesQueued += inputBuffer.position();
+
+            if (dumpStream != null) {
+                int length = inputBuffer.position();
+                inputBuffer.flip();
+                inputBuffer.get(dumpBuffer, 0, length);
+                dumpStream.write(dumpBuffer, 0, length);
+            }
+
+            return true;
+        }
+
+        @Override
+        public int copyPendingPictureData(ByteBuffer buffer, int offset) {
+            // The replayer always submits picture data from a byte array
+            return -1;
+        }
+    }
+
+    private static Object threadMXBean;
+    private static Method getThreadAllocatedBytes;
+
+    final ArrayList<DecodeUnit> units;
+    final int framesPerIteration;
+    final FakeCodecSink sink = new FakeCodecSink();
+    final VideoStats stats = new VideoStats();
+    final DecodeUnitProcessor processor = new DecodeUnitProcessor(sink, stats, new Object());
+
+    private final long frameIntervalUs;
+    private int iterationsReplayed;
+
+    // Sleep between frames to reproduce the frame rate
+    boolean realtime;
+
+    // Drop every Nth frame (other than IDR frames) before it reaches the processor
+    int lossInterval;
+
+    // Results of the last replay() call
+    int unitsSubmitted;
+    int idrFramesRequested;
+    long elapsedNs;
+    long allocatedBytes;
+
+    // The processor is set up like the renderer sets it up for a 1920x1080 stream. Tests can
+    // change its fields before the first replay() call.
+    DecodeUnitReplayer(int videoFormat, byte[] streamData, int fps) {
+        units = (videoFormat & MoonBridge.VIDEO_FORMAT_MASK_AV1) != 0 ?
+                splitAv1(streamData) : splitAnnexB(streamData, (videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0);
+        if (units.isEmpty()) {
+            throw new IllegalArgumentException("No decode units found");
+        }
+        framesPerIteration = units.get(units.size() - 1).frameIndex + 1;
+        frameIntervalUs = 1000000 / fps;
+
+        processor.videoFormat = videoFormat;
+        processor.initialWidth = 1920;
+        processor.initialHeight = 1080;
+        processor.refreshRate = fps;
+        processor.patchSpsBitstreamRestrictions = true;
+        processor.countReceiveTime = true;
+    }
+
+    // Returns the offset of the next 3-byte start code at or after offset, or -1 if none is found
+    private static int findStartCode(byte[] data, int offset) {
+        for (int i = offset; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] copyRange(byte[] data, int start, int end) {
+        byte[] range = new byte[end - start];
+        System.arraycopy(data, start, range, 0, range.length);
+        return range;
+    }
+
+    // Splits an Annex B H.264 or HEVC stream into decode units
+    private static ArrayList<DecodeUnit> splitAnnexB(byte[] data, boolean hevc) {
+        ArrayList<DecodeUnit> units = new ArrayList<>();
+        int frameIndex = -1;
+        int frameType = MoonBridge.FRAME_TYPE_PFRAME;
+        int pictureStart = -1;
+        boolean pictureHasSlice = false;
+
+        int naluStart = findStartCode(data, 0);
+        while (naluStart >= 0) {
+            // Include the leading zero byte of a 4-byte start code in the NALU
+            int headerOffset = naluStart + 3;
+            if (naluStart > 0 && data[naluStart - 1] == 0) {
+                naluStart--;
+            }
+
+            int nextStart = findStartCode(data, headerOffset);
+            int naluEnd = nextStart >= 0 ? nextStart : data.length;
+            if (nextStart > 0 && data[nextStart - 1] == 0) {
+                naluEnd--;
+            }
+            if (headerOffset + 2 >= naluEnd) {
+                naluStart = nextStart;
+                continue;
+            }
+
+            int bufferType = MoonBridge.BUFFER_TYPE_PICDATA;
+            boolean isSlice, isIdr, firstSliceInPicture;
+            if (hevc) {
+                int naluType = (data[headerOffset] >> 1) & 0x3F;
+                if (naluType == 32) {
+                    bufferType = MoonBridge.BUFFER_TYPE_VPS;
+                }
+                else if (naluType == 33) {
+                    bufferType = MoonBridge.BUFFER_TYPE_SPS;
+                }
+                else if (naluType == 34) {
+                    bufferType = MoonBridge.BUFFER_TYPE_PPS;
+                }
+                isSlice = naluType < 32;
+                isIdr = naluType >= 16 && naluType <= 21;
+                firstSliceInPicture = (data[headerOffset + 2] & 0x80) != 0;
+            }
+            else {
+                int naluType = data[headerOffset] & 0x1F;
+                if (naluType == 7) {
+                    bufferType = MoonBridge.BUFFER_TYPE_SPS;
+                }
+                else if (naluType == 8) {
+                    bufferType = MoonBridge.BUFFER_TYPE_PPS;
+                }
+                isSlice = naluType == 1 || naluType == 5;
+                isIdr = naluType == 5;
+
+                // first_mb_in_slice is ue(v) coded, so it is 0 if the first bit is set
+                firstSliceInPicture = (data[headerOffset + 1] & 0x80) != 0;
+            }
+
+            // A new picture starts at parameter sets or the first slice of a picture
+            if ((bufferType != MoonBridge.BUFFER_TYPE_PICDATA || (isSlice && firstSliceInPicture)) && pictureHasSlice) {
+                units.add(new DecodeUnit(copyRange(data, pictureStart, naluStart),
+                        MoonBridge.BUFFER_TYPE_PICDATA, frameType, frameIndex));
+                pictureStart = -1;
+                pictureHasSlice = false;
+            }
+
+            if (bufferType != MoonBridge.BUFFER_TYPE_PICDATA) {
+                if (frameType != MoonBridge.FRAME_TYPE_IDR || pictureStart >= 0 || units.isEmpty() ||
+                        units.get(units.size() - 1).type == MoonBridge.BUFFER_TYPE_PICDATA) {
+                    // Parameter sets start a new IDR frame
+                    frameIndex++;
+                    frameType = MoonBridge.FRAME_TYPE_IDR;
+                    pictureStart = -1;
+                }
+                units.add(new DecodeUnit(copyRange(data, naluStart, naluEnd), bufferType, frameType, frameIndex));
+            }
+            else {
+                if (pictureStart < 0) {
+                    pictureStart = naluStart;
+                    if (units.isEmpty() || units.get(units.size() - 1).type == MoonBridge.BUFFER_TYPE_PICDATA) {
+                        frameIndex++;
+                        frameType = MoonBridge.FRAME_TYPE_PFRAME;
+                    }
+                }
+                if (isSlice) {
+                    pictureHasSlice = true;
+                    if (isIdr) {
+                        frameType = MoonBridge.FRAME_TYPE_IDR;
+                    }
+                }
+            }
+
+            naluStart = nextStart;
+        }
+
+        if (pictureHasSlice) {
+            units.add(new DecodeUnit(copyRange(data, pictureStart, data.length),
+                    MoonBridge.BUFFER_TYPE_PICDATA, frameType, frameIndex));
+        }
+
+        return units;
+    }
+
+    // Splits an AV1 low overhead bitstream (.obu) into temporal units
+    private static ArrayList<DecodeUnit> splitAv1(byte[] data) {
+        ArrayList<DecodeUnit> units = new ArrayList<>();
+        int unitStart = 0;
+        boolean hasSequenceHeader = false;
+        int offset = 0;
+
+        while (offset < data.length) {
+            int header = data[offset] & 0xFF;
+            int obuType = (header >> 3) & 0xF;
+            boolean hasExtension = (header & 0x4) != 0;
+            boolean hasSize = (header & 0x2) != 0;
+            if (!hasSize) {
+                throw new IllegalArgumentException("OBUs without obu_size are not supported");
+            }
+
+            int sizeOffset = offset + 1 + (hasExtension ? 1 : 0);
+            long obuSize = 0;
+            int i = 0;
+            while (true) {
+                int b = data[sizeOffset + i] & 0xFF;
+                obuSize |= (long) (b & 0x7F) << (i * 7);
+                i++;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+
+            // A temporal delimiter starts a new temporal unit
+            if (obuType == 2 && offset > unitStart) {
+                units.add(new DecodeUnit(copyRange(data, unitStart, offset), MoonBridge.BUFFER_TYPE_PICDATA,
+                        hasSequenceHeader ? MoonBridge.FRAME_TYPE_IDR : MoonBridge.FRAME_TYPE_PFRAME, units.size()));
+                unitStart = offset;
+                hasSequenceHeader = false;
+            }
+            else if (obuType == 1) {
+                hasSequenceHeader = true;
+            }
+
+            offset = sizeOffset + i + (int) obuSize;
+        }
+
+        if (offset > unitStart) {
+            units.add(new DecodeUnit(copyRange(data, unitStart, data.length), MoonBridge.BUFFER_TYPE_PICDATA,
+                    hasSequenceHeader ? MoonBridge.FRAME_TYPE_IDR : MoonBridge.FRAME_TYPE_PFRAME, units.size()));
+        }
+
+        return units;
+    }
+
+    // Returns the number of bytes allocated by this thread, or -1 if the JVM can't tell us.
+    // The bean is looked up once so that reading it doesn't count its own lookup.
+    static synchronized long getAllocatedBytes() {
+        try {
+            if (getThreadAllocatedBytes == null) {
+                threadMXBean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+            }
+            return (Long) getThreadAllocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // Submits every decode unit of the stream the specified number of times. Frame numbers
+    // and timestamps continue from the previous call, so a first call can be used to warm up.
+    void replay(int iterations) throws InterruptedException {
+        unitsSubmitted = 0;
+        idrFramesRequested = 0;
+
+        // Make sure the lookup isn't counted
+        getAllocatedBytes();
+
+        long startAllocatedBytes = getAllocatedBytes();
+        long startTimeNs = System.nanoTime();
+        long startTimeUs = (long) iterationsReplayed * framesPerIteration * frameIntervalUs;
+
+        for (int i = 0; i < iterations; i++) {
+            int iteration = iterationsReplayed++;
+            int lastFrameIndex = -1;
+
+            // Indexed so the loop itself doesn't allocate an iterator
+            for (int j = 0; j < units.size(); j++) {
+                DecodeUnit unit = units.get(j);
+                int frameNumber = iteration * framesPerIteration + unit.frameIndex + 1;
+                if (lossInterval > 0 && frameNumber % lossInterval == 0 && unit.frameType != MoonBridge.FRAME_TYPE_IDR) {
+                    continue;
+                }
+
+                long timeUs = (long) (frameNumber - 1) * frameIntervalUs;
+                if (realtime && unit.frameIndex != lastFrameIndex) {
+                    long sleepNs = startTimeNs + (timeUs - startTimeUs) * 1000 - System.nanoTime();
+                    if (sleepNs > 0) {
+                        Thread.sleep(sleepNs / 1000000, (int) (sleepNs % 1000000));
+                    }
+                }
+                lastFrameIndex = unit.frameIndex;
+
+                // Frame timestamps are in milliseconds like the ones from moonlight-common-c
+                int err = processor.submitDecodeUnit(unit.data, unit.data.length, unit.type,
+                        frameNumber, unit.frameType, (char) 10, timeUs / 1000, timeUs / 1000 + 1);
+                if (err != MoonBridge.DR_OK) {
+                    idrFramesRequested++;
+                }
+                unitsSubmitted++;
+            }
+        }
+
+        elapsedNs = System.nanoTime() - startTimeNs;
+        long endAllocatedBytes = getAllocatedBytes();
+        allocatedBytes = startAllocatedBytes >= 0 ? endAllocatedBytes - startAllocatedBytes : -1;
+    }
+
+    double getUnitsPerSecond() {
+        return unitsSubmitted / (elapsedNs / 1000000000.0);
+    }
+
+    double getAllocatedBytesPerUnit() {
+        return (double) allocatedBytes / unitsSubmitted;
+    }
+}
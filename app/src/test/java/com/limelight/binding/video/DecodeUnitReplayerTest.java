@@ -0,0 +1,145 @@
+package com.limelight.binding.video;
+
+import com.limelight.nvstream.jni.MoonBridge;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecodeUnitReplayerTest {
+    private static final int GOPS = 2;
+    private static final int FRAMES_PER_GOP = 30;
+    private static final int SLICES_PER_FRAME = 4;
+    private static final int SLICE_LENGTH = 2000;
+
+    // Loose enough for a slow CI box. A desktop JVM does several hundred thousand.
+    private static final double MIN_UNITS_PER_SECOND = 10000;
+
+    // The steady state allocates nothing, but leave room for the JVM's own bookkeeping
+    private static final double MAX_ALLOCATED_BYTES_PER_UNIT = 4;
+
+    private static byte[] h264Stream() {
+        return SyntheticStreams.h264Stream(GOPS, FRAMES_PER_GOP, SLICES_PER_FRAME, SLICE_LENGTH, 1920, 1080, 60);
+    }
+
+    @Test
+    public void h264FramesAndParameterSetsReachCodec() throws InterruptedException {
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H264, h264Stream(), 60);
+        assertEquals(GOPS * FRAMES_PER_GOP, replayer.framesPerIteration);
+        assertEquals(GOPS * (FRAMES_PER_GOP + 2), replayer.units.size());
+
+        replayer.replay(3);
+
+        int frames = 3 * GOPS * FRAMES_PER_GOP;
+        assertEquals(0, replayer.idrFramesRequested);
+        assertEquals(frames, replayer.stats.totalFramesReceived);
+        assertEquals(0, replayer.stats.framesLost);
+        assertEquals(3 * GOPS, replayer.processor.numSpsIn);
+        assertEquals(3 * GOPS, replayer.processor.numPpsIn);
+        assertEquals(3 * GOPS, replayer.sink.syncFrames);
+
+        // The parameter sets never change, so they're only given to the codec once
+        assertEquals(1, replayer.sink.codecConfigBuffers);
+        assertEquals(frames + 1, replayer.sink.buffersQueued);
+    }
+
+    @Test
+    public void fusedIdrFramesCarryParameterSets() throws InterruptedException {
+        DecodeUnitReplayer separate = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H264, h264Stream(), 60);
+        separate.replay(1);
+
+        DecodeUnitReplayer fused = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H264, h264Stream(), 60);
+        fused.processor.fusedIdrFrame = true;
+        fused.replay(1);
+
+        // The first IDR frame still gets a codec config buffer, and the second one gets a copy
+        // of the parameter sets in front of its picture data
+        assertEquals(1, fused.sink.codecConfigBuffers);
+        assertEquals(GOPS, fused.sink.syncFrames);
+        assertEquals(separate.sink.codecConfigBytesQueued, fused.sink.codecConfigBytesQueued);
+        assertEquals(separate.sink.bytesQueued + (GOPS - 1) * separate.sink.codecConfigBytesQueued,
+                fused.sink.bytesQueued);
+    }
+
+    @Test
+    public void hevcStreamIsQueuedUnchanged() throws InterruptedException {
+        byte[] stream = SyntheticStreams.hevcStream(1, FRAMES_PER_GOP, SLICES_PER_FRAME, SLICE_LENGTH);
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H265, stream, 60);
+        replayer.sink.enableDump();
+        replayer.replay(1);
+
+        assertEquals(1, replayer.processor.numVpsIn);
+        assertEquals(1, replayer.processor.numSpsIn);
+        assertEquals(1, replayer.processor.numPpsIn);
+        assertEquals(1, replayer.sink.codecConfigBuffers);
+        assertEquals(1, replayer.sink.syncFrames);
+
+        // HEVC parameter sets aren't patched, so the codec sees exactly the original stream
+        assertArrayEquals(stream, replayer.sink.getDump());
+    }
+
+    @Test
+    public void av1TemporalUnitsAreQueuedWhole() throws InterruptedException {
+        byte[] stream = SyntheticStreams.av1Stream(GOPS, FRAMES_PER_GOP, SLICE_LENGTH);
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_AV1_MAIN8, stream, 60);
+        replayer.sink.enableDump();
+        replayer.replay(1);
+
+        assertEquals(GOPS * FRAMES_PER_GOP, replayer.units.size());
+        assertEquals(GOPS * FRAMES_PER_GOP, replayer.sink.buffersQueued);
+        assertEquals(0, replayer.sink.codecConfigBuffers);
+        assertEquals(GOPS, replayer.sink.syncFrames);
+        assertArrayEquals(stream, replayer.sink.getDump());
+    }
+
+    @Test
+    public void lostFramesAreCounted() throws InterruptedException {
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H264, h264Stream(), 60);
+        replayer.lossInterval = 5;
+        replayer.replay(1);
+
+        // Every 5th frame is dropped, but the last one isn't noticed since nothing comes after it
+        int dropped = GOPS * FRAMES_PER_GOP / 5;
+        assertEquals(GOPS * FRAMES_PER_GOP - dropped, replayer.stats.totalFramesReceived);
+        assertEquals(dropped - 1, replayer.stats.framesLost);
+        assertEquals(dropped - 1, replayer.stats.frameLossEvents);
+        assertEquals(0, replayer.idrFramesRequested);
+    }
+
+    @Test
+    public void realtimeReplayKeepsFrameRate() throws InterruptedException {
+        byte[] stream = SyntheticStreams.h264Stream(1, 10, 1, 500, 1280, 720, 200);
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H264, stream, 200);
+        replayer.realtime = true;
+        replayer.replay(1);
+
+        // The last of the 10 frames is due 45 ms after the first
+        assertTrue(replayer.elapsedNs >= 45000000);
+    }
+
+    @Test
+    public void reportsThroughputAndAllocations() throws InterruptedException {
+        DecodeUnitReplayer replayer = new DecodeUnitReplayer(MoonBridge.VIDEO_FORMAT_H264, h264Stream(), 60);
+
+        // The first pass sizes the parameter set buffers and the SPS rewriter
+        replayer.replay(1);
+        replayer.replay(50);
+
+        System.out.printf("H.264 replay: %d decode units in %.1f ms (%.0f units/sec)%n",
+                replayer.unitsSubmitted, replayer.elapsedNs / 1000000.0, replayer.getUnitsPerSecond());
+        if (replayer.allocatedBytes >= 0) {
+            System.out.printf("H.264 replay: %d bytes allocated (%.2f bytes per decode unit)%n",
+                    replayer.allocatedBytes, replayer.getAllocatedBytesPerUnit());
+        }
+
+        assertEquals(0, replayer.idrFramesRequested);
+        assertTrue(replayer.getUnitsPerSecond() >= MIN_UNITS_PER_SECOND);
+
+        // Not every JVM can count allocations
+        Assume.assumeTrue(replayer.allocatedBytes >= 0);
+        assertTrue(replayer.getAllocatedBytesPerUnit() <= MAX_ALLOCATED_BYTES_PER_UNIT);
+    }
+}
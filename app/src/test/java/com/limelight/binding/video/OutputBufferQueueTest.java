@@ -0,0 +1,164 @@
+package com.limelight.binding.video;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OutputBufferQueueTest {
+    private static final int STRESS_INDEX_COUNT = 2_000_000;
+
+    @Test
+    public void pollReturnsIndicesInOrder() {
+        OutputBufferQueue queue = new OutputBufferQueue(4);
+        assertEquals(OutputBufferQueue.EMPTY, queue.poll());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(OutputBufferQueue.EMPTY, queue.add(i));
+        }
+        assertEquals(4, queue.size());
+        assertEquals(0, queue.peek());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, queue.poll());
+        }
+        assertEquals(OutputBufferQueue.EMPTY, queue.poll());
+        assertEquals(OutputBufferQueue.EMPTY, queue.peek());
+    }
+
+    @Test
+    public void addDiscardsOldestAtLimit() {
+        // 3 isn't a power of two, so the ring has a spare slot that must not be used
+        OutputBufferQueue queue = new OutputBufferQueue(3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(OutputBufferQueue.EMPTY, queue.add(i));
+        }
+
+        assertEquals(0, queue.add(3));
+        assertEquals(1, queue.add(4));
+        assertEquals(3, queue.size());
+
+        assertEquals(2, queue.poll());
+        assertEquals(OutputBufferQueue.EMPTY, queue.add(5));
+        assertEquals(3, queue.poll());
+        assertEquals(4, queue.poll());
+        assertEquals(5, queue.poll());
+        assertEquals(OutputBufferQueue.EMPTY, queue.poll());
+    }
+
+    @Test
+    public void clearEmptiesQueue() {
+        OutputBufferQueue queue = new OutputBufferQueue(2);
+        queue.add(7);
+        queue.add(8);
+        queue.clear();
+
+        assertEquals(0, queue.size());
+        assertEquals(OutputBufferQueue.EMPTY, queue.poll());
+        assertEquals(OutputBufferQueue.EMPTY, queue.add(9));
+        assertEquals(9, queue.poll());
+    }
+
+    // Mirrors the renderer: one producer that discards the oldest index when the queue is full,
+    // a consumer that peeks before it polls like the Choreographer callback, and a consumer
+    // that drains with poll() like the renderer thread leaving vsync-aligned mode. Every index
+    // must come out exactly once, either consumed or discarded, and each thread must see the
+    // indices it takes in the order they were added.
+    @Test
+    public void twoConsumersAndDropOldestSeeEachIndexOnce() throws InterruptedException {
+        final OutputBufferQueue queue = new OutputBufferQueue(2);
+        final int[] discarded = new int[STRESS_INDEX_COUNT];
+        final int[] peekConsumed = new int[STRESS_INDEX_COUNT];
+        final int[] pollConsumed = new int[STRESS_INDEX_COUNT];
+        final int[] counts = new int[3];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        final AtomicBoolean producerDone = new AtomicBoolean();
+
+        Thread producer = new Thread(() -> {
+            awaitQuietly(start);
+            int discardedCount = 0;
+            for (int i = 0; i < STRESS_INDEX_COUNT; i++) {
+                int index = queue.add(i);
+                if (index != OutputBufferQueue.EMPTY) {
+                    discarded[discardedCount++] = index;
+                }
+            }
+            counts[0] = discardedCount;
+            producerDone.set(true);
+        });
+        Thread peekConsumer = new Thread(() -> {
+            awaitQuietly(start);
+            int consumedCount = 0;
+            while (!producerDone.get() || queue.size() > 0) {
+                if (queue.peek() == OutputBufferQueue.EMPTY) {
+                    continue;
+                }
+                int index = queue.poll();
+                if (index != OutputBufferQueue.EMPTY) {
+                    peekConsumed[consumedCount++] = index;
+                }
+            }
+            counts[1] = consumedCount;
+        });
+        Thread pollConsumer = new Thread(() -> {
+            awaitQuietly(start);
+            int consumedCount = 0;
+            while (!producerDone.get() || queue.size() > 0) {
+                int index = queue.poll();
+                if (index != OutputBufferQueue.EMPTY) {
+                    pollConsumed[consumedCount++] = index;
+                }
+            }
+            counts[2] = consumedCount;
+        });
+
+        Thread[] threads = { producer, peekConsumer, pollConsumer };
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        byte[] seen = new byte[STRESS_INDEX_COUNT];
+        markSeenInOrder(seen, discarded, counts[0]);
+        markSeenInOrder(seen, peekConsumed, counts[1]);
+        markSeenInOrder(seen, pollConsumed, counts[2]);
+        for (int i = 0; i < STRESS_INDEX_COUNT; i++) {
+            if (seen[i] != 1) {
+                fail("Index " + i + " was taken " + seen[i] + " times");
+            }
+        }
+
+        // Both consumers should have actually competed for the head
+        assertTrue(counts[1] > 0);
+        assertTrue(counts[2] > 0);
+    }
+
+    private static void markSeenInOrder(byte[] seen, int[] indices, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && indices[i] <= indices[i - 1]) {
+                fail("Index " + indices[i] + " taken after " + indices[i - 1]);
+            }
+            seen[indices[i]]++;
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.limelight.binding.video;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParameterSetStoreTest {
+    private static final byte[] VPS = {0, 0, 0, 1, 0x40, 0x01, 0x0c, 0x01};
+    private static final byte[] SPS = {0, 0, 0, 1, 0x42, 0x01, 0x01, 0x01, 0x60};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x44, 0x01, (byte) 0xc1, 0x72};
+
+    private static void addAll(ParameterSetStore store, byte[] sps) {
+        store.clear();
+        store.add(ParameterSetStore.TYPE_PPS, PPS, PPS.length);
+        store.add(ParameterSetStore.TYPE_SPS, sps, sps.length);
+        store.add(ParameterSetStore.TYPE_VPS, VPS, VPS.length);
+    }
+
+    @Test
+    public void putWritesVpsSpsThenPps() {
+        ParameterSetStore store = new ParameterSetStore();
+        addAll(store, SPS);
+
+        ByteBuffer buffer = ByteBuffer.allocate(store.getTotalLength());
+        store.put(buffer);
+
+        byte[] expected = new byte[VPS.length + SPS.length + PPS.length];
+        System.arraycopy(VPS, 0, expected, 0, VPS.length);
+        System.arraycopy(SPS, 0, expected, VPS.length, SPS.length);
+        System.arraycopy(PPS, 0, expected, VPS.length + SPS.length, PPS.length);
+        assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    public void matchesOnlyIdenticalParameterSets() {
+        ParameterSetStore store = new ParameterSetStore();
+        addAll(store, SPS);
+        assertFalse(store.matchesSubmitted());
+
+        store.markSubmitted();
+        addAll(store, SPS.clone());
+        assertTrue(store.matchesSubmitted());
+
+        byte[] changedSps = SPS.clone();
+        changedSps[changedSps.length - 1]++;
+        addAll(store, changedSps);
+        assertFalse(store.matchesSubmitted());
+
+        // An extra parameter set isn't a match either
+        addAll(store, SPS);
+        store.add(ParameterSetStore.TYPE_PPS, PPS, PPS.length);
+        assertFalse(store.matchesSubmitted());
+    }
+
+    @Test
+    public void hashCollisionIsNotAMatch() {
+        // 31 * a + b is the same for {0, 31} and {1, 0}
+        byte[] sps = {0, 0, 0, 1, 0x42, 0, 31};
+        byte[] collidingSps = {0, 0, 0, 1, 0x42, 1, 0};
+
+        ParameterSetStore store = new ParameterSetStore();
+        addAll(store, sps);
+        int hash = store.hash();
+        store.markSubmitted();
+
+        addAll(store, collidingSps);
+        assertEquals(hash, store.hash());
+        assertFalse(store.matchesSubmitted());
+    }
+
+    @Test
+    public void buffersAreReusedAfterFirstIdrFrame() {
+        ParameterSetStore store = new ParameterSetStore();
+        addAll(store, SPS);
+        store.markSubmitted();
+        int allocations = store.getAllocationCount();
+
+        for (int i = 0; i < 100; i++) {
+            addAll(store, SPS);
+            assertTrue(store.matchesSubmitted());
+            store.markSubmitted();
+        }
+        assertEquals(allocations, store.getAllocationCount());
+    }
+}
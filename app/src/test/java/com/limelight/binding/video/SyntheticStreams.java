@@ -0,0 +1,207 @@
+package com.limelight.binding.video;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+// Builds small elementary streams for the decode unit tests. H.264 parameter sets are real
+// bitstream syntax so they go through SPS patching, but everything else is filler since
+// nothing here decodes pictures. Filler bytes are never zero, so they can't form a start code.
+class SyntheticStreams {
+    private static final byte[] START_CODE = {0x00, 0x00, 0x00, 0x01};
+
+    // Writes RBSP bits, then escapes them into an Annex B NALU
+    static class BitWriter {
+        private final ByteArrayOutputStream rbsp = new ByteArrayOutputStream();
+        private int currentByte;
+        private int bitCount;
+
+        BitWriter u(int bits, long value) {
+            for (int i = bits - 1; i >= 0; i--) {
+                currentByte = (currentByte << 1) | (int) ((value >> i) & 1);
+                if (++bitCount == 8) {
+                    rbsp.write(currentByte);
+                    currentByte = 0;
+                    bitCount = 0;
+                }
+            }
+            return this;
+        }
+
+        BitWriter ue(int value) {
+            long codeNum = value + 1L;
+            int length = 64 - Long.numberOfLeadingZeros(codeNum);
+            return u(length - 1, 0).u(length, codeNum);
+        }
+
+        BitWriter se(int value) {
+            return ue(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        // Adds the RBSP trailing bits and returns the NALU with a 4 byte start code
+        byte[] toNalu(int... header) {
+            u(1, 1);
+            while (bitCount != 0) {
+                u(1, 0);
+            }
+
+            ByteArrayOutputStream nalu = new ByteArrayOutputStream();
+            nalu.write(START_CODE, 0, START_CODE.length);
+            for (int b : header) {
+                nalu.write(b);
+            }
+
+            int zeroCount = 0;
+            for (byte b : rbsp.toByteArray()) {
+                if (zeroCount == 2 && (b & 0xFF) <= 3) {
+                    nalu.write(3);
+                    zeroCount = 0;
+                }
+                nalu.write(b);
+                zeroCount = b == 0 ? zeroCount + 1 : 0;
+            }
+            return nalu.toByteArray();
+        }
+    }
+
+    // Returns an SPS like the ones GFE and Sunshine send: a VUI with color description and
+    // timing info but no bitstream restrictions. Only profiles 66, 77, and 100 are supported.
+    static byte[] h264Sps(int profileIdc, int width, int height, int fps) {
+        int widthMbs = (width + 15) / 16;
+        int heightMbs = (height + 15) / 16;
+
+        BitWriter writer = new BitWriter();
+        writer.u(8, profileIdc).u(8, 0).u(8, 40).ue(0);
+        if (profileIdc == 100) {
+            // 4:2:0, 8 bit, no transform bypass or scaling matrices
+            writer.ue(1).ue(0).ue(0).u(1, 0).u(1, 0);
+        }
+        writer.ue(0)     // log2_max_frame_num_minus4
+                .ue(2)   // pic_order_cnt_type
+                .ue(4)   // max_num_ref_frames
+                .u(1, 0) // gaps_in_frame_num_value_allowed_flag
+                .ue(widthMbs - 1)
+                .ue(heightMbs - 1)
+                .u(1, 1) // frame_mbs_only_flag
+                .u(1, 1); // direct_8x8_inference_flag
+
+        // Cropping is in units of 2 pixels for 4:2:0
+        int cropRight = (widthMbs * 16 - width) / 2;
+        int cropBottom = (heightMbs * 16 - height) / 2;
+        if (cropRight != 0 || cropBottom != 0) {
+            writer.u(1, 1).ue(0).ue(cropRight).ue(0).ue(cropBottom);
+        }
+        else {
+            writer.u(1, 0);
+        }
+
+        writer.u(1, 1)   // vui_parameters_present_flag
+                .u(1, 0) // aspect_ratio_info_present_flag
+                .u(1, 0) // overscan_info_present_flag
+                .u(1, 1).u(3, 5).u(1, 0).u(1, 1).u(8, 1).u(8, 1).u(8, 1) // BT.709 limited range
+                .u(1, 0) // chroma_loc_info_present_flag
+                .u(1, 1).u(32, 1).u(32, 2L * fps).u(1, 0) // timing info
+                .u(1, 0) // nal_hrd_parameters_present_flag
+                .u(1, 0) // vcl_hrd_parameters_present_flag
+                .u(1, 0) // pic_struct_present_flag
+                .u(1, 0); // bitstream_restriction_flag
+        return writer.toNalu(0x67);
+    }
+
+    static byte[] h264Pps() {
+        return new BitWriter()
+                .ue(0).ue(0)      // pic_parameter_set_id, seq_parameter_set_id
+                .u(1, 1).u(1, 0)  // CABAC, bottom_field_pic_order_in_frame_present_flag
+                .ue(0).ue(0).ue(0) // slice groups, default reference indices
+                .u(1, 0).u(2, 0)  // no weighted prediction
+                .se(0).se(0).se(0) // QP and chroma QP offsets
+                .u(1, 1).u(1, 0).u(1, 0)
+                .toNalu(0x68);
+    }
+
+    // Writes a NALU whose payload is filler. The first payload bit is set only for the first
+    // slice of a picture, which is first_mb_in_slice == 0 for H.264 and
+    // first_slice_segment_in_pic_flag for HEVC.
+    private static void writeFillerNalu(ByteArrayOutputStream out, Random random, int length,
+                                        boolean firstSlice, int... header) {
+        out.write(START_CODE, 0, START_CODE.length);
+        for (int b : header) {
+            out.write(b);
+        }
+        out.write(firstSlice ? 0x80 | (1 + random.nextInt(0x7F)) : 0x40 | (1 + random.nextInt(0x3F)));
+        writeFiller(out, random, length - 1);
+    }
+
+    private static void writeFiller(ByteArrayOutputStream out, Random random, int length) {
+        for (int i = 0; i < length; i++) {
+            out.write(1 + random.nextInt(255));
+        }
+    }
+
+    // Each GOP is an SPS, PPS, and IDR frame followed by P-frames
+    static byte[] h264Stream(int gops, int framesPerGop, int slicesPerFrame, int sliceLength,
+                             int width, int height, int fps) {
+        Random random = new Random(gops * framesPerGop);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] sps = h264Sps(100, width, height, fps);
+        byte[] pps = h264Pps();
+
+        for (int gop = 0; gop < gops; gop++) {
+            out.write(sps, 0, sps.length);
+            out.write(pps, 0, pps.length);
+            for (int frame = 0; frame < framesPerGop; frame++) {
+                for (int slice = 0; slice < slicesPerFrame; slice++) {
+                    writeFillerNalu(out, random, sliceLength, slice == 0, frame == 0 ? 0x65 : 0x41);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Like h264Stream() but with VPS, SPS, and PPS filler and IDR_W_RADL/TRAIL_R slices
+    static byte[] hevcStream(int gops, int framesPerGop, int slicesPerFrame, int sliceLength) {
+        Random random = new Random(gops * framesPerGop);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int gop = 0; gop < gops; gop++) {
+            writeFillerNalu(out, random, 24, true, 32 << 1, 0x01);
+            writeFillerNalu(out, random, 40, true, 33 << 1, 0x01);
+            writeFillerNalu(out, random, 8, true, 34 << 1, 0x01);
+            for (int frame = 0; frame < framesPerGop; frame++) {
+                for (int slice = 0; slice < slicesPerFrame; slice++) {
+                    writeFillerNalu(out, random, sliceLength, slice == 0, frame == 0 ? 19 << 1 : 1 << 1, 0x01);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeObu(ByteArrayOutputStream out, Random random, int obuType, int length) {
+        // obu_has_size_field is set and the size is leb128 coded
+        out.write((obuType << 3) | 0x2);
+        int size = length;
+        do {
+            int b = size & 0x7F;
+            size >>>= 7;
+            out.write(size != 0 ? b | 0x80 : b);
+        } while (size != 0);
+        writeFiller(out, random, length);
+    }
+
+    // Each temporal unit is a temporal delimiter and a frame OBU. Key frames also have a
+    // sequence header.
+    static byte[] av1Stream(int gops, int framesPerGop, int frameLength) {
+        Random random = new Random(gops * framesPerGop);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int gop = 0; gop < gops; gop++) {
+            for (int frame = 0; frame < framesPerGop; frame++) {
+                writeObu(out, random, 2, 0);
+                if (frame == 0) {
+                    writeObu(out, random, 1, 12);
+                }
+                writeObu(out, random, 6, frameLength);
+            }
+        }
+        return out.toByteArray();
+    }
+}
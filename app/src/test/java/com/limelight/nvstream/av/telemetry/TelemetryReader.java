@@ -0,0 +1,98 @@
+package com.limelight.nvstream.av.telemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads a session telemetry log written by TelemetryRecorder
+class TelemetryReader {
+    public static class Record {
+        public byte eventType;
+        public int frameType;
+        public char hostProcessingLatency;
+        public int frameNumber;
+        public long eventTimeUs;
+        public long valueA;
+        public long valueB;
+    }
+
+    private final ByteBuffer buffer;
+    private final int recordCount;
+    private final long startWallTimeMs;
+    private final long startTimeUs;
+    private int nextRecord;
+
+    public TelemetryReader(File logFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "r")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        buffer.order(TelemetryFormat.BYTE_ORDER);
+
+        if (buffer.limit() < TelemetryFormat.HEADER_SIZE ||
+                buffer.getInt(TelemetryFormat.HEADER_OFFSET_MAGIC) != TelemetryFormat.MAGIC) {
+            throw new IOException("Not a telemetry log: "+logFile);
+        }
+        if (buffer.getShort(TelemetryFormat.HEADER_OFFSET_VERSION) != TelemetryFormat.VERSION ||
+                buffer.getShort(TelemetryFormat.HEADER_OFFSET_RECORD_SIZE) != TelemetryFormat.RECORD_SIZE) {
+            throw new IOException("Unsupported telemetry log version: "+
+                    buffer.getShort(TelemetryFormat.HEADER_OFFSET_VERSION));
+        }
+
+        startWallTimeMs = buffer.getLong(TelemetryFormat.HEADER_OFFSET_START_WALL_TIME_MS);
+        startTimeUs = buffer.getLong(TelemetryFormat.HEADER_OFFSET_START_TIME_US);
+
+        int maxRecords = (buffer.limit() - TelemetryFormat.HEADER_SIZE) / TelemetryFormat.RECORD_SIZE;
+        int count = buffer.getInt(TelemetryFormat.HEADER_OFFSET_RECORD_COUNT);
+        if (count <= 0 || count > maxRecords) {
+            // The session didn't end cleanly, so read until the first empty slot
+            count = maxRecords;
+        }
+        recordCount = count;
+    }
+
+    public long getStartWallTimeMs() {
+        return startWallTimeMs;
+    }
+
+    public long getStartTimeUs() {
+        return startTimeUs;
+    }
+
+    // Fills the provided record and returns true, or returns false at the end of the log
+    public boolean next(Record record) {
+        boolean closedCleanly = buffer.getInt(TelemetryFormat.HEADER_OFFSET_RECORD_COUNT) == recordCount;
+        int offset;
+        byte eventType;
+        for (;;) {
+            if (nextRecord >= recordCount) {
+                return false;
+            }
+
+            offset = TelemetryFormat.HEADER_SIZE + nextRecord * TelemetryFormat.RECORD_SIZE;
+            eventType = buffer.get(offset + TelemetryFormat.RECORD_OFFSET_EVENT_TYPE);
+            if (eventType != TelemetryFormat.EVENT_NONE) {
+                break;
+            }
+            else if (!closedCleanly) {
+                // This is the end of a log that wasn't closed
+                return false;
+            }
+
+            // Skip a record that was claimed but never finished
+            nextRecord++;
+        }
+
+        record.eventType = eventType;
+        record.frameType = buffer.get(offset + TelemetryFormat.RECORD_OFFSET_FRAME_TYPE) & 0xFF;
+        record.hostProcessingLatency = buffer.getChar(offset + TelemetryFormat.RECORD_OFFSET_HOST_LATENCY);
+        record.frameNumber = buffer.getInt(offset + TelemetryFormat.RECORD_OFFSET_FRAME_NUMBER);
+        record.eventTimeUs = buffer.getLong(offset + TelemetryFormat.RECORD_OFFSET_EVENT_TIME_US);
+        record.valueA = buffer.getLong(offset + TelemetryFormat.RECORD_OFFSET_VALUE_A);
+        record.valueB = buffer.getLong(offset + TelemetryFormat.RECORD_OFFSET_VALUE_B);
+
+        nextRecord++;
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+package com.limelight.nvstream.av.telemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+// Summarizes a session telemetry log. TelemetryTest checks the summary of synthetic sessions,
+// and main() prints it for logs pulled from a device (adb pull /data/data/<package>/cache/telemetry)
+// using the unit test classpath:
+//
+//   java -cp <test classpath> com.limelight.nvstream.av.telemetry.TelemetrySummarizer session-*.mltl
+class TelemetrySummarizer {
+    // A frame interval this many times longer than the median is counted as a stutter
+    private static final double STUTTER_THRESHOLD = 1.5;
+
+    static class Samples {
+        private long[] values = new long[1024];
+        private int count;
+
+        void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, count);
+        }
+
+        // Must be sorted first
+        long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(count * percentile / 100) - 1;
+            return values[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+
+    private static class FrameTimes {
+        long receiveUs;
+        long submitUs;
+        long decodedUs;
+    }
+
+    final Samples networkUs = new Samples();
+    final Samples submitUs = new Samples();
+    final Samples decodeUs = new Samples();
+    final Samples renderUs = new Samples();
+    final Samples hostUs = new Samples();
+    final Samples renderIntervalUs = new Samples();
+    final Samples pendingAudioMs = new Samples();
+
+    int submittedFrames;
+    int idrFrames;
+    int renderedFrames;
+    int droppedFrames;
+    int missingFrames;
+    int audioPackets;
+    int droppedAudioPackets;
+    private long firstEventUs = -1;
+    private long lastEventUs;
+
+    void summarize(TelemetryReader reader) {
+        HashMap<Long, FrameTimes> framesByPts = new HashMap<>();
+        TelemetryReader.Record record = new TelemetryReader.Record();
+        int lastFrameNumber = 0;
+        long lastRenderUs = -1;
+
+        while (reader.next(record)) {
+            if (firstEventUs < 0) {
+                firstEventUs = record.eventTimeUs;
+            }
+            lastEventUs = Math.max(lastEventUs, record.eventTimeUs);
+
+            switch (record.eventType) {
+                case TelemetryFormat.EVENT_VIDEO_SUBMIT: {
+                    submittedFrames++;
+                    if (record.frameType != 0) {
+                        idrFrames++;
+                    }
+                    if (lastFrameNumber != 0 && record.frameNumber > lastFrameNumber + 1) {
+                        missingFrames += record.frameNumber - lastFrameNumber - 1;
+                    }
+                    lastFrameNumber = record.frameNumber;
+
+                    FrameTimes frame = new FrameTimes();
+                    frame.receiveUs = record.valueA;
+                    frame.submitUs = record.eventTimeUs;
+                    framesByPts.put(record.valueB, frame);
+
+                    // The PTS is the enqueue time from the network thread
+                    networkUs.add(record.valueB - record.valueA);
+                    submitUs.add(record.eventTimeUs - record.valueB);
+                    hostUs.add(record.hostProcessingLatency * 100L);
+                    break;
+                }
+
+                case TelemetryFormat.EVENT_VIDEO_DECODED: {
+                    FrameTimes frame = framesByPts.get(record.valueA);
+                    if (frame != null) {
+                        frame.decodedUs = record.eventTimeUs;
+                        decodeUs.add(record.eventTimeUs - frame.submitUs);
+                    }
+                    break;
+                }
+
+                case TelemetryFormat.EVENT_VIDEO_RENDERED: {
+                    renderedFrames++;
+                    FrameTimes frame = framesByPts.remove(record.valueA);
+                    if (frame != null && frame.decodedUs != 0) {
+                        renderUs.add(record.eventTimeUs - frame.decodedUs);
+                    }
+                    if (lastRenderUs >= 0) {
+                        renderIntervalUs.add(record.eventTimeUs - lastRenderUs);
+                    }
+                    lastRenderUs = record.eventTimeUs;
+                    break;
+                }
+
+                case TelemetryFormat.EVENT_VIDEO_DROPPED:
+                    droppedFrames++;
+                    framesByPts.remove(record.valueA);
+                    break;
+
+                case TelemetryFormat.EVENT_AUDIO_PLAYED:
+                    audioPackets++;
+                    if (record.valueB < 0) {
+                        droppedAudioPackets++;
+                    }
+                    pendingAudioMs.add(record.valueA);
+                    break;
+
+                default:
+                    // Ignore events from newer versions
+                    break;
+            }
+        }
+    }
+
+    private static void printDistribution(PrintStream out, String name, Samples samples, double divisor, String unit) {
+        samples.sort();
+        out.printf("  %-28s p50 %8.2f  p95 %8.2f  p99 %8.2f  max %8.2f %s (%d samples)%n", name,
+                samples.getPercentile(50) / divisor, samples.getPercentile(95) / divisor,
+                samples.getPercentile(99) / divisor, samples.getPercentile(100) / divisor,
+                unit, samples.getCount());
+    }
+
+    // Render intervals longer than STUTTER_THRESHOLD times the median
+    int getStutters() {
+        renderIntervalUs.sort();
+        long medianIntervalUs = renderIntervalUs.getPercentile(50);
+        int stutters = 0;
+        for (int i = 0; i < renderIntervalUs.getCount(); i++) {
+            if (renderIntervalUs.values[i] > medianIntervalUs * STUTTER_THRESHOLD) {
+                stutters++;
+            }
+        }
+        return stutters;
+    }
+
+    private void print(PrintStream out, TelemetryReader reader) {
+        double durationSec = (lastEventUs - Math.max(firstEventUs, 0)) / 1000000.0;
+
+        out.println("Session start: "+new Date(reader.getStartWallTimeMs()));
+        out.printf("Duration: %.1f s%n", durationSec);
+        out.println();
+
+        out.println("Video:");
+        out.printf("  Frames submitted: %d (%d IDR), rendered: %d, dropped by renderer: %d, lost before decoder: %d%n",
+                submittedFrames, idrFrames, renderedFrames, droppedFrames, missingFrames);
+        if (durationSec > 0) {
+            out.printf("  Average rendered FPS: %.2f%n", renderedFrames / durationSec);
+        }
+        printDistribution(out, "Host processing latency", hostUs, 1000.0, "ms");
+        printDistribution(out, "Receive to enqueue", networkUs, 1000.0, "ms");
+        printDistribution(out, "Enqueue to decoder submit", submitUs, 1000.0, "ms");
+        printDistribution(out, "Decoder submit to output", decodeUs, 1000.0, "ms");
+        printDistribution(out, "Decoder output to render", renderUs, 1000.0, "ms");
+        printDistribution(out, "Render interval", renderIntervalUs, 1000.0, "ms");
+
+        out.printf("  Stutters (interval > %.1fx median): %d%n", STUTTER_THRESHOLD, getStutters());
+        out.println();
+
+        out.println("Audio:");
+        out.printf("  Packets: %d, dropped: %d%n", audioPackets, droppedAudioPackets);
+        printDistribution(out, "Pending audio duration", pendingAudioMs, 1.0, "ms");
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: TelemetrySummarizer <log file>...");
+            System.exit(1);
+        }
+
+        for (String arg : args) {
+            System.out.println("=== "+arg+" ===");
+            try {
+                TelemetryReader reader = new TelemetryReader(new File(arg));
+                TelemetrySummarizer summarizer = new TelemetrySummarizer();
+                summarizer.summarize(reader);
+                summarizer.print(System.out, reader);
+            } catch (IOException e) {
+                System.err.println("Failed to read "+arg+": "+e.getMessage());
+            }
+            System.out.println();
+        }
+    }
+}
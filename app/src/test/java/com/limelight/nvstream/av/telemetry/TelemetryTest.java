@@ -0,0 +1,162 @@
+package com.limelight.nvstream.av.telemetry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetryTest {
+    private static final long FRAME_INTERVAL_US = 16667;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createLog() throws IOException {
+        File directory = folder.newFolder();
+        TelemetryRecorder recorder = TelemetryRecorder.create(directory);
+        recorder.close();
+
+        File[] logs = directory.listFiles();
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        assertTrue(logs[0].getName().endsWith(TelemetryRecorder.FILE_SUFFIX));
+        return logs[0];
+    }
+
+    // Records a session of frameCount frames at 60 FPS. Frame 5 is rendered a whole frame
+    // late, frame 7 is dropped by the renderer, and frame 9 never reaches the decoder.
+    private static void recordSession(TelemetryRecorder recorder, int frameCount) {
+        long renderTimeUs = 1000000;
+        for (int frame = 1; frame <= frameCount; frame++) {
+            if (frame == 9) {
+                continue;
+            }
+
+            long ptsUs = frame * FRAME_INTERVAL_US;
+            recorder.recordVideoSubmit(frame, frame == 1 ? 1 : 0, (char) 45, frame * 16, ptsUs);
+            recorder.recordVideoDecoded(ptsUs);
+            if (frame == 7) {
+                recorder.recordVideoDropped(ptsUs);
+                continue;
+            }
+
+            renderTimeUs += frame == 5 ? 2 * FRAME_INTERVAL_US : FRAME_INTERVAL_US;
+            recorder.recordVideoRendered(ptsUs, renderTimeUs);
+            recorder.recordAudioPlayed(20, 240, frame == 3);
+        }
+    }
+
+    @Test
+    public void recordsRoundTrip() throws IOException {
+        File directory = folder.newFolder();
+        TelemetryRecorder recorder = TelemetryRecorder.create(directory);
+        recorder.recordVideoSubmit(42, 1, (char) 123, 5000, 77000);
+        recorder.recordVideoRendered(77000, 91000);
+        recorder.recordAudioPlayed(30, 480, true);
+        recorder.close();
+
+        File[] logs = directory.listFiles();
+        assertNotNull(logs);
+        TelemetryReader reader = new TelemetryReader(logs[0]);
+        TelemetryReader.Record record = new TelemetryReader.Record();
+
+        assertTrue(reader.next(record));
+        assertEquals(TelemetryFormat.EVENT_VIDEO_SUBMIT, record.eventType);
+        assertEquals(1, record.frameType);
+        assertEquals(123, record.hostProcessingLatency);
+        assertEquals(42, record.frameNumber);
+        assertEquals(5000000, record.valueA);
+        assertEquals(77000, record.valueB);
+
+        assertTrue(reader.next(record));
+        assertEquals(TelemetryFormat.EVENT_VIDEO_RENDERED, record.eventType);
+        assertEquals(91000, record.eventTimeUs);
+        assertEquals(77000, record.valueA);
+
+        assertTrue(reader.next(record));
+        assertEquals(TelemetryFormat.EVENT_AUDIO_PLAYED, record.eventType);
+        assertEquals(30, record.valueA);
+        assertEquals(-480, record.valueB);
+
+        assertFalse(reader.next(record));
+    }
+
+    @Test
+    public void emptyLogHasNoRecords() throws IOException {
+        TelemetryReader reader = new TelemetryReader(createLog());
+        assertFalse(reader.next(new TelemetryReader.Record()));
+    }
+
+    @Test
+    public void readsLogThatWasNotClosed() throws IOException {
+        File directory = folder.newFolder();
+        TelemetryRecorder recorder = TelemetryRecorder.create(directory);
+        recordSession(recorder, 10);
+
+        // The record count is only written on close, so the reader has to stop at the
+        // first empty slot instead
+        File[] logs = directory.listFiles();
+        assertNotNull(logs);
+        TelemetrySummarizer summarizer = new TelemetrySummarizer();
+        summarizer.summarize(new TelemetryReader(logs[0]));
+        assertEquals(9, summarizer.submittedFrames);
+
+        recorder.close();
+    }
+
+    @Test
+    public void recordsAfterCloseAreDiscarded() throws IOException {
+        File directory = folder.newFolder();
+        TelemetryRecorder recorder = TelemetryRecorder.create(directory);
+        recorder.recordVideoDecoded(1000);
+        recorder.close();
+        recorder.recordVideoDecoded(2000);
+
+        File[] logs = directory.listFiles();
+        assertNotNull(logs);
+        TelemetryReader reader = new TelemetryReader(logs[0]);
+        TelemetryReader.Record record = new TelemetryReader.Record();
+        assertTrue(reader.next(record));
+        assertEquals(1000, record.valueA);
+        assertFalse(reader.next(record));
+    }
+
+    @Test
+    public void summarizesSession() throws IOException {
+        File directory = folder.newFolder();
+        TelemetryRecorder recorder = TelemetryRecorder.create(directory);
+        recordSession(recorder, 20);
+        recorder.close();
+
+        File[] logs = directory.listFiles();
+        assertNotNull(logs);
+        TelemetrySummarizer summarizer = new TelemetrySummarizer();
+        summarizer.summarize(new TelemetryReader(logs[0]));
+
+        assertEquals(19, summarizer.submittedFrames);
+        assertEquals(1, summarizer.idrFrames);
+        assertEquals(18, summarizer.renderedFrames);
+        assertEquals(1, summarizer.droppedFrames);
+        assertEquals(1, summarizer.missingFrames);
+        assertEquals(18, summarizer.audioPackets);
+        assertEquals(1, summarizer.droppedAudioPackets);
+        assertEquals(1, summarizer.getStutters());
+
+        // Host processing latency is recorded in units of 0.1 ms
+        summarizer.hostUs.sort();
+        assertEquals(4500, summarizer.hostUs.getPercentile(50));
+
+        // Frame N was received at N * 16 ms and enqueued at its PTS
+        summarizer.networkUs.sort();
+        assertEquals(FRAME_INTERVAL_US - 16000, summarizer.networkUs.getPercentile(0));
+        assertEquals(20 * (FRAME_INTERVAL_US - 16000), summarizer.networkUs.getPercentile(100));
+        assertEquals(18, summarizer.renderUs.getCount());
+    }
+}
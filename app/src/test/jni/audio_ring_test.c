@@ -0,0 +1,223 @@
+// Tests for the native audio ring. These run on the build machine rather than a
+// device, so run them with make -C app/src/test/jni.
+
+#include <pthread.h>
+#include <sched.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "audio_ring.h"
+
+#define CHANNELS 2
+#define FRAME_BYTES (CHANNELS * sizeof(short))
+
+// 40 ms at 48 kHz, with 5 ms packets like Opus gives us
+#define MAX_QUEUED_FRAMES 1920
+#define PACKET_FRAMES 240
+
+static int Failures;
+
+#define CHECK(condition) \
+    if (!(condition)) { \
+        fprintf(stderr, "%s:%d: %s failed\n", __func__, __LINE__, #condition); \
+        Failures++; \
+        return; \
+    }
+
+// Gives every frame a distinct, nonzero value so frames that are lost, repeated or
+// replaced by silence show up
+static void WritePacket(PAUDIO_RING ring, short* output, uint32_t frames, short* nextValue) {
+    for (uint32_t i = 0; i < frames; i++) {
+        output[i * CHANNELS] = *nextValue;
+        output[i * CHANNELS + 1] = (short)-*nextValue;
+        if (++*nextValue == 0) {
+            *nextValue = 1;
+        }
+    }
+    AudioRingCommitWrite(ring, frames);
+}
+
+static bool CheckFrames(const short* samples, uint32_t frames, short* nextValue) {
+    for (uint32_t i = 0; i < frames; i++) {
+        if (samples[i * CHANNELS] != *nextValue || samples[i * CHANNELS + 1] != (short)-*nextValue) {
+            fprintf(stderr, "Frame %u is %d, expected %d\n", i, samples[i * CHANNELS], *nextValue);
+            return false;
+        }
+        if (++*nextValue == 0) {
+            *nextValue = 1;
+        }
+    }
+    return true;
+}
+
+// Packets that don't divide the ring evenly wrap at a different spot each time around
+static void PacketsWrapAroundIntact(void) {
+    AUDIO_RING ring;
+    short readBuffer[(PACKET_FRAMES + 3) * CHANNELS];
+    short writeValue = 1, readValue = 1;
+
+    CHECK(AudioRingInit(&ring, MAX_QUEUED_FRAMES, PACKET_FRAMES, FRAME_BYTES) == 0);
+    uint32_t ringFrames = ring.mask + 1;
+    CHECK(ringFrames >= MAX_QUEUED_FRAMES + PACKET_FRAMES);
+
+    uint32_t wraps = 0;
+    for (int i = 0; i < 1000; i++) {
+        uint32_t frames = PACKET_FRAMES - i % 7;
+        short* output = AudioRingBeginWrite(&ring);
+        CHECK(output != NULL);
+
+        uint32_t start = atomic_load(&ring.writePos) & ring.mask;
+        if (start + frames > ringFrames) {
+            wraps++;
+        }
+        WritePacket(&ring, output, frames, &writeValue);
+
+        // Read in chunks that don't line up with the packets
+        uint32_t readFrames = i % 2 == 0 ? frames - 3 : frames + 3;
+        AudioRingRead(&ring, readBuffer, readFrames);
+        CHECK(CheckFrames(readBuffer, readFrames, &readValue));
+    }
+    CHECK(AudioRingGetQueuedFrames(&ring) == 0);
+
+    // Only packets that wrapped are copied on the way in
+    CHECK(wraps > 0);
+    CHECK(atomic_load(&ring.pcmCopies) == wraps + 1000);
+    CHECK(atomic_load(&ring.underruns) == 0);
+    CHECK(atomic_load(&ring.overruns) == 0);
+
+    AudioRingCleanup(&ring);
+}
+
+static void FullRingRejectsPackets(void) {
+    AUDIO_RING ring;
+    short value = 1;
+    int packets = 0;
+    short* output;
+
+    CHECK(AudioRingInit(&ring, MAX_QUEUED_FRAMES, PACKET_FRAMES, FRAME_BYTES) == 0);
+
+    while ((output = AudioRingBeginWrite(&ring)) != NULL) {
+        WritePacket(&ring, output, PACKET_FRAMES, &value);
+        packets++;
+    }
+
+    // We accept packets until more than the maximum is queued
+    CHECK(packets == MAX_QUEUED_FRAMES / PACKET_FRAMES + 1);
+    CHECK(AudioRingGetQueuedFrames(&ring) <= MAX_QUEUED_FRAMES + PACKET_FRAMES);
+    CHECK(atomic_load(&ring.overruns) == 1);
+
+    AudioRingDiscard(&ring);
+    CHECK(AudioRingGetQueuedFrames(&ring) == 0);
+    CHECK(AudioRingBeginWrite(&ring) != NULL);
+
+    AudioRingCleanup(&ring);
+}
+
+static void ShortReadsArePaddedWithSilence(void) {
+    AUDIO_RING ring;
+    short readBuffer[PACKET_FRAMES * CHANNELS];
+    short writeValue = 1, readValue = 1;
+
+    CHECK(AudioRingInit(&ring, MAX_QUEUED_FRAMES, PACKET_FRAMES, FRAME_BYTES) == 0);
+
+    // Nothing has arrived yet, so this isn't an underrun
+    memset(readBuffer, 0x55, sizeof(readBuffer));
+    AudioRingRead(&ring, readBuffer, PACKET_FRAMES);
+    for (int i = 0; i < PACKET_FRAMES * CHANNELS; i++) {
+        CHECK(readBuffer[i] == 0);
+    }
+    CHECK(atomic_load(&ring.underruns) == 0);
+
+    WritePacket(&ring, AudioRingBeginWrite(&ring), 100, &writeValue);
+    memset(readBuffer, 0x55, sizeof(readBuffer));
+    AudioRingRead(&ring, readBuffer, PACKET_FRAMES);
+    CHECK(CheckFrames(readBuffer, 100, &readValue));
+    for (int i = 100 * CHANNELS; i < PACKET_FRAMES * CHANNELS; i++) {
+        CHECK(readBuffer[i] == 0);
+    }
+    CHECK(atomic_load(&ring.underruns) == 1);
+    CHECK(AudioRingGetQueuedFrames(&ring) == 0);
+
+    AudioRingCleanup(&ring);
+}
+
+#define STRESS_PACKETS 200000
+
+static void* ProducerThread(void* context) {
+    PAUDIO_RING ring = context;
+    short value = 1;
+    int packets = 0;
+
+    while (packets < STRESS_PACKETS) {
+        short* output = AudioRingBeginWrite(ring);
+        if (output == NULL) {
+            sched_yield();
+            continue;
+        }
+
+        WritePacket(ring, output, PACKET_FRAMES - packets % 5, &value);
+        packets++;
+    }
+
+    return NULL;
+}
+
+// The consumer runs concurrently with the producer like the AAudio callback does, and
+// must see every frame in order with nothing torn by a wrap
+static void ConcurrentReadsSeeEveryFrame(void) {
+    AUDIO_RING ring;
+    pthread_t producer;
+    short readBuffer[192 * CHANNELS];
+    short readValue = 1;
+    uint64_t expectedFrames = 0, framesRead = 0;
+
+    for (int i = 0; i < STRESS_PACKETS; i++) {
+        expectedFrames += PACKET_FRAMES - i % 5;
+    }
+
+    CHECK(AudioRingInit(&ring, MAX_QUEUED_FRAMES, PACKET_FRAMES, FRAME_BYTES) == 0);
+    CHECK(pthread_create(&producer, NULL, ProducerThread, &ring) == 0);
+
+    while (framesRead < expectedFrames) {
+        uint32_t queued = AudioRingGetQueuedFrames(&ring);
+        uint32_t frames = queued < 192 ? queued : 192;
+        if (frames == 0) {
+            sched_yield();
+            continue;
+        }
+
+        AudioRingRead(&ring, readBuffer, frames);
+        if (!CheckFrames(readBuffer, frames, &readValue)) {
+            break;
+        }
+        framesRead += frames;
+    }
+
+    // The producer would never finish if we stopped reading
+    if (framesRead != expectedFrames) {
+        fprintf(stderr, "%s: frames out of order\n", __func__);
+        exit(1);
+    }
+
+    pthread_join(producer, NULL);
+    CHECK(atomic_load(&ring.underruns) == 0);
+
+    AudioRingCleanup(&ring);
+}
+
+int main(void) {
+    PacketsWrapAroundIntact();
+    FullRingRejectsPackets();
+    ShortReadsArePaddedWithSilence();
+    ConcurrentReadsSeeEveryFrame();
+
+    if (Failures != 0) {
+        fprintf(stderr, "%d audio ring test(s) failed\n", Failures);
+        return 1;
+    }
+
+    printf("Audio ring tests passed\n");
+    return 0;
+}
@@ -0,0 +1,83 @@
+package com.limelight.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Compares the two ways picture data gets from the native packet buffers into a MediaCodec
+// input buffer. Native memory and the codec buffer are both modeled as direct buffers.
+//
+// byteArrayPath() is the old path: each packet is copied into the Java frame array
+// (SetByteArrayRegion), then the whole array is copied into the codec buffer.
+// zeroCopyPath() is copyPendingDecodeUnitPicData(): each packet is copied into the codec
+// buffer directly.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeUnitCopyBenchmark {
+    // The video payload of each packet from moonlight-common-c
+    private static final int PACKET_PAYLOAD_SIZE = 1392;
+
+    // From a small P-frame up to a large IDR frame
+    @Param({"16384", "131072", "1048576"})
+    public int frameSize;
+
+    private ByteBuffer[] packets;
+    private byte[] frameArray;
+    private ByteBuffer inputBuffer;
+
+    @Setup
+    public void setup() {
+        int packetCount = (frameSize + PACKET_PAYLOAD_SIZE - 1) / PACKET_PAYLOAD_SIZE;
+        packets = new ByteBuffer[packetCount];
+        for (int i = 0; i < packetCount; i++) {
+            int length = Math.min(PACKET_PAYLOAD_SIZE, frameSize - i * PACKET_PAYLOAD_SIZE);
+            packets[i] = ByteBuffer.allocateDirect(length);
+            for (int j = 0; j < length; j++) {
+                packets[i].put(j, (byte) (i + j));
+            }
+        }
+
+        frameArray = new byte[frameSize];
+        inputBuffer = ByteBuffer.allocateDirect(frameSize);
+    }
+
+    @Benchmark
+    public ByteBuffer byteArrayPath() {
+        int offset = 0;
+        for (ByteBuffer packet : packets) {
+            int length = packet.remaining();
+            packet.get(frameArray, offset, length);
+            packet.rewind();
+            offset += length;
+        }
+
+        inputBuffer.clear();
+        inputBuffer.put(frameArray, 0, offset);
+        return inputBuffer;
+    }
+
+    @Benchmark
+    public ByteBuffer zeroCopyPath() {
+        inputBuffer.clear();
+        for (ByteBuffer packet : packets) {
+            inputBuffer.put(packet);
+            packet.rewind();
+        }
+        return inputBuffer;
+    }
+}
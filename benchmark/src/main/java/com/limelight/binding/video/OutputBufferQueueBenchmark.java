@@ -0,0 +1,83 @@
+package com.limelight.binding.video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Compares OutputBufferQueue with the LinkedBlockingQueue it replaced, with one thread adding
+// output buffer indices the way the renderer thread does and one thread polling them the way
+// the Choreographer callback does. Both queues discard the oldest index at the same limit.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBufferQueueBenchmark {
+    private static final int QUEUE_LIMIT = 2;
+
+    // MediaCodec only has a handful of output buffers
+    private static final int OUTPUT_BUFFER_COUNT = 16;
+
+    @State(Scope.Group)
+    public static class RingState {
+        final OutputBufferQueue queue = new OutputBufferQueue(QUEUE_LIMIT);
+        int nextIndex;
+    }
+
+    @State(Scope.Group)
+    public static class LinkedBlockingQueueState {
+        final LinkedBlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+        int nextIndex;
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public int ringAdd(RingState state) {
+        int index = state.nextIndex;
+        state.nextIndex = (index + 1) % OUTPUT_BUFFER_COUNT;
+        return state.queue.add(index);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public int ringPoll(RingState state) {
+        return state.queue.poll();
+    }
+
+    // The old renderer used take() to discard, which we can't do here without risking
+    // blocking forever once the consumer empties the queue. poll() takes the same lock.
+    @Benchmark
+    @Group("linkedBlockingQueue")
+    @GroupThreads(1)
+    public Integer linkedBlockingQueueAdd(LinkedBlockingQueueState state) {
+        int index = state.nextIndex;
+        state.nextIndex = (index + 1) % OUTPUT_BUFFER_COUNT;
+
+        Integer discarded = null;
+        if (state.queue.size() == QUEUE_LIMIT) {
+            discarded = state.queue.poll();
+        }
+        state.queue.add(index);
+        return discarded;
+    }
+
+    @Benchmark
+    @Group("linkedBlockingQueue")
+    @GroupThreads(1)
+    public Integer linkedBlockingQueuePoll(LinkedBlockingQueueState state) {
+        return state.queue.poll();
+    }
+}
@@ -0,0 +1,73 @@
+package com.limelight.binding.video;
+
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.VUIParameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Compares the SPS patching done on every IDR frame by H264SpsRewriter with the jcodec
+// parse and re-serialize it replaced, for the common case of a 1080p60 stream on a decoder
+// that takes bitstream restrictions. Run with -prof gc to see the allocations.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpsRewriteBenchmark {
+    // The payload (after the NALU header) of a 1080p60 High profile SPS with a VUI but no
+    // bitstream restrictions, like the ones GFE and Sunshine send
+    private static final byte[] SPS_PAYLOAD = {
+            0x64, 0x00, 0x28, (byte) 0xac, (byte) 0xb2, (byte) 0x80, (byte) 0xf0, 0x04, 0x4f, (byte) 0xcb,
+            0x35, 0x01, 0x01, 0x01, 0x40, 0x00, 0x00, 0x03, 0x00, 0x40, 0x00, 0x00, 0x1e, 0x01
+    };
+
+    private final H264SpsRewriter rewriter = new H264SpsRewriter();
+
+    @Setup
+    public void setup() {
+        rewriter.levelIdc = 42;
+        rewriter.numRefFrames = 1;
+        rewriter.bitstreamRestrictions = H264SpsRewriter.BITSTREAM_RESTRICTIONS_PATCH;
+        if (rewriter.rewrite(SPS_PAYLOAD, 0, SPS_PAYLOAD.length) < 0) {
+            throw new IllegalStateException("Unable to parse SPS");
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer jcodec() {
+        SeqParameterSet sps = H264Utils.readSPS(ByteBuffer.wrap(SPS_PAYLOAD));
+        sps.levelIdc = 42;
+        sps.numRefFrames = 1;
+        if (sps.vuiParams.bitstreamRestriction == null) {
+            sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
+            sps.vuiParams.bitstreamRestriction.motionVectorsOverPicBoundariesFlag = true;
+            sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
+            sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
+            sps.vuiParams.bitstreamRestriction.log2MaxMvLengthHorizontal = 16;
+            sps.vuiParams.bitstreamRestriction.log2MaxMvLengthVertical = 16;
+            sps.vuiParams.bitstreamRestriction.numReorderFrames = 0;
+        }
+        sps.vuiParams.bitstreamRestriction.maxDecFrameBuffering = sps.numRefFrames;
+        sps.constraintSet4Flag = false;
+        sps.constraintSet5Flag = false;
+        return H264Utils.writeSPS(sps, SPS_PAYLOAD.length + 64);
+    }
+
+    @Benchmark
+    public int rewriter() {
+        return rewriter.rewrite(SPS_PAYLOAD, 0, SPS_PAYLOAD.length);
+    }
+}